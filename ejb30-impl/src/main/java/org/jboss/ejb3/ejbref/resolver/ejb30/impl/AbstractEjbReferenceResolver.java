@@ -0,0 +1,550 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * Base class for the {@link EjbReferenceResolver}s which resolve a {@link EjbReference}
+ * by looking up the {@link JBossMetaData} attached to the {@link DeploymentUnit}s of a
+ * deployment hierarchy.
+ *
+ * <p>
+ *  Subclasses define the order in which the {@link DeploymentUnit}s are searched, through
+ *  {@link #resolveWithinDeploymentHierarchy(DeploymentUnit, EjbReference)}. If the reference
+ *  cannot be resolved within the hierarchy and a {@link GlobalBeanRegistry} has been set,
+ *  the beans of all the other deployments registered with it are considered.
+ * </p>
+ * <p>
+ *  Trees which have no {@link DeploymentTreeIndex} are scanned, unless an {@link AdaptiveIndexingPolicy} has been
+ *  set, which then decides whether they get one.
+ * </p>
+ * <p>
+ *  If a {@link ResolutionListener} has been set, it's notified of the session bean which
+ *  each successfully resolved reference resolved to.
+ * </p>
+ * <p>
+ *  The latency of each resolution is recorded by the {@link ResolutionStatistics} of the resolver,
+ *  if one has been set, per strategy and outcome and in the {@link DeploymentResolutionSummary}
+ *  of the deployment.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public abstract class AbstractEjbReferenceResolver implements EjbReferenceResolver
+{
+
+   private static Logger logger = Logger.getLogger(AbstractEjbReferenceResolver.class);
+
+   /** The resolver which will be passed the bean metadata to resolve the jndi-name */
+   protected MetaDataBasedEjbReferenceResolver metadataBasedEjbReferenceResolver;
+
+   /** The (optional) server-wide registry used once the deployment hierarchy is exhausted */
+   private volatile GlobalBeanRegistry globalBeanRegistry;
+
+   /** Whether the {@link DeploymentTreeIndex} of the trees is used, if they have one */
+   private volatile boolean indexUsed = true;
+
+   /** Decides which of the trees without an index get one, null to leave them unindexed */
+   private volatile AdaptiveIndexingPolicy indexingPolicy;
+
+   /** The (optional) listener notified of each resolution */
+   private volatile ResolutionListener resolutionListener;
+
+   /** The bean matched by the current resolution of the calling thread, tracked only if there's a listener */
+   private final ThreadLocal<ResolvedTarget> resolvedTarget = new ThreadLocal<ResolvedTarget>();
+
+   /** The (optional) recorder of the latencies of the resolutions */
+   private volatile ResolutionStatistics statistics;
+
+   /** How the current resolution of the calling thread resolved, tracked only if there are statistics */
+   private final ThreadLocal<ResolutionStatistics.Strategy> resolvedStrategy =
+      new ThreadLocal<ResolutionStatistics.Strategy>();
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   {
+      ResolutionStatistics statistics = this.statistics;
+      if (statistics == null)
+      {
+         return this.resolve(du, reference);
+      }
+      ResolutionStatistics.Outcome outcome = ResolutionStatistics.Outcome.FAILED;
+      long classLoads = EJB30MetaDataBasedEjbReferenceResolver.getClassLoadCount();
+      long start = System.nanoTime();
+      try
+      {
+         String jndiName = this.resolve(du, reference);
+         outcome = ResolutionStatistics.Outcome.RESOLVED;
+         return jndiName;
+      }
+      catch (UnresolvableReferenceException ure)
+      {
+         outcome = ResolutionStatistics.Outcome.UNRESOLVABLE;
+         throw ure;
+      }
+      catch (NonDeterministicInterfaceException ndie)
+      {
+         outcome = ResolutionStatistics.Outcome.AMBIGUOUS;
+         throw ndie;
+      }
+      finally
+      {
+         long nanos = System.nanoTime() - start;
+         ResolutionStatistics.Strategy strategy = this.resolvedStrategy.get();
+         this.resolvedStrategy.remove();
+         if (strategy == null)
+         {
+            strategy = this.indexUsed && DeploymentTreeIndex.getDeploymentTreeIndex(du) != null
+                  ? ResolutionStatistics.Strategy.INDEX
+                  : ResolutionStatistics.Strategy.SCAN;
+         }
+         statistics.record(du, reference, strategy, outcome, nanos,
+               EJB30MetaDataBasedEjbReferenceResolver.getClassLoadCount() - classLoads);
+      }
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference}: through its mapped-name, within the deployment hierarchy
+    * of the passed {@link DeploymentUnit} or else through the {@link GlobalBeanRegistry}, if any.
+    * 
+    * @param du
+    * @param reference
+    * @return
+    * @throws UnresolvableReferenceException If the reference cannot be resolved
+    */
+   private String resolve(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   {
+      // If mapped-name is specified, just use it
+      String mappedName = reference.getMappedName();
+      if (this.isMappedName(mappedName))
+      {
+         logger.debug("Bypassing resolution, using mappedName of " + reference);
+         if (this.statistics != null)
+         {
+            this.resolvedStrategy.set(ResolutionStatistics.Strategy.MAPPED_NAME);
+         }
+         return mappedName;
+      }
+
+      // Resolve within the deployment
+      ResolutionListener listener = this.resolutionListener;
+      String jndiName;
+      ResolvedTarget target = null;
+      try
+      {
+         jndiName = this.resolveWithinDeploymentHierarchy(du, reference);
+         if (listener != null)
+         {
+            target = this.resolvedTarget.get();
+         }
+      }
+      finally
+      {
+         if (listener != null)
+         {
+            this.resolvedTarget.remove();
+         }
+      }
+      if (jndiName != null && target != null)
+      {
+         listener.referenceResolved(du, reference, target.du, target.ejbName, jndiName);
+      }
+
+      // Fall back to the beans of the other deployments
+      GlobalBeanRegistry registry = this.globalBeanRegistry;
+      if (jndiName == null && registry != null)
+      {
+         MetaDataBasedEjbReferenceResolver resolver = this.getMetaDataBasedEjbReferenceResolver();
+         if (registry.isCompatibleWith(resolver))
+         {
+            jndiName = registry.resolveEjb(du, reference, resolver, listener);
+         }
+         else
+         {
+            logger.debug("Not resolving " + reference + " through the global bean registry, its beans are "
+                  + "described by another type of resolver than " + resolver);
+         }
+      }
+
+      // Check that we could resolve
+      if (jndiName == null)
+      {
+         throw new UnresolvableReferenceException(this.getUnresolvableMessage(du, reference));
+      }
+
+      // Return
+      return jndiName;
+   }
+
+   /**
+    * Returns true if the passed mapped-name of a reference is used as is, instead of resolving
+    * the reference. By default, a mapped-name which isn't blank is used.
+    * 
+    * @param mappedName The mapped-name of the reference, can be null
+    * @return
+    */
+   protected boolean isMappedName(String mappedName)
+   {
+      return mappedName != null && mappedName.trim().length() > 0;
+   }
+
+   /**
+    * Returns the message of the {@link UnresolvableReferenceException} thrown when the passed
+    * {@link EjbReference} cannot be resolved
+    * 
+    * @param du The {@link DeploymentUnit} from which the reference is being resolved
+    * @param reference The {@link EjbReference} which is being resolved
+    * @return
+    */
+   protected String getUnresolvableMessage(DeploymentUnit du, EjbReference reference)
+   {
+      return "Could not resolve reference " + reference + " for " + DeploymentUnit.class.getSimpleName() + " " + du;
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference} within the deployment hierarchy of the passed
+    * {@link DeploymentUnit}. The mapped-name of the reference has already been taken care of.
+    * 
+    * @param du The {@link DeploymentUnit} from which the reference is being resolved
+    * @param reference The {@link EjbReference} which is being resolved
+    * @return Returns the resolved jndi-name, or null if the reference cannot be resolved
+    *           within the hierarchy
+    */
+   protected abstract String resolveWithinDeploymentHierarchy(DeploymentUnit du, EjbReference reference);
+
+   /**
+    * Resolves the passed {@link EjbReference} against the session beans of the passed {@link DeploymentUnit}
+    * only. If the deployment tree has a {@link DeploymentTreeIndex}, only the candidate beans returned
+    * by the index of the unit are considered.
+    * 
+    * @param du The {@link DeploymentUnit} whose beans are searched
+    * @param reference The {@link EjbReference} which is being resolved
+    * @return Returns the resolved jndi-name, or null if no bean of the unit matches the reference
+    */
+   protected String resolveInDeploymentUnit(DeploymentUnit du, EjbReference reference)
+   {
+      return this.resolveInDeploymentUnit(du, this.getDeploymentTreeIndex(du), reference);
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference} against the session beans of the passed {@link DeploymentUnit}
+    * only, using the passed {@link DeploymentTreeIndex} (if any) of its deployment tree. Walks over a tree
+    * look the index up once and use this method for each unit they visit. The index is used only if it
+    * is compatible with the {@link MetaDataBasedEjbReferenceResolver} of this resolver.
+    * 
+    * @param du The {@link DeploymentUnit} whose beans are searched
+    * @param treeIndex The index of the deployment tree of the unit, or null if the tree isn't indexed
+    * @param reference The {@link EjbReference} which is being resolved
+    * @return Returns the resolved jndi-name, or null if no bean of the unit matches the reference
+    */
+   protected String resolveInDeploymentUnit(DeploymentUnit du, DeploymentTreeIndex treeIndex, EjbReference reference)
+   {
+      MetaDataBasedEjbReferenceResolver resolver = this.getMetaDataBasedEjbReferenceResolver();
+      AdaptiveIndexingPolicy policy = this.indexingPolicy;
+      if (treeIndex != null && treeIndex.isCompatibleWith(resolver)
+            && (policy == null || policy.isIndexed(treeIndex, du)))
+      {
+         DeploymentUnitIndex index = treeIndex.getDeploymentUnitIndex(du);
+         String jndiName = index.resolveEjb(reference);
+         // keep track of the matched bean, for the listener
+         if (jndiName != null && this.resolutionListener != null)
+         {
+            BeanDescriptor sessionBean = index.findSessionBean(reference);
+            if (sessionBean != null)
+            {
+               this.resolvedTarget.set(new ResolvedTarget(du, sessionBean.getEjbName()));
+            }
+         }
+         if (jndiName != null && this.statistics != null)
+         {
+            this.resolvedStrategy.set(ResolutionStatistics.Strategy.INDEX);
+         }
+         return jndiName;
+      }
+
+      JBossMetaData metadata = this.getMetaData(du);
+      if (metadata == null)
+      {
+         return null;
+      }
+      String jndiName = resolver.resolveEjb(reference, metadata, du.getClassLoader());
+
+      // keep track of the matched bean, for the listener
+      if (jndiName != null && this.resolutionListener != null)
+      {
+         JBossSessionBeanMetaData sessionBean = this.findResolvedSessionBean(du, metadata, reference);
+         if (sessionBean != null)
+         {
+            this.resolvedTarget.set(new ResolvedTarget(du, sessionBean.getEjbName()));
+         }
+      }
+      if (jndiName != null && this.statistics != null)
+      {
+         this.resolvedStrategy.set(ResolutionStatistics.Strategy.SCAN);
+      }
+      return jndiName;
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference} through the {@link FrozenDeploymentIndex} of the passed
+    * {@link DeploymentTreeIndex}, if the tree is frozen. The frozen resolutions are those of a first
+    * match walk of the tree, from its top-level unit.
+    * 
+    * @param treeIndex The index of the deployment tree, or null if the tree isn't indexed
+    * @param reference The {@link EjbReference} which is being resolved
+    * @return Returns the frozen jndi-name, or null if the reference must be resolved the usual way
+    */
+   protected String resolveInFrozenIndex(DeploymentTreeIndex treeIndex, EjbReference reference)
+   {
+      if (treeIndex == null)
+      {
+         return null;
+      }
+      FrozenDeploymentIndex frozen = treeIndex.getFrozenIndex();
+      if (frozen == null || !treeIndex.isCompatibleWith(this.getMetaDataBasedEjbReferenceResolver()))
+      {
+         return null;
+      }
+      int slot = frozen.getSlot(reference.getBeanName(), reference.getBeanInterface());
+      if (slot == FrozenDeploymentIndex.NO_SLOT)
+      {
+         return null;
+      }
+      // keep track of the matched bean, for the listener
+      String targetEjbName = this.resolutionListener == null ? null : frozen.getTargetEjbName(slot);
+      if (targetEjbName != null)
+      {
+         this.resolvedTarget.set(new ResolvedTarget(frozen.getTargetDeploymentUnit(slot), targetEjbName));
+      }
+      if (this.statistics != null)
+      {
+         this.resolvedStrategy.set(ResolutionStatistics.Strategy.FROZEN);
+      }
+      return frozen.getJndiName(slot);
+   }
+
+   /**
+    * Sets the server-wide registry of beans, which will be used to resolve references which
+    * cannot be resolved within the deployment hierarchy of the requesting {@link DeploymentUnit}.
+    * Pass null to resolve within the deployment hierarchy only (the default).
+    * 
+    * @param globalBeanRegistry
+    */
+   public void setGlobalBeanRegistry(GlobalBeanRegistry globalBeanRegistry)
+   {
+      this.globalBeanRegistry = globalBeanRegistry;
+   }
+
+   /**
+    * Returns the server-wide registry of beans used by this resolver, if any
+    * @return
+    */
+   public GlobalBeanRegistry getGlobalBeanRegistry()
+   {
+      return this.globalBeanRegistry;
+   }
+
+   /**
+    * Sets whether the {@link DeploymentTreeIndex} (and the {@link FrozenDeploymentIndex}) of the deployment
+    * trees is used. If not, the metadata of each visited unit is scanned, as it is for trees which have
+    * no index: that's the reference behaviour the indexed resolution is checked against
+    * (see {@link ShadowEjbReferenceResolver}). The index is used by default.
+    * 
+    * @param indexUsed
+    */
+   public void setIndexUsed(boolean indexUsed)
+   {
+      this.indexUsed = indexUsed;
+   }
+
+   /**
+    * Returns whether the {@link DeploymentTreeIndex} of the deployment trees is used
+    * @return
+    */
+   public boolean isIndexUsed()
+   {
+      return this.indexUsed;
+   }
+
+   /**
+    * Sets the policy which decides whether the trees which have no {@link DeploymentTreeIndex} get one,
+    * and which of their units are indexed. Pass null to leave such trees unindexed (the default).
+    * <p>
+    * The policy attaches the indexes to the deployments, so it must only be set if the deployers of
+    * the server keep them up to date, see {@link AdaptiveIndexingPolicy}.
+    * </p>
+    * 
+    * @param indexingPolicy
+    */
+   public void setIndexingPolicy(AdaptiveIndexingPolicy indexingPolicy)
+   {
+      this.indexingPolicy = indexingPolicy;
+   }
+
+   /**
+    * Returns the policy which decides whether the trees which have no index get one, if any
+    * @return
+    */
+   public AdaptiveIndexingPolicy getIndexingPolicy()
+   {
+      return this.indexingPolicy;
+   }
+
+   /**
+    * Sets the recorder of the latencies of the resolutions of this resolver. Pass null to stop
+    * recording them. Resolutions aren't recorded by default.
+    * 
+    * @param statistics
+    */
+   public void setResolutionStatistics(ResolutionStatistics statistics)
+   {
+      this.statistics = statistics;
+   }
+
+   /**
+    * Returns the recorder of the latencies of the resolutions of this resolver, if any
+    * @return
+    */
+   public ResolutionStatistics getResolutionStatistics()
+   {
+      return this.statistics;
+   }
+
+   /**
+    * Sets the listener which will be notified of the session bean which each reference resolved to.
+    * Pass null to stop notifying (the default).
+    * 
+    * @param resolutionListener
+    */
+   public void setResolutionListener(ResolutionListener resolutionListener)
+   {
+      this.resolutionListener = resolutionListener;
+   }
+
+   /**
+    * Returns the listener notified of the resolutions, if any
+    * @return
+    */
+   public ResolutionListener getResolutionListener()
+   {
+      return this.resolutionListener;
+   }
+
+   /**
+    * Returns the session bean, of the passed {@link DeploymentUnit}, which the passed reference
+    * has been resolved to
+    * 
+    * @param du
+    * @param metadata The metadata of the unit
+    * @param reference
+    * @return Returns the session bean, or null if the {@link MetaDataBasedEjbReferenceResolver} of this
+    *           resolver can't resolve a reference against a single bean
+    */
+   private JBossSessionBeanMetaData findResolvedSessionBean(DeploymentUnit du, JBossMetaData metadata,
+         EjbReference reference)
+   {
+      MetaDataBasedEjbReferenceResolver resolver = this.getMetaDataBasedEjbReferenceResolver();
+      if (!(resolver instanceof IndexableEjbReferenceResolver))
+      {
+         return null;
+      }
+      // the reference has been resolved, so exactly one of the session beans matches
+      for (JBossEnterpriseBeanMetaData bean : metadata.getEnterpriseBeans())
+      {
+         if (bean instanceof JBossSessionBeanMetaData
+               && ((IndexableEjbReferenceResolver) resolver).resolveEjb(reference, (JBossSessionBeanMetaData) bean,
+                     du.getClassLoader()) != null)
+         {
+            return (JBossSessionBeanMetaData) bean;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns the {@link DeploymentTreeIndex} of the tree of the passed unit, or null if the tree
+    * has none or if the index isn't used by this resolver. Called once per resolution, so a tree
+    * without an index may get one, as decided by the {@link AdaptiveIndexingPolicy} (if any).
+    * 
+    * @param du
+    * @return
+    */
+   protected DeploymentTreeIndex getDeploymentTreeIndex(DeploymentUnit du)
+   {
+      if (!this.indexUsed)
+      {
+         return null;
+      }
+      AdaptiveIndexingPolicy policy = this.indexingPolicy;
+      return policy == null ? DeploymentTreeIndex.getDeploymentTreeIndex(du) : policy.getDeploymentTreeIndex(du,
+            this.getMetaDataBasedEjbReferenceResolver());
+   }
+
+   /**
+    * Obtains the metadata attachment from the specified deployment unit, returning
+    * null if not present
+    * 
+    * @param du
+    * @return
+    */
+   protected JBossMetaData getMetaData(DeploymentUnit du)
+   {
+      return du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, JBossMetaData.class);
+   }
+
+   /**
+    * Returns the {@link MetaDataBasedEjbReferenceResolver} which this {@link EjbReferenceResolver} uses
+    * @return
+    */
+   protected MetaDataBasedEjbReferenceResolver getMetaDataBasedEjbReferenceResolver()
+   {
+      return this.metadataBasedEjbReferenceResolver;
+   }
+
+   /**
+    * The session bean, along with its {@link DeploymentUnit}, which a reference resolved to
+    */
+   private static class ResolvedTarget
+   {
+      private final DeploymentUnit du;
+
+      private final String ejbName;
+
+      ResolvedTarget(DeploymentUnit du, String ejbName)
+      {
+         this.du = du;
+         this.ejbName = ejbName;
+      }
+   }
+}
@@ -0,0 +1,430 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+
+/**
+ * Decides, for the {@link AbstractEjbReferenceResolver}s it's set on, whether the references of a deployment tree which has
+ * no {@link DeploymentTreeIndex} are resolved by scanning the metadata of the units, or through an index which the
+ * policy then attaches to the tree.
+ *
+ * <p>
+ *  Building the index of a unit costs about as much as scanning its beans a few times, so it only pays off once
+ *  enough references are resolved, or when scanning is expensive. The first time a reference is resolved within a
+ *  tree, its {@link TreeProfile} (the number of beans and units, and the depth of the tree) is attached to its
+ *  top-level unit. The tree is indexed as soon as it has at least {@link #getLargeTreeBeanCount()} beans, is at
+ *  least {@link #getDeepTreeDepth()} units deep, or once {@link #getMinimumResolutionCount()} references have
+ *  been resolved within it. Until then its metadata is scanned, as it is without a policy.
+ * </p>
+ * <p>
+ *  Within a tree indexed by the policy, a unit whose {@link JBossMetaData} has less than
+ *  {@link #getMinimumUnitBeanCount()} beans (or which has no metadata yet) keeps being scanned instead of being
+ *  indexed. The trees indexed otherwise (by the {@link EjbReferenceIndexDeployer} for instance) are left alone.
+ *  An index attached by the policy is like any other: a unit redeployed within its tree must be passed to
+ *  {@link DeploymentTreeIndex#replace(DeploymentUnit, DeploymentUnit)}, or the index keeps the previous unit
+ *  reachable until the whole deployment is undeployed. Resolvers have no policy by default, it should only be
+ *  set where the deployers do so.
+ * </p>
+ * <p>
+ *  The thresholds can be changed at any time, {@link #chooseStrategy(TreeProfile)} can be overridden to change
+ *  the cost model itself. The decisions are counted, and each profile tells the strategy chosen for its tree.
+ *  This class is thread safe.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class AdaptiveIndexingPolicy
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(AdaptiveIndexingPolicy.class);
+
+   /** The strategies of resolution within a tree */
+   public enum Strategy
+   {
+      /** Match the beans of the metadata of each visited unit */
+      SCAN,
+      /** Look the candidate beans up in the index of each visited unit */
+      INDEX
+   }
+
+   /** The default of {@link #getMinimumUnitBeanCount()} */
+   public static final int DEFAULT_MINIMUM_UNIT_BEAN_COUNT = 2;
+
+   /** The default of {@link #getMinimumResolutionCount()} */
+   public static final int DEFAULT_MINIMUM_RESOLUTION_COUNT = 16;
+
+   /** The default of {@link #getLargeTreeBeanCount()} */
+   public static final int DEFAULT_LARGE_TREE_BEAN_COUNT = 64;
+
+   /** The default of {@link #getDeepTreeDepth()} */
+   public static final int DEFAULT_DEEP_TREE_DEPTH = 4;
+
+   private volatile int minimumUnitBeanCount = DEFAULT_MINIMUM_UNIT_BEAN_COUNT;
+
+   private volatile int minimumResolutionCount = DEFAULT_MINIMUM_RESOLUTION_COUNT;
+
+   private volatile int largeTreeBeanCount = DEFAULT_LARGE_TREE_BEAN_COUNT;
+
+   private volatile int deepTreeDepth = DEFAULT_DEEP_TREE_DEPTH;
+
+   // Statistics
+
+   private final AtomicLong indexedTreeCount = new AtomicLong();
+
+   private final AtomicLong scannedResolutionCount = new AtomicLong();
+
+   private final AtomicLong scannedUnitCount = new AtomicLong();
+
+   /**
+    * Returns the index of the tree of the passed {@link DeploymentUnit}: the one already attached to the tree,
+    * or the one this policy attaches if it decides the tree is worth indexing. Counts one resolution within the tree.
+    * 
+    * @param du
+    * @param resolver The resolver which extracts the descriptors of an index attached by this policy
+    * @return Returns the index, or null if the metadata of the tree is to be scanned
+    */
+   public DeploymentTreeIndex getDeploymentTreeIndex(DeploymentUnit du, MetaDataBasedEjbReferenceResolver resolver)
+   {
+      DeploymentUnit topLevel = du.getTopLevel();
+      DeploymentTreeIndex treeIndex = topLevel.getAttachment(DeploymentTreeIndex.ATTACHMENT_NAME,
+            DeploymentTreeIndex.class);
+      if (treeIndex != null)
+      {
+         return treeIndex;
+      }
+      // the resolver can't extract the descriptors of an index
+      if (!(resolver instanceof IndexableEjbReferenceResolver))
+      {
+         return null;
+      }
+      TreeProfile profile = getTreeProfile(topLevel);
+      profile.resolutionCount.incrementAndGet();
+      Strategy strategy = this.chooseStrategy(profile);
+      if (strategy != Strategy.INDEX)
+      {
+         this.scannedResolutionCount.incrementAndGet();
+         return null;
+      }
+      synchronized (profile)
+      {
+         if (profile.strategy != Strategy.INDEX)
+         {
+            profile.strategy = Strategy.INDEX;
+            this.indexedTreeCount.incrementAndGet();
+            logger.debug("Indexing " + profile + " of " + topLevel);
+         }
+      }
+      return DeploymentTreeIndex.attach(topLevel, (IndexableEjbReferenceResolver) resolver, true);
+   }
+
+   /**
+    * Returns whether the passed {@link DeploymentUnit} is resolved through the passed index of its tree,
+    * rather than by scanning its metadata
+    * 
+    * @param treeIndex
+    * @param du
+    * @return
+    */
+   public boolean isIndexed(DeploymentTreeIndex treeIndex, DeploymentUnit du)
+   {
+      // the trees not indexed by a policy, the units worth indexing and those already indexed anyway
+      if (!treeIndex.isAdaptive() || getBeanCount(du) >= this.minimumUnitBeanCount || treeIndex.isIndexed(du))
+      {
+         return true;
+      }
+      this.scannedUnitCount.incrementAndGet();
+      return false;
+   }
+
+   /**
+    * Chooses the strategy of resolution within the tree of the passed profile, once its resolution count
+    * is incremented. Once {@link Strategy#INDEX} has been chosen, the tree stays indexed.
+    * 
+    * @param profile
+    * @return
+    */
+   protected Strategy chooseStrategy(TreeProfile profile)
+   {
+      if (profile.getBeanCount() >= this.largeTreeBeanCount || profile.getDepth() >= this.deepTreeDepth
+            || profile.getResolutionCount() >= this.minimumResolutionCount)
+      {
+         return Strategy.INDEX;
+      }
+      return Strategy.SCAN;
+   }
+
+   /**
+    * Returns the profile of the tree of the passed unit, or null if no reference has been resolved within
+    * the tree through an {@link AdaptiveIndexingPolicy} yet
+    * 
+    * @param du
+    * @return
+    */
+   public static TreeProfile getProfile(DeploymentUnit du)
+   {
+      return du.getTopLevel().getAttachment(TreeProfile.ATTACHMENT_NAME, TreeProfile.class);
+   }
+
+   /**
+    * Returns the number of beans a {@link JBossMetaData} must have for its unit to be indexed, within
+    * a tree indexed by this policy
+    * @return
+    */
+   public int getMinimumUnitBeanCount()
+   {
+      return this.minimumUnitBeanCount;
+   }
+
+   public void setMinimumUnitBeanCount(int minimumUnitBeanCount)
+   {
+      this.minimumUnitBeanCount = minimumUnitBeanCount;
+   }
+
+   /**
+    * Returns the number of references resolved within a tree after which the tree is indexed
+    * @return
+    */
+   public int getMinimumResolutionCount()
+   {
+      return this.minimumResolutionCount;
+   }
+
+   public void setMinimumResolutionCount(int minimumResolutionCount)
+   {
+      this.minimumResolutionCount = minimumResolutionCount;
+   }
+
+   /**
+    * Returns the number of beans from which a tree is indexed straight away
+    * @return
+    */
+   public int getLargeTreeBeanCount()
+   {
+      return this.largeTreeBeanCount;
+   }
+
+   public void setLargeTreeBeanCount(int largeTreeBeanCount)
+   {
+      this.largeTreeBeanCount = largeTreeBeanCount;
+   }
+
+   /**
+    * Returns the depth (the number of units from the top-level unit to the deepest one) from which
+    * a tree is indexed straight away
+    * @return
+    */
+   public int getDeepTreeDepth()
+   {
+      return this.deepTreeDepth;
+   }
+
+   public void setDeepTreeDepth(int deepTreeDepth)
+   {
+      this.deepTreeDepth = deepTreeDepth;
+   }
+
+   /**
+    * Returns the number of trees this policy decided to index
+    * @return
+    */
+   public long getIndexedTreeCount()
+   {
+      return this.indexedTreeCount.get();
+   }
+
+   /**
+    * Returns the number of resolutions left to scan the metadata of a tree which isn't indexed
+    * @return
+    */
+   public long getScannedResolutionCount()
+   {
+      return this.scannedResolutionCount.get();
+   }
+
+   /**
+    * Returns the number of visits of a unit whose metadata was scanned, within a tree indexed by this policy
+    * @return
+    */
+   public long getScannedUnitCount()
+   {
+      return this.scannedUnitCount.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return AdaptiveIndexingPolicy.class.getSimpleName() + "[index trees of " + this.largeTreeBeanCount
+            + " beans, " + this.deepTreeDepth + " levels or " + this.minimumResolutionCount
+            + " resolutions, units of " + this.minimumUnitBeanCount + " beans; " + this.getIndexedTreeCount()
+            + " trees indexed, " + this.getScannedResolutionCount() + " resolutions and " + this.getScannedUnitCount()
+            + " unit visits scanned]";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns the profile of the passed top-level unit, profiling the tree if it hasn't been yet
+    */
+   private static TreeProfile getTreeProfile(DeploymentUnit topLevel)
+   {
+      TreeProfile profile = topLevel.getAttachment(TreeProfile.ATTACHMENT_NAME, TreeProfile.class);
+      if (profile != null)
+      {
+         return profile;
+      }
+      synchronized (AdaptiveIndexingPolicy.class)
+      {
+         profile = topLevel.getAttachment(TreeProfile.ATTACHMENT_NAME, TreeProfile.class);
+         if (profile == null)
+         {
+            profile = new TreeProfile(topLevel);
+            topLevel.addAttachment(TreeProfile.ATTACHMENT_NAME, profile);
+         }
+         return profile;
+      }
+   }
+
+   private static int getBeanCount(DeploymentUnit du)
+   {
+      JBossMetaData metadata = du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            JBossMetaData.class);
+      JBossEnterpriseBeansMetaData beans = metadata == null ? null : metadata.getEnterpriseBeans();
+      return beans == null ? 0 : beans.size();
+   }
+
+   /**
+    * The shape of a deployment tree, as seen the first time a reference is resolved within it, along
+    * with the number of references resolved within it since and the strategy chosen for it
+    */
+   public static class TreeProfile
+   {
+      /** The name of the attachment, on the top-level {@link DeploymentUnit}, of the profile */
+      public static final String ATTACHMENT_NAME = TreeProfile.class.getName();
+
+      private final int beanCount;
+
+      private final int unitCount;
+
+      private final int depth;
+
+      private final AtomicInteger resolutionCount = new AtomicInteger();
+
+      /** Guarded by this */
+      private Strategy strategy = Strategy.SCAN;
+
+      TreeProfile(DeploymentUnit topLevel)
+      {
+         int beanCount = 0;
+         int unitCount = 0;
+         int depth = 0;
+         Deque<DeploymentUnit> units = new ArrayDeque<DeploymentUnit>();
+         Deque<Integer> depths = new ArrayDeque<Integer>();
+         units.push(topLevel);
+         depths.push(1);
+         while (!units.isEmpty())
+         {
+            DeploymentUnit du = units.pop();
+            int unitDepth = depths.pop();
+            beanCount += AdaptiveIndexingPolicy.getBeanCount(du);
+            unitCount++;
+            depth = Math.max(depth, unitDepth);
+            List<DeploymentUnit> children = du.getChildren();
+            if (children != null)
+            {
+               for (DeploymentUnit child : children)
+               {
+                  units.push(child);
+                  depths.push(unitDepth + 1);
+               }
+            }
+         }
+         this.beanCount = beanCount;
+         this.unitCount = unitCount;
+         this.depth = depth;
+      }
+
+      /**
+       * Returns the number of beans of the metadata of the units of the tree
+       * @return
+       */
+      public int getBeanCount()
+      {
+         return this.beanCount;
+      }
+
+      /**
+       * Returns the number of units of the tree
+       * @return
+       */
+      public int getUnitCount()
+      {
+         return this.unitCount;
+      }
+
+      /**
+       * Returns the number of units from the top-level unit to the deepest one, included
+       * @return
+       */
+      public int getDepth()
+      {
+         return this.depth;
+      }
+
+      /**
+       * Returns the number of references resolved within the tree since it was profiled
+       * @return
+       */
+      public int getResolutionCount()
+      {
+         return this.resolutionCount.get();
+      }
+
+      /**
+       * Returns the strategy chosen for the tree
+       * @return
+       */
+      public synchronized Strategy getStrategy()
+      {
+         return this.strategy;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "tree of " + this.beanCount + " beans, " + this.unitCount + " units, " + this.depth + " levels, "
+               + this.getResolutionCount() + " resolutions (" + this.getStrategy() + ")";
+      }
+   }
+}
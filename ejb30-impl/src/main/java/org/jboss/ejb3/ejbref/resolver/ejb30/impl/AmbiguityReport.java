@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+
+/**
+ * The beanInterfaces which can't be resolved without a beanName, found while indexing
+ * deployment units. A beanInterface is ambiguous within a {@link DeploymentUnit} if:
+ * <ul>
+ *  <li>more than one session bean of the unit exposes it, or</li>
+ *  <li>it appears more than once in the interface hierarchy of a session bean</li>
+ * </ul>
+ * A reference, without beanName, to such an interface fails with a
+ * {@link NonDeterministicInterfaceException} when resolved within that unit.
+ *
+ * @version $Revision: $
+ */
+public class AmbiguityReport
+{
+
+   /** The ambiguities, in the order in which they were found */
+   private final List<Ambiguity> ambiguities;
+
+   /**
+    * @param ambiguities
+    */
+   public AmbiguityReport(Collection<Ambiguity> ambiguities)
+   {
+      this.ambiguities = Collections.unmodifiableList(new ArrayList<Ambiguity>(ambiguities));
+   }
+
+   /**
+    * Returns the ambiguities
+    * @return
+    */
+   public List<Ambiguity> getAmbiguities()
+   {
+      return this.ambiguities;
+   }
+
+   /**
+    * Returns true if no ambiguity was found
+    * @return
+    */
+   public boolean isEmpty()
+   {
+      return this.ambiguities.isEmpty();
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append(this.ambiguities.size()).append(" ambiguous beanInterface(s)");
+      for (Ambiguity ambiguity : this.ambiguities)
+      {
+         sb.append("\n\t").append(ambiguity);
+      }
+      return sb.toString();
+   }
+
+   /**
+    * A beanInterface which is ambiguous within a {@link DeploymentUnit}
+    */
+   public static class Ambiguity
+   {
+      private final DeploymentUnit du;
+
+      private final String beanInterface;
+
+      /** The beans which expose the interface */
+      private final List<BeanDescriptor> sessionBeans;
+
+      /** The bean whose hierarchy contains the interface more than once, null if there's none */
+      private final BeanDescriptor ambiguousWithin;
+
+      Ambiguity(DeploymentUnit du, String beanInterface, List<BeanDescriptor> sessionBeans,
+            BeanDescriptor ambiguousWithin)
+      {
+         this.du = du;
+         this.beanInterface = beanInterface;
+         this.sessionBeans = Collections.unmodifiableList(new ArrayList<BeanDescriptor>(sessionBeans));
+         this.ambiguousWithin = ambiguousWithin;
+      }
+
+      /**
+       * Returns the exception which the resolution of the passed reference, to the ambiguous interface,
+       * fails with. It's the same exception as the one thrown when matching the session beans one
+       * after the other.
+       * 
+       * @param reference
+       * @return
+       */
+      NonDeterministicInterfaceException createException(EjbReference reference)
+      {
+         if (this.ambiguousWithin != null)
+         {
+            return new NonDeterministicInterfaceException("beanInterface specified, " + this.beanInterface
+                  + ", is not unique within EJB " + this.ambiguousWithin.getEjbName());
+         }
+         return new NonDeterministicInterfaceException("Specified reference " + reference
+               + " was matched by more than one EJB: " + this.sessionBeans
+               + ".  Specify beanName explciitly or ensure beanInterface is unique.");
+      }
+
+      /**
+       * Returns the {@link DeploymentUnit} within which the interface is ambiguous
+       * @return
+       */
+      public DeploymentUnit getDeploymentUnit()
+      {
+         return this.du;
+      }
+
+      /**
+       * Returns the ambiguous beanInterface
+       * @return
+       */
+      public String getBeanInterface()
+      {
+         return this.beanInterface;
+      }
+
+      /**
+       * Returns the session beans, of the unit, which match a reference to the interface
+       * @return
+       */
+      public List<BeanDescriptor> getSessionBeans()
+      {
+         return this.sessionBeans;
+      }
+
+      /**
+       * Returns the session bean whose interface hierarchy contains the interface more than once,
+       * or null if the interface is ambiguous only because several beans expose it
+       * @return
+       */
+      public BeanDescriptor getAmbiguousWithin()
+      {
+         return this.ambiguousWithin;
+      }
+
+      @Override
+      public String toString()
+      {
+         if (this.ambiguousWithin != null)
+         {
+            return this.beanInterface + " appears more than once in the interfaces of EJB " + this.ambiguousWithin
+                  + " in " + this.du;
+         }
+         return this.beanInterface + " is exposed by EJBs " + this.sessionBeans + " in " + this.du;
+      }
+   }
+}
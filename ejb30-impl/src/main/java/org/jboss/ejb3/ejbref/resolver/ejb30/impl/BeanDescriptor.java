@@ -0,0 +1,417 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Arrays;
+
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * A compact and immutable description of a session bean, holding just what's needed to resolve
+ * {@link EjbReference}s to that bean. It's extracted once per bean, by
+ * {@link IndexableEjbReferenceResolver#createBeanDescriptor(JBossSessionBeanMetaData, ClassLoader, SymbolTable)},
+ * so that resolving against it doesn't keep the {@link JBossMetaData} of the deployment reachable.
+ *
+ * <p>
+ *  The interfaces are held as the IDs assigned by the {@link SymbolTable} of the index which the
+ *  descriptor belongs to:
+ *  <ul>
+ *   <li>the views: the interfaces which are directly eligible as beanInterface (business locals,
+ *   business remotes, home, local home), in metadata order, along with their jndi-names</li>
+ *   <li>the inherited interfaces: the super-interfaces of the views which aren't views themselves,
+ *   each mapped to the first view which extends it</li>
+ *   <li>the ambiguous interfaces: the inherited interfaces which appear more than once in the
+ *   hierarchy of the views</li>
+ *  </ul>
+ *  The views and the inherited interfaces are also kept together in a sorted array, so that finding
+ *  the view a beanInterface resolves to is a binary search over ints.
+ *  The jndi-names are resolved when the descriptor is created, so they follow the jndi binding
+ *  policy of the resolver which created it.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class BeanDescriptor
+{
+
+   /** Shared by the descriptors which have no such interfaces */
+   private static final int[] NO_IDS = new int[0];
+
+   /** The ejb-name */
+   private final String ejbName;
+
+   /** The ejb-class */
+   private final String ejbClass;
+
+   /** ID of the ejb-class, or {@link SymbolTable#NO_SYMBOL} */
+   private final int ejbClassId;
+
+   /** Whether the bean is a EJB3.1 bean */
+   private final boolean ejb31;
+
+   /** Whether references to the ejb-class resolve to the no-interface view of the bean */
+   private final boolean noInterfaceView;
+
+   /** IDs of the views, in metadata order */
+   private final int[] viewIds;
+
+   /** jndi-name of each view */
+   private final String[] viewJndiNames;
+
+   /** jndi-name of a reference which names no beanInterface, null if it couldn't be resolved */
+   private final String defaultJndiName;
+
+   /** jndi-name of the no-interface view, null if there's none or if it couldn't be resolved */
+   private final String noInterfaceJndiName;
+
+   /** Sorted IDs of the views and of the inherited interfaces */
+   private final int[] interfaceIds;
+
+   /** For each of the interfaceIds, the index (in viewIds) of the view it resolves to */
+   private final int[] interfaceViews;
+
+   /** Sorted IDs of the inherited interfaces which appear more than once in the hierarchy of the views */
+   private final int[] ambiguousIds;
+
+   /** Why the inherited interfaces are unknown, null if they are known */
+   private final RuntimeException inheritanceFailure;
+
+   /**
+    * @param viewIds IDs of the views, in metadata order
+    * @param inheritedIds IDs of the inherited interfaces, in any order
+    * @param inheritedViews For each of the inheritedIds, the index (in viewIds) of the first view which extends it
+    * @param ambiguousIds IDs of the ambiguous interfaces, in any order
+    */
+   BeanDescriptor(String ejbName, String ejbClass, int ejbClassId, boolean ejb31, boolean noInterfaceView,
+         int[] viewIds, String[] viewJndiNames, String defaultJndiName, String noInterfaceJndiName, int[] inheritedIds,
+         int[] inheritedViews, int[] ambiguousIds, RuntimeException inheritanceFailure)
+   {
+      this.ejbName = ejbName;
+      this.ejbClass = ejbClass;
+      this.ejbClassId = ejbClassId;
+      this.ejb31 = ejb31;
+      this.noInterfaceView = noInterfaceView;
+      this.viewIds = nonEmpty(viewIds);
+      this.viewJndiNames = viewJndiNames;
+      this.defaultJndiName = defaultJndiName;
+      this.noInterfaceJndiName = noInterfaceJndiName;
+      this.inheritanceFailure = inheritanceFailure;
+
+      // sort the views and the inherited interfaces together, along with the view each one resolves to
+      int count = this.viewIds.length + inheritedIds.length;
+      long[] packed = new long[count];
+      for (int i = 0; i < this.viewIds.length; i++)
+      {
+         packed[i] = ((long) this.viewIds[i] << 32) | i;
+      }
+      for (int i = 0; i < inheritedIds.length; i++)
+      {
+         packed[this.viewIds.length + i] = ((long) inheritedIds[i] << 32) | inheritedViews[i];
+      }
+      Arrays.sort(packed);
+      this.interfaceIds = count == 0 ? NO_IDS : new int[count];
+      this.interfaceViews = count == 0 ? NO_IDS : new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         this.interfaceIds[i] = (int) (packed[i] >>> 32);
+         this.interfaceViews[i] = (int) packed[i];
+      }
+
+      int[] sortedAmbiguousIds = nonEmpty(ambiguousIds).clone();
+      Arrays.sort(sortedAmbiguousIds);
+      this.ambiguousIds = nonEmpty(sortedAmbiguousIds);
+   }
+
+   /**
+    * Returns true if the passed {@link EjbReference} is a match for this bean. Behaves like
+    * the isMatch() method of the resolver which created this descriptor.
+    * 
+    * @param reference The reference
+    * @param interfaceId The ID of the beanInterface of the reference, or {@link SymbolTable#NO_SYMBOL}
+    * @return
+    * @throws NonDeterministicInterfaceException If the beanInterface of the reference is an ambiguous
+    *           interface of this bean
+    */
+   public boolean isMatch(EjbReference reference, int interfaceId)
+   {
+      String requestedEJBName = reference.getBeanName();
+      boolean byName = requestedEJBName != null && requestedEJBName.trim().length() > 0;
+
+      // a reference to the no-interface view
+      if (this.isNoInterfaceView(interfaceId))
+      {
+         return !byName || requestedEJBName.equals(this.ejbName);
+      }
+      if (byName)
+      {
+         return requestedEJBName.equals(this.ejbName);
+      }
+
+      String requestedInterface = reference.getBeanInterface();
+      assert requestedInterface != null && requestedInterface.trim().length() > 0 : "beanInterface must be specified";
+      if (indexOf(this.interfaceIds, interfaceId) < 0)
+      {
+         // the interface may be one of the inherited interfaces which couldn't be determined
+         this.checkInheritanceKnown();
+         return false;
+      }
+      if (this.isAmbiguous(interfaceId))
+      {
+         throw new NonDeterministicInterfaceException("beanInterface specified, " + requestedInterface
+               + ", is not unique within EJB " + this.ejbName);
+      }
+      return true;
+   }
+
+   /**
+    * Returns the jndi-name which a matching reference, to the interface with the passed ID,
+    * resolves to. That's the jndi-name of the view itself, of the view which extends the
+    * interface or of the no-interface view. A reference which names no interface resolves to
+    * the default jndi-name of the bean.
+    * 
+    * @param interfaceId The ID of the beanInterface of the reference, or {@link SymbolTable#NO_SYMBOL}
+    *           if it names none
+    * @return Returns the jndi-name, or null if the interface isn't exposed by this bean (which can
+    *           happen for a reference which matched by its beanName only)
+    */
+   public String getJndiName(int interfaceId)
+   {
+      if (interfaceId == SymbolTable.NO_SYMBOL)
+      {
+         this.checkInheritanceKnown();
+         return this.defaultJndiName;
+      }
+      int index = indexOf(this.interfaceIds, interfaceId);
+      if (index >= 0)
+      {
+         return this.viewJndiNames[this.interfaceViews[index]];
+      }
+      if (this.isNoInterfaceView(interfaceId))
+      {
+         return this.noInterfaceJndiName;
+      }
+      this.checkInheritanceKnown();
+      return null;
+   }
+
+   /**
+    * Returns the ejb-name of the bean
+    * @return
+    */
+   public String getEjbName()
+   {
+      return this.ejbName;
+   }
+
+   /**
+    * Returns the ejb-class of the bean
+    * @return
+    */
+   public String getEjbClass()
+   {
+      return this.ejbClass;
+   }
+
+   /**
+    * Returns the ID of the ejb-class of the bean, or {@link SymbolTable#NO_SYMBOL} if it has none
+    * @return
+    */
+   public int getEjbClassId()
+   {
+      return this.ejbClassId;
+   }
+
+   /**
+    * Returns true if the bean is a EJB3.1 bean (as far as the resolver which created this
+    * descriptor can tell)
+    * @return
+    */
+   public boolean isEJB31()
+   {
+      return this.ejb31;
+   }
+
+   /**
+    * Returns true if references to the ejb-class of the bean resolve to its no-interface view
+    * @return
+    */
+   public boolean hasNoInterfaceView()
+   {
+      return this.noInterfaceView;
+   }
+
+   /**
+    * Returns the IDs of the views of the bean, in metadata order
+    * @return
+    */
+   public int[] getViewIds()
+   {
+      return this.viewIds.clone();
+   }
+
+   /**
+    * Returns the sorted IDs of the inherited interfaces of the bean
+    * @return
+    * @throws RuntimeException If the inherited interfaces couldn't be determined
+    */
+   public int[] getInheritedIds()
+   {
+      this.checkInheritanceKnown();
+      int[] inheritedIds = new int[this.interfaceIds.length - this.viewIds.length];
+      int count = 0;
+      for (int i = 0; i < this.interfaceIds.length; i++)
+      {
+         // a view resolves to itself
+         if (this.viewIds[this.interfaceViews[i]] != this.interfaceIds[i])
+         {
+            inheritedIds[count++] = this.interfaceIds[i];
+         }
+      }
+      return inheritedIds;
+   }
+
+   /**
+    * Returns the sorted IDs of the ambiguous interfaces of the bean
+    * @return
+    */
+   public int[] getAmbiguousIds()
+   {
+      return this.ambiguousIds.clone();
+   }
+
+   /**
+    * Returns true if the interface with the passed ID appears more than once in the hierarchy
+    * of the views of the bean
+    * 
+    * @param interfaceId
+    * @return
+    */
+   public boolean isAmbiguous(int interfaceId)
+   {
+      return indexOf(this.ambiguousIds, interfaceId) >= 0;
+   }
+
+   /**
+    * Returns true if the inherited interfaces of the bean are known
+    * @return
+    */
+   public boolean isInheritanceKnown()
+   {
+      return this.inheritanceFailure == null;
+   }
+
+   /**
+    * Returns a copy of this descriptor whose names have the IDs assigned by another table
+    * 
+    * @param from The table which assigned the IDs of this descriptor
+    * @param to The table which assigns the IDs of the copy
+    * @return
+    */
+   BeanDescriptor copyTo(SymbolTable from, SymbolTable to)
+   {
+      int copiedEjbClassId = this.ejbClassId == SymbolTable.NO_SYMBOL ? SymbolTable.NO_SYMBOL : copyId(
+            this.ejbClassId, from, to);
+      int[] inheritedIds = new int[this.interfaceIds.length - this.viewIds.length];
+      int[] inheritedViews = new int[inheritedIds.length];
+      int inheritedCount = 0;
+      for (int i = 0; i < this.interfaceIds.length; i++)
+      {
+         // a view resolves to itself
+         if (this.viewIds[this.interfaceViews[i]] != this.interfaceIds[i])
+         {
+            inheritedIds[inheritedCount] = copyId(this.interfaceIds[i], from, to);
+            inheritedViews[inheritedCount++] = this.interfaceViews[i];
+         }
+      }
+      return new BeanDescriptor(to.intern(this.ejbName), this.ejbClass, copiedEjbClassId, this.ejb31,
+            this.noInterfaceView, copyIds(this.viewIds, from, to), this.viewJndiNames, this.defaultJndiName,
+            this.noInterfaceJndiName, inheritedIds, inheritedViews, copyIds(this.ambiguousIds, from, to),
+            this.inheritanceFailure);
+   }
+
+   /**
+    * Returns the number of interface IDs held by this descriptor
+    * @return
+    */
+   int getInterfaceIdCount()
+   {
+      return this.viewIds.length + this.interfaceIds.length + this.interfaceViews.length + this.ambiguousIds.length;
+   }
+
+   @Override
+   public String toString()
+   {
+      return this.ejbName;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private boolean isNoInterfaceView(int interfaceId)
+   {
+      return this.noInterfaceView && interfaceId != SymbolTable.NO_SYMBOL && interfaceId == this.ejbClassId;
+   }
+
+   /**
+    * Fails just like the resolver would have, if the inherited interfaces couldn't be determined
+    */
+   private void checkInheritanceKnown()
+   {
+      if (this.inheritanceFailure != null)
+      {
+         throw new RuntimeException(this.inheritanceFailure.getMessage(), this.inheritanceFailure.getCause());
+      }
+   }
+
+   private static int copyId(int id, SymbolTable from, SymbolTable to)
+   {
+      return to.getId(from.getSymbol(id));
+   }
+
+   private static int[] copyIds(int[] ids, SymbolTable from, SymbolTable to)
+   {
+      int[] copied = new int[ids.length];
+      for (int i = 0; i < ids.length; i++)
+      {
+         copied[i] = copyId(ids[i], from, to);
+      }
+      return copied;
+   }
+
+   private static int indexOf(int[] sortedIds, int id)
+   {
+      if (id == SymbolTable.NO_SYMBOL || sortedIds.length == 0)
+      {
+         return -1;
+      }
+      return Arrays.binarySearch(sortedIds, id);
+   }
+
+   private static int[] nonEmpty(int[] ids)
+   {
+      return ids == null || ids.length == 0 ? NO_IDS : ids;
+   }
+}
@@ -0,0 +1,996 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.logging.Logger;
+
+/**
+ * An {@link EjbReferenceResolver} which caches the jndi-names resolved by a delegate
+ * resolver (typically a {@link FirstMatchEjbReferenceResolver} or a {@link ScopedEJBReferenceResolver})
+ * and which can safely be shared by deployers running in parallel.
+ *
+ * <p>
+ *  Resolved jndi-names are kept in one cache per top-level {@link DeploymentUnit}. Reads never
+ *  lock, and writes to the caches of different deployments never contend with each other.
+ *  Whenever a {@link DeploymentUnit} of a deployment is deployed or undeployed, the cache
+ *  of that deployment is replaced by a new, empty, generation. Resolutions which were
+ *  still running against the previous generation will publish their results to that (now
+ *  unreachable) generation only, so a stale result can never leak into the new one.
+ * </p>
+ * <p>
+ *  If the deployment tree is indexed by a {@link DeploymentTreeIndex}, the redeployment of one of
+ *  its nested units can be notified through {@link #redeploy(DeploymentTreeIndex.Change)}. The new
+ *  cache generation then keeps every cached resolution which the change cannot affect.
+ * </p>
+ * <p>
+ *  A resolution cached for a deployment may point to a bean of another deployment (found through
+ *  a {@link GlobalBeanRegistry}). Such resolutions are only discarded on the undeployment or
+ *  redeployment of that other deployment if a {@link ReverseDependencyIndex}, which must be the
+ *  {@link ResolutionListener} of the delegate resolver, is set through
+ *  {@link #setReverseDependencyIndex(ReverseDependencyIndex)}. Without it, they are kept until
+ *  their own deployment is invalidated, unless they're discarded through {@link #invalidate(Set)}.
+ * </p>
+ * <p>
+ *  Failed resolutions are never cached.
+ * </p>
+ * <p>
+ *  By default the caches are only bounded by the references of the deployments. They can
+ *  instead share a maximum weight, the estimated number of bytes the cached resolutions retain.
+ *  A new resolution is then first cached in a small window. When it leaves the window, it's
+ *  kept only if it has been asked for more often lately than the oldest resolution of the
+ *  main space, which is evicted in its place (W-TinyLFU). A burst of one-off resolutions,
+ *  such as a validation of all the references of a big deployment, thus doesn't evict the
+ *  resolutions asked for over and over again. Caching a resolution never waits for the policy:
+ *  it's buffered, and the buffered resolutions are applied to the policy by whichever thread
+ *  gets hold of it without waiting, so the bound may be exceeded by the few resolutions which
+ *  are still buffered.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ConcurrentEjbReferenceResolver implements EjbReferenceResolver
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(ConcurrentEjbReferenceResolver.class);
+
+   /** The resolver which does the actual resolution on a cache miss */
+   private final EjbReferenceResolver delegate;
+
+   /** The cache generations, keyed by the top-level {@link DeploymentUnit} */
+   private final ConcurrentMap<DeploymentUnit, DeploymentCache> deploymentCaches = new ConcurrentHashMap<DeploymentUnit, DeploymentCache>();
+
+   /** The top-level deployments which were undeployed, and mustn't get a cache anymore */
+   private final Set<DeploymentUnit> undeployed = Collections.synchronizedSet(Collections
+         .newSetFromMap(new WeakHashMap<DeploymentUnit, Boolean>()));
+
+   /** Number of resolutions served from the cache */
+   private final AtomicLong hits = new AtomicLong();
+
+   /** Number of resolutions which had to be delegated */
+   private final AtomicLong misses = new AtomicLong();
+
+   /** Bounds the weight of the caches of all the deployments, null if they're unbounded */
+   private final EvictionPolicy policy;
+
+   /** The dependents of the beans resolved by the delegate, null if they aren't recorded */
+   private volatile ReverseDependencyIndex dependencies;
+
+   /**
+    * Creates a {@link ConcurrentEjbReferenceResolver} which will use a {@link ScopedEJBReferenceResolver}
+    */
+   public ConcurrentEjbReferenceResolver()
+   {
+      this(new ScopedEJBReferenceResolver());
+   }
+
+   /**
+    * Creates a {@link ConcurrentEjbReferenceResolver} which caches the results of the passed
+    * resolver
+    *
+    * @param delegate The resolver to use on cache misses. The delegate must itself be thread safe.
+    */
+   public ConcurrentEjbReferenceResolver(EjbReferenceResolver delegate)
+   {
+      if (delegate == null)
+      {
+         throw new IllegalArgumentException("Delegate " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      this.delegate = delegate;
+      this.policy = null;
+   }
+
+   /**
+    * Creates a {@link ConcurrentEjbReferenceResolver} which caches the results of the passed
+    * resolver, within the passed maximum weight
+    *
+    * @param delegate The resolver to use on cache misses. The delegate must itself be thread safe.
+    * @param maximumWeight The estimated number of bytes which the cached resolutions of all the
+    *   deployments may retain
+    */
+   public ConcurrentEjbReferenceResolver(EjbReferenceResolver delegate, long maximumWeight)
+   {
+      if (delegate == null)
+      {
+         throw new IllegalArgumentException("Delegate " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      if (maximumWeight <= 0)
+      {
+         throw new IllegalArgumentException("Maximum weight must be positive: " + maximumWeight);
+      }
+      this.delegate = delegate;
+      this.policy = new EvictionPolicy(maximumWeight);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   {
+      // mapped-name is used as is, nothing worth caching
+      String mappedName = reference.getMappedName();
+      if (mappedName != null && mappedName.trim().length() > 0)
+      {
+         return this.delegate.resolveEjb(du, reference);
+      }
+
+      // pin the cache generation of this deployment for the whole resolution
+      DeploymentCache cache = this.getDeploymentCache(du.getTopLevel());
+      ResolutionKey key = new ResolutionKey(du, reference);
+      if (this.policy != null)
+      {
+         this.policy.recordAccess(key);
+      }
+      String jndiName = cache.get(key);
+      if (jndiName != null)
+      {
+         this.hits.incrementAndGet();
+         return jndiName;
+      }
+
+      // not cached, let the delegate resolve it (failures are propagated and not cached)
+      this.misses.incrementAndGet();
+      jndiName = this.delegate.resolveEjb(du, reference);
+      if (jndiName != null)
+      {
+         cache.put(key, jndiName);
+      }
+      return jndiName;
+   }
+
+   /**
+    * Notifies this resolver that the passed {@link DeploymentUnit} (top-level or nested)
+    * has been deployed. The cached resolutions of its deployment are discarded, since the
+    * new unit might now satisfy references which were previously resolved elsewhere.
+    *
+    * @param du The deployed {@link DeploymentUnit}
+    */
+   public void deploy(DeploymentUnit du)
+   {
+      if (du.getParent() == null)
+      {
+         this.undeployed.remove(du);
+      }
+      this.invalidate(du.getTopLevel());
+   }
+
+   /**
+    * Notifies this resolver that the passed {@link DeploymentUnit} has been undeployed.
+    * If it's a top-level {@link DeploymentUnit}, its cache is dropped altogether, and resolutions
+    * from it aren't cached anymore unless it's deployed again. Else the cached resolutions of its
+    * deployment are discarded. The cached resolutions of other deployments which point to its beans
+    * are discarded too, if a {@link ReverseDependencyIndex} is set.
+    *
+    * @param du The undeployed {@link DeploymentUnit}
+    */
+   public void undeploy(DeploymentUnit du)
+   {
+      this.invalidateDependents(du);
+      if (du.getParent() == null)
+      {
+         // resolutions still in progress mustn't create a new cache for it
+         this.undeployed.add(du);
+         this.removeDeploymentCache(du);
+         logger.debug("Dropped resolution cache of " + du);
+         return;
+      }
+      this.invalidate(du.getTopLevel());
+   }
+
+   /**
+    * Notifies this resolver that the contributions of some {@link DeploymentUnit}s to the
+    * {@link DeploymentTreeIndex} of their deployment have been replaced. Only the cached
+    * resolutions which may be affected by the change are discarded. The cached resolutions of
+    * other deployments which point to the beans of the replaced units are discarded too, if a
+    * {@link ReverseDependencyIndex} is set.
+    *
+    * @param change The change returned by {@link DeploymentTreeIndex#replace(DeploymentUnit, DeploymentUnit)}
+    */
+   public void redeploy(DeploymentTreeIndex.Change change)
+   {
+      if (change.getPrevious() != null)
+      {
+         this.invalidateDependents(change.getPrevious());
+      }
+      DeploymentUnit topLevel = change.getTopLevel();
+      DeploymentCache cache = this.deploymentCaches.get(topLevel);
+      if (cache == null)
+      {
+         return;
+      }
+      DeploymentCache next = cache.retainUnaffected(change);
+      if (this.replaceDeploymentCache(topLevel, cache, next))
+      {
+         logger.debug("Applied " + change + " to resolution cache of " + topLevel + ", kept " + next.size()
+               + " of " + cache.size() + " cached resolutions");
+      }
+      else
+      {
+         // raced with another invalidation, play safe
+         this.invalidate(topLevel);
+      }
+   }
+
+   /**
+    * Discards the cached resolutions of the passed dependents (as recorded by a {@link ReverseDependencyIndex}),
+    * whichever deployment they belong to. The other cached resolutions are kept.
+    *
+    * @param dependents The resolutions to discard
+    */
+   public void invalidate(Set<ReverseDependencyIndex.Dependent> dependents)
+   {
+      // group the resolutions by deployment
+      Map<DeploymentUnit, Set<ResolutionKey>> keysByTopLevel = new HashMap<DeploymentUnit, Set<ResolutionKey>>();
+      for (ReverseDependencyIndex.Dependent dependent : dependents)
+      {
+         DeploymentUnit topLevel = dependent.getDeploymentUnit().getTopLevel();
+         Set<ResolutionKey> keys = keysByTopLevel.get(topLevel);
+         if (keys == null)
+         {
+            keys = new HashSet<ResolutionKey>();
+            keysByTopLevel.put(topLevel, keys);
+         }
+         keys.add(new ResolutionKey(dependent.getDeploymentUnit(), dependent.getReference()));
+      }
+
+      for (Map.Entry<DeploymentUnit, Set<ResolutionKey>> entry : keysByTopLevel.entrySet())
+      {
+         DeploymentUnit topLevel = entry.getKey();
+         DeploymentCache cache = this.deploymentCaches.get(topLevel);
+         if (cache == null)
+         {
+            continue;
+         }
+         if (!this.replaceDeploymentCache(topLevel, cache, cache.retainAllBut(entry.getValue())))
+         {
+            // raced with another invalidation, play safe
+            this.invalidate(topLevel);
+         }
+      }
+   }
+
+   /**
+    * Sets the index recording the resolutions which depend on each bean, so that undeploying
+    * or redeploying the unit of a bean discards the resolutions of other deployments which
+    * point to it. The index must be the {@link ResolutionListener} of the delegate resolver.
+    *
+    * @param dependencies The index, null to stop discarding the resolutions of other deployments
+    */
+   public void setReverseDependencyIndex(ReverseDependencyIndex dependencies)
+   {
+      this.dependencies = dependencies;
+   }
+
+   /**
+    * Returns the number of resolutions which were served from the cache
+    * @return
+    */
+   public long getCacheHits()
+   {
+      return this.hits.get();
+   }
+
+   /**
+    * Returns the number of resolutions which were delegated because of a cache miss
+    * @return
+    */
+   public long getCacheMisses()
+   {
+      return this.misses.get();
+   }
+
+   /**
+    * Returns the number of cached resolutions which were evicted, or not kept at all, to stay
+    * within the maximum weight
+    * @return
+    */
+   public long getEvictionCount()
+   {
+      return this.policy == null ? 0 : this.policy.getEvictionCount();
+   }
+
+   /**
+    * Returns the estimated number of bytes retained by the cached resolutions, or 0 if the
+    * caches are unbounded
+    * @return
+    */
+   public long getWeightedSize()
+   {
+      return this.policy == null ? 0 : this.policy.getWeightedSize();
+   }
+
+   /**
+    * Returns the maximum weight of the caches, or {@link Long#MAX_VALUE} if they're unbounded
+    * @return
+    */
+   public long getMaximumWeight()
+   {
+      return this.policy == null ? Long.MAX_VALUE : this.policy.getMaximumWeight();
+   }
+
+   /**
+    * Returns the number of top-level deployments which currently have a cache
+    * @return
+    */
+   public int getCachedDeploymentCount()
+   {
+      return this.deploymentCaches.size();
+   }
+
+   /**
+    * Returns the resolver to which cache misses are delegated
+    * @return
+    */
+   public EjbReferenceResolver getDelegate()
+   {
+      return this.delegate;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns the current cache generation of the passed top-level {@link DeploymentUnit},
+    * creating it if required. An undeployed {@link DeploymentUnit} gets a generation which
+    * isn't kept, so that resolutions racing with its undeployment don't leak a cache.
+    *
+    * @param topLevel
+    * @return
+    */
+   private DeploymentCache getDeploymentCache(DeploymentUnit topLevel)
+   {
+      DeploymentCache cache = this.deploymentCaches.get(topLevel);
+      if (cache != null)
+      {
+         return cache;
+      }
+      DeploymentCache newCache = new DeploymentCache(this.policy);
+      cache = this.deploymentCaches.putIfAbsent(topLevel, newCache);
+      if (cache != null)
+      {
+         return cache;
+      }
+      // undeploy marks the unit before dropping its cache, so either it drops this one or it's seen here
+      if (this.undeployed.contains(topLevel))
+      {
+         this.removeDeploymentCache(topLevel, newCache);
+         logger.debug("Not caching resolutions of undeployed " + topLevel);
+      }
+      return newCache;
+   }
+
+   /**
+    * Replaces the cache generation of the passed top-level {@link DeploymentUnit}, if any,
+    * by a new one
+    *
+    * @param topLevel
+    */
+   private void invalidate(DeploymentUnit topLevel)
+   {
+      if (this.resetDeploymentCache(topLevel) != null)
+      {
+         logger.debug("Invalidated resolution cache of " + topLevel);
+      }
+   }
+
+   /**
+    * Discards the cached resolutions which point to the beans of the passed {@link DeploymentUnit}
+    * or of its (nested) children, in whichever deployment, and forgets about them in the
+    * {@link ReverseDependencyIndex}, if any
+    *
+    * @param du
+    */
+   private void invalidateDependents(DeploymentUnit du)
+   {
+      ReverseDependencyIndex dependencies = this.dependencies;
+      if (dependencies == null)
+      {
+         return;
+      }
+      Set<ReverseDependencyIndex.Dependent> dependents = new HashSet<ReverseDependencyIndex.Dependent>();
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
+      {
+         stack.push(du);
+         while (!stack.isEmpty())
+         {
+            DeploymentUnit unit = stack.pop();
+            stack.pushChildren(unit, null, null);
+            dependents.addAll(dependencies.removeDependents(unit));
+         }
+      }
+      finally
+      {
+         DeploymentUnitStack.release(stack);
+      }
+      if (!dependents.isEmpty())
+      {
+         this.invalidate(dependents);
+      }
+   }
+
+   /**
+    * Drops the cache generation of the passed top-level {@link DeploymentUnit}, if any
+    *
+    * @param topLevel
+    * @return The dropped generation
+    */
+   private DeploymentCache removeDeploymentCache(DeploymentUnit topLevel)
+   {
+      if (this.policy == null)
+      {
+         return this.deploymentCaches.remove(topLevel);
+      }
+      this.policy.lock();
+      try
+      {
+         DeploymentCache removed = this.deploymentCaches.remove(topLevel);
+         if (removed != null)
+         {
+            this.policy.retire(removed, null);
+         }
+         return removed;
+      }
+      finally
+      {
+         this.policy.unlock();
+      }
+   }
+
+   /**
+    * Drops the passed cache generation of the passed top-level {@link DeploymentUnit}, if it's
+    * still the current one
+    *
+    * @param topLevel
+    * @param cache
+    */
+   private void removeDeploymentCache(DeploymentUnit topLevel, DeploymentCache cache)
+   {
+      if (this.policy == null)
+      {
+         this.deploymentCaches.remove(topLevel, cache);
+         return;
+      }
+      this.policy.lock();
+      try
+      {
+         if (this.deploymentCaches.remove(topLevel, cache))
+         {
+            this.policy.retire(cache, null);
+         }
+      }
+      finally
+      {
+         this.policy.unlock();
+      }
+   }
+
+   /**
+    * Replaces the cache generation of the passed top-level {@link DeploymentUnit}, if any,
+    * by an empty one
+    *
+    * @param topLevel
+    * @return The replaced generation
+    */
+   private DeploymentCache resetDeploymentCache(DeploymentUnit topLevel)
+   {
+      if (this.policy == null)
+      {
+         return this.deploymentCaches.replace(topLevel, new DeploymentCache(null));
+      }
+      this.policy.lock();
+      try
+      {
+         DeploymentCache replaced = this.deploymentCaches.replace(topLevel, new DeploymentCache(this.policy));
+         if (replaced != null)
+         {
+            this.policy.retire(replaced, null);
+         }
+         return replaced;
+      }
+      finally
+      {
+         this.policy.unlock();
+      }
+   }
+
+   /**
+    * Replaces the passed cache generation of the passed top-level {@link DeploymentUnit} by the
+    * passed, not yet published, one
+    *
+    * @param topLevel
+    * @param previous
+    * @param next
+    * @return Whether it was replaced, false if the current generation isn't <code>previous</code>
+    */
+   private boolean replaceDeploymentCache(DeploymentUnit topLevel, DeploymentCache previous, DeploymentCache next)
+   {
+      if (this.policy == null)
+      {
+         return this.deploymentCaches.replace(topLevel, previous, next);
+      }
+      this.policy.lock();
+      try
+      {
+         if (!this.deploymentCaches.replace(topLevel, previous, next))
+         {
+            return false;
+         }
+         this.policy.retire(previous, next);
+         return true;
+      }
+      finally
+      {
+         this.policy.unlock();
+      }
+   }
+
+   /**
+    * One generation of cached resolutions of a top-level deployment
+    */
+   private static class DeploymentCache
+   {
+      private final ConcurrentMap<ResolutionKey, String> jndiNames = new ConcurrentHashMap<ResolutionKey, String>();
+
+      /** Bounds the weight of this generation along with the others, can be null */
+      private final EvictionPolicy policy;
+
+      /** The nodes of the policy which track the resolutions of this generation, guarded by the policy */
+      private final Map<ResolutionKey, EvictionPolicy.Node> nodes = new HashMap<ResolutionKey, EvictionPolicy.Node>();
+
+      /** Whether this generation has been replaced, guarded by the policy */
+      private boolean retired;
+
+      DeploymentCache(EvictionPolicy policy)
+      {
+         this.policy = policy;
+      }
+
+      String get(ResolutionKey key)
+      {
+         return this.jndiNames.get(key);
+      }
+
+      void put(ResolutionKey key, String jndiName)
+      {
+         if (this.jndiNames.putIfAbsent(key, jndiName) == null && this.policy != null)
+         {
+            this.policy.admit(this, key, jndiName);
+         }
+      }
+
+      int size()
+      {
+         return this.jndiNames.size();
+      }
+
+      /**
+       * Returns a new generation holding the cached resolutions of this one but the passed ones
+       */
+      DeploymentCache retainAllBut(Set<ResolutionKey> keys)
+      {
+         DeploymentCache next = new DeploymentCache(this.policy);
+         for (Map.Entry<ResolutionKey, String> entry : this.jndiNames.entrySet())
+         {
+            if (!keys.contains(entry.getKey()))
+            {
+               next.jndiNames.put(entry.getKey(), entry.getValue());
+            }
+         }
+         return next;
+      }
+
+      /**
+       * Returns a new generation holding the cached resolutions of this one which
+       * the passed change cannot affect
+       */
+      DeploymentCache retainUnaffected(DeploymentTreeIndex.Change change)
+      {
+         DeploymentCache next = new DeploymentCache(this.policy);
+         for (Map.Entry<ResolutionKey, String> entry : this.jndiNames.entrySet())
+         {
+            ResolutionKey key = entry.getKey();
+            if (!change.affects(key.getDeploymentUnit(), key.getBeanName(), key.getBeanInterface()))
+            {
+               next.jndiNames.put(key, entry.getValue());
+            }
+         }
+         return next;
+      }
+   }
+
+   /**
+    * Keeps the cached resolutions of all the deployments within a maximum weight (W-TinyLFU).
+    *
+    * New resolutions enter a window of 1% of the maximum weight. The resolutions pushed out of the
+    * window are admitted into the main space as long as it has room. Once it's full, each of them
+    * competes, on its frequency, with the oldest resolution of the main space: the least frequent
+    * of the two is evicted, and a winning oldest resolution is moved to the back of the main space,
+    * for the next candidate to compete with another one.
+    *
+    * The resolutions being cached are first added to a lock-free buffer, which is drained under the
+    * lock of the policy by the first thread which gets it without waiting. Each generation keeps
+    * track of its own nodes, so retiring it only costs the number of resolutions it holds.
+    */
+   private static class EvictionPolicy
+   {
+      /** Estimated bytes of a cached resolution besides its strings: map entries, key and node */
+      private static final int ENTRY_BYTES = 32 + 32 + 32 + 40;
+
+      /** Expected average weight of a cached resolution, to size the sketch */
+      private static final int AVERAGE_WEIGHT = 256;
+
+      /** Number of buffered resolutions beyond which caching one waits for the buffer to be drained */
+      private static final int WRITE_BUFFER_LIMIT = 128;
+
+      private final long maximumWeight;
+
+      private final long windowMaximumWeight;
+
+      /** How often each resolution has been asked for lately */
+      private final FrequencySketch sketch;
+
+      /** Guards the queues and the nodes of the generations */
+      private final ReentrantLock lock = new ReentrantLock();
+
+      /** The resolutions cached but not yet tracked */
+      private final Queue<Node> writeBuffer = new ConcurrentLinkedQueue<Node>();
+
+      /** Number of resolutions in the write buffer */
+      private final AtomicInteger bufferedWrites = new AtomicInteger();
+
+      /** The most recently cached resolutions, oldest first, guarded by the lock */
+      private final NodeQueue window = new NodeQueue();
+
+      /** The resolutions admitted out of the window, oldest first, guarded by the lock */
+      private final NodeQueue main = new NodeQueue();
+
+      private final AtomicLong evictions = new AtomicLong();
+
+      EvictionPolicy(long maximumWeight)
+      {
+         this.maximumWeight = maximumWeight;
+         this.windowMaximumWeight = Math.max(1, maximumWeight / 100);
+         this.sketch = new FrequencySketch(maximumWeight / AVERAGE_WEIGHT);
+      }
+
+      void recordAccess(ResolutionKey key)
+      {
+         this.sketch.increment(key);
+      }
+
+      /**
+       * Tracks a resolution just cached in the passed generation
+       */
+      void admit(DeploymentCache cache, ResolutionKey key, String jndiName)
+      {
+         this.writeBuffer.add(new Node(cache, key, weigh(key, jndiName)));
+         if (this.bufferedWrites.incrementAndGet() > WRITE_BUFFER_LIMIT)
+         {
+            // the buffer isn't drained fast enough, help
+            this.lock();
+            this.unlock();
+            return;
+         }
+         this.tryDrain();
+      }
+
+      /**
+       * Locks the policy and applies the buffered resolutions
+       */
+      void lock()
+      {
+         this.lock.lock();
+         this.drainWriteBuffer();
+      }
+
+      /**
+       * Unlocks the policy, then applies the resolutions buffered meanwhile, unless another thread
+       * has locked the policy (that thread then applies them)
+       */
+      void unlock()
+      {
+         this.lock.unlock();
+         this.tryDrain();
+      }
+
+      /**
+       * Stops tracking the resolutions of a replaced generation, except those kept by its replacement,
+       * if any. The kept resolutions keep their place. Must be called while holding the lock.
+       */
+      void retire(DeploymentCache previous, DeploymentCache next)
+      {
+         previous.retired = true;
+         for (Node node : previous.nodes.values())
+         {
+            if (next != null && next.jndiNames.containsKey(node.key))
+            {
+               node.cache = next;
+               next.nodes.put(node.key, node);
+            }
+            else
+            {
+               node.queue.remove(node);
+            }
+         }
+         previous.nodes.clear();
+         if (next == null)
+         {
+            return;
+         }
+
+         // the resolutions cached in the previous generation while it was being copied
+         for (Map.Entry<ResolutionKey, String> entry : next.jndiNames.entrySet())
+         {
+            if (!next.nodes.containsKey(entry.getKey()))
+            {
+               this.track(new Node(next, entry.getKey(), weigh(entry.getKey(), entry.getValue())));
+            }
+         }
+      }
+
+      long getEvictionCount()
+      {
+         return this.evictions.get();
+      }
+
+      long getWeightedSize()
+      {
+         this.lock();
+         try
+         {
+            return this.window.weight + this.main.weight;
+         }
+         finally
+         {
+            this.unlock();
+         }
+      }
+
+      long getMaximumWeight()
+      {
+         return this.maximumWeight;
+      }
+
+      private void tryDrain()
+      {
+         while (!this.writeBuffer.isEmpty() && this.lock.tryLock())
+         {
+            try
+            {
+               this.drainWriteBuffer();
+            }
+            finally
+            {
+               this.lock.unlock();
+            }
+         }
+      }
+
+      private void drainWriteBuffer()
+      {
+         Node node;
+         while ((node = this.writeBuffer.poll()) != null)
+         {
+            this.bufferedWrites.decrementAndGet();
+            // the generation may have been replaced, or already be tracking the resolution
+            if (!node.cache.retired && !node.cache.nodes.containsKey(node.key))
+            {
+               this.track(node);
+            }
+         }
+      }
+
+      private void track(Node node)
+      {
+         node.cache.nodes.put(node.key, node);
+         this.window.addLast(node);
+         while (this.window.weight > this.windowMaximumWeight)
+         {
+            this.promote(this.window.pollFirst());
+         }
+      }
+
+      private void promote(Node candidate)
+      {
+         while (this.main.weight + candidate.weight > this.maximumWeight - this.windowMaximumWeight)
+         {
+            Node victim = this.main.peekFirst();
+            if (victim == null)
+            {
+               // too heavy to ever be cached
+               this.evict(candidate);
+               return;
+            }
+            if (!this.admits(candidate, victim))
+            {
+               // not worth it, give the victim a second chance
+               this.main.remove(victim);
+               this.main.addLast(victim);
+               this.evict(candidate);
+               return;
+            }
+            this.main.remove(victim);
+            this.evict(victim);
+         }
+         this.main.addLast(candidate);
+      }
+
+      /**
+       * Returns true if the candidate has been asked for more often lately than the victim
+       */
+      private boolean admits(Node candidate, Node victim)
+      {
+         return this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key);
+      }
+
+      private void evict(Node node)
+      {
+         node.cache.jndiNames.remove(node.key);
+         node.cache.nodes.remove(node.key);
+         this.evictions.incrementAndGet();
+      }
+
+      private static int weigh(ResolutionKey key, String jndiName)
+      {
+         return (int) (ENTRY_BYTES + SymbolTable.getStringBytes(key.getBeanName())
+               + SymbolTable.getStringBytes(key.getBeanInterface()) + SymbolTable.getStringBytes(jndiName));
+      }
+
+      /**
+       * A tracked resolution, linked into the window or the main space
+       */
+      private static class Node
+      {
+         /** The generation which holds the resolution, guarded by the lock */
+         DeploymentCache cache;
+
+         final ResolutionKey key;
+
+         final int weight;
+
+         NodeQueue queue;
+
+         Node previous;
+
+         Node next;
+
+         Node(DeploymentCache cache, ResolutionKey key, int weight)
+         {
+            this.cache = cache;
+            this.key = key;
+            this.weight = weight;
+         }
+      }
+
+      /**
+       * A queue of nodes, linked through the nodes themselves so that any node can be removed at once
+       */
+      private static class NodeQueue
+      {
+         private Node head;
+
+         private Node tail;
+
+         /** The total weight of the nodes */
+         long weight;
+
+         Node peekFirst()
+         {
+            return this.head;
+         }
+
+         Node pollFirst()
+         {
+            Node node = this.head;
+            if (node != null)
+            {
+               this.remove(node);
+            }
+            return node;
+         }
+
+         void addLast(Node node)
+         {
+            node.queue = this;
+            node.previous = this.tail;
+            node.next = null;
+            if (this.tail == null)
+            {
+               this.head = node;
+            }
+            else
+            {
+               this.tail.next = node;
+            }
+            this.tail = node;
+            this.weight += node.weight;
+         }
+
+         void remove(Node node)
+         {
+            if (node.previous == null)
+            {
+               this.head = node.next;
+            }
+            else
+            {
+               node.previous.next = node.next;
+            }
+            if (node.next == null)
+            {
+               this.tail = node.previous;
+            }
+            else
+            {
+               node.next.previous = node.previous;
+            }
+            node.queue = null;
+            node.previous = null;
+            node.next = null;
+            this.weight -= node.weight;
+         }
+      }
+   }
+}
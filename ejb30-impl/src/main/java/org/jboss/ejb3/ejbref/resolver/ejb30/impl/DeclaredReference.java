@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+
+/**
+ * A {@link EjbReference} as declared, through an ejb-ref, an ejb-local-ref or an @EJB,
+ * by a bean of a {@link DeploymentUnit}
+ *
+ * @version $Revision: $
+ */
+public class DeclaredReference
+{
+
+   /** The unit of the declaring bean */
+   private final DeploymentUnit du;
+
+   /** The ejb-name of the declaring bean */
+   private final String ejbName;
+
+   /** The ejb-ref-name of the reference */
+   private final String refName;
+
+   /** The reference */
+   private final EjbReference reference;
+
+   /**
+    * @param du The {@link DeploymentUnit} of the declaring bean
+    * @param ejbName The ejb-name of the declaring bean
+    * @param refName The ejb-ref-name of the reference
+    * @param reference The reference
+    */
+   public DeclaredReference(DeploymentUnit du, String ejbName, String refName, EjbReference reference)
+   {
+      this.du = du;
+      this.ejbName = ejbName;
+      this.refName = refName;
+      this.reference = reference;
+   }
+
+   /**
+    * Returns the {@link DeploymentUnit} from which the reference is resolved
+    * @return
+    */
+   public DeploymentUnit getDeploymentUnit()
+   {
+      return this.du;
+   }
+
+   /**
+    * Returns the ejb-name of the bean which declares the reference
+    * @return
+    */
+   public String getEjbName()
+   {
+      return this.ejbName;
+   }
+
+   /**
+    * Returns the ejb-ref-name of the reference
+    * @return
+    */
+   public String getRefName()
+   {
+      return this.refName;
+   }
+
+   /**
+    * Returns the reference
+    * @return
+    */
+   public EjbReference getReference()
+   {
+      return this.reference;
+   }
+
+   @Override
+   public String toString()
+   {
+      return this.refName + " " + this.reference + " of EJB " + this.ejbName + " in " + this.du;
+   }
+}
@@ -0,0 +1,286 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+
+/**
+ * The resolutions of the references of a deployment, attached to its top-level {@link DeploymentUnit}
+ * (under {@link #ATTACHMENT_NAME}) by the {@link ResolutionStatistics} of the resolvers.
+ *
+ * <p>
+ *  Keeps the latencies of the resolutions, the number of classes they loaded and the
+ *  {@link #SLOWEST_COUNT} slowest of them. {@link #toString()} is the one line summary
+ *  which the {@link ResolutionSummaryDeployer} logs. Recording never locks, and the slowest
+ *  resolutions only keep the names of their unit and reference.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DeploymentResolutionSummary
+{
+
+   /** The name of the attachment, on the top-level {@link DeploymentUnit}, of the summary */
+   public static final String ATTACHMENT_NAME = DeploymentResolutionSummary.class.getName();
+
+   /** The number of slowest resolutions kept */
+   public static final int SLOWEST_COUNT = 5;
+
+   /** The top-level unit of the deployment */
+   private final DeploymentUnit topLevel;
+
+   private final LatencyHistogram latencies = new LatencyHistogram();
+
+   private final AtomicLong classLoads = new AtomicLong();
+
+   private final AtomicLong failures = new AtomicLong();
+
+   /** The slowest resolutions, slowest first, replaced as a whole */
+   private final AtomicReference<SlowResolution[]> slowest = new AtomicReference<SlowResolution[]>(
+         new SlowResolution[0]);
+
+   /** The time of the fastest of the slowest resolutions, once there are {@link #SLOWEST_COUNT} of them */
+   private volatile long slowestThreshold = -1;
+
+   private DeploymentResolutionSummary(DeploymentUnit topLevel)
+   {
+      this.topLevel = topLevel;
+   }
+
+   /**
+    * Returns the summary of the deployment of the passed unit, or null if none has been recorded
+    * 
+    * @param du
+    * @return
+    */
+   public static DeploymentResolutionSummary getSummary(DeploymentUnit du)
+   {
+      return du.getTopLevel().getAttachment(ATTACHMENT_NAME, DeploymentResolutionSummary.class);
+   }
+
+   /**
+    * Returns the summary of the deployment of the passed unit, attaching one if none has been yet
+    * 
+    * @param du
+    * @return
+    */
+   static DeploymentResolutionSummary attach(DeploymentUnit du)
+   {
+      DeploymentUnit topLevel = du.getTopLevel();
+      DeploymentResolutionSummary summary = topLevel.getAttachment(ATTACHMENT_NAME, DeploymentResolutionSummary.class);
+      if (summary != null)
+      {
+         return summary;
+      }
+      synchronized (topLevel)
+      {
+         summary = topLevel.getAttachment(ATTACHMENT_NAME, DeploymentResolutionSummary.class);
+         if (summary == null)
+         {
+            summary = new DeploymentResolutionSummary(topLevel);
+            topLevel.addAttachment(ATTACHMENT_NAME, summary);
+         }
+         return summary;
+      }
+   }
+
+   /**
+    * Records a resolution of a reference of the deployment
+    */
+   void record(DeploymentUnit du, EjbReference reference, ResolutionStatistics.Outcome outcome, long nanos,
+         long classLoads)
+   {
+      this.latencies.record(nanos);
+      this.classLoads.addAndGet(classLoads);
+      if (outcome != ResolutionStatistics.Outcome.RESOLVED)
+      {
+         this.failures.incrementAndGet();
+      }
+      if (nanos <= this.slowestThreshold)
+      {
+         return;
+      }
+      SlowResolution resolution = null;
+      while (true)
+      {
+         SlowResolution[] current = this.slowest.get();
+         int position = 0;
+         while (position < current.length && current[position].nanos >= nanos)
+         {
+            position++;
+         }
+         if (position == SLOWEST_COUNT)
+         {
+            return;
+         }
+         if (resolution == null)
+         {
+            resolution = new SlowResolution(du, reference, outcome, nanos);
+         }
+         SlowResolution[] next = new SlowResolution[Math.min(current.length + 1, SLOWEST_COUNT)];
+         System.arraycopy(current, 0, next, 0, position);
+         next[position] = resolution;
+         System.arraycopy(current, position, next, position + 1, next.length - position - 1);
+         if (this.slowest.compareAndSet(current, next))
+         {
+            if (next.length == SLOWEST_COUNT)
+            {
+               this.slowestThreshold = next[SLOWEST_COUNT - 1].nanos;
+            }
+            return;
+         }
+      }
+   }
+
+   /**
+    * Returns the top-level unit of the deployment
+    * @return
+    */
+   public DeploymentUnit getTopLevel()
+   {
+      return this.topLevel;
+   }
+
+   /**
+    * Returns the latencies of the resolutions
+    * @return
+    */
+   public LatencyHistogram getLatencies()
+   {
+      return this.latencies;
+   }
+
+   /**
+    * Returns the number of resolved references
+    * @return
+    */
+   public long getReferenceCount()
+   {
+      return this.latencies.getCount();
+   }
+
+   /**
+    * Returns the number of resolutions which failed
+    * @return
+    */
+   public long getFailureCount()
+   {
+      return this.failures.get();
+   }
+
+   /**
+    * Returns the number of classes loaded by the resolutions
+    * @return
+    */
+   public long getClassLoadCount()
+   {
+      return this.classLoads.get();
+   }
+
+   /**
+    * Returns the {@link #SLOWEST_COUNT} slowest resolutions, slowest first
+    * @return
+    */
+   public List<SlowResolution> getSlowest()
+   {
+      return Collections.unmodifiableList(Arrays.asList(this.slowest.get()));
+   }
+
+   @Override
+   public String toString()
+   {
+      return "Resolved " + this.getReferenceCount() + " EJB references (" + this.getFailureCount() + " failed) of "
+            + this.topLevel.getName() + " in " + LatencyHistogram.format(this.latencies.getTotal()) + ": p50 "
+            + LatencyHistogram.format(this.latencies.getValueAtPercentile(50)) + ", p99 "
+            + LatencyHistogram.format(this.latencies.getValueAtPercentile(99)) + ", max "
+            + LatencyHistogram.format(this.latencies.getMax()) + ", " + this.getClassLoadCount()
+            + " class loads, slowest " + this.getSlowest();
+   }
+
+   /**
+    * One of the slowest resolutions of the deployment
+    */
+   public static class SlowResolution
+   {
+      private final String deploymentUnitName;
+
+      private final String reference;
+
+      private final ResolutionStatistics.Outcome outcome;
+
+      private final long nanos;
+
+      SlowResolution(DeploymentUnit du, EjbReference reference, ResolutionStatistics.Outcome outcome, long nanos)
+      {
+         this.deploymentUnitName = du.getName();
+         this.reference = reference.toString();
+         this.outcome = outcome;
+         this.nanos = nanos;
+      }
+
+      /**
+       * Returns the name of the unit the reference was resolved from
+       * @return
+       */
+      public String getDeploymentUnitName()
+      {
+         return this.deploymentUnitName;
+      }
+
+      /**
+       * Returns the description of the resolved reference
+       * @return
+       */
+      public String getReference()
+      {
+         return this.reference;
+      }
+
+      public ResolutionStatistics.Outcome getOutcome()
+      {
+         return this.outcome;
+      }
+
+      /**
+       * Returns the time the resolution took, in nanoseconds
+       * @return
+       */
+      public long getNanos()
+      {
+         return this.nanos;
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.reference + " from " + this.deploymentUnitName + " " + this.outcome.name().toLowerCase() + " in "
+               + LatencyHistogram.format(this.nanos);
+      }
+   }
+}
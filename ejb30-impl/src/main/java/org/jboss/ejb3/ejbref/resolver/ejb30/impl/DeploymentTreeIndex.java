@@ -0,0 +1,559 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.logging.Logger;
+
+/**
+ * The index of a whole deployment tree, composed of one {@link DeploymentUnitIndex} per
+ * {@link DeploymentUnit} of the tree.
+ *
+ * <p>
+ *  When attached to the top-level {@link DeploymentUnit} (under {@link #ATTACHMENT_NAME}),
+ *  the {@link FirstMatchEjbReferenceResolver} and the {@link ScopedEJBReferenceResolver} resolve
+ *  references against the candidates returned by the indexes of the units they visit, instead
+ *  of matching every session bean of those units. The index of a unit is built the first time
+ *  the unit is visited.
+ * </p>
+ * <p>
+ *  The {@link BeanDescriptor}s of the indexes are extracted by the {@link IndexableEjbReferenceResolver}
+ *  passed when creating the tree index, with one {@link SymbolTable} for the whole tree. Only the
+ *  {@link AbstractEjbReferenceResolver}s whose {@link MetaDataBasedEjbReferenceResolver} creates the same
+ *  descriptors make use of the index, the others keep resolving against the metadata. When the
+ *  {@link IndexableEjbReferenceResolver#getDescriptorVersion()} of the resolver changes, the indexes of
+ *  all the units are dropped and built again.
+ * </p>
+ * <p>
+ *  When a nested {@link DeploymentUnit} (for example a war within an ear) is redeployed,
+ *  {@link #replace(DeploymentUnit, DeploymentUnit)} swaps the contributions of that unit and
+ *  of its children only, leaving the indexes of the untouched units alone. The returned
+ *  {@link Change} tells which resolutions may have been affected, so caches can invalidate
+ *  those alone.
+ * </p>
+ * <p>
+ *  Once the deployment is fully deployed, {@link #freeze()} compiles the resolutions of the
+ *  whole tree into a {@link FrozenDeploymentIndex}.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DeploymentTreeIndex
+{
+
+   /** The name of the attachment, on the top-level {@link DeploymentUnit}, of the index */
+   public static final String ATTACHMENT_NAME = DeploymentTreeIndex.class.getName();
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(DeploymentTreeIndex.class);
+
+   /** The top-level unit of the indexed tree */
+   private final DeploymentUnit topLevel;
+
+   /** The resolver which extracts the descriptors of the beans */
+   private final IndexableEjbReferenceResolver resolver;
+
+   /** The version of the descriptors of the contributions, guarded by this */
+   private volatile long descriptorVersion;
+
+   /** The table of the interface and bean names of the whole tree */
+   private final SymbolTable symbols = new SymbolTable();
+
+   /** The contribution of each (already visited) unit of the tree */
+   private final ConcurrentMap<DeploymentUnit, DeploymentUnitIndex> contributions = new ConcurrentHashMap<DeploymentUnit, DeploymentUnitIndex>();
+
+   /** Whether the index was attached by an {@link AdaptiveIndexingPolicy}, which then decides which units are indexed */
+   private volatile boolean adaptive;
+
+   /** The resolutions of the tree compiled by {@link #freeze()}, null until then or once a unit is replaced */
+   private volatile FrozenDeploymentIndex frozen;
+
+   /** Incremented by each {@link #replace(DeploymentUnit, DeploymentUnit)}, guarded by this */
+   private volatile long generation;
+
+   /**
+    * Creates an (initially empty) index of the tree of the passed top-level {@link DeploymentUnit},
+    * whose descriptors are extracted by a {@link EJB30MetaDataBasedEjbReferenceResolver}
+    * 
+    * @param topLevel
+    */
+   public DeploymentTreeIndex(DeploymentUnit topLevel)
+   {
+      this(topLevel, new EJB30MetaDataBasedEjbReferenceResolver());
+   }
+
+   /**
+    * Creates an (initially empty) index of the tree of the passed top-level {@link DeploymentUnit}
+    * 
+    * @param topLevel
+    * @param resolver The resolver which extracts the {@link BeanDescriptor}s of the session beans
+    */
+   public DeploymentTreeIndex(DeploymentUnit topLevel, IndexableEjbReferenceResolver resolver)
+   {
+      if (topLevel == null)
+      {
+         throw new IllegalArgumentException("Top level DeploymentUnit cannot be null");
+      }
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException(IndexableEjbReferenceResolver.class.getSimpleName() + " cannot be null");
+      }
+      this.topLevel = topLevel;
+      this.resolver = resolver;
+      this.descriptorVersion = resolver.getDescriptorVersion();
+   }
+
+   /**
+    * Returns the {@link DeploymentTreeIndex} attached to the top-level unit of the passed
+    * {@link DeploymentUnit}, or null if the tree isn't indexed
+    * 
+    * @param du
+    * @return
+    */
+   public static DeploymentTreeIndex getDeploymentTreeIndex(DeploymentUnit du)
+   {
+      return du.getTopLevel().getAttachment(ATTACHMENT_NAME, DeploymentTreeIndex.class);
+   }
+
+   /**
+    * Attaches a {@link DeploymentTreeIndex}, whose descriptors are extracted by a
+    * {@link EJB30MetaDataBasedEjbReferenceResolver}, to the top-level unit of the passed
+    * {@link DeploymentUnit}, unless one is already attached
+    * 
+    * @param du
+    * @return Returns the index attached to the tree
+    */
+   public static DeploymentTreeIndex attach(DeploymentUnit du)
+   {
+      return attach(du, new EJB30MetaDataBasedEjbReferenceResolver());
+   }
+
+   /**
+    * Attaches a {@link DeploymentTreeIndex} to the top-level unit of the passed
+    * {@link DeploymentUnit}, unless one is already attached
+    * 
+    * @param du
+    * @param resolver The resolver which extracts the {@link BeanDescriptor}s of the session beans
+    * @return Returns the index attached to the tree
+    */
+   public static DeploymentTreeIndex attach(DeploymentUnit du, IndexableEjbReferenceResolver resolver)
+   {
+      return attach(du, resolver, false);
+   }
+
+   /**
+    * Attaches a {@link DeploymentTreeIndex} to the top-level unit of the passed {@link DeploymentUnit}, unless
+    * one is already attached
+    * 
+    * @param du
+    * @param resolver The resolver which extracts the {@link BeanDescriptor}s of the session beans
+    * @param adaptive Whether an {@link AdaptiveIndexingPolicy} attaches the index, if it's created
+    * @return Returns the index attached to the tree
+    */
+   static DeploymentTreeIndex attach(DeploymentUnit du, IndexableEjbReferenceResolver resolver, boolean adaptive)
+   {
+      DeploymentUnit topLevel = du.getTopLevel();
+      DeploymentTreeIndex index = topLevel.getAttachment(ATTACHMENT_NAME, DeploymentTreeIndex.class);
+      if (index != null)
+      {
+         return index;
+      }
+      // trees are attached their index independently of each other
+      synchronized (topLevel)
+      {
+         index = topLevel.getAttachment(ATTACHMENT_NAME, DeploymentTreeIndex.class);
+         if (index == null)
+         {
+            index = new DeploymentTreeIndex(topLevel, resolver);
+            index.adaptive = adaptive;
+            topLevel.addAttachment(ATTACHMENT_NAME, index);
+         }
+         return index;
+      }
+   }
+
+   /**
+    * Returns the index of the passed {@link DeploymentUnit} of this tree, building it if required.
+    * <p>
+    * The index is built without holding any lock. It's only kept if no unit of the tree has been
+    * replaced meanwhile, else the unit may be one which was just replaced: the index is then
+    * returned to the caller only, so that it doesn't keep the replaced unit reachable.
+    * </p>
+    * 
+    * @param du
+    * @return
+    */
+   public DeploymentUnitIndex getDeploymentUnitIndex(DeploymentUnit du)
+   {
+      this.checkDescriptorVersion();
+      DeploymentUnitIndex index = this.contributions.get(du);
+      if (index != null)
+      {
+         return index;
+      }
+      long generation = this.generation;
+      DeploymentUnitIndex newIndex = new DeploymentUnitIndex(du, this.resolver, this.symbols);
+      synchronized (this)
+      {
+         index = this.contributions.get(du);
+         if (index != null)
+         {
+            return index;
+         }
+         if (generation != this.generation)
+         {
+            logger.debug("Not keeping index of " + du + ", the index of " + this.topLevel + " changed meanwhile");
+            return newIndex;
+         }
+         this.contributions.put(du, newIndex);
+      }
+      reportAmbiguities(newIndex);
+      return newIndex;
+   }
+
+   /**
+    * Replaces the contributions of the passed <code>previous</code> {@link DeploymentUnit} and of its
+    * children by the contributions of the passed <code>replacement</code> and of its children.
+    * The contributions of the other units of the tree are kept.
+    * 
+    * @param previous The undeployed unit, or null if a new unit is being deployed. If it's the same
+    *           instance as <code>replacement</code>, its metadata is re-indexed.
+    * @param replacement The deployed unit, or null if a unit is being undeployed
+    * @return Returns the {@link Change} which describes the resolutions that may be affected
+    */
+   public synchronized Change replace(DeploymentUnit previous, DeploymentUnit replacement)
+   {
+      if (previous == null && replacement == null)
+      {
+         throw new IllegalArgumentException("Either the previous or the replacement DeploymentUnit must be specified");
+      }
+      this.checkDescriptorVersion();
+      List<DeploymentUnitIndex> changed = new ArrayList<DeploymentUnitIndex>();
+      this.frozen = null;
+      this.generation++;
+
+      // drop the contributions of the previous unit and its children
+      if (previous != null)
+      {
+         for (DeploymentUnit du : new ArrayList<DeploymentUnit>(this.contributions.keySet()))
+         {
+            if (isWithin(du, previous))
+            {
+               DeploymentUnitIndex removed = this.contributions.remove(du);
+               if (removed != null)
+               {
+                  changed.add(removed);
+               }
+            }
+         }
+      }
+
+      // build the contributions of the replacement and its children
+      if (replacement != null)
+      {
+         this.addContributions(replacement, changed);
+      }
+      logger.debug("Replaced " + previous + " by " + replacement + " in index of " + this.topLevel + ", "
+            + changed.size() + " contributions changed");
+      return new Change(previous, replacement, changed);
+   }
+
+   /**
+    * Compiles the resolutions of the whole tree into a {@link FrozenDeploymentIndex}, which the
+    * {@link FirstMatchEjbReferenceResolver} then uses, until a unit of the tree is replaced. Meant
+    * to be called once the deployment is fully deployed.
+    * 
+    * @return Returns the frozen index, or null if the resolutions couldn't be compiled
+    */
+   public synchronized FrozenDeploymentIndex freeze()
+   {
+      this.checkDescriptorVersion();
+      this.frozen = FrozenDeploymentIndex.build(this);
+      return this.frozen;
+   }
+
+   /**
+    * Returns the resolutions compiled by {@link #freeze()}, or null if not frozen (anymore)
+    * @return
+    */
+   public FrozenDeploymentIndex getFrozenIndex()
+   {
+      this.checkDescriptorVersion();
+      return this.frozen;
+   }
+
+   /**
+    * Returns the top-level {@link DeploymentUnit} of the indexed tree
+    * @return
+    */
+   public DeploymentUnit getTopLevel()
+   {
+      return this.topLevel;
+   }
+
+   /**
+    * Returns true if the descriptors of this index resolve references just like the passed resolver,
+    * that is if it's a {@link IndexableEjbReferenceResolver} which creates the same descriptors as
+    * the resolver of this index
+    * 
+    * @param resolver
+    * @return
+    */
+   public boolean isCompatibleWith(MetaDataBasedEjbReferenceResolver resolver)
+   {
+      return resolver instanceof IndexableEjbReferenceResolver
+            && this.resolver.createsSameDescriptors((IndexableEjbReferenceResolver) resolver);
+   }
+
+   /**
+    * Returns the {@link SymbolTable} shared by the indexes of the units of the tree
+    * @return
+    */
+   public SymbolTable getSymbolTable()
+   {
+      return this.symbols;
+   }
+
+   /**
+    * Returns the estimated heap taken by the interface names of the beans of the tree, compared with
+    * the string collections the same names would take
+    * @return
+    */
+   public SymbolTable.MemoryReport getMemoryReport()
+   {
+      List<BeanDescriptor> sessionBeans = new ArrayList<BeanDescriptor>();
+      for (DeploymentUnitIndex contribution : this.contributions.values())
+      {
+         sessionBeans.addAll(contribution.getSessionBeans());
+      }
+      return this.symbols.getMemoryReport(sessionBeans);
+   }
+
+   /**
+    * Returns the interfaces which are ambiguous within the indexed units of the tree
+    * @return
+    */
+   public AmbiguityReport getAmbiguityReport()
+   {
+      List<AmbiguityReport.Ambiguity> ambiguities = new ArrayList<AmbiguityReport.Ambiguity>();
+      for (DeploymentUnitIndex contribution : this.contributions.values())
+      {
+         ambiguities.addAll(contribution.getAmbiguityReport().getAmbiguities());
+      }
+      return new AmbiguityReport(ambiguities);
+   }
+
+   /**
+    * Returns the number of {@link DeploymentUnit}s of the tree which are currently indexed
+    * @return
+    */
+   public int getIndexedDeploymentUnitCount()
+   {
+      return this.contributions.size();
+   }
+
+   /**
+    * Returns whether the passed {@link DeploymentUnit} of the tree is currently indexed
+    * 
+    * @param du
+    * @return
+    */
+   public boolean isIndexed(DeploymentUnit du)
+   {
+      return this.contributions.containsKey(du);
+   }
+
+   /**
+    * Returns whether this index was attached by an {@link AdaptiveIndexingPolicy}
+    * @return
+    */
+   public boolean isAdaptive()
+   {
+      return this.adaptive;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Drops the contributions and the frozen index if the resolver now creates other descriptors
+    * than the ones they hold (for example because its jndi binding policy changed)
+    */
+   private void checkDescriptorVersion()
+   {
+      if (this.resolver.getDescriptorVersion() == this.descriptorVersion)
+      {
+         return;
+      }
+      synchronized (this)
+      {
+         long version = this.resolver.getDescriptorVersion();
+         if (version == this.descriptorVersion)
+         {
+            return;
+         }
+         logger.debug("Descriptors of " + this.resolver + " changed, dropping the index of " + this.topLevel);
+         this.contributions.clear();
+         this.frozen = null;
+         this.generation++;
+         this.descriptorVersion = version;
+      }
+   }
+
+   private void addContributions(DeploymentUnit du, List<DeploymentUnitIndex> changed)
+   {
+      DeploymentUnitIndex index = new DeploymentUnitIndex(du, this.resolver, this.symbols);
+      this.contributions.put(du, index);
+      reportAmbiguities(index);
+      changed.add(index);
+      List<DeploymentUnit> children = du.getChildren();
+      if (children != null)
+      {
+         for (DeploymentUnit child : children)
+         {
+            this.addContributions(child, changed);
+         }
+      }
+   }
+
+   /**
+    * Logs, once per indexed unit, the interfaces which are ambiguous within the unit
+    */
+   private static void reportAmbiguities(DeploymentUnitIndex index)
+   {
+      AmbiguityReport report = index.getAmbiguityReport();
+      if (!report.isEmpty())
+      {
+         logger.warn("References without beanName to these interfaces cannot be resolved within "
+               + index.getDeploymentUnit() + ": " + report);
+      }
+   }
+
+   /**
+    * Returns true if the passed {@link DeploymentUnit} is <code>root</code> or one of its
+    * (nested) children
+    */
+   private static boolean isWithin(DeploymentUnit du, DeploymentUnit root)
+   {
+      for (DeploymentUnit current = du; current != null; current = current.getParent())
+      {
+         if (current == root)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Describes the replacement of the contributions of a {@link DeploymentUnit} (and its children)
+    * in a {@link DeploymentTreeIndex}
+    */
+   public static class Change
+   {
+      private final DeploymentUnit previous;
+
+      private final DeploymentUnit replacement;
+
+      /** The removed and the added contributions */
+      private final List<DeploymentUnitIndex> contributions;
+
+      Change(DeploymentUnit previous, DeploymentUnit replacement, List<DeploymentUnitIndex> contributions)
+      {
+         this.previous = previous;
+         this.replacement = replacement;
+         this.contributions = Collections.unmodifiableList(contributions);
+      }
+
+      /**
+       * Returns true if the resolution of the passed reference, from the passed {@link DeploymentUnit},
+       * may now give a different result. That's the case if the unit is one of the replaced ones or
+       * if a removed or added session bean may match the reference.
+       * 
+       * @param du The {@link DeploymentUnit} from which the reference was resolved
+       * @param reference The resolved reference
+       * @return
+       */
+      public boolean affects(DeploymentUnit du, EjbReference reference)
+      {
+         return this.affects(du, reference.getBeanName(), reference.getBeanInterface());
+      }
+
+      boolean affects(DeploymentUnit du, String beanName, String beanInterface)
+      {
+         if ((this.previous != null && isWithin(du, this.previous))
+               || (this.replacement != null && isWithin(du, this.replacement)))
+         {
+            return true;
+         }
+         for (DeploymentUnitIndex contribution : this.contributions)
+         {
+            if (contribution.mayMatch(beanName, beanInterface))
+            {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      /**
+       * Returns the top-level {@link DeploymentUnit} of the changed tree
+       * @return
+       */
+      public DeploymentUnit getTopLevel()
+      {
+         return (this.replacement != null ? this.replacement : this.previous).getTopLevel();
+      }
+
+      /**
+       * Returns the replaced {@link DeploymentUnit}, null if a unit was added
+       * @return
+       */
+      DeploymentUnit getPrevious()
+      {
+         return this.previous;
+      }
+
+      /**
+       * Returns the removed and the added contributions
+       * @return
+       */
+      public List<DeploymentUnitIndex> getContributions()
+      {
+         return this.contributions;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "Change[" + this.previous + " -> " + this.replacement + "]";
+      }
+   }
+}
@@ -0,0 +1,498 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * An immutable index of the session beans of a single {@link DeploymentUnit}, which is the
+ * contribution of that unit to a {@link DeploymentTreeIndex}.
+ *
+ * <p>
+ *  The index holds a {@link BeanDescriptor} per session bean, extracted once from the {@link JBossMetaData}
+ *  of the unit, and resolves references against those descriptors only. The metadata isn't referenced
+ *  by the index, so it can be released once the deployment has been processed.
+ * </p>
+ * <p>
+ *  The session beans are indexed by ejb-name and by the ID of every interface they expose: the directly
+ *  declared ones (business locals, business remotes, home, local home), all their super-interfaces
+ *  and the ejb-class (for the no-interface view). For a given {@link EjbReference}, the index
+ *  returns the candidate beans, which are a superset of the beans that can match the reference,
+ *  in the order in which they appear in the metadata. Resolving against the candidates thus
+ *  gives the same result as resolving against the whole metadata of the unit.
+ * </p>
+ * <p>
+ *  The interface IDs are kept in a sorted array, which is binary searched, along with the beans
+ *  and the ambiguity (if any) of each of them. The interfaces which are ambiguous within the unit
+ *  are found once, when the index is built, so that a reference to one of them fails straight away.
+ *  They're listed by {@link #getAmbiguityReport()}.
+ * </p>
+ * <p>
+ *  If the super-interfaces of a bean cannot be determined (because one of its interfaces can't be
+ *  loaded), that bean is a candidate for every reference, so that the error is reported at
+ *  resolution time just like without an index.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DeploymentUnitIndex
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(DeploymentUnitIndex.class);
+
+   /** The indexed unit */
+   private final DeploymentUnit du;
+
+   /** The resolver which created the descriptors */
+   private final IndexableEjbReferenceResolver resolver;
+
+   /** The table which assigned the IDs of the interfaces of the descriptors */
+   private final SymbolTable symbols;
+
+   /** All the session beans of the unit, in metadata order */
+   private final List<BeanDescriptor> sessionBeans;
+
+   /** Beans keyed by their ejb-name */
+   private final Map<String, List<BeanDescriptor>> beansByName;
+
+   /** The sorted IDs of the interfaces the beans expose */
+   private final int[] interfaceIds;
+
+   /** The beans exposing each of the interfaces of {@link #interfaceIds}, in metadata order */
+   private final List<List<BeanDescriptor>> beansByInterface;
+
+   /** The session beans whose interfaces could not be determined */
+   private final List<BeanDescriptor> unindexedBeans;
+
+   /** The ambiguity of each of the interfaces of {@link #interfaceIds}, null if it isn't ambiguous */
+   private final AmbiguityReport.Ambiguity[] ambiguities;
+
+   /**
+    * Creates the index of the {@link JBossMetaData} attached to the passed {@link DeploymentUnit}.
+    * A unit without metadata gets an empty index.
+    * 
+    * @param du The {@link DeploymentUnit} to index
+    * @param resolver The resolver which extracts the {@link BeanDescriptor}s of the session beans
+    * @param symbols The table which assigns the IDs of the interfaces
+    */
+   public DeploymentUnitIndex(DeploymentUnit du, IndexableEjbReferenceResolver resolver, SymbolTable symbols)
+   {
+      this.du = du;
+      this.resolver = resolver;
+      this.symbols = symbols;
+      this.sessionBeans = new ArrayList<BeanDescriptor>();
+      this.beansByName = new HashMap<String, List<BeanDescriptor>>();
+      this.unindexedBeans = new ArrayList<BeanDescriptor>();
+
+      // each interface exposed by a bean, as its ID in the high bits and the position of the bean in the low ones
+      long[] exposures = new long[16];
+      int exposureCount = 0;
+
+      JBossMetaData metadata = getMetaData(du);
+      JBossEnterpriseBeansMetaData enterpriseBeans = metadata == null ? null : metadata.getEnterpriseBeans();
+      if (enterpriseBeans != null)
+      {
+         ClassLoader cl = du.getClassLoader();
+         for (JBossEnterpriseBeanMetaData bean : enterpriseBeans)
+         {
+            // only session beans can be targets of a reference
+            if (!(bean instanceof JBossSessionBeanMetaData))
+            {
+               continue;
+            }
+            BeanDescriptor descriptor = resolver.createBeanDescriptor((JBossSessionBeanMetaData) bean, cl, symbols);
+            int position = this.sessionBeans.size();
+            this.sessionBeans.add(descriptor);
+            addToIndex(this.beansByName, descriptor.getEjbName(), descriptor);
+
+            if (!descriptor.isInheritanceKnown())
+            {
+               this.unindexedBeans.add(descriptor);
+               continue;
+            }
+            int[] viewIds = descriptor.getViewIds();
+            int[] inheritedIds = descriptor.getInheritedIds();
+            int required = exposureCount + viewIds.length + inheritedIds.length + 1;
+            if (required > exposures.length)
+            {
+               exposures = Arrays.copyOf(exposures, Math.max(required, exposures.length * 2));
+            }
+            exposureCount = addExposures(exposures, exposureCount, viewIds, position);
+            exposureCount = addExposures(exposures, exposureCount, inheritedIds, position);
+            exposureCount = addExposures(exposures, exposureCount, new int[]
+            {descriptor.getEjbClassId()}, position);
+         }
+      }
+
+      // group the beans by interface, sorting by ID then by position keeps them in metadata order
+      Arrays.sort(exposures, 0, exposureCount);
+      int[] ids = new int[exposureCount];
+      this.beansByInterface = new ArrayList<List<BeanDescriptor>>();
+      int interfaceCount = 0;
+      for (int i = 0; i < exposureCount; i++)
+      {
+         int interfaceId = (int) (exposures[i] >>> 32);
+         BeanDescriptor descriptor = this.sessionBeans.get((int) exposures[i]);
+         if (interfaceCount == 0 || ids[interfaceCount - 1] != interfaceId)
+         {
+            ids[interfaceCount++] = interfaceId;
+            this.beansByInterface.add(new ArrayList<BeanDescriptor>(1));
+         }
+         // a bean which exposes an interface twice (as the ejb-class and as a view) is listed once
+         List<BeanDescriptor> beans = this.beansByInterface.get(interfaceCount - 1);
+         if (beans.isEmpty() || beans.get(beans.size() - 1) != descriptor)
+         {
+            beans.add(descriptor);
+         }
+      }
+      this.interfaceIds = Arrays.copyOf(ids, interfaceCount);
+      for (int i = 0; i < interfaceCount; i++)
+      {
+         this.beansByInterface.set(i, Collections.unmodifiableList(this.beansByInterface.get(i)));
+      }
+      this.ambiguities = this.findAmbiguities();
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference} against the session beans of this index
+    * 
+    * @param reference The reference to resolve
+    * @return Returns the resolved jndi-name, or null if no session bean of the unit matches
+    * @throws NonDeterministicInterfaceException If more than one session bean of the unit matches
+    */
+   public String resolveEjb(EjbReference reference)
+   {
+      String mappedName = reference.getMappedName();
+      if (mappedName != null && mappedName.trim().length() > 0)
+      {
+         logger.debug("Bypassing resolution, using mappedName of " + reference);
+         return mappedName;
+      }
+
+      BeanDescriptor sessionBean = this.findSessionBean(reference);
+      if (sessionBean == null)
+      {
+         return null;
+      }
+      // an interface which no bean of the tree declares has no ID, but isn't the same as no interface at all
+      String beanInterface = reference.getBeanInterface();
+      int interfaceId = this.symbols.lookup(beanInterface);
+      if (interfaceId != SymbolTable.NO_SYMBOL || beanInterface == null)
+      {
+         String jndiName = sessionBean.getJndiName(interfaceId);
+         if (jndiName != null)
+         {
+            return jndiName;
+         }
+      }
+
+      // the reference matched by its beanName, but names an interface the descriptor knows nothing about,
+      // so let the resolver deal with it as long as the metadata is around
+      JBossMetaData metadata = getMetaData(this.du);
+      if (metadata == null)
+      {
+         logger.debug("EJB " + sessionBean + " doesn't expose the beanInterface of " + reference
+               + " and the metadata of " + this.du + " has been released");
+         return null;
+      }
+      return this.resolver.resolveEjb(reference, metadata, this.du.getClassLoader());
+   }
+
+   /**
+    * Returns the session bean of this index which matches the passed {@link EjbReference}
+    * 
+    * @param reference The reference
+    * @return Returns the matching session bean, or null if none matches
+    * @throws NonDeterministicInterfaceException If more than one session bean of the unit matches
+    */
+   public BeanDescriptor findSessionBean(EjbReference reference)
+   {
+      List<BeanDescriptor> candidates = this.getCandidates(reference.getBeanName(), reference.getBeanInterface());
+      if (candidates.isEmpty())
+      {
+         return null;
+      }
+      int interfaceId = this.symbols.lookup(reference.getBeanInterface());
+      String beanName = reference.getBeanName();
+      if ((beanName == null || beanName.trim().length() == 0) && this.unindexedBeans.isEmpty())
+      {
+         // the candidates are known to match, unless the interface is ambiguous
+         int index = this.indexOf(interfaceId);
+         AmbiguityReport.Ambiguity ambiguity = index < 0 ? null : this.ambiguities[index];
+         if (ambiguity != null)
+         {
+            throw ambiguity.createException(reference);
+         }
+      }
+      Collection<BeanDescriptor> matches = new ArrayList<BeanDescriptor>(1);
+      for (BeanDescriptor candidate : candidates)
+      {
+         if (candidate.isMatch(reference, interfaceId))
+         {
+            matches.add(candidate);
+         }
+      }
+      if (matches.size() > 1)
+      {
+         assert beanName == null || beanName.trim().length() == 0 : "Error in resolution logic, more than one eligible EJB "
+               + "was found to satisfy beanInterface "
+               + reference.getBeanInterface()
+               + ", but EJB Name was explicitly-specified.";
+         throw new NonDeterministicInterfaceException("Specified reference " + reference
+               + " was matched by more than one EJB: " + matches
+               + ".  Specify beanName explciitly or ensure beanInterface is unique.");
+      }
+      return matches.isEmpty() ? null : matches.iterator().next();
+   }
+
+   /**
+    * Returns the session beans which may match a reference with the passed beanName
+    * and beanInterface, in metadata order
+    * 
+    * @param beanName The beanName of the reference, can be null
+    * @param beanInterface The beanInterface of the reference, can be null
+    * @return
+    */
+   public List<BeanDescriptor> getCandidates(String beanName, String beanInterface)
+   {
+      boolean byName = beanName != null && beanName.trim().length() > 0;
+      if (!byName && beanInterface == null)
+      {
+         // let the descriptors deal with such a reference, as the resolver would without an index
+         return this.getSessionBeans();
+      }
+      if (byName)
+      {
+         // the beans are indexed by name whether or not their interfaces are known
+         return nonNull(this.beansByName.get(beanName));
+      }
+      int index = this.indexOf(this.symbols.lookup(beanInterface));
+      List<BeanDescriptor> candidates = index < 0 ? Collections.<BeanDescriptor> emptyList() : this.beansByInterface
+            .get(index);
+      if (this.unindexedBeans.isEmpty())
+      {
+         return candidates;
+      }
+      // add the beans whose interfaces are unknown, preserving the metadata order
+      List<BeanDescriptor> merged = new ArrayList<BeanDescriptor>();
+      for (BeanDescriptor descriptor : this.sessionBeans)
+      {
+         if (candidates.contains(descriptor) || this.unindexedBeans.contains(descriptor))
+         {
+            merged.add(descriptor);
+         }
+      }
+      return merged;
+   }
+
+   /**
+    * Returns true if any session bean of this index may match a reference with the passed
+    * beanName and beanInterface
+    * 
+    * @param beanName The beanName of the reference, can be null
+    * @param beanInterface The beanInterface of the reference, can be null
+    * @return
+    */
+   public boolean mayMatch(String beanName, String beanInterface)
+   {
+      return !this.getCandidates(beanName, beanInterface).isEmpty();
+   }
+
+   /**
+    * Returns the indexed {@link DeploymentUnit}
+    * @return
+    */
+   public DeploymentUnit getDeploymentUnit()
+   {
+      return this.du;
+   }
+
+   /**
+    * Returns the session beans of the indexed unit, in metadata order
+    * @return
+    */
+   public List<BeanDescriptor> getSessionBeans()
+   {
+      return Collections.unmodifiableList(this.sessionBeans);
+   }
+
+   /**
+    * Returns the interfaces which are ambiguous within the indexed unit
+    * @return
+    */
+   public AmbiguityReport getAmbiguityReport()
+   {
+      List<AmbiguityReport.Ambiguity> found = new ArrayList<AmbiguityReport.Ambiguity>();
+      for (AmbiguityReport.Ambiguity ambiguity : this.ambiguities)
+      {
+         if (ambiguity != null)
+         {
+            found.add(ambiguity);
+         }
+      }
+      return new AmbiguityReport(found);
+   }
+
+   /**
+    * Returns the {@link SymbolTable} which assigned the IDs of the interfaces of the session beans
+    * @return
+    */
+   public SymbolTable getSymbolTable()
+   {
+      return this.symbols;
+   }
+
+   @Override
+   public String toString()
+   {
+      return DeploymentUnitIndex.class.getSimpleName() + "[" + this.du + ": " + this.sessionBeans.size()
+            + " session beans]";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Finds, in one pass over the index, every interface which more than one bean exposes or which
+    * appears more than once in the hierarchy of a bean. Each interface is matched against its beans
+    * just like a reference (without beanName) to it would be.
+    */
+   private AmbiguityReport.Ambiguity[] findAmbiguities()
+   {
+      AmbiguityReport.Ambiguity[] found = new AmbiguityReport.Ambiguity[this.interfaceIds.length];
+      for (int index = 0; index < this.interfaceIds.length; index++)
+      {
+         int interfaceId = this.interfaceIds[index];
+         List<BeanDescriptor> beans = this.beansByInterface.get(index);
+         boolean ambiguousWithin = false;
+         for (BeanDescriptor bean : beans)
+         {
+            ambiguousWithin |= bean.isAmbiguous(interfaceId);
+         }
+         if (beans.size() < 2 && !ambiguousWithin)
+         {
+            continue;
+         }
+         String interfaceName = this.symbols.getSymbol(interfaceId);
+         EjbReference reference = new EjbReference(null, interfaceName, null);
+         List<BeanDescriptor> matches = new ArrayList<BeanDescriptor>();
+         BeanDescriptor thrower = null;
+         for (BeanDescriptor bean : beans)
+         {
+            try
+            {
+               if (bean.isMatch(reference, interfaceId))
+               {
+                  matches.add(bean);
+               }
+            }
+            catch (NonDeterministicInterfaceException ndie)
+            {
+               // the resolution would stop at this bean
+               matches.add(bean);
+               thrower = bean;
+               break;
+            }
+         }
+         if (thrower != null || matches.size() > 1)
+         {
+            found[index] = new AmbiguityReport.Ambiguity(this.du, interfaceName, matches, thrower);
+         }
+      }
+      return found;
+   }
+
+   private static JBossMetaData getMetaData(DeploymentUnit du)
+   {
+      return du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, JBossMetaData.class);
+   }
+
+   /**
+    * Returns the position of the passed interface ID in {@link #interfaceIds}, or a negative value
+    * if no bean exposes it
+    */
+   private int indexOf(int interfaceId)
+   {
+      if (interfaceId == SymbolTable.NO_SYMBOL)
+      {
+         return -1;
+      }
+      return Arrays.binarySearch(this.interfaceIds, interfaceId);
+   }
+
+   /**
+    * Adds the passed interfaces, exposed by the bean at the passed position, to the passed exposures
+    * and returns their new count. The array must have room for them.
+    */
+   private static int addExposures(long[] exposures, int count, int[] interfaceIds, int position)
+   {
+      for (int interfaceId : interfaceIds)
+      {
+         if (interfaceId != SymbolTable.NO_SYMBOL)
+         {
+            exposures[count++] = ((long) interfaceId << 32) | position;
+         }
+      }
+      return count;
+   }
+
+   private static void addToIndex(Map<String, List<BeanDescriptor>> index, String key, BeanDescriptor descriptor)
+   {
+      if (key == null)
+      {
+         return;
+      }
+      List<BeanDescriptor> beans = index.get(key);
+      if (beans == null)
+      {
+         beans = new ArrayList<BeanDescriptor>(1);
+         index.put(key, beans);
+      }
+      beans.add(descriptor);
+   }
+
+   private static List<BeanDescriptor> nonNull(List<BeanDescriptor> beans)
+   {
+      if (beans == null)
+      {
+         return Collections.emptyList();
+      }
+      return Collections.unmodifiableList(beans);
+   }
+}
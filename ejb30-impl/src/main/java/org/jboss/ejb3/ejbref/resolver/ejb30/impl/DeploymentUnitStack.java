@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * The explicit work stack of the iterative walks over a deployment tree, which
+ * replaces the call stack of the former recursive walks so that very deep trees
+ * cannot overflow it.
+ *
+ * <p>
+ *  Stacks are reused: each thread keeps one, which {@link #acquire()} hands out and
+ *  {@link #release(DeploymentUnitStack)} takes back. A walk started while the stack of the
+ *  thread is in use (i.e. a nested resolution) gets a new one.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+final class DeploymentUnitStack
+{
+
+   /** The stack of each thread, null while it's in use */
+   private static final ThreadLocal<DeploymentUnitStack> STACKS = new ThreadLocal<DeploymentUnitStack>();
+
+   private DeploymentUnit[] elements = new DeploymentUnit[16];
+
+   private int size;
+
+   private DeploymentUnitStack()
+   {
+   }
+
+   /**
+    * Returns the stack of the calling thread, or a new one if it's already in use
+    * @return
+    */
+   static DeploymentUnitStack acquire()
+   {
+      DeploymentUnitStack stack = STACKS.get();
+      if (stack == null)
+      {
+         return new DeploymentUnitStack();
+      }
+      STACKS.set(null);
+      return stack;
+   }
+
+   /**
+    * Clears the passed stack and gives it back to the calling thread
+    * @param stack
+    */
+   static void release(DeploymentUnitStack stack)
+   {
+      stack.clear();
+      STACKS.set(stack);
+   }
+
+   boolean isEmpty()
+   {
+      return this.size == 0;
+   }
+
+   void push(DeploymentUnit du)
+   {
+      if (this.size == this.elements.length)
+      {
+         DeploymentUnit[] grown = new DeploymentUnit[this.size * 2];
+         System.arraycopy(this.elements, 0, grown, 0, this.size);
+         this.elements = grown;
+      }
+      this.elements[this.size++] = du;
+   }
+
+   DeploymentUnit pop()
+   {
+      DeploymentUnit du = this.elements[--this.size];
+      this.elements[this.size] = null;
+      return du;
+   }
+
+   /**
+    * Pushes the children of the passed unit in reverse order, so that they're popped in order.
+    * The <code>skipped</code> child and the <code>excluded</code> ones are left out.
+    * 
+    * @param du The unit whose children are pushed
+    * @param skipped A child to leave out, can be null
+    * @param excluded Children to leave out, can be null
+    */
+   void pushChildren(DeploymentUnit du, DeploymentUnit skipped, Collection<DeploymentUnit> excluded)
+   {
+      List<DeploymentUnit> children = du.getChildren();
+      if (children == null)
+      {
+         return;
+      }
+      for (int i = children.size() - 1; i >= 0; i--)
+      {
+         DeploymentUnit child = children.get(i);
+         if (child == skipped || (excluded != null && excluded.contains(child)))
+         {
+            continue;
+         }
+         this.push(child);
+      }
+   }
+
+   private void clear()
+   {
+      while (this.size > 0)
+      {
+         this.elements[--this.size] = null;
+      }
+   }
+}
@@ -22,8 +22,11 @@
 package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
 import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
@@ -45,7 +48,7 @@ import org.jboss.metadata.ejb.spec.BusinessRemotesMetaData;
  * @author <a href="mailto:andrew.rubinger@jboss.org">ALR</a>
  * @version $Revision: $
  */
-public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbReferenceResolver
+public class EJB30MetaDataBasedEjbReferenceResolver implements IndexableEjbReferenceResolver
 {
    // --------------------------------------------------------------------------------||
    // Class Members ------------------------------------------------------------------||
@@ -63,7 +66,27 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
    // would use this jboss-ejb3-ejbref-resolver
    // FIXME: The attachment name shouldn't be hardcoded here.
    public static final String DU_ATTACHMENT_NAME_METADATA = "processed." + JBossMetaData.class.getName();
-   
+
+   /**
+    * The number of classes loaded, by the current thread, to find the parent interfaces of the
+    * business interfaces (see {@link ResolutionStatistics})
+    */
+   private static final ThreadLocal<long[]> classLoadCount = new ThreadLocal<long[]>()
+   {
+      @Override
+      protected long[] initialValue()
+      {
+         return new long[1];
+      }
+   };
+
+   // --------------------------------------------------------------------------------||
+   // Instance Members ---------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /** The version of the descriptors created by this resolver, see {@link #descriptorsChanged()} */
+   private final AtomicLong descriptorVersion = new AtomicLong();
+
 
    public String resolveEjb(EjbReference reference, JBossMetaData jbossMetaData, ClassLoader cl)
    {
@@ -82,12 +105,139 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
 
    }
 
+   public String resolveEjb(EjbReference reference, JBossSessionBeanMetaData sessionBean, ClassLoader cl)
+   {
+      if (reference.getMappedName() != null && reference.getMappedName().isEmpty() == false)
+      {
+         log.debug("Bypassing resolution, using mappedName of " + reference);
+         return reference.getMappedName();
+      }
+
+      if (!this.isMatch(reference, sessionBean, cl))
+      {
+         return null;
+      }
+      return this.getJNDIName(reference, sessionBean, cl);
+   }
+
+
+   public BeanDescriptor createBeanDescriptor(JBossSessionBeanMetaData sessionBean, ClassLoader cl,
+         SymbolTable symbols)
+   {
+      String ejbClass = symbols.intern(sessionBean.getEjbClass());
+      int ejbClassId = ejbClass == null ? SymbolTable.NO_SYMBOL : symbols.getId(ejbClass);
+
+      // The views, along with their jndi-names
+      List<String> views = new ArrayList<String>(this.getEligibleBeanInterfaces(sessionBean));
+      int[] viewIds = new int[views.size()];
+      String[] viewJndiNames = new String[views.size()];
+      for (int i = 0; i < viewIds.length; i++)
+      {
+         viewIds[i] = symbols.getId(views.get(i));
+         viewJndiNames[i] = this.getJNDIName(new EjbReference(null, views.get(i), null), sessionBean, cl);
+      }
+
+      // The inherited interfaces, each mapped to the first view which extends it, just like getJNDIName() does.
+      // The symbol IDs are dense, so the sets of interfaces are bit sets.
+      BitSet viewSet = new BitSet();
+      for (int viewId : viewIds)
+      {
+         viewSet.set(viewId);
+      }
+      BitSet inheritedSet = new BitSet();
+      BitSet ambiguousSet = new BitSet();
+      int[] inheritedIds = new int[8];
+      int[] inheritedViews = new int[8];
+      int inheritedCount = 0;
+      RuntimeException inheritanceFailure = null;
+      try
+      {
+         for (int i = 0; i < views.size(); i++)
+         {
+            for (String interfaze : this.getAllParentInterfaces(views.get(i), cl))
+            {
+               int id = symbols.getId(interfaze);
+               if (viewSet.get(id))
+               {
+                  continue;
+               }
+               // isMatch() considers an interface which appears more than once to be ambiguous
+               if (inheritedSet.get(id))
+               {
+                  ambiguousSet.set(id);
+                  continue;
+               }
+               inheritedSet.set(id);
+               if (inheritedCount == inheritedIds.length)
+               {
+                  inheritedIds = Arrays.copyOf(inheritedIds, inheritedCount * 2);
+                  inheritedViews = Arrays.copyOf(inheritedViews, inheritedCount * 2);
+               }
+               inheritedIds[inheritedCount] = id;
+               inheritedViews[inheritedCount++] = i;
+            }
+         }
+      }
+      catch (RuntimeException re)
+      {
+         log.debug("Could not determine the inherited interfaces of EJB " + sessionBean.getEjbName() + ": " + re);
+         inheritanceFailure = re;
+         inheritedCount = 0;
+         ambiguousSet.clear();
+      }
+
+      // The no-interface view
+      boolean noInterfaceView = ejbClass != null && this.hasNoInterfaceView(sessionBean);
+      String noInterfaceJndiName = null;
+      if (noInterfaceView && inheritanceFailure == null)
+      {
+         noInterfaceJndiName = this.getJNDIName(new EjbReference(null, ejbClass, null), sessionBean, cl);
+      }
+
+      // The jndi-name of a reference by beanName only
+      String defaultJndiName = null;
+      if (inheritanceFailure == null)
+      {
+         defaultJndiName = this.getJNDIName(new EjbReference(sessionBean.getEjbName(), null, null), sessionBean, cl);
+      }
+
+      return new BeanDescriptor(symbols.intern(sessionBean.getEjbName()), ejbClass, ejbClassId, this
+            .isEJB31(sessionBean), noInterfaceView, viewIds, viewJndiNames, defaultJndiName, noInterfaceJndiName,
+            Arrays.copyOf(inheritedIds, inheritedCount), Arrays.copyOf(inheritedViews, inheritedCount),
+            toArray(ambiguousSet), inheritanceFailure);
+   }
+
+   public long getDescriptorVersion()
+   {
+      return this.descriptorVersion.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    * <p>
+    * Resolvers of the same type create the same descriptors. Subclasses whose descriptors depend
+    * on their configuration must also compare it.
+    * </p>
+    */
+   public boolean createsSameDescriptors(IndexableEjbReferenceResolver other)
+   {
+      return other != null && other.getClass() == this.getClass();
+   }
+
+   /**
+    * Increments the {@link #getDescriptorVersion()}, so that the indexes drop the descriptors created
+    * so far. To be called when the configuration of the resolver changes the jndi-names it resolves.
+    */
+   protected void descriptorsChanged()
+   {
+      this.descriptorVersion.incrementAndGet();
+   }
 
    protected JBossSessionBeanMetaData findSessionBean(EjbReference reference, JBossMetaData metadata, ClassLoader cl)
    {
       // Initialize
       log.debug("Resolving reference for " + reference + " in " + metadata);
-      Collection<JBossSessionBeanMetaData> matches = new ArrayList<JBossSessionBeanMetaData>();
+      Collection<JBossSessionBeanMetaData> sessionBeans = new ArrayList<JBossSessionBeanMetaData>();
 
       // Get all Enterprise Beans contained in the metadata
       JBossEnterpriseBeansMetaData beans = metadata.getEnterpriseBeans();
@@ -96,14 +246,32 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
       for (JBossEnterpriseBeanMetaData bean : beans)
       {
          // We only can inject Session Beans (Entity and MDB are not targets)
-         if (!(bean instanceof JBossSessionBeanMetaData))
+         if (bean instanceof JBossSessionBeanMetaData)
          {
-            continue;
+            sessionBeans.add((JBossSessionBeanMetaData) bean);
          }
+      }
+      return this.findSessionBean(reference, sessionBeans, cl);
+   }
 
-         // Cast our Session Bean
-         JBossSessionBeanMetaData smd = (JBossSessionBeanMetaData) bean;
+   /**
+    * Returns the only session bean, out of the passed ones, which matches the passed reference,
+    * or null if none matches
+    * 
+    * @param reference
+    * @param sessionBeans
+    * @param cl
+    * @return
+    * @throws NonDeterministicInterfaceException If more than one of the session beans matches
+    */
+   protected JBossSessionBeanMetaData findSessionBean(EjbReference reference,
+         Collection<JBossSessionBeanMetaData> sessionBeans, ClassLoader cl)
+   {
+      Collection<JBossSessionBeanMetaData> matches = new ArrayList<JBossSessionBeanMetaData>();
 
+      // Loop through all session beans
+      for (JBossSessionBeanMetaData smd : sessionBeans)
+      {
          // See if this is a match
          if (this.isMatch(reference, smd, cl))
          {
@@ -259,6 +427,30 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
       return false;
    }
 
+   /**
+    * Returns true if the passed session bean exposes a no-interface view, which this resolver
+    * takes into account. Always false, since EJB3.0 beans have no such view.
+    * 
+    * @param smd
+    * @return
+    */
+   protected boolean hasNoInterfaceView(JBossSessionBeanMetaData smd)
+   {
+      return false;
+   }
+
+   /**
+    * Returns true if the passed session bean is a EJB3.1 bean. Always false, since this
+    * resolver has no knowledge of EJB3.1 beans.
+    * 
+    * @param smd
+    * @return
+    */
+   protected boolean isEJB31(JBossSessionBeanMetaData smd)
+   {
+      return false;
+   }
+
    /**
     * Returns a Collection containing the union of the interface names specified
     * as well as all all parent interfaces
@@ -292,6 +484,7 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
       // Load this interface, so we can get the parent interfaces
       try
       {
+         classLoadCount.get()[0]++;
          Class<?> interfaze = Class.forName(interfaceName, false, cl);
          Class<?>[] parentInterfaces = interfaze.getInterfaces();
          for (Class<?> parentInterface : parentInterfaces)
@@ -322,6 +515,17 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
       return interfaces;
    }
 
+   /**
+    * Returns the number of classes the current thread has loaded, so far, to find the parent
+    * interfaces of the business interfaces
+    * 
+    * @return
+    */
+   static long getClassLoadCount()
+   {
+      return classLoadCount.get()[0];
+   }
+
    /**
     * Obtains all interfaces declared by the metadata
     * that are eligible for "beanInterface" inclusion
@@ -360,9 +564,21 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
       return interfaces;
    }
 
+   private static int[] toArray(BitSet set)
+   {
+      int[] array = new int[set.cardinality()];
+      int i = 0;
+      for (int bit = set.nextSetBit(0); bit >= 0; bit = set.nextSetBit(bit + 1))
+      {
+         array[i++] = bit;
+      }
+      return array;
+   }
+
    /**
     * Returns the bean interface described by the specified
-    * reference, validating its presence along the way
+    * reference, which is null for a reference by beanName only
+    * (resolved to the default jndi-name of the bean)
     * 
     * @param reference
     * @param cl
@@ -372,7 +588,6 @@ public class EJB30MetaDataBasedEjbReferenceResolver implements MetaDataBasedEjbR
    {
       // Get the bean interface
       String interfaceName = reference.getBeanInterface();
-      assert interfaceName != null && interfaceName.trim().length() > 0 : "beanInterface must be specified";
 
       // Return
       return interfaceName;
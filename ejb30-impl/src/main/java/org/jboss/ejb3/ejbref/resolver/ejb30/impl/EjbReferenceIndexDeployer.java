@@ -0,0 +1,176 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.deployers.spi.deployer.helpers.AbstractDeployer;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+
+/**
+ * A deployer which indexes the session beans of each {@link DeploymentUnit} as soon as its
+ * processed {@link JBossMetaData} is available, so that the index is ready before the first
+ * reference is resolved from the deployment.
+ *
+ * <p>
+ *  By default it runs in the {@link DeploymentStages#POST_CLASSLOADER} stage, after the deployers
+ *  which output the {@link EJB30MetaDataBasedEjbReferenceResolver#DU_ATTACHMENT_NAME_METADATA}
+ *  attachment. It attaches a {@link DeploymentTreeIndex} to the top-level unit, if not done yet,
+ *  and builds the {@link DeploymentUnitIndex} of the unit, instead of leaving it to the first
+ *  resolution which visits the unit. The units are independent of each other, so the deployer
+ *  framework is free to index them in parallel.
+ * </p>
+ * <p>
+ *  The {@link IndexableEjbReferenceResolver} which extracts the {@link BeanDescriptor}s must create the
+ *  same descriptors as the one of the resolvers, else they keep resolving against the metadata.
+ *  If a {@link GlobalBeanRegistry} is set, the unit is also registered with it.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class EjbReferenceIndexDeployer extends AbstractDeployer
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(EjbReferenceIndexDeployer.class);
+
+   /** Extracts the descriptors of the session beans */
+   private IndexableEjbReferenceResolver resolver = new EJB30MetaDataBasedEjbReferenceResolver();
+
+   /** The (optional) server-wide registry of beans */
+   private GlobalBeanRegistry globalBeanRegistry;
+
+   /**
+    * Creates a deployer which indexes the units in the {@link DeploymentStages#POST_CLASSLOADER} stage
+    */
+   public EjbReferenceIndexDeployer()
+   {
+      this.setStage(DeploymentStages.POST_CLASSLOADER);
+      this.addInput(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA);
+      this.addOutput(DeploymentTreeIndex.ATTACHMENT_NAME);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void deploy(DeploymentUnit unit) throws DeploymentException
+   {
+      JBossMetaData metadata = unit.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            JBossMetaData.class);
+      if (metadata == null)
+      {
+         return;
+      }
+      try
+      {
+         DeploymentTreeIndex treeIndex = DeploymentTreeIndex.attach(unit, this.resolver);
+         if (!treeIndex.isCompatibleWith(this.resolver))
+         {
+            logger.debug("Not indexing " + unit + ", its deployment is indexed for another type of resolver");
+         }
+         else
+         {
+            DeploymentUnitIndex index = treeIndex.getDeploymentUnitIndex(unit);
+            logger.debug("Indexed " + index.getSessionBeans().size() + " session beans of " + unit);
+         }
+         if (this.globalBeanRegistry != null)
+         {
+            this.globalBeanRegistry.register(unit, metadata);
+         }
+      }
+      catch (Throwable t)
+      {
+         throw DeploymentException.rethrowAsDeploymentException("Could not index session beans of " + unit, t);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void undeploy(DeploymentUnit unit)
+   {
+      if (this.globalBeanRegistry != null)
+      {
+         this.globalBeanRegistry.unregister(unit);
+      }
+      DeploymentTreeIndex treeIndex = DeploymentTreeIndex.getDeploymentTreeIndex(unit);
+      if (treeIndex == null)
+      {
+         return;
+      }
+      if (unit.getParent() == null)
+      {
+         unit.removeAttachment(DeploymentTreeIndex.ATTACHMENT_NAME);
+      }
+      else
+      {
+         treeIndex.replace(unit, null);
+      }
+   }
+
+   /**
+    * Sets the resolver which extracts the descriptors of the session beans. Must create the
+    * same descriptors as the one of the resolvers which resolve the references.
+    * 
+    * @param resolver
+    */
+   public void setMetaDataBasedEjbReferenceResolver(IndexableEjbReferenceResolver resolver)
+   {
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException(IndexableEjbReferenceResolver.class.getSimpleName() + " cannot be null");
+      }
+      this.resolver = resolver;
+   }
+
+   /**
+    * Returns the resolver which extracts the descriptors of the session beans
+    * @return
+    */
+   public IndexableEjbReferenceResolver getMetaDataBasedEjbReferenceResolver()
+   {
+      return this.resolver;
+   }
+
+   /**
+    * Sets the server-wide registry with which the units are registered, null for none
+    * 
+    * @param globalBeanRegistry
+    */
+   public void setGlobalBeanRegistry(GlobalBeanRegistry globalBeanRegistry)
+   {
+      this.globalBeanRegistry = globalBeanRegistry;
+   }
+
+   /**
+    * Returns the server-wide registry with which the units are registered, if any
+    * @return
+    */
+   public GlobalBeanRegistry getGlobalBeanRegistry()
+   {
+      return this.globalBeanRegistry;
+   }
+}
@@ -0,0 +1,257 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.javaee.spec.AnnotatedEJBReferenceMetaData;
+import org.jboss.metadata.javaee.spec.AnnotatedEJBReferencesMetaData;
+import org.jboss.metadata.javaee.spec.EJBLocalReferenceMetaData;
+import org.jboss.metadata.javaee.spec.EJBLocalReferencesMetaData;
+import org.jboss.metadata.javaee.spec.EJBReferenceMetaData;
+import org.jboss.metadata.javaee.spec.EJBReferencesMetaData;
+
+/**
+ * Resolves, up front, every reference declared within a deployment, so that an unresolvable
+ * reference is reported when the deployment starts rather than when the component which
+ * declares it starts.
+ *
+ * <p>
+ *  The ejb-refs, ejb-local-refs and @EJBs of all the beans, in the {@link JBossMetaData} of the
+ *  validated {@link DeploymentUnit} and of its (nested) children, are resolved through the
+ *  {@link EjbReferenceResolver}. The resolutions run on the {@link Executor}, if any, so they
+ *  proceed in parallel. All the failures are collected into a single {@link ValidationReport}.
+ * </p>
+ * <p>
+ *  When the resolver caches its results (like the {@link ConcurrentEjbReferenceResolver} does),
+ *  the validation leaves the cache filled, so the injection of the references which follows
+ *  doesn't resolve them again.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class EjbReferenceValidator
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(EjbReferenceValidator.class);
+
+   /** Schedules the resolutions of the references */
+   private final ExecutorEjbReferenceResolver resolver;
+
+   /**
+    * Creates a validator which resolves the references one after the other, in the calling thread
+    * 
+    * @param resolver The resolver which resolves the references
+    */
+   public EjbReferenceValidator(EjbReferenceResolver resolver)
+   {
+      this(resolver, null);
+   }
+
+   /**
+    * Creates a validator which resolves the references in parallel
+    * 
+    * @param resolver The resolver which resolves the references
+    * @param executor Runs the resolutions, null to run them in the calling thread
+    */
+   public EjbReferenceValidator(EjbReferenceResolver resolver, Executor executor)
+   {
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException(EjbReferenceResolver.class.getSimpleName() + " cannot be null");
+      }
+      this.resolver = new ExecutorEjbReferenceResolver(resolver, executor);
+   }
+
+   /**
+    * Resolves all the references declared within the passed {@link DeploymentUnit} and its children
+    * 
+    * @param du The {@link DeploymentUnit}, usually the top-level unit of a deployment
+    * @return Returns the report of the validation
+    * @throws InterruptedException If interrupted while waiting for the resolutions
+    */
+   public ValidationReport validate(DeploymentUnit du) throws InterruptedException
+   {
+      List<DeclaredReference> references = harvestReferences(du);
+      List<Future<String>> resolutions = new ArrayList<Future<String>>(references.size());
+      int resolvedCount = 0;
+      List<ValidationReport.Failure> failures = new ArrayList<ValidationReport.Failure>();
+      try
+      {
+         for (DeclaredReference reference : references)
+         {
+            resolutions.add(this.resolver.resolveEjbAsync(reference.getDeploymentUnit(), reference.getReference()));
+         }
+         // wait for all of them, so that the report is complete
+         for (int i = 0; i < resolutions.size(); i++)
+         {
+            try
+            {
+               resolutions.get(i).get();
+               resolvedCount++;
+            }
+            catch (ExecutionException ee)
+            {
+               failures.add(new ValidationReport.Failure(references.get(i), toRuntimeException(ee.getCause())));
+            }
+         }
+      }
+      finally
+      {
+         // don't leave resolutions behind when interrupted
+         for (Future<String> resolution : resolutions)
+         {
+            resolution.cancel(false);
+         }
+      }
+      ValidationReport report = new ValidationReport(resolvedCount, failures);
+      logger.debug("Validated " + references.size() + " references of " + du + ": " + report);
+      return report;
+   }
+
+   /**
+    * Returns all the references declared by the beans in the metadata of the passed {@link DeploymentUnit}
+    * and of its (nested) children, in preorder
+    * 
+    * @param du
+    * @return
+    */
+   public static List<DeclaredReference> harvestReferences(DeploymentUnit du)
+   {
+      List<DeclaredReference> references = new ArrayList<DeclaredReference>();
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
+      {
+         stack.push(du);
+         while (!stack.isEmpty())
+         {
+            DeploymentUnit current = stack.pop();
+            harvestReferences(current, references);
+            stack.pushChildren(current, null, null);
+         }
+      }
+      finally
+      {
+         DeploymentUnitStack.release(stack);
+      }
+      return references;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private static void harvestReferences(DeploymentUnit du, List<DeclaredReference> references)
+   {
+      JBossMetaData metadata = du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            JBossMetaData.class);
+      JBossEnterpriseBeansMetaData beans = metadata == null ? null : metadata.getEnterpriseBeans();
+      if (beans == null)
+      {
+         return;
+      }
+      for (JBossEnterpriseBeanMetaData bean : beans)
+      {
+         EJBReferencesMetaData ejbRefs = bean.getEjbReferences();
+         if (ejbRefs != null)
+         {
+            for (EJBReferenceMetaData ejbRef : ejbRefs)
+            {
+               String beanInterface = ejbRef.getRemote() != null ? ejbRef.getRemote() : ejbRef.getHome();
+               add(references, du, bean, ejbRef.getEjbRefName(), ejbRef.getLink(), beanInterface, ejbRef
+                     .getMappedName());
+            }
+         }
+         EJBLocalReferencesMetaData ejbLocalRefs = bean.getEjbLocalReferences();
+         if (ejbLocalRefs != null)
+         {
+            for (EJBLocalReferenceMetaData ejbLocalRef : ejbLocalRefs)
+            {
+               String beanInterface = ejbLocalRef.getLocal() != null ? ejbLocalRef.getLocal() : ejbLocalRef
+                     .getLocalHome();
+               add(references, du, bean, ejbLocalRef.getEjbRefName(), ejbLocalRef.getLink(), beanInterface,
+                     ejbLocalRef.getMappedName());
+            }
+         }
+         AnnotatedEJBReferencesMetaData annotatedRefs = bean.getAnnotatedEjbReferences();
+         if (annotatedRefs != null)
+         {
+            for (AnnotatedEJBReferenceMetaData annotatedRef : annotatedRefs)
+            {
+               Class<?> beanInterface = annotatedRef.getBeanInterface();
+               add(references, du, bean, annotatedRef.getEjbRefName(), annotatedRef.getLink(),
+                     beanInterface == null ? null : beanInterface.getName(), annotatedRef.getMappedName());
+            }
+         }
+      }
+   }
+
+   private static void add(List<DeclaredReference> references, DeploymentUnit du, JBossEnterpriseBeanMetaData bean,
+         String refName, String link, String beanInterface, String mappedName)
+   {
+      // the resolvers don't know about the path of an ejb-link, only about the bean name
+      String beanName = link;
+      if (beanName != null && beanName.indexOf('#') >= 0)
+      {
+         beanName = beanName.substring(beanName.indexOf('#') + 1);
+      }
+      if (isBlank(beanName) && isBlank(beanInterface) && isBlank(mappedName))
+      {
+         logger.debug("Skipping reference " + refName + " of EJB " + bean.getEjbName() + " in " + du
+               + ", it has nothing to resolve it with");
+         return;
+      }
+      references.add(new DeclaredReference(du, bean.getEjbName(), refName, new EjbReference(beanName, beanInterface,
+            mappedName)));
+   }
+
+   private static boolean isBlank(String value)
+   {
+      return value == null || value.trim().length() == 0;
+   }
+
+   private static RuntimeException toRuntimeException(Throwable t)
+   {
+      if (t instanceof RuntimeException)
+      {
+         return (RuntimeException) t;
+      }
+      // a failed assertion of the resolver is a failure of the reference, any other error isn't
+      if (t instanceof Error && !(t instanceof AssertionError))
+      {
+         throw (Error) t;
+      }
+      return new RuntimeException(t);
+   }
+}
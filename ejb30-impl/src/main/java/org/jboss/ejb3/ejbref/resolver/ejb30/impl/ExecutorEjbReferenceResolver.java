@@ -0,0 +1,175 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.AsyncEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+
+/**
+ * An {@link AsyncEjbReferenceResolver} which runs the resolutions of a delegate
+ * {@link EjbReferenceResolver} on an {@link Executor}.
+ *
+ * <p>
+ *  A batch of references is submitted all at once, so the resolutions of the batch proceed
+ *  in parallel with each other (as far as the {@link Executor} allows) and with whatever
+ *  the caller does before waiting for them, for example the processing of the metadata of
+ *  another module. Without an {@link Executor} the resolutions run in the calling thread
+ *  and the returned {@link Future}s are already done.
+ * </p>
+ * <p>
+ *  The resolutions hold no lock of their own, so the delegate must be thread safe. Cancelling
+ *  a resolution which hasn't started yet keeps it from running at all. A resolution which the
+ *  {@link Executor} rejects is returned as failed, like an unresolvable reference, so that the
+ *  rest of the batch goes on.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ExecutorEjbReferenceResolver implements AsyncEjbReferenceResolver
+{
+
+   /** The resolver which does the actual resolution */
+   private final EjbReferenceResolver delegate;
+
+   /** Runs the resolutions, null to run them in the calling thread */
+   private final Executor executor;
+
+   /**
+    * Creates an {@link ExecutorEjbReferenceResolver} in front of the passed resolver
+    *
+    * @param delegate The resolver doing the actual resolution. Must be thread safe.
+    * @param executor Runs the resolutions, null to run them in the calling thread
+    */
+   public ExecutorEjbReferenceResolver(EjbReferenceResolver delegate, Executor executor)
+   {
+      if (delegate == null)
+      {
+         throw new IllegalArgumentException("Delegate " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      this.delegate = delegate;
+      this.executor = executor;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   {
+      return this.delegate.resolveEjb(du, reference);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Future<String> resolveEjbAsync(final DeploymentUnit du, final EjbReference reference)
+   {
+      Resolution resolution = new Resolution(new Callable<String>()
+      {
+         public String call()
+         {
+            return delegate.resolveEjb(du, reference);
+         }
+      });
+      if (this.executor == null)
+      {
+         resolution.run();
+      }
+      else
+      {
+         try
+         {
+            this.executor.execute(resolution);
+         }
+         catch (RejectedExecutionException ree)
+         {
+            resolution.fail(new UnresolvableReferenceException("Could not schedule the resolution of "
+                  + reference + " from " + du, ree));
+         }
+      }
+      return resolution;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public List<Future<String>> resolveEjbsAsync(DeploymentUnit du, List<EjbReference> references)
+   {
+      List<Future<String>> resolutions = new ArrayList<Future<String>>(references.size());
+      try
+      {
+         for (EjbReference reference : references)
+         {
+            resolutions.add(this.resolveEjbAsync(du, reference));
+         }
+      }
+      catch (RuntimeException re)
+      {
+         // don't leave half a batch running behind the caller's back
+         for (Future<String> resolution : resolutions)
+         {
+            resolution.cancel(false);
+         }
+         throw re;
+      }
+      return resolutions;
+   }
+
+   /**
+    * Returns the resolver to which resolutions are delegated
+    * @return
+    */
+   public EjbReferenceResolver getDelegate()
+   {
+      return this.delegate;
+   }
+
+   /**
+    * A resolution which can be failed without running it
+    */
+   private static class Resolution extends FutureTask<String>
+   {
+      Resolution(Callable<String> callable)
+      {
+         super(callable);
+      }
+
+      void fail(Throwable t)
+      {
+         this.setException(t);
+      }
+   }
+}
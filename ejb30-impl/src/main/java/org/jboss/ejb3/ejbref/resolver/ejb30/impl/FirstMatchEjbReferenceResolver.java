@@ -21,14 +21,8 @@
  */
 package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
 
-import java.util.List;
-
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
-import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
-import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
-import org.jboss.logging.Logger;
-import org.jboss.metadata.ejb.jboss.JBossMetaData;
 
 /**
  * FirstMatchEjbReferenceResolver
@@ -48,14 +42,9 @@ import org.jboss.metadata.ejb.jboss.JBossMetaData;
  * @author <a href="mailto:andrew.rubinger@jboss.org">ALR</a>
  * @version $Revision: $
  */
-public class FirstMatchEjbReferenceResolver implements EjbReferenceResolver
+public class FirstMatchEjbReferenceResolver extends AbstractEjbReferenceResolver
 {
 
-   private static Logger logger = Logger.getLogger(FirstMatchEjbReferenceResolver.class);
-   
-   /** The resolver which will be passed the bean metadata to resolve the jndi-name */
-   protected MetaDataBasedEjbReferenceResolver metadataBasedEjbReferenceResolver;
-   
    /**
     * Creates {@link FirstMatchEjbReferenceResolver} which will use {@link EJB30MetaDataBasedEjbReferenceResolver}
     */
@@ -66,34 +55,16 @@ public class FirstMatchEjbReferenceResolver implements EjbReferenceResolver
 
    /**
     * {@inheritDoc}
+    * <p>
+    * Resolves from the top-level {@link DeploymentUnit} of the passed <code>du</code>
+    * </p>
     */
    @Override
-   public String resolveEjb(DeploymentUnit du, EjbReference reference)
+   protected String resolveWithinDeploymentHierarchy(DeploymentUnit du, EjbReference reference)
    {
-      // If mapped-name is specified, just use it
-      String mappedName = reference.getMappedName();
-      if (mappedName != null && mappedName.trim().length() > 0)
-      {
-         logger.debug("Bypassing resolution, using mappedName of " + reference);
-         return mappedName;
-      }
-
-      // Initialize
-      String jndiName = null;
-
       // Resolve from the root deployment
       DeploymentUnit root = du.getTopLevel();
-      jndiName = this.resolveEjbFromRoot(root, reference);
-
-      // Check that we could resolve
-      if (jndiName == null)
-      {
-         throw new UnresolvableReferenceException("Could not resolve reference " + reference + " for "
-               + DeploymentUnit.class.getSimpleName() + " " + du);
-      }
-
-      // Return
-      return jndiName;
+      return this.resolveEjbFromRoot(root, reference);
    }
 
    // --------------------------------------------------------------------------------||
@@ -103,6 +74,7 @@ public class FirstMatchEjbReferenceResolver implements EjbReferenceResolver
    /**
     * Follows a preorder traversal scheme to resolve the specified reference from the
     * specified metadata (or its children).  Returns the resolved target JNDI name. 
+    * The tree is walked iteratively, so its depth isn't bound by the call stack.
     * 
     * @param rootDu
     * @param reference
@@ -110,67 +82,44 @@ public class FirstMatchEjbReferenceResolver implements EjbReferenceResolver
     */
    protected String resolveEjbFromRoot(DeploymentUnit rootDu, EjbReference reference)
    {
-      // Initialize
-      String jndiName = null;
-
-      // Obtain the metadata for this DU
-      JBossMetaData metadata = this.getMetaData(rootDu);
+      // Look the index up once for the whole tree
+      DeploymentTreeIndex treeIndex = this.getDeploymentTreeIndex(rootDu);
 
-      // Ensure metadata's specified for this DU
-      if (metadata != null)
+      // A frozen tree has the answer at hand, as long as it's walked from its top-level unit
+      if (treeIndex != null && rootDu == treeIndex.getTopLevel())
       {
-         // Look for a match within this metadata
-         jndiName = this.getMetaDataBasedEjbReferenceResolver().resolveEjb(reference, metadata, rootDu.getClassLoader());
-
+         String frozenJndiName = this.resolveInFrozenIndex(treeIndex, reference);
+         if (frozenJndiName != null)
+         {
+            return frozenJndiName;
+         }
       }
 
-      // If we haven't found the JNDI name in this DU
-      if (jndiName == null)
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
       {
-         // Look to the children
-         List<DeploymentUnit> children = rootDu.getChildren();
-
-         // If we've got child deployments
-         if (children != null)
+         stack.push(rootDu);
+         while (!stack.isEmpty())
          {
-            // Loop through them
-            for (DeploymentUnit child : children)
-            {
-               // Try to get the resolved JNDI name from the child
-               jndiName = this.resolveEjbFromRoot(child, reference);
+            DeploymentUnit du = stack.pop();
 
-               // If found
-               if (jndiName != null)
-               {
-                  // Break out 
-                  break;
-               }
+            // Look for a match within this DU
+            String jndiName = this.resolveInDeploymentUnit(du, treeIndex, reference);
+            if (jndiName != null)
+            {
+               return jndiName;
             }
+
+            // Then look to the children, in order
+            stack.pushChildren(du, null, null);
          }
       }
+      finally
+      {
+         DeploymentUnitStack.release(stack);
+      }
 
-      // Return the JNDI Name
-      return jndiName;
-   }
-
-   /**
-    * Obtains the metadata attachment from the specified deployment unit, returning
-    * null if not present
-    * 
-    * @param du
-    * @return
-    */
-   protected JBossMetaData getMetaData(DeploymentUnit du)
-   {
-      return du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, JBossMetaData.class);
-   }
-
-   /**
-    * Returns the {@link MetaDataBasedEjbReferenceResolver} which this {@link EjbReferenceResolver} uses
-    * @return
-    */
-   protected MetaDataBasedEjbReferenceResolver getMetaDataBasedEjbReferenceResolver()
-   {
-      return this.metadataBasedEjbReferenceResolver;
+      // Not found in the whole tree
+      return null;
    }
 }
@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+/**
+ * Estimates how often items have been seen lately, in a fixed amount of memory, so that a
+ * bounded cache can decide whether a new item is worth evicting another one for (TinyLFU).
+ *
+ * <p>
+ *  A count-min sketch of 4 bit counters, 16 to a long. Each item is counted in 4 of
+ *  them and its frequency is the smallest of the 4. Once enough items have been counted,
+ *  all the counters are halved, so that the frequencies follow the recent history.
+ * </p>
+ * <p>
+ *  The counters aren't updated atomically: concurrent increments may be lost, which only
+ *  makes the estimates a little lower.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+class FrequencySketch
+{
+
+   /** Seeds of the 4 hash functions */
+   private static final long[] SEEDS =
+   {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+   /** Keeps the lower 3 bits of each counter once shifted right by one */
+   private static final long RESET_MASK = 0x7777777777777777L;
+
+   /** The counters */
+   private final long[] table;
+
+   /** Number of counted items after which the counters are halved */
+   private final int sampleSize;
+
+   /** Number of items counted since the counters were last halved */
+   private int size;
+
+   /**
+    * @param expectedItems Number of distinct items the cache is expected to hold
+    */
+   FrequencySketch(long expectedItems)
+   {
+      int capacity = (int) Math.max(16, Math.min(expectedItems, 1 << 20));
+      this.table = new long[Integer.highestOneBit(capacity - 1) << 1];
+      this.sampleSize = 10 * capacity;
+   }
+
+   /**
+    * Returns the estimated number of times the item has been seen lately, at most 15
+    */
+   int frequency(Object item)
+   {
+      int hash = spread(item.hashCode());
+      int start = (hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++)
+      {
+         int index = this.indexOf(hash, i);
+         int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xFL);
+         frequency = Math.min(frequency, count);
+      }
+      return frequency;
+   }
+
+   /**
+    * Counts the item once more
+    */
+   void increment(Object item)
+   {
+      int hash = spread(item.hashCode());
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++)
+      {
+         added |= this.incrementAt(this.indexOf(hash, i), start + i);
+      }
+      if (added && ++this.size >= this.sampleSize)
+      {
+         this.reset();
+      }
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private boolean incrementAt(int index, int counter)
+   {
+      int offset = counter << 2;
+      long mask = 0xFL << offset;
+      long value = this.table[index];
+      if ((value & mask) == mask)
+      {
+         // saturated
+         return false;
+      }
+      this.table[index] = value + (1L << offset);
+      return true;
+   }
+
+   private void reset()
+   {
+      for (int i = 0; i < this.table.length; i++)
+      {
+         this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+      }
+      this.size = this.size >>> 1;
+   }
+
+   private int indexOf(int hash, int i)
+   {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return ((int) h) & (this.table.length - 1);
+   }
+
+   private static int spread(int x)
+   {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+   }
+}
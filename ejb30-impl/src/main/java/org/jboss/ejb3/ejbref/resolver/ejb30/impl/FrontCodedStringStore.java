@@ -0,0 +1,354 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * An immutable, front-coded, dictionary of strings, such as the interface names and the
+ * jndi-names of a deployment, which share long prefixes.
+ *
+ * <p>
+ *  The strings are sorted, without duplicates, and stored in blocks of {@link #BLOCK_SIZE}
+ *  in a single char[]: the first string of a block is stored whole, each of the following ones
+ *  as the length of the prefix it shares with the previous one, along with the rest of it.
+ *  Each string gets the ID of its position in the sorted order.
+ * </p>
+ * <p>
+ *  {@link #indexOf(CharSequence)} binary searches the first strings of the blocks, then walks a
+ *  single block, comparing the passed name with the stored chars in place: no intermediate string
+ *  is built. Only {@link #get(int)} builds a string.
+ * </p>
+ * <p>
+ *  Strings longer than {@link #MAX_LENGTH} chars cannot be stored. This class is thread safe.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class FrontCodedStringStore
+{
+
+   /** Returned by {@link #indexOf(CharSequence)} for a name which isn't stored */
+   public static final int NOT_FOUND = -1;
+
+   /** The number of strings per block */
+   public static final int BLOCK_SIZE = 16;
+
+   /** The length of the longest string which can be stored, as lengths are stored as chars */
+   public static final int MAX_LENGTH = Character.MAX_VALUE;
+
+   /** The blocks */
+   private final char[] data;
+
+   /** The offset, in data, of each block */
+   private final int[] blockOffsets;
+
+   /** The number of strings */
+   private final int size;
+
+   /** The length of the longest string */
+   private final int maxLength;
+
+   /** The estimated bytes the strings would take as separate strings */
+   private final long stringBytes;
+
+   /**
+    * Creates a {@link FrontCodedStringStore} of the passed strings. Null strings and duplicates are ignored.
+    * 
+    * @param strings
+    * @throws IllegalArgumentException If one of the strings is longer than {@link #MAX_LENGTH}
+    */
+   public FrontCodedStringStore(Collection<String> strings)
+   {
+      TreeSet<String> sorted = new TreeSet<String>();
+      for (String string : strings)
+      {
+         if (string != null)
+         {
+            if (string.length() > MAX_LENGTH)
+            {
+               throw new IllegalArgumentException("Cannot store a string of " + string.length() + " chars");
+            }
+            sorted.add(string);
+         }
+      }
+      this.size = sorted.size();
+      this.blockOffsets = new int[(this.size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+      // the size of the encoding, then the encoding itself
+      int dataLength = 0;
+      long stringBytes = SymbolTable.getArrayBytes(4L * this.size);
+      int maxLength = 0;
+      String previous = null;
+      int index = 0;
+      for (String string : sorted)
+      {
+         int shared = index % BLOCK_SIZE == 0 ? 0 : sharedPrefix(previous, string);
+         dataLength += (index % BLOCK_SIZE == 0 ? 1 : 2) + string.length() - shared;
+         stringBytes += SymbolTable.getStringBytes(string);
+         maxLength = Math.max(maxLength, string.length());
+         previous = string;
+         index++;
+      }
+      this.data = new char[dataLength];
+      this.maxLength = maxLength;
+      this.stringBytes = stringBytes;
+
+      int pos = 0;
+      index = 0;
+      for (String string : sorted)
+      {
+         int shared = 0;
+         if (index % BLOCK_SIZE == 0)
+         {
+            this.blockOffsets[index / BLOCK_SIZE] = pos;
+            this.data[pos++] = (char) string.length();
+         }
+         else
+         {
+            shared = sharedPrefix(previous, string);
+            this.data[pos++] = (char) shared;
+            this.data[pos++] = (char) (string.length() - shared);
+         }
+         string.getChars(shared, string.length(), this.data, pos);
+         pos += string.length() - shared;
+         previous = string;
+         index++;
+      }
+   }
+
+   /**
+    * Returns the ID of the passed name, or {@link #NOT_FOUND} if the name is null or isn't stored
+    * 
+    * @param name
+    * @return
+    */
+   public int indexOf(CharSequence name)
+   {
+      if (name == null || this.size == 0)
+      {
+         return NOT_FOUND;
+      }
+      // the last block whose first string isn't greater than the name
+      int low = 0;
+      int high = this.blockOffsets.length - 1;
+      while (low < high)
+      {
+         int middle = (low + high + 1) >>> 1;
+         if (this.compareFirst(middle, name) <= 0)
+         {
+            low = middle;
+         }
+         else
+         {
+            high = middle - 1;
+         }
+      }
+      int found = this.find(low, this.getBlockCount(low) - 1, name);
+      return found == NOT_FOUND ? NOT_FOUND : low * BLOCK_SIZE + found;
+   }
+
+   /**
+    * Returns whether the string with the passed ID equals the passed name, comparing in place.
+    * The ID {@link #NOT_FOUND} matches a null name only.
+    * 
+    * @param id
+    * @param name
+    * @return
+    */
+   public boolean matches(int id, CharSequence name)
+   {
+      if (id == NOT_FOUND || name == null)
+      {
+         return id == NOT_FOUND && name == null;
+      }
+      this.checkId(id);
+      return this.find(id / BLOCK_SIZE, id % BLOCK_SIZE, name) == id % BLOCK_SIZE;
+   }
+
+   /**
+    * Returns the string with the passed ID
+    * 
+    * @param id
+    * @return Returns the string, or null for {@link #NOT_FOUND}
+    * @throws IllegalArgumentException If no string has the passed ID
+    */
+   public String get(int id)
+   {
+      if (id == NOT_FOUND)
+      {
+         return null;
+      }
+      this.checkId(id);
+      char[] chars = new char[this.maxLength];
+      int pos = this.blockOffsets[id / BLOCK_SIZE];
+      int length = this.data[pos++];
+      System.arraycopy(this.data, pos, chars, 0, length);
+      pos += length;
+      for (int i = 0; i < id % BLOCK_SIZE; i++)
+      {
+         int shared = this.data[pos++];
+         int suffix = this.data[pos++];
+         System.arraycopy(this.data, pos, chars, shared, suffix);
+         pos += suffix;
+         length = shared + suffix;
+      }
+      return new String(chars, 0, length);
+   }
+
+   /**
+    * Returns the number of stored strings
+    * @return
+    */
+   public int size()
+   {
+      return this.size;
+   }
+
+   /**
+    * Returns the estimated bytes this store takes
+    * @return
+    */
+   public long getBytes()
+   {
+      return 24 + SymbolTable.getArrayBytes(2L * this.data.length)
+            + SymbolTable.getArrayBytes(4L * this.blockOffsets.length);
+   }
+
+   /**
+    * Returns the estimated bytes the stored strings would take as an array of separate strings
+    * @return
+    */
+   public long getStringBytes()
+   {
+      return this.stringBytes;
+   }
+
+   /**
+    * Returns the estimated bytes saved by front coding the strings, negative if it costs more
+    * @return
+    */
+   public long getSavedBytes()
+   {
+      return this.stringBytes - this.getBytes();
+   }
+
+   @Override
+   public String toString()
+   {
+      return FrontCodedStringStore.class.getSimpleName() + "[" + this.size + " strings take ~" + this.getBytes()
+            + " bytes instead of ~" + this.stringBytes + " bytes (~" + this.getSavedBytes() + " bytes saved)]";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns the position, within the passed block, of the first of its <code>last + 1</code>
+    * strings which equals the name, or {@link #NOT_FOUND}
+    */
+   private int find(int block, int last, CharSequence name)
+   {
+      int pos = this.blockOffsets[block];
+      int length = this.data[pos++];
+      // the length of the prefix the name shares with the current string
+      int matched = this.sharedPrefix(name, 0, pos, length);
+      if (matched == length && length == name.length())
+      {
+         return 0;
+      }
+      pos += length;
+      for (int i = 1; i <= last; i++)
+      {
+         int shared = this.data[pos++];
+         int suffix = this.data[pos++];
+         // if the name differs from the previous string before the shared prefix, it differs from this one there too
+         if (matched >= shared)
+         {
+            matched = shared + this.sharedPrefix(name, shared, pos, suffix);
+            length = shared + suffix;
+            if (matched == length && length == name.length())
+            {
+               return i;
+            }
+         }
+         pos += suffix;
+      }
+      return NOT_FOUND;
+   }
+
+   /**
+    * Compares the first string of the passed block with the passed name, like {@link String#compareTo(String)}
+    */
+   private int compareFirst(int block, CharSequence name)
+   {
+      int pos = this.blockOffsets[block];
+      int length = this.data[pos++];
+      int matched = this.sharedPrefix(name, 0, pos, length);
+      if (matched < length && matched < name.length())
+      {
+         return this.data[pos + matched] - name.charAt(matched);
+      }
+      return length - name.length();
+   }
+
+   /**
+    * Returns the length of the prefix which the chars of the name, from <code>from</code>,
+    * share with the <code>length</code> chars at <code>pos</code>
+    */
+   private int sharedPrefix(CharSequence name, int from, int pos, int length)
+   {
+      int limit = Math.min(length, name.length() - from);
+      int i = 0;
+      while (i < limit && name.charAt(from + i) == this.data[pos + i])
+      {
+         i++;
+      }
+      return i;
+   }
+
+   private int getBlockCount(int block)
+   {
+      return Math.min(BLOCK_SIZE, this.size - block * BLOCK_SIZE);
+   }
+
+   private void checkId(int id)
+   {
+      if (id < 0 || id >= this.size)
+      {
+         throw new IllegalArgumentException("No string with id " + id);
+      }
+   }
+
+   private static int sharedPrefix(String one, String two)
+   {
+      int limit = Math.min(one.length(), two.length());
+      int i = 0;
+      while (i < limit && one.charAt(i) == two.charAt(i))
+      {
+         i++;
+      }
+      return i;
+   }
+}
@@ -0,0 +1,557 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.logging.Logger;
+
+/**
+ * The resolutions of a fully deployed deployment tree, as the {@link FirstMatchEjbReferenceResolver}
+ * would find them, compiled into a minimal perfect hash table.
+ *
+ * <p>
+ *  Built by {@link DeploymentTreeIndex#freeze()}, out of every (ejb-name, interface) and (interface)
+ *  key which one of the session beans of the tree can be referenced by. Each key is resolved once,
+ *  walking the units of the tree in preorder, and its jndi-name is stored in a table which has
+ *  exactly one slot per key: the key selects a bucket, and the seed of the bucket, chosen at build
+ *  time so that no two keys share a slot, selects the slot. A lookup hashes the key, reads the seed,
+ *  hashes again (unless the bucket holds a single key, whose slot is stored instead of a seed)
+ *  and compares the key of the slot, with no collision chain to walk.
+ *  Keys whose hash is that of another key can't be told apart by any seed: they are kept in a few
+ *  overflow slots, after those of the table, which a lookup only scans when the key of its slot
+ *  doesn't match.
+ * </p>
+ * <p>
+ *  The ejb-names, interface names and jndi-names of the table are held once, front coded, by a
+ *  {@link FrontCodedStringStore}: the slots only hold their IDs. The hashes of the key are derived
+ *  from the (cached) hash codes of its strings. The hash of the key of the slot is compared first,
+ *  then the key itself with the stored chars in place, so a lookup allocates nothing but the jndi-name
+ *  it returns.
+ *  {@link #getNames()} tells the bytes saved by storing the names that way.
+ * </p>
+ * <p>
+ *  The keys which don't resolve (ambiguous interfaces for instance) are left out, so a miss means
+ *  that the reference has to be resolved the usual way, which then fails or resolves outside the
+ *  tree. The table is dropped as soon as a unit of the tree is replaced.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class FrozenDeploymentIndex
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(FrozenDeploymentIndex.class);
+
+   /** Returned by {@link #getSlot(String, String)} for a key which isn't frozen */
+   static final int NO_SLOT = -1;
+
+   /** Give up finding a seed for a bucket after that many attempts */
+   private static final int MAX_SEED = 1 << 16;
+
+   /** The top-level unit of the frozen tree */
+   private final DeploymentUnit topLevel;
+
+   /** The seed of each bucket, or -(slot + 1) for a bucket of a single key stored in that slot */
+   private final int[] seeds;
+
+   /** The number of slots which the seeds select, the overflow slots following them */
+   private final int tableSize;
+
+   /** The ejb-names, interface names and jndi-names of the resolutions */
+   private final FrontCodedStringStore names;
+
+   // The resolutions, one per slot, as IDs of names
+
+   /** The hash of the key, compared before the key itself */
+   private final int[] hashes;
+
+   /** The ejb-name of the key, or {@link FrontCodedStringStore#NOT_FOUND} for a key by interface only */
+   private final int[] beanNames;
+
+   /** The interface of the key */
+   private final int[] beanInterfaces;
+
+   /** The jndi-name the key resolves to */
+   private final int[] jndiNames;
+
+   /** The ejb-name of the bean the key resolves to, or {@link FrontCodedStringStore#NOT_FOUND} */
+   private final int[] targetEjbNames;
+
+   /** The unit of the bean the key resolves to */
+   private final DeploymentUnit[] targetDus;
+
+   private FrozenDeploymentIndex(DeploymentUnit topLevel, int[] seeds, int tableSize, Resolution[] slots)
+   {
+      this.topLevel = topLevel;
+      this.seeds = seeds;
+      this.tableSize = tableSize;
+
+      List<String> strings = new ArrayList<String>(4 * slots.length);
+      for (Resolution resolution : slots)
+      {
+         strings.add(resolution.beanName);
+         strings.add(resolution.beanInterface);
+         strings.add(resolution.jndiName);
+         strings.add(resolution.targetEjbName);
+      }
+      this.names = new FrontCodedStringStore(strings);
+      this.hashes = new int[slots.length];
+      this.beanNames = new int[slots.length];
+      this.beanInterfaces = new int[slots.length];
+      this.jndiNames = new int[slots.length];
+      this.targetEjbNames = new int[slots.length];
+      this.targetDus = new DeploymentUnit[slots.length];
+      for (int slot = 0; slot < slots.length; slot++)
+      {
+         this.hashes[slot] = slots[slot].hash;
+         this.beanNames[slot] = this.names.indexOf(slots[slot].beanName);
+         this.beanInterfaces[slot] = this.names.indexOf(slots[slot].beanInterface);
+         this.jndiNames[slot] = this.names.indexOf(slots[slot].jndiName);
+         this.targetEjbNames[slot] = this.names.indexOf(slots[slot].targetEjbName);
+         this.targetDus[slot] = slots[slot].targetDu;
+      }
+   }
+
+   /**
+    * Compiles the resolutions of the passed tree. Indexes the units of the tree which aren't yet.
+    * 
+    * @param treeIndex
+    * @return Returns the frozen index, or null if no seed could be found for one of the buckets
+    */
+   static FrozenDeploymentIndex build(DeploymentTreeIndex treeIndex)
+   {
+      long start = System.nanoTime();
+
+      // the units, in the order the first match resolver visits them
+      List<DeploymentUnitIndex> units = new ArrayList<DeploymentUnitIndex>();
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
+      {
+         stack.push(treeIndex.getTopLevel());
+         while (!stack.isEmpty())
+         {
+            DeploymentUnit du = stack.pop();
+            units.add(treeIndex.getDeploymentUnitIndex(du));
+            stack.pushChildren(du, null, null);
+         }
+      }
+      finally
+      {
+         DeploymentUnitStack.release(stack);
+      }
+
+      // every key a bean can be referenced by, resolved like the first match resolver does
+      SymbolTable symbols = treeIndex.getSymbolTable();
+      Set<Resolution> keys = new LinkedHashSet<Resolution>();
+      for (DeploymentUnitIndex unit : units)
+      {
+         for (BeanDescriptor bean : unit.getSessionBeans())
+         {
+            addKeys(keys, bean, bean.getViewIds(), symbols);
+            // references to the interfaces of a bean whose inheritance is unknown fail, and aren't frozen
+            if (bean.isInheritanceKnown())
+            {
+               addKeys(keys, bean, bean.getInheritedIds(), symbols);
+            }
+            if (bean.hasNoInterfaceView())
+            {
+               addKeys(keys, bean, new int[]
+               {bean.getEjbClassId()}, symbols);
+            }
+         }
+      }
+      List<Resolution> resolved = new ArrayList<Resolution>(keys.size());
+      for (Resolution key : keys)
+      {
+         Resolution resolution = resolve(key, units);
+         if (resolution != null)
+         {
+            resolved.add(resolution);
+         }
+      }
+
+      FrozenDeploymentIndex frozen = compile(treeIndex.getTopLevel(), resolved);
+      logger.debug("Froze " + resolved.size() + " of " + keys.size() + " resolution keys of "
+            + treeIndex.getTopLevel() + " in " + (System.nanoTime() - start) / 1000 + " microseconds"
+            + (frozen == null ? "" : ", names: " + frozen.getNames()));
+      return frozen;
+   }
+
+   /**
+    * Returns the jndi-name the passed reference resolves to within the frozen tree,
+    * or null if it must be resolved the usual way
+    * 
+    * @param reference
+    * @return
+    */
+   public String resolveEjb(EjbReference reference)
+   {
+      int slot = this.getSlot(reference.getBeanName(), reference.getBeanInterface());
+      return slot == NO_SLOT ? null : this.getJndiName(slot);
+   }
+
+   /**
+    * Returns the number of frozen resolutions
+    * @return
+    */
+   public int size()
+   {
+      return this.jndiNames.length;
+   }
+
+   /**
+    * Returns the store of the names of the frozen resolutions, which tells the bytes it saves
+    * @return
+    */
+   public FrontCodedStringStore getNames()
+   {
+      return this.names;
+   }
+
+   /**
+    * Returns the top-level {@link DeploymentUnit} of the frozen tree
+    * @return
+    */
+   public DeploymentUnit getTopLevel()
+   {
+      return this.topLevel;
+   }
+
+   @Override
+   public String toString()
+   {
+      return FrozenDeploymentIndex.class.getSimpleName() + "[" + this.topLevel + ", " + this.jndiNames.length
+            + " resolutions]";
+   }
+
+   /**
+    * Returns the slot of the frozen resolution of the passed key, or {@link #NO_SLOT}
+    */
+   int getSlot(String beanName, String beanInterface)
+   {
+      int size = this.tableSize;
+      if (size == 0)
+      {
+         return NO_SLOT;
+      }
+      int hash = hash(beanName, beanInterface);
+      int seed = this.seeds[mix(hash, 0) & (this.seeds.length - 1)];
+      int slot = seed < 0 ? -seed - 1 : slot(hash, seed, size);
+      if (this.matches(slot, hash, beanName, beanInterface))
+      {
+         return slot;
+      }
+      for (slot = size; slot < this.hashes.length; slot++)
+      {
+         if (this.matches(slot, hash, beanName, beanInterface))
+         {
+            return slot;
+         }
+      }
+      return NO_SLOT;
+   }
+
+   /**
+    * Returns the jndi-name the key of the passed slot resolves to
+    */
+   String getJndiName(int slot)
+   {
+      return this.names.get(this.jndiNames[slot]);
+   }
+
+   /**
+    * Returns the ejb-name of the bean the key of the passed slot resolves to, if known
+    */
+   String getTargetEjbName(int slot)
+   {
+      return this.names.get(this.targetEjbNames[slot]);
+   }
+
+   /**
+    * Returns the unit of the bean the key of the passed slot resolves to
+    */
+   DeploymentUnit getTargetDeploymentUnit(int slot)
+   {
+      return this.targetDus[slot];
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private boolean matches(int slot, int hash, String beanName, String beanInterface)
+   {
+      return this.hashes[slot] == hash && this.names.matches(this.beanInterfaces[slot], beanInterface)
+            && this.names.matches(this.beanNames[slot], beanName);
+   }
+
+   private static void addKeys(Set<Resolution> keys, BeanDescriptor bean, int[] interfaceIds, SymbolTable symbols)
+   {
+      for (int interfaceId : interfaceIds)
+      {
+         String beanInterface = symbols.getSymbol(interfaceId);
+         Resolution byInterface = new Resolution(null, beanInterface, null, null, null);
+         keys.add(byInterface);
+         Resolution byName = new Resolution(bean.getEjbName(), beanInterface, null, null, null);
+         keys.add(byName);
+      }
+   }
+
+   /**
+    * Resolves the passed key against the units, in order, stopping at the first unit which
+    * resolves it or fails to
+    */
+   private static Resolution resolve(Resolution key, List<DeploymentUnitIndex> units)
+   {
+      EjbReference reference = new EjbReference(key.beanName, key.beanInterface, null);
+      for (DeploymentUnitIndex unit : units)
+      {
+         try
+         {
+            String jndiName = unit.resolveEjb(reference);
+            if (jndiName != null)
+            {
+               BeanDescriptor bean = unit.findSessionBean(reference);
+               return new Resolution(key.beanName, key.beanInterface, jndiName, unit.getDeploymentUnit(), bean == null
+                     ? null
+                     : bean.getEjbName());
+            }
+         }
+         catch (RuntimeException re)
+         {
+            // left to the usual resolution, which reports the failure
+            return null;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Places the entries in a table of exactly one slot per entry, choosing the seed of each
+    * bucket so that its entries land in free, distinct, slots (hash and displace). The entries
+    * whose hash is that of a previous entry go to the overflow slots, after the table.
+    */
+   private static FrozenDeploymentIndex compile(DeploymentUnit topLevel, List<Resolution> resolved)
+   {
+      List<Resolution> hashed = new ArrayList<Resolution>(resolved.size());
+      List<Resolution> overflow = new ArrayList<Resolution>(0);
+      Set<Integer> hashes = new HashSet<Integer>();
+      for (Resolution entry : resolved)
+      {
+         (hashes.add(entry.hash) ? hashed : overflow).add(entry);
+      }
+      if (!overflow.isEmpty())
+      {
+         logger.debug("Keeping " + overflow.size() + " resolution keys of " + topLevel
+               + " in overflow slots, their hash is that of another key");
+      }
+
+      int size = hashed.size();
+      int bucketCount = Integer.highestOneBit(Math.max(1, size / 2));
+      int[] seeds = new int[bucketCount];
+      Resolution[] entries = new Resolution[size + overflow.size()];
+      for (int i = 0; i < overflow.size(); i++)
+      {
+         entries[size + i] = overflow.get(i);
+      }
+      if (size == 0)
+      {
+         return new FrozenDeploymentIndex(topLevel, seeds, size, entries);
+      }
+
+      // place the fullest buckets first, while most slots are still free
+      List<List<Resolution>> buckets = new ArrayList<List<Resolution>>(bucketCount);
+      for (int i = 0; i < bucketCount; i++)
+      {
+         buckets.add(new ArrayList<Resolution>(2));
+      }
+      for (Resolution entry : hashed)
+      {
+         buckets.get(mix(entry.hash, 0) & (bucketCount - 1)).add(entry);
+      }
+      Integer[] order = new Integer[bucketCount];
+      for (int i = 0; i < bucketCount; i++)
+      {
+         order[i] = i;
+      }
+      final List<List<Resolution>> sizedBuckets = buckets;
+      Arrays.sort(order, new Comparator<Integer>()
+      {
+         public int compare(Integer one, Integer two)
+         {
+            return sizedBuckets.get(two).size() - sizedBuckets.get(one).size();
+         }
+      });
+
+      int[] slots = new int[0];
+      int freeSlot = 0;
+      for (Integer bucketIndex : order)
+      {
+         List<Resolution> bucket = buckets.get(bucketIndex);
+         if (bucket.isEmpty())
+         {
+            break;
+         }
+         if (bucket.size() == 1)
+         {
+            // a single key goes straight to a free slot, which a seed would hardly find once most are taken
+            while (entries[freeSlot] != null)
+            {
+               freeSlot++;
+            }
+            entries[freeSlot] = bucket.get(0);
+            seeds[bucketIndex] = -(freeSlot + 1);
+            continue;
+         }
+         if (slots.length < bucket.size())
+         {
+            slots = new int[bucket.size()];
+         }
+         int seed = 1;
+         while (!fits(bucket, seed, entries, size, slots))
+         {
+            if (++seed > MAX_SEED)
+            {
+               logger.warn("Could not freeze resolutions of " + topLevel + ", no seed for a bucket of "
+                     + bucket.size() + " keys");
+               return null;
+            }
+         }
+         for (int i = 0; i < bucket.size(); i++)
+         {
+            entries[slots[i]] = bucket.get(i);
+         }
+         seeds[bucketIndex] = seed;
+      }
+      return new FrozenDeploymentIndex(topLevel, seeds, size, entries);
+   }
+
+   /**
+    * Returns whether, with the passed seed, the entries of the bucket land in free and distinct
+    * slots of the table of the passed size, which are then set in <code>slots</code>
+    */
+   private static boolean fits(List<Resolution> bucket, int seed, Resolution[] entries, int size, int[] slots)
+   {
+      for (int i = 0; i < bucket.size(); i++)
+      {
+         int slot = slot(bucket.get(i).hash, seed, size);
+         if (entries[slot] != null)
+         {
+            return false;
+         }
+         for (int j = 0; j < i; j++)
+         {
+            if (slots[j] == slot)
+            {
+               return false;
+            }
+         }
+         slots[i] = slot;
+      }
+      return true;
+   }
+
+   private static int hash(String beanName, String beanInterface)
+   {
+      int h = beanName == null ? 0 : beanName.hashCode();
+      return 31 * h + (beanInterface == null ? 0 : beanInterface.hashCode());
+   }
+
+   private static int slot(int hash, int seed, int size)
+   {
+      return (mix(hash, seed) & 0x7fffffff) % size;
+   }
+
+   private static int mix(int hash, int seed)
+   {
+      int h = hash ^ (seed * 0x9E3779B9);
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+   }
+
+   /**
+    * A resolution, or the key of one, while building
+    */
+   private static final class Resolution
+   {
+      final String beanName;
+
+      final String beanInterface;
+
+      final int hash;
+
+      final String jndiName;
+
+      /** The unit of the bean the key resolves to */
+      final DeploymentUnit targetDu;
+
+      /** The ejb-name of the bean the key resolves to */
+      final String targetEjbName;
+
+      Resolution(String beanName, String beanInterface, String jndiName, DeploymentUnit targetDu, String targetEjbName)
+      {
+         this.beanName = beanName;
+         this.beanInterface = beanInterface;
+         this.hash = FrozenDeploymentIndex.hash(beanName, beanInterface);
+         this.jndiName = jndiName;
+         this.targetDu = targetDu;
+         this.targetEjbName = targetEjbName;
+      }
+
+      boolean matches(String beanName, String beanInterface)
+      {
+         return (this.beanName == null ? beanName == null : this.beanName.equals(beanName))
+               && (this.beanInterface == null ? beanInterface == null : this.beanInterface.equals(beanInterface));
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof Resolution))
+         {
+            return false;
+         }
+         Resolution other = (Resolution) obj;
+         return other.matches(this.beanName, this.beanInterface);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return this.hash;
+      }
+   }
+}
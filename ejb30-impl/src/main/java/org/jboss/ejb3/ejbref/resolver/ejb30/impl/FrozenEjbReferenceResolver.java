@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+
+/**
+ * An {@link EjbReferenceResolver} which resolves references straight from the {@link FrozenDeploymentIndex}
+ * of the deployment tree, for callers which resolve the same references over and over again (injection
+ * for instance).
+ *
+ * <p>
+ *  A frozen resolution goes through final classes only: no resolver hierarchy, no overridable matching
+ *  hook, no walk of the tree. The call sites of a lookup are thus monomorphic, and small enough for the
+ *  JIT to inline the whole lookup into the caller. References which aren't frozen (trees which aren't
+ *  frozen, ambiguous or unknown keys) are resolved by the delegate.
+ * </p>
+ * <p>
+ *  The frozen resolutions are those of a first match walk of the tree, so the frozen index is only used
+ *  in front of a {@link FirstMatchEjbReferenceResolver} which uses the index of the tree, and whose
+ *  {@link MetaDataBasedEjbReferenceResolver} creates the same jndi-names as the one the tree was indexed
+ *  with. In front of any other resolver, every reference is resolved by the delegate.
+ * </p>
+ * <p>
+ *  The {@link ResolutionListener} of the delegate is only notified of the references the delegate resolves.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class FrozenEjbReferenceResolver implements EjbReferenceResolver
+{
+
+   /** Resolves the references which aren't frozen */
+   private final EjbReferenceResolver delegate;
+
+   /** The delegate, if its resolutions are those of the frozen index, else null */
+   private final FirstMatchEjbReferenceResolver firstMatchDelegate;
+
+   /**
+    * Creates a {@link FrozenEjbReferenceResolver} in front of the passed resolver
+    *
+    * @param delegate The resolver of the references which aren't frozen
+    */
+   public FrozenEjbReferenceResolver(EjbReferenceResolver delegate)
+   {
+      if (delegate == null)
+      {
+         throw new IllegalArgumentException("Delegate " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      this.delegate = delegate;
+      this.firstMatchDelegate = delegate instanceof FirstMatchEjbReferenceResolver
+            ? (FirstMatchEjbReferenceResolver) delegate
+            : null;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   {
+      FirstMatchEjbReferenceResolver firstMatch = this.firstMatchDelegate;
+      String mappedName = reference.getMappedName();
+      if (firstMatch != null && firstMatch.isIndexUsed() && (mappedName == null || mappedName.trim().length() == 0))
+      {
+         DeploymentTreeIndex treeIndex = DeploymentTreeIndex.getDeploymentTreeIndex(du);
+         FrozenDeploymentIndex frozen = treeIndex == null
+               || !treeIndex.isCompatibleWith(firstMatch.getMetaDataBasedEjbReferenceResolver())
+               ? null
+               : treeIndex.getFrozenIndex();
+         if (frozen != null)
+         {
+            String jndiName = frozen.resolveEjb(reference);
+            if (jndiName != null)
+            {
+               return jndiName;
+            }
+         }
+      }
+      return this.delegate.resolveEjb(du, reference);
+   }
+
+   /**
+    * Returns the resolver of the references which aren't frozen
+    * @return
+    */
+   public EjbReferenceResolver getDelegate()
+   {
+      return this.delegate;
+   }
+}
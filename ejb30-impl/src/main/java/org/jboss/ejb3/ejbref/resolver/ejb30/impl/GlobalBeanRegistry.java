@@ -0,0 +1,828 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * A server-wide registry of the session beans of all the deployed {@link DeploymentUnit}s,
+ * which allows a {@link EjbReference} to be resolved against beans which live in other
+ * top-level deployments.
+ *
+ * <p>
+ *  Deployers register a {@link DeploymentUnit} once its {@link JBossMetaData} has been attached
+ *  and unregister it when it's undeployed. The session beans are indexed by ejb-name and by
+ *  each of the interfaces which they directly declare (business locals, business remotes, home,
+ *  local home) as well as by their ejb-class, so a lookup only has to consider the beans which
+ *  are indexed under the key of the reference, instead of scanning every deployment.
+ *  A reference to a super-interface of a bean interface is not found through this registry.
+ * </p>
+ * <p>
+ *  The registry holds the {@link BeanDescriptor}s of the beans, extracted by its
+ *  {@link IndexableEjbReferenceResolver} (a {@link EJB30MetaDataBasedEjbReferenceResolver} by default),
+ *  rather than their {@link JBossMetaData}. Only the resolvers which create the same descriptors
+ *  resolve references through it. When the {@link IndexableEjbReferenceResolver#getDescriptorVersion()}
+ *  of its resolver changes, the descriptors are extracted again out of the metadata still attached to
+ *  the registered units.
+ * </p>
+ * <p>
+ *  The index is published as immutable, versioned, snapshots. Registrations are serialized and
+ *  each of them builds the next version out of the current one before atomically publishing it.
+ *  The maps of a snapshot are {@link PersistentMap}s, so the next version shares all but the
+ *  entries of the registered beans with the current one: registering a unit costs time proportional
+ *  to the number of its beans times the logarithm of the number of beans registered server-wide
+ *  (plus the size of the lists of beans indexed under the same keys), not to the latter.
+ *  A lookup never locks: it pins the snapshot which is current when it starts and uses it till it
+ *  completes, so a deployment being deployed or undeployed never stalls (nor half-updates) a resolution.
+ * </p>
+ * <p>
+ *  The names of the registered beans get their IDs from a {@link SymbolTable} which belongs to the
+ *  snapshot, and which the next snapshots share. A table only grows, so the names of undeployed beans
+ *  would pile up in it. Once it has grown to twice the size it had when it was created, the next
+ *  snapshot gets a new table, holding only the names of the beans still registered, along with
+ *  copies of their descriptors. A lookup still using an older snapshot keeps using the table of
+ *  that snapshot.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class GlobalBeanRegistry
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(GlobalBeanRegistry.class);
+
+   /** Extracts the descriptors of the registered beans */
+   private volatile IndexableEjbReferenceResolver resolver = new EJB30MetaDataBasedEjbReferenceResolver();
+
+   /** The version of the descriptors of the registered beans, guarded by this */
+   private volatile long descriptorVersion = this.resolver.getDescriptorVersion();
+
+   /** A snapshot never gets a new table while its table holds fewer names */
+   private static final int MINIMUM_COMPACTED_SYMBOL_COUNT = 64;
+
+   /** The currently published snapshot */
+   private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(new Snapshot());
+
+   /** Superseded snapshots which may still be in use by a lookup */
+   private final Set<Snapshot> retired = Collections.newSetFromMap(new ConcurrentHashMap<Snapshot, Boolean>());
+
+   /** Number of snapshots built since this registry was created */
+   private final AtomicLong rebuildCount = new AtomicLong();
+
+   /** Time spent building snapshots, in nanoseconds */
+   private final AtomicLong totalRebuildTime = new AtomicLong();
+
+   /** Time spent building the last snapshot, in nanoseconds */
+   private volatile long lastRebuildTime;
+
+   /**
+    * Registers the session beans of the {@link JBossMetaData} attached to the passed
+    * {@link DeploymentUnit}. Does nothing if the unit has no such metadata.
+    * 
+    * @param du The {@link DeploymentUnit} being deployed
+    */
+   public void register(DeploymentUnit du)
+   {
+      JBossMetaData metadata = du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            JBossMetaData.class);
+      if (metadata == null)
+      {
+         return;
+      }
+      this.register(du, metadata);
+   }
+
+   /**
+    * Registers the session beans of the passed {@link JBossMetaData}, as belonging to the
+    * passed {@link DeploymentUnit}. Any beans which were previously registered for that unit are
+    * replaced.
+    * 
+    * @param du The {@link DeploymentUnit} to which the metadata is attached
+    * @param metadata The metadata of the unit
+    */
+   public synchronized void register(DeploymentUnit du, JBossMetaData metadata)
+   {
+      if (du == null || metadata == null)
+      {
+         throw new IllegalArgumentException("DeploymentUnit and metadata cannot be null");
+      }
+      this.checkDescriptorVersion();
+      long start = System.nanoTime();
+      List<RegisteredBean> beans = this.createRegisteredBeans(du, metadata);
+      SnapshotBuilder builder = new SnapshotBuilder(this.current.get());
+      builder.remove(du);
+      builder.add(du, beans);
+      this.publish(this.compact(builder.build()), start);
+      logger.debug("Registered " + beans.size() + " session beans of " + du);
+   }
+
+   /**
+    * Removes the beans registered for the passed {@link DeploymentUnit}, if any
+    * 
+    * @param du The {@link DeploymentUnit} being undeployed
+    */
+   public synchronized void unregister(DeploymentUnit du)
+   {
+      long start = System.nanoTime();
+      SnapshotBuilder builder = new SnapshotBuilder(this.current.get());
+      List<RegisteredBean> beans = builder.remove(du);
+      if (beans == null)
+      {
+         return;
+      }
+      this.publish(this.compact(builder.build()), start);
+      logger.debug("Unregistered " + beans.size() + " session beans of " + du);
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference} against the registered beans
+    * 
+    * @param reference The reference to resolve
+    * @param resolver The resolver which decides whether a candidate bean matches the reference
+    *           and resolves its jndi-name
+    * @return Returns the resolved jndi-name, or null if no registered bean matches the reference
+    * @throws NonDeterministicInterfaceException If more than one registered bean matches the reference
+    * @throws IllegalArgumentException If the resolver isn't compatible with this registry
+    */
+   public String resolveEjb(EjbReference reference, MetaDataBasedEjbReferenceResolver resolver)
+   {
+      return this.resolveEjb(null, reference, resolver, null);
+   }
+
+   /**
+    * Resolves the passed {@link EjbReference}, on behalf of the passed {@link DeploymentUnit}, against
+    * the registered beans
+    * 
+    * @param du The {@link DeploymentUnit} from which the reference is being resolved
+    * @param reference The reference to resolve
+    * @param resolver The resolver which decides whether a candidate bean matches the reference
+    *           and resolves its jndi-name
+    * @param listener The listener to notify of the matching bean, can be null
+    * @return Returns the resolved jndi-name, or null if no registered bean matches the reference
+    * @throws NonDeterministicInterfaceException If more than one registered bean matches the reference
+    * @throws IllegalArgumentException If the resolver isn't compatible with this registry
+    */
+   public String resolveEjb(DeploymentUnit du, EjbReference reference, MetaDataBasedEjbReferenceResolver resolver,
+         ResolutionListener listener)
+   {
+      if (!this.isCompatibleWith(resolver))
+      {
+         throw new IllegalArgumentException("Resolver " + resolver + " doesn't create the same descriptors as "
+               + this.resolver + ", the resolver of the global bean registry");
+      }
+      this.checkDescriptorVersion();
+
+      // pin the snapshot for the whole resolution
+      Snapshot snapshot = this.acquire();
+      try
+      {
+         Match match = snapshot.findMatch(reference, this.resolver);
+         if (match == null)
+         {
+            return null;
+         }
+         if (listener != null)
+         {
+            listener.referenceResolved(du, reference, match.du, match.ejbName, match.jndiName);
+         }
+         return match.jndiName;
+      }
+      finally
+      {
+         this.release(snapshot);
+      }
+   }
+
+   /**
+    * Returns true if the registered beans resolve references just like the passed resolver, that is
+    * if it's a {@link IndexableEjbReferenceResolver} which creates the same descriptors as the resolver
+    * of this registry
+    * 
+    * @param resolver
+    * @return
+    */
+   public boolean isCompatibleWith(MetaDataBasedEjbReferenceResolver resolver)
+   {
+      return resolver instanceof IndexableEjbReferenceResolver
+            && this.resolver.createsSameDescriptors((IndexableEjbReferenceResolver) resolver);
+   }
+
+   /**
+    * Sets the resolver which extracts the descriptors of the registered beans. The descriptors
+    * of the beans registered so far are extracted again.
+    * 
+    * @param resolver
+    */
+   public synchronized void setMetaDataBasedEjbReferenceResolver(IndexableEjbReferenceResolver resolver)
+   {
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException(IndexableEjbReferenceResolver.class.getSimpleName() + " cannot be null");
+      }
+      this.resolver = resolver;
+      this.refresh();
+   }
+
+   /**
+    * Returns the resolver which extracts the descriptors of the registered beans
+    * @return
+    */
+   public IndexableEjbReferenceResolver getMetaDataBasedEjbReferenceResolver()
+   {
+      return this.resolver;
+   }
+
+   /**
+    * Returns the number of session beans which are currently registered
+    * @return
+    */
+   public int getRegisteredBeanCount()
+   {
+      return this.current.get().beanCount;
+   }
+
+   /**
+    * Returns the number of {@link DeploymentUnit}s which are currently registered
+    * @return
+    */
+   public int getRegisteredDeploymentUnitCount()
+   {
+      return this.current.get().beansByDeploymentUnit.size();
+   }
+
+   /**
+    * Returns the number of names in the {@link SymbolTable} of the currently published snapshot
+    * @return
+    */
+   public int getSymbolCount()
+   {
+      return this.current.get().symbols.size();
+   }
+
+   /**
+    * Returns the version of the currently published snapshot. The version is incremented
+    * by each registration which changes the registry.
+    * @return
+    */
+   public long getVersion()
+   {
+      return this.current.get().version;
+   }
+
+   /**
+    * Returns the number of snapshots which are currently retained: the published one, plus the
+    * superseded ones which are still pinned by a running lookup
+    * @return
+    */
+   public int getRetainedSnapshotCount()
+   {
+      return this.retired.size() + 1;
+   }
+
+   /**
+    * Returns the number of snapshots built since this registry was created
+    * @return
+    */
+   public long getRebuildCount()
+   {
+      return this.rebuildCount.get();
+   }
+
+   /**
+    * Returns the time spent building the last snapshot, in nanoseconds
+    * @return
+    */
+   public long getLastRebuildTime()
+   {
+      return this.lastRebuildTime;
+   }
+
+   /**
+    * Returns the time spent building all the snapshots, in nanoseconds
+    * @return
+    */
+   public long getTotalRebuildTime()
+   {
+      return this.totalRebuildTime.get();
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Publishes the passed snapshot and retires the previous one. Must be called while
+    * holding the lock of this registry.
+    * 
+    * @param snapshot
+    * @param start The time at which the build of the snapshot started, as per {@link System#nanoTime()}
+    */
+   private void publish(Snapshot snapshot, long start)
+   {
+      Snapshot previous = this.current.getAndSet(snapshot);
+      long rebuildTime = System.nanoTime() - start;
+      this.lastRebuildTime = rebuildTime;
+      this.totalRebuildTime.addAndGet(rebuildTime);
+      this.rebuildCount.incrementAndGet();
+
+      // keep track of the previous snapshot for as long as lookups are using it
+      previous.retired = true;
+      this.retired.add(previous);
+      if (previous.readers.get() == 0)
+      {
+         this.retired.remove(previous);
+      }
+      if (logger.isTraceEnabled())
+      {
+         logger.trace("Published snapshot version " + snapshot.version + " of global bean registry in "
+               + rebuildTime + " ns");
+      }
+   }
+
+   /**
+    * Extracts the descriptors of the registered beans again if their version changed
+    */
+   private void checkDescriptorVersion()
+   {
+      if (this.resolver.getDescriptorVersion() != this.descriptorVersion)
+      {
+         synchronized (this)
+         {
+            if (this.resolver.getDescriptorVersion() != this.descriptorVersion)
+            {
+               this.refresh();
+            }
+         }
+      }
+   }
+
+   /**
+    * Extracts the descriptors of all the registered beans again, out of the metadata still attached
+    * to their units, and publishes them. Must be called while holding the lock of this registry.
+    */
+   private void refresh()
+   {
+      long start = System.nanoTime();
+      long version = this.resolver.getDescriptorVersion();
+      Snapshot base = this.current.get();
+      SnapshotBuilder builder = new SnapshotBuilder(base);
+      for (DeploymentUnit du : base.beansByDeploymentUnit.keys())
+      {
+         JBossMetaData metadata = du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+               JBossMetaData.class);
+         if (metadata == null)
+         {
+            logger.warn("Keeping the outdated descriptors of the session beans of " + du
+                  + ", its metadata has been released");
+            continue;
+         }
+         builder.remove(du);
+         builder.add(du, this.createRegisteredBeans(du, metadata));
+      }
+      this.descriptorVersion = version;
+      this.publish(this.compact(builder.build()), start);
+      logger.debug("Extracted again the descriptors of the " + base.beanCount + " registered session beans");
+   }
+
+   /**
+    * Returns the passed snapshot, or a copy of it with a new {@link SymbolTable} holding only the
+    * names of its beans if its table has doubled since it was created. Must be called while holding
+    * the lock of this registry.
+    * 
+    * @param snapshot A snapshot which hasn't been published yet
+    * @return
+    */
+   private Snapshot compact(Snapshot snapshot)
+   {
+      SymbolTable symbols = snapshot.symbols;
+      if (symbols.size() < Math.max(MINIMUM_COMPACTED_SYMBOL_COUNT, 2 * snapshot.initialSymbolCount))
+      {
+         return snapshot;
+      }
+      SymbolTable compacted = new SymbolTable();
+      SnapshotBuilder builder = new SnapshotBuilder(new Snapshot(snapshot.version - 1, compacted));
+      for (DeploymentUnit du : snapshot.beansByDeploymentUnit.keys())
+      {
+         List<RegisteredBean> beans = new ArrayList<RegisteredBean>();
+         for (RegisteredBean bean : snapshot.beansByDeploymentUnit.get(du))
+         {
+            beans.add(new RegisteredBean(du, bean.descriptor.copyTo(symbols, compacted)));
+         }
+         builder.add(du, beans);
+      }
+      Snapshot next = builder.build();
+      logger.debug("Compacted symbol table of global bean registry from " + symbols.size() + " to "
+            + compacted.size() + " symbols");
+      return new Snapshot(next.version, compacted, compacted.size(), next.beansByDeploymentUnit, next.beansByName,
+            next.beansByInterface, next.beanCount);
+   }
+
+   /**
+    * Extracts the descriptors of the session beans of the passed metadata
+    */
+   private List<RegisteredBean> createRegisteredBeans(DeploymentUnit du, JBossMetaData metadata)
+   {
+      List<RegisteredBean> beans = new ArrayList<RegisteredBean>();
+      JBossEnterpriseBeansMetaData enterpriseBeans = metadata.getEnterpriseBeans();
+      if (enterpriseBeans != null)
+      {
+         ClassLoader cl = du.getClassLoader();
+         SymbolTable symbols = this.current.get().symbols;
+         for (JBossEnterpriseBeanMetaData bean : enterpriseBeans)
+         {
+            // only session beans can be targets of a reference
+            if (bean instanceof JBossSessionBeanMetaData)
+            {
+               beans.add(new RegisteredBean(du, this.resolver.createBeanDescriptor((JBossSessionBeanMetaData) bean,
+                     cl, symbols)));
+            }
+         }
+      }
+      return beans;
+   }
+
+   private Snapshot acquire()
+   {
+      while (true)
+      {
+         // count the reader before checking the snapshot is still the published one, so that
+         // a publish which supersedes it sees the reader and retains it
+         Snapshot snapshot = this.current.get();
+         snapshot.readers.incrementAndGet();
+         if (snapshot == this.current.get())
+         {
+            return snapshot;
+         }
+         this.release(snapshot);
+      }
+   }
+
+   private void release(Snapshot snapshot)
+   {
+      if (snapshot.readers.decrementAndGet() == 0 && snapshot.retired)
+      {
+         this.retired.remove(snapshot);
+      }
+   }
+
+   /**
+    * Returns the names of the interfaces directly declared by the passed session bean (its views),
+    * along with its ejb-class
+    * 
+    * @param bean
+    * @param symbols The table which assigned the IDs of the views of the bean
+    * @return
+    */
+   private static Collection<String> getInterfaceKeys(BeanDescriptor bean, SymbolTable symbols)
+   {
+      Set<String> keys = new LinkedHashSet<String>();
+      for (int viewId : bean.getViewIds())
+      {
+         addIfSpecified(keys, symbols.getSymbol(viewId));
+      }
+      addIfSpecified(keys, bean.getEjbClass());
+      return keys;
+   }
+
+   private static void addIfSpecified(Set<String> keys, String key)
+   {
+      if (key != null && key.trim().length() > 0)
+      {
+         keys.add(key);
+      }
+   }
+
+   /**
+    * An immutable version of the index
+    */
+   private static class Snapshot
+   {
+      private final long version;
+
+      /** The table which assigned the IDs of the names of the beans, shared with the next snapshots */
+      private final SymbolTable symbols;
+
+      /** The size of the table when the first snapshot using it was built */
+      private final int initialSymbolCount;
+
+      private final PersistentMap<DeploymentUnit, List<RegisteredBean>> beansByDeploymentUnit;
+
+      /** Beans keyed by their ejb-name */
+      private final PersistentMap<String, List<RegisteredBean>> beansByName;
+
+      /** Beans keyed by each of their directly declared interfaces and their ejb-class */
+      private final PersistentMap<String, List<RegisteredBean>> beansByInterface;
+
+      private final int beanCount;
+
+      /** Number of lookups currently using this snapshot */
+      private final AtomicInteger readers = new AtomicInteger();
+
+      /** Whether a newer snapshot has been published */
+      private volatile boolean retired;
+
+      Snapshot()
+      {
+         this(0, new SymbolTable());
+      }
+
+      /**
+       * Creates an empty snapshot using the passed table
+       */
+      Snapshot(long version, SymbolTable symbols)
+      {
+         this(version, symbols, symbols.size(), PersistentMap.<DeploymentUnit, List<RegisteredBean>> empty(),
+               PersistentMap.<String, List<RegisteredBean>> empty(), PersistentMap
+                     .<String, List<RegisteredBean>> empty(), 0);
+      }
+
+      Snapshot(long version, SymbolTable symbols, int initialSymbolCount,
+            PersistentMap<DeploymentUnit, List<RegisteredBean>> beansByDeploymentUnit,
+            PersistentMap<String, List<RegisteredBean>> beansByName,
+            PersistentMap<String, List<RegisteredBean>> beansByInterface, int beanCount)
+      {
+         this.version = version;
+         this.symbols = symbols;
+         this.initialSymbolCount = initialSymbolCount;
+         this.beansByDeploymentUnit = beansByDeploymentUnit;
+         this.beansByName = beansByName;
+         this.beansByInterface = beansByInterface;
+         this.beanCount = beanCount;
+      }
+
+      /**
+       * Returns the only registered bean which matches the passed reference, along with the
+       * resolved jndi-name, or null if none matches
+       */
+      Match findMatch(EjbReference reference, IndexableEjbReferenceResolver resolver)
+      {
+         List<RegisteredBean> candidates = this.getCandidates(reference);
+         if (candidates == null)
+         {
+            return null;
+         }
+
+         int interfaceId = this.symbols.lookup(reference.getBeanInterface());
+         String jndiName = null;
+         RegisteredBean match = null;
+         for (RegisteredBean candidate : candidates)
+         {
+            String candidateJndiName = candidate.resolveEjb(reference, interfaceId, resolver);
+            if (candidateJndiName == null)
+            {
+               continue;
+            }
+            if (match != null)
+            {
+               throw new NonDeterministicInterfaceException("Specified reference " + reference
+                     + " was matched by more than one EJB across deployments: " + match + " and " + candidate
+                     + ".  Specify beanName explicitly or ensure beanInterface is unique.");
+            }
+            match = candidate;
+            jndiName = candidateJndiName;
+         }
+         if (match != null)
+         {
+            logger.debug("Resolved " + reference + " to " + match + " through the global bean registry (version "
+                  + this.version + ")");
+            return new Match(match, jndiName);
+         }
+         return null;
+      }
+
+      /**
+       * Returns the registered beans which are indexed under the key of the passed reference
+       * (its beanName if specified, else its beanInterface), or null if there are none
+       */
+      private List<RegisteredBean> getCandidates(EjbReference reference)
+      {
+         String beanName = reference.getBeanName();
+         if (beanName != null && beanName.trim().length() > 0)
+         {
+            return this.beansByName.get(beanName);
+         }
+         String beanInterface = reference.getBeanInterface();
+         if (beanInterface == null)
+         {
+            return null;
+         }
+         return this.beansByInterface.get(beanInterface);
+      }
+   }
+
+   /**
+    * Builds the next {@link Snapshot} out of a published one. The maps of the published snapshot
+    * are persistent: only the entries which are changed get a new list, and a new path in the
+    * maps, the rest being shared between both versions.
+    */
+   private static class SnapshotBuilder
+   {
+      private final Snapshot base;
+
+      private PersistentMap<DeploymentUnit, List<RegisteredBean>> beansByDeploymentUnit;
+
+      private PersistentMap<String, List<RegisteredBean>> beansByName;
+
+      private PersistentMap<String, List<RegisteredBean>> beansByInterface;
+
+      private int beanCount;
+
+      SnapshotBuilder(Snapshot base)
+      {
+         this.base = base;
+         this.beansByDeploymentUnit = base.beansByDeploymentUnit;
+         this.beansByName = base.beansByName;
+         this.beansByInterface = base.beansByInterface;
+         this.beanCount = base.beanCount;
+      }
+
+      void add(DeploymentUnit du, List<RegisteredBean> beans)
+      {
+         this.beansByDeploymentUnit = this.beansByDeploymentUnit.plus(du, Collections.unmodifiableList(beans));
+         this.beanCount += beans.size();
+         for (RegisteredBean bean : beans)
+         {
+            this.beansByName = addToIndex(this.beansByName, bean.descriptor.getEjbName(), bean);
+            for (String key : getInterfaceKeys(bean.descriptor, this.base.symbols))
+            {
+               this.beansByInterface = addToIndex(this.beansByInterface, key, bean);
+            }
+         }
+      }
+
+      List<RegisteredBean> remove(DeploymentUnit du)
+      {
+         List<RegisteredBean> beans = this.beansByDeploymentUnit.get(du);
+         if (beans == null)
+         {
+            return null;
+         }
+         this.beansByDeploymentUnit = this.beansByDeploymentUnit.minus(du);
+         this.beanCount -= beans.size();
+         for (RegisteredBean bean : beans)
+         {
+            this.beansByName = removeFromIndex(this.beansByName, bean.descriptor.getEjbName(), bean);
+            for (String key : getInterfaceKeys(bean.descriptor, this.base.symbols))
+            {
+               this.beansByInterface = removeFromIndex(this.beansByInterface, key, bean);
+            }
+         }
+         return beans;
+      }
+
+      Snapshot build()
+      {
+         return new Snapshot(this.base.version + 1, this.base.symbols, this.base.initialSymbolCount,
+               this.beansByDeploymentUnit, this.beansByName, this.beansByInterface, this.beanCount);
+      }
+
+      private static PersistentMap<String, List<RegisteredBean>> addToIndex(
+            PersistentMap<String, List<RegisteredBean>> index, String key, RegisteredBean bean)
+      {
+         if (key == null)
+         {
+            return index;
+         }
+         List<RegisteredBean> previous = index.get(key);
+         List<RegisteredBean> beans = previous == null ? new ArrayList<RegisteredBean>(1)
+               : new ArrayList<RegisteredBean>(previous);
+         beans.add(bean);
+         return index.plus(key, Collections.unmodifiableList(beans));
+      }
+
+      private static PersistentMap<String, List<RegisteredBean>> removeFromIndex(
+            PersistentMap<String, List<RegisteredBean>> index, String key, RegisteredBean bean)
+      {
+         if (key == null)
+         {
+            return index;
+         }
+         List<RegisteredBean> previous = index.get(key);
+         if (previous == null)
+         {
+            return index;
+         }
+         List<RegisteredBean> beans = new ArrayList<RegisteredBean>(previous);
+         beans.remove(bean);
+         return beans.isEmpty() ? index.minus(key) : index.plus(key, Collections.unmodifiableList(beans));
+      }
+   }
+
+   /**
+    * The descriptor of a session bean along with the {@link DeploymentUnit} to which it belongs
+    */
+   private static class RegisteredBean
+   {
+      private final DeploymentUnit du;
+
+      private final BeanDescriptor descriptor;
+
+      RegisteredBean(DeploymentUnit du, BeanDescriptor descriptor)
+      {
+         this.du = du;
+         this.descriptor = descriptor;
+      }
+
+      /**
+       * Returns the jndi-name the passed reference resolves to, or null if this bean isn't a match
+       * 
+       * @param reference The reference
+       * @param interfaceId The ID of the beanInterface of the reference, or {@link SymbolTable#NO_SYMBOL}
+       * @param resolver The resolver which resolves a reference which matched by its beanName only
+       */
+      String resolveEjb(EjbReference reference, int interfaceId, IndexableEjbReferenceResolver resolver)
+      {
+         if (!this.descriptor.isMatch(reference, interfaceId))
+         {
+            return null;
+         }
+         // an interface which no registered bean declares has no ID, but isn't the same as no interface at all
+         if (interfaceId != SymbolTable.NO_SYMBOL || reference.getBeanInterface() == null)
+         {
+            String jndiName = this.descriptor.getJndiName(interfaceId);
+            if (jndiName != null)
+            {
+               return jndiName;
+            }
+         }
+
+         // the reference matched by its beanName, but names an interface the descriptor knows nothing about,
+         // so let the resolver deal with it as long as the metadata is around
+         JBossMetaData metadata = this.du.getAttachment(
+               EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, JBossMetaData.class);
+         JBossEnterpriseBeansMetaData enterpriseBeans = metadata == null ? null : metadata.getEnterpriseBeans();
+         JBossEnterpriseBeanMetaData bean = enterpriseBeans == null ? null : enterpriseBeans.get(this.descriptor
+               .getEjbName());
+         if (!(bean instanceof JBossSessionBeanMetaData))
+         {
+            logger.debug("EJB " + this + " doesn't expose the beanInterface of " + reference
+                  + " and its metadata has been released");
+            return null;
+         }
+         return resolver.resolveEjb(reference, (JBossSessionBeanMetaData) bean, this.du.getClassLoader());
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.descriptor.getEjbName() + " in " + this.du;
+      }
+   }
+
+   /**
+    * A registered bean which matched a reference, along with the resolved jndi-name
+   */
+   private static class Match
+   {
+      private final DeploymentUnit du;
+
+      private final String ejbName;
+
+      private final String jndiName;
+
+      Match(RegisteredBean bean, String jndiName)
+      {
+         this.du = bean.du;
+         this.ejbName = bean.descriptor.getEjbName();
+         this.jndiName = jndiName;
+      }
+   }
+}
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * A {@link MetaDataBasedEjbReferenceResolver} which can also resolve a {@link EjbReference} against
+ * a single session bean and extract the {@link BeanDescriptor} of a session bean, so that references
+ * can be resolved against the indexes ({@link DeploymentTreeIndex}, {@link GlobalBeanRegistry}) instead
+ * of the {@link JBossMetaData}.
+ *
+ * <p>
+ *  The resolvers which only implement {@link MetaDataBasedEjbReferenceResolver} keep resolving
+ *  against the metadata.
+ * </p>
+ * <p>
+ *  A descriptor holds the jndi-names of the views of its bean, resolved when it's created. So a
+ *  resolver whose configuration changes the jndi-names (or the matching rules) increments its
+ *  {@link #getDescriptorVersion()}, and the indexes then drop the descriptors they hold.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public interface IndexableEjbReferenceResolver extends MetaDataBasedEjbReferenceResolver
+{
+
+   /**
+    * Resolves the jndi name of a {@link EjbReference} against a single session bean
+    * 
+    * @param reference The {@link EjbReference} which needs to be resolved into a jndi name
+    * @param sessionBean The session bean which is a potential target of the reference
+    * @param cl {@link ClassLoader} of the deployment which contains the session bean
+    * @return Returns the resolved jndi-name for the passed {@link EjbReference}, or null if
+    *           the passed session bean is not a match for the reference
+    */
+   String resolveEjb(EjbReference reference, JBossSessionBeanMetaData sessionBean, ClassLoader cl);
+
+   /**
+    * Extracts the {@link BeanDescriptor} of the passed session bean. Resolving a reference against
+    * the descriptor must give the same result as resolving it against the session bean itself,
+    * through {@link #resolveEjb(EjbReference, JBossSessionBeanMetaData, ClassLoader)}, for as long
+    * as the {@link #getDescriptorVersion()} doesn't change.
+    * 
+    * @param sessionBean The session bean
+    * @param cl {@link ClassLoader} of the deployment which contains the session bean
+    * @param symbols The {@link SymbolTable} which assigns the IDs of the interfaces of the descriptor
+    * @return
+    */
+   BeanDescriptor createBeanDescriptor(JBossSessionBeanMetaData sessionBean, ClassLoader cl, SymbolTable symbols);
+
+   /**
+    * Returns the version of the descriptors created by this resolver. It's incremented each time
+    * the configuration of the resolver changes the descriptors it creates.
+    * 
+    * @return
+    */
+   long getDescriptorVersion();
+
+   /**
+    * Returns true if the passed resolver creates the same descriptors as this one, so that
+    * the descriptors created by either of them can be used by both
+    * 
+    * @param other
+    * @return
+    */
+   boolean createsSameDescriptors(IndexableEjbReferenceResolver other);
+}
@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in nanoseconds, in the manner of HdrHistogram: the values below
+ * {@link #LINEAR_BUCKET_COUNT} have a bucket each, the larger ones share {@link #SUB_BUCKET_COUNT} buckets per
+ * power of two, so a percentile is reported within 1/{@link #SUB_BUCKET_COUNT} of the recorded value.
+ *
+ * <p>
+ *  Recording a value increments the count of its bucket, along with the total count and sum, and
+ *  raises the maximum if needed, with atomic operations only: concurrent recordings never block each
+ *  other. A percentile read while values are being recorded may miss the latest ones.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class LatencyHistogram
+{
+
+   /** The number of sub-buckets per power of two, above the linear buckets */
+   public static final int SUB_BUCKET_COUNT = 16;
+
+   /** The number of linear buckets, one per value */
+   public static final int LINEAR_BUCKET_COUNT = 2 * SUB_BUCKET_COUNT;
+
+   /** log2 of {@link #SUB_BUCKET_COUNT} */
+   private static final int SUB_BUCKET_BITS = 4;
+
+   /** The magnitude (log2) of {@link #LINEAR_BUCKET_COUNT} */
+   private static final int FIRST_MAGNITUDE = SUB_BUCKET_BITS + 1;
+
+   /** Enough buckets for any positive long */
+   private static final int BUCKET_COUNT = LINEAR_BUCKET_COUNT + (63 - FIRST_MAGNITUDE) * SUB_BUCKET_COUNT;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+   private final AtomicLong count = new AtomicLong();
+
+   private final AtomicLong total = new AtomicLong();
+
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records a latency. Negative values are recorded as 0.
+    * 
+    * @param nanos
+    */
+   public void record(long nanos)
+   {
+      long value = Math.max(0, nanos);
+      this.counts.incrementAndGet(getBucket(value));
+      this.count.incrementAndGet();
+      this.total.addAndGet(value);
+      long currentMax = this.max.get();
+      while (value > currentMax && !this.max.compareAndSet(currentMax, value))
+      {
+         currentMax = this.max.get();
+      }
+   }
+
+   /**
+    * Returns the number of recorded values
+    * @return
+    */
+   public long getCount()
+   {
+      return this.count.get();
+   }
+
+   /**
+    * Returns the sum of the recorded values
+    * @return
+    */
+   public long getTotal()
+   {
+      return this.total.get();
+   }
+
+   /**
+    * Returns the largest recorded value, 0 if none
+    * @return
+    */
+   public long getMax()
+   {
+      return this.max.get();
+   }
+
+   /**
+    * Returns the value which the passed percentage of the recorded values don't exceed, give or take
+    * the width of its bucket: the highest value of the bucket is returned, unless it exceeds the maximum
+    * 
+    * @param percentile Between 0 and 100
+    * @return Returns the value, 0 if none has been recorded
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long recorded = this.getCount();
+      if (recorded == 0)
+      {
+         return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * recorded));
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+      {
+         seen += this.counts.get(bucket);
+         if (seen >= target)
+         {
+            return Math.min(getHighestValue(bucket), this.getMax());
+         }
+      }
+      return this.getMax();
+   }
+
+   @Override
+   public String toString()
+   {
+      return this.getCount() + " values, p50 " + format(this.getValueAtPercentile(50)) + ", p99 "
+            + format(this.getValueAtPercentile(99)) + ", max " + format(this.getMax());
+   }
+
+   /**
+    * Formats a duration, in nanoseconds, with the unit which suits it
+    * 
+    * @param nanos
+    * @return
+    */
+   public static String format(long nanos)
+   {
+      if (nanos < 10000L)
+      {
+         return nanos + " ns";
+      }
+      if (nanos < 10000000L)
+      {
+         return nanos / 1000 + " us";
+      }
+      if (nanos < 10000000000L)
+      {
+         return nanos / 1000000 + " ms";
+      }
+      return nanos / 1000000000L + " s";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private static int getBucket(long value)
+   {
+      if (value < LINEAR_BUCKET_COUNT)
+      {
+         return (int) value;
+      }
+      int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      // the bits below the highest one, of which the sub-bucket keeps the highest SUB_BUCKET_BITS
+      int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+      return LINEAR_BUCKET_COUNT + (magnitude - FIRST_MAGNITUDE) * SUB_BUCKET_COUNT + subBucket;
+   }
+
+   private static long getHighestValue(int bucket)
+   {
+      if (bucket < LINEAR_BUCKET_COUNT)
+      {
+         return bucket;
+      }
+      int magnitude = FIRST_MAGNITUDE + (bucket - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+      int subBucket = (bucket - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+      int shift = magnitude - SUB_BUCKET_BITS;
+      return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+   }
+}
@@ -0,0 +1,338 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable hash map, whose updates return a new map sharing all but the updated path with
+ * the previous one (a hash array mapped trie).
+ *
+ * <p>
+ *  Each level of the trie consumes 5 bits of the hash of the keys, so putting or removing a key
+ *  copies at most 7 small arrays, whatever the size of the map. Keys whose hashes are equal are
+ *  chained in the same leaf. Null keys and values aren't supported.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+final class PersistentMap<K, V>
+{
+
+   private static final int BITS = 5;
+
+   private static final int MASK = (1 << BITS) - 1;
+
+   private static final PersistentMap<?, ?> EMPTY = new PersistentMap<Object, Object>(new Node(0, new Object[0]), 0);
+
+   private final Node root;
+
+   private final int size;
+
+   private PersistentMap(Node root, int size)
+   {
+      this.root = root;
+      this.size = size;
+   }
+
+   /**
+    * Returns the empty map
+    */
+   @SuppressWarnings("unchecked")
+   static <K, V> PersistentMap<K, V> empty()
+   {
+      return (PersistentMap<K, V>) EMPTY;
+   }
+
+   /**
+    * Returns the value mapped to the passed key, or null
+    */
+   @SuppressWarnings("unchecked")
+   V get(Object key)
+   {
+      int hash = hash(key);
+      Node node = this.root;
+      for (int shift = 0;; shift += BITS)
+      {
+         int bit = 1 << ((hash >>> shift) & MASK);
+         if ((node.bitmap & bit) == 0)
+         {
+            return null;
+         }
+         Object child = node.array[Integer.bitCount(node.bitmap & (bit - 1))];
+         if (child instanceof Node)
+         {
+            node = (Node) child;
+            continue;
+         }
+         for (Leaf leaf = (Leaf) child; leaf != null; leaf = leaf.next)
+         {
+            if (leaf.hash == hash && leaf.key.equals(key))
+            {
+               return (V) leaf.value;
+            }
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Returns a map with the passed key mapped to the passed value
+    */
+   PersistentMap<K, V> plus(K key, V value)
+   {
+      if (key == null || value == null)
+      {
+         throw new IllegalArgumentException("Key and value cannot be null");
+      }
+      boolean[] added = new boolean[1];
+      Node root = put(this.root, 0, new Leaf(hash(key), key, value, null), added);
+      return new PersistentMap<K, V>(root, added[0] ? this.size + 1 : this.size);
+   }
+
+   /**
+    * Returns a map without the passed key, this map if it doesn't contain the key
+    */
+   PersistentMap<K, V> minus(Object key)
+   {
+      Node root = remove(this.root, 0, hash(key), key);
+      if (root == this.root)
+      {
+         return this;
+      }
+      return new PersistentMap<K, V>(root == null ? new Node(0, new Object[0]) : root, this.size - 1);
+   }
+
+   /**
+    * Returns the number of keys of the map
+    */
+   int size()
+   {
+      return this.size;
+   }
+
+   /**
+    * Returns the keys of the map, in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   List<K> keys()
+   {
+      List<K> keys = new ArrayList<K>(this.size);
+      addKeys(this.root, (List<Object>) keys);
+      return keys;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private static void addKeys(Node node, List<Object> keys)
+   {
+      for (Object child : node.array)
+      {
+         if (child instanceof Node)
+         {
+            addKeys((Node) child, keys);
+            continue;
+         }
+         for (Leaf leaf = (Leaf) child; leaf != null; leaf = leaf.next)
+         {
+            keys.add(leaf.key);
+         }
+      }
+   }
+
+   private static int hash(Object key)
+   {
+      int h = key.hashCode();
+      return h ^ (h >>> 16);
+   }
+
+   private static Node put(Node node, int shift, Leaf entry, boolean[] added)
+   {
+      int bit = 1 << ((entry.hash >>> shift) & MASK);
+      int index = Integer.bitCount(node.bitmap & (bit - 1));
+      if ((node.bitmap & bit) == 0)
+      {
+         added[0] = true;
+         Object[] array = new Object[node.array.length + 1];
+         System.arraycopy(node.array, 0, array, 0, index);
+         array[index] = entry;
+         System.arraycopy(node.array, index, array, index + 1, node.array.length - index);
+         return new Node(node.bitmap | bit, array);
+      }
+      Object child = node.array[index];
+      Object replacement;
+      if (child instanceof Node)
+      {
+         replacement = put((Node) child, shift + BITS, entry, added);
+      }
+      else if (((Leaf) child).hash == entry.hash)
+      {
+         replacement = ((Leaf) child).put(entry, added);
+      }
+      else
+      {
+         added[0] = true;
+         replacement = split((Leaf) child, entry, shift + BITS);
+      }
+      Object[] array = node.array.clone();
+      array[index] = replacement;
+      return new Node(node.bitmap, array);
+   }
+
+   /**
+    * Returns a node holding both leaves, whose hashes are different
+    */
+   private static Node split(Leaf a, Leaf b, int shift)
+   {
+      int indexA = (a.hash >>> shift) & MASK;
+      int indexB = (b.hash >>> shift) & MASK;
+      if (indexA == indexB)
+      {
+         return new Node(1 << indexA, new Object[]
+         {split(a, b, shift + BITS)});
+      }
+      return new Node((1 << indexA) | (1 << indexB), indexA < indexB ? new Object[]
+      {a, b} : new Object[]
+      {b, a});
+   }
+
+   /**
+    * Returns the node without the key, the same node if it doesn't contain it, or null if the
+    * node is left empty
+    */
+   private static Node remove(Node node, int shift, int hash, Object key)
+   {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((node.bitmap & bit) == 0)
+      {
+         return node;
+      }
+      int index = Integer.bitCount(node.bitmap & (bit - 1));
+      Object child = node.array[index];
+      Object replacement;
+      if (child instanceof Node)
+      {
+         replacement = remove((Node) child, shift + BITS, hash, key);
+      }
+      else
+      {
+         replacement = ((Leaf) child).remove(hash, key);
+      }
+      if (replacement == child)
+      {
+         return node;
+      }
+      if (replacement != null)
+      {
+         Object[] array = node.array.clone();
+         array[index] = replacement;
+         return new Node(node.bitmap, array);
+      }
+      if (node.array.length == 1)
+      {
+         return null;
+      }
+      Object[] array = new Object[node.array.length - 1];
+      System.arraycopy(node.array, 0, array, 0, index);
+      System.arraycopy(node.array, index + 1, array, index, array.length - index);
+      return new Node(node.bitmap & ~bit, array);
+   }
+
+   /**
+    * A level of the trie: the children, nodes or leaves, of the set bits of the bitmap
+    */
+   private static final class Node
+   {
+      private final int bitmap;
+
+      private final Object[] array;
+
+      Node(int bitmap, Object[] array)
+      {
+         this.bitmap = bitmap;
+         this.array = array;
+      }
+   }
+
+   /**
+    * A key and its value, chained to the other keys of the same hash
+    */
+   private static final class Leaf
+   {
+      private final int hash;
+
+      private final Object key;
+
+      private final Object value;
+
+      private final Leaf next;
+
+      Leaf(int hash, Object key, Object value, Leaf next)
+      {
+         this.hash = hash;
+         this.key = key;
+         this.value = value;
+         this.next = next;
+      }
+
+      /**
+       * Returns the chain with the key of the passed entry, of the same hash, mapped to its value
+       */
+      Leaf put(Leaf entry, boolean[] added)
+      {
+         if (this.key.equals(entry.key))
+         {
+            return new Leaf(this.hash, this.key, entry.value, this.next);
+         }
+         if (this.next == null)
+         {
+            added[0] = true;
+            return new Leaf(this.hash, this.key, this.value, new Leaf(entry.hash, entry.key, entry.value, null));
+         }
+         return new Leaf(this.hash, this.key, this.value, this.next.put(entry, added));
+      }
+
+      /**
+       * Returns the chain without the passed key, the same chain if it doesn't contain it
+       */
+      Leaf remove(int hash, Object key)
+      {
+         if (this.hash != hash)
+         {
+            return this;
+         }
+         if (this.key.equals(key))
+         {
+            return this.next;
+         }
+         if (this.next == null)
+         {
+            return this;
+         }
+         Leaf next = this.next.remove(hash, key);
+         return next == this.next ? this : new Leaf(this.hash, this.key, this.value, next);
+      }
+   }
+}
@@ -0,0 +1,538 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.logging.Logger;
+
+/**
+ * Records the references resolved during a run of the server, so that the next run can
+ * resolve them again, in the background, as soon as their deployment is deployed and before
+ * they're asked for.
+ *
+ * <p>
+ *  Set it as the {@link ResolutionListener} of a resolver (see
+ *  {@link AbstractEjbReferenceResolver#setResolutionListener(ResolutionListener)}). Each reference
+ *  resolved from a {@link DeploymentUnit} is then appended, once, to the journal file along with the
+ *  name of the unit and the resolved jndi-name. The strings are written once per file and referred
+ *  to by number afterwards, so the journal stays small even though the unit names repeat a lot.
+ * </p>
+ * <p>
+ *  Opening a journal reads the entries recorded by the previous run and starts a new journal
+ *  in a temporary file next to it, which {@link #flush()} and {@link #close()} rename over the
+ *  journal file. So the journal file always holds a complete journal, the one of the previous
+ *  run until this run publishes its own.
+ * </p>
+ * <p>
+ *  Once a deployment is deployed, {@link #warm(DeploymentUnit, EjbReferenceResolver, Executor)}
+ *  resolves the recorded references of its units through a caching resolver (typically a
+ *  {@link ConcurrentEjbReferenceResolver} in front of the resolver this journal listens to), which
+ *  also records them in the new journal. A recorded jndi-name is never trusted as is: the reference
+ *  is resolved against the current metadata and an entry which now resolves to another jndi-name,
+ *  or doesn't resolve at all, is merely reported as stale.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ResolutionJournal implements ResolutionListener, Closeable
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(ResolutionJournal.class);
+
+   /** Identifies a journal file */
+   private static final int MAGIC = 0x454A424A;
+
+   /** Version of the journal format */
+   private static final short VERSION = 1;
+
+   /** The journal file */
+   private final File file;
+
+   /** The journal of this run, until it's renamed over the journal file */
+   private final File tempFile;
+
+   /** The entries recorded by the previous run, keyed by the name of their unit */
+   private final Map<String, List<Entry>> recorded;
+
+   /**
+    * The unit name, bean name and bean interface of the resolutions already appended by this run.
+    * Strings only, so that the {@link DeploymentUnit}s of an undeployed deployment aren't kept and
+    * the units of its redeployment are recognized.
+    */
+   private final Set<List<String>> appended = Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+
+   /** Number given to each string already written to the journal file, guarded by this */
+   private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+   /** Writes the journal file, guarded by this. Null once closed or failed. */
+   private DataOutputStream out;
+
+   /**
+    * Opens the journal kept in the passed file
+    * 
+    * @param file The journal file. The entries it holds, if any, are read and it is then
+    *   replaced by the journal of this run, on {@link #flush()} or {@link #close()}.
+    * @throws IOException If the temporary journal file cannot be written
+    */
+   public ResolutionJournal(File file) throws IOException
+   {
+      if (file == null)
+      {
+         throw new IllegalArgumentException("Journal file cannot be null");
+      }
+      this.file = file;
+      this.tempFile = new File(file.getPath() + ".tmp");
+      this.recorded = Collections.unmodifiableMap(read(file));
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile)));
+      this.out.writeInt(MAGIC);
+      this.out.writeShort(VERSION);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void referenceResolved(DeploymentUnit du, EjbReference reference, DeploymentUnit targetDu,
+         String targetEjbName, String jndiName)
+   {
+      if (du == null || jndiName == null)
+      {
+         // resolved on behalf of nobody in particular, nothing to replay
+         return;
+      }
+      String unitName = du.getName();
+      String beanName = reference.getBeanName();
+      String beanInterface = reference.getBeanInterface();
+      if (!this.appended.add(Arrays.asList(unitName, beanName, beanInterface)))
+      {
+         // already in the journal, from an earlier generation of the caches or deployment
+         return;
+      }
+      this.append(unitName, beanName, beanInterface, jndiName);
+   }
+
+   /**
+    * Resolves, through the passed resolver, the references recorded by the previous run from
+    * the passed {@link DeploymentUnit} and its (nested) children
+    * 
+    * @param topLevel The deployed {@link DeploymentUnit}
+    * @param resolver The resolver which caches the resolutions
+    * @param executor Runs the resolutions, null to run them in the calling thread
+    * @return The number of recorded entries which resolved to their recorded jndi-name
+    */
+   public Future<Integer> warm(final DeploymentUnit topLevel, final EjbReferenceResolver resolver, Executor executor)
+   {
+      FutureTask<Integer> warming = new FutureTask<Integer>(new Callable<Integer>()
+      {
+         public Integer call()
+         {
+            return ResolutionJournal.this.replay(topLevel, resolver);
+         }
+      });
+      if (executor == null)
+      {
+         warming.run();
+      }
+      else
+      {
+         executor.execute(warming);
+      }
+      return warming;
+   }
+
+   /**
+    * Returns the entries recorded by the previous run
+    * @return
+    */
+   public List<Entry> getRecordedEntries()
+   {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (List<Entry> unitEntries : this.recorded.values())
+      {
+         entries.addAll(unitEntries);
+      }
+      return entries;
+   }
+
+   /**
+    * Replaces the journal file by the entries appended so far. Appending goes on in a copy
+    * of it.
+    * 
+    * @throws IOException
+    */
+   public synchronized void flush() throws IOException
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      this.close();
+      DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile)));
+      try
+      {
+         copy(this.file, copy);
+      }
+      catch (IOException ioe)
+      {
+         copy.close();
+         throw ioe;
+      }
+      this.out = copy;
+   }
+
+   /**
+    * Replaces the journal file by the entries appended so far and stops appending
+    * 
+    * @throws IOException
+    */
+   @Override
+   public synchronized void close() throws IOException
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      DataOutputStream closed = this.out;
+      this.out = null;
+      closed.close();
+      if (!this.tempFile.renameTo(this.file))
+      {
+         // File.renameTo doesn't replace an existing file on every platform
+         if (!this.file.delete() || !this.tempFile.renameTo(this.file))
+         {
+            throw new IOException("Could not rename " + this.tempFile + " to " + this.file);
+         }
+      }
+   }
+
+   /**
+    * Returns the journal file
+    * @return
+    */
+   public File getFile()
+   {
+      return this.file;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private int replay(DeploymentUnit topLevel, EjbReferenceResolver resolver)
+   {
+      int trusted = 0;
+      int stale = 0;
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
+      {
+         stack.push(topLevel);
+         while (!stack.isEmpty() && !Thread.currentThread().isInterrupted())
+         {
+            DeploymentUnit du = stack.pop();
+            stack.pushChildren(du, null, null);
+            List<Entry> entries = this.recorded.get(du.getName());
+            if (entries == null)
+            {
+               continue;
+            }
+            for (Entry entry : entries)
+            {
+               String jndiName;
+               try
+               {
+                  jndiName = resolver.resolveEjb(du, entry.getReference());
+               }
+               catch (RuntimeException re)
+               {
+                  jndiName = null;
+               }
+               if (entry.getJndiName().equals(jndiName))
+               {
+                  trusted++;
+               }
+               else
+               {
+                  stale++;
+                  logger.debug("Stale journal entry " + entry + ", now resolves to " + jndiName);
+               }
+            }
+         }
+      }
+      finally
+      {
+         DeploymentUnitStack.release(stack);
+      }
+      logger.debug("Warmed resolutions of " + topLevel + " from journal " + this.file + ": " + trusted
+            + " trusted, " + stale + " stale entries");
+      return trusted;
+   }
+
+   private synchronized void append(String unitName, String beanName, String beanInterface, String jndiName)
+   {
+      if (this.out == null)
+      {
+         return;
+      }
+      try
+      {
+         this.writeString(unitName);
+         this.writeString(beanName);
+         this.writeString(beanInterface);
+         this.writeString(jndiName);
+      }
+      catch (IOException ioe)
+      {
+         // the journal is an optimization, don't fail the resolution because of it
+         logger.warn("Could not append to resolution journal " + this.file + ", journaling stopped", ioe);
+         try
+         {
+            this.out.close();
+         }
+         catch (IOException ignored)
+         {
+         }
+         this.out = null;
+      }
+   }
+
+   /**
+    * Writes 0 for null, the number (+1) of a string already written, else the next number
+    * followed by the string
+    */
+   private void writeString(String value) throws IOException
+   {
+      if (value == null)
+      {
+         writeVarInt(this.out, 0);
+         return;
+      }
+      Integer id = this.stringIds.get(value);
+      if (id != null)
+      {
+         writeVarInt(this.out, id + 1);
+         return;
+      }
+      id = this.stringIds.size();
+      this.stringIds.put(value, id);
+      writeVarInt(this.out, id + 1);
+      this.out.writeUTF(value);
+   }
+
+   private static void copy(File file, DataOutputStream out) throws IOException
+   {
+      FileInputStream in = new FileInputStream(file);
+      try
+      {
+         byte[] buffer = new byte[8192];
+         int read;
+         while ((read = in.read(buffer)) != -1)
+         {
+            out.write(buffer, 0, read);
+         }
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Reads the entries of the passed journal file. A truncated last entry, left by a crash,
+    * is dropped. A file which isn't a journal is ignored.
+    */
+   private static Map<String, List<Entry>> read(File file)
+   {
+      Map<String, List<Entry>> entries = new LinkedHashMap<String, List<Entry>>();
+      if (!file.isFile())
+      {
+         return entries;
+      }
+      try
+      {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try
+         {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+            {
+               logger.warn("Ignoring resolution journal " + file + ", unknown format");
+               return entries;
+            }
+            List<String> strings = new ArrayList<String>();
+            while (true)
+            {
+               String unitName;
+               try
+               {
+                  unitName = readString(in, strings);
+               }
+               catch (EOFException eof)
+               {
+                  // clean end of the journal
+                  break;
+               }
+               String beanName = readString(in, strings);
+               String beanInterface = readString(in, strings);
+               String jndiName = readString(in, strings);
+               if (jndiName == null || (beanName == null && beanInterface == null))
+               {
+                  throw new IOException("Corrupted resolution journal, incomplete entry for " + unitName);
+               }
+               List<Entry> unitEntries = entries.get(unitName);
+               if (unitEntries == null)
+               {
+                  unitEntries = new ArrayList<Entry>();
+                  entries.put(unitName, unitEntries);
+               }
+               unitEntries.add(new Entry(unitName, new EjbReference(beanName, beanInterface, null), jndiName));
+            }
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+      catch (EOFException eof)
+      {
+         logger.debug("Dropped truncated last entry of resolution journal " + file);
+      }
+      catch (IOException ioe)
+      {
+         logger.warn("Could not read resolution journal " + file + ", kept " + entries.size() + " units", ioe);
+      }
+      return entries;
+   }
+
+   private static String readString(DataInputStream in, List<String> strings) throws IOException
+   {
+      int tag = readVarInt(in);
+      if (tag == 0)
+      {
+         return null;
+      }
+      if (tag <= strings.size())
+      {
+         return strings.get(tag - 1);
+      }
+      if (tag != strings.size() + 1)
+      {
+         throw new IOException("Corrupted resolution journal, unexpected string number " + tag);
+      }
+      String value = in.readUTF();
+      strings.add(value);
+      return value;
+   }
+
+   private static void writeVarInt(DataOutputStream out, int value) throws IOException
+   {
+      while ((value & ~0x7F) != 0)
+      {
+         out.writeByte((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte(value);
+   }
+
+   private static int readVarInt(DataInputStream in) throws IOException
+   {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7)
+      {
+         int b = in.readUnsignedByte();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+         {
+            return value;
+         }
+      }
+      throw new IOException("Corrupted resolution journal, malformed number");
+   }
+
+   /**
+    * A reference recorded in the journal
+    */
+   public static class Entry
+   {
+      /** The name of the unit the reference was resolved from */
+      private final String deploymentUnitName;
+
+      /** The reference */
+      private final EjbReference reference;
+
+      /** The jndi-name the reference resolved to */
+      private final String jndiName;
+
+      Entry(String deploymentUnitName, EjbReference reference, String jndiName)
+      {
+         this.deploymentUnitName = deploymentUnitName;
+         this.reference = reference;
+         this.jndiName = jndiName;
+      }
+
+      public String getDeploymentUnitName()
+      {
+         return this.deploymentUnitName;
+      }
+
+      public EjbReference getReference()
+      {
+         return this.reference;
+      }
+
+      public String getJndiName()
+      {
+         return this.jndiName;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "[" + this.deploymentUnitName + ": " + this.reference + " -> " + this.jndiName + "]";
+      }
+   }
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+
+/**
+ * Immutable key identifying a resolution: the requesting {@link DeploymentUnit}
+ * along with a copy of the {@link EjbReference} properties which take part in the
+ * resolution. {@link EjbReference}s are mutable (through subclasses), so they are not
+ * used as keys directly.
+ *
+ * @version $Revision: $
+ */
+class ResolutionKey
+{
+
+   private final DeploymentUnit du;
+
+   private final String beanName;
+
+   private final String beanInterface;
+
+   private final int hash;
+
+   ResolutionKey(DeploymentUnit du, EjbReference reference)
+   {
+      this.du = du;
+      this.beanName = reference.getBeanName();
+      this.beanInterface = reference.getBeanInterface();
+      int h = du.hashCode();
+      h = 31 * h + (this.beanName == null ? 0 : this.beanName.hashCode());
+      h = 31 * h + (this.beanInterface == null ? 0 : this.beanInterface.hashCode());
+      this.hash = h;
+   }
+
+   DeploymentUnit getDeploymentUnit()
+   {
+      return this.du;
+   }
+
+   String getBeanName()
+   {
+      return this.beanName;
+   }
+
+   String getBeanInterface()
+   {
+      return this.beanInterface;
+   }
+
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof ResolutionKey))
+      {
+         return false;
+      }
+      ResolutionKey other = (ResolutionKey) obj;
+      return this.du == other.du && equal(this.beanName, other.beanName)
+            && equal(this.beanInterface, other.beanInterface);
+   }
+
+   @Override
+   public int hashCode()
+   {
+      return this.hash;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "[" + this.du + ": beanName '" + this.beanName + "', beanInterface '" + this.beanInterface + "']";
+   }
+
+   private static boolean equal(String one, String two)
+   {
+      return one == null ? two == null : one.equals(two);
+   }
+}
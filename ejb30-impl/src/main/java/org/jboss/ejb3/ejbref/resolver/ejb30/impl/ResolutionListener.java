@@ -0,0 +1,52 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+
+/**
+ * Notified by an {@link AbstractEjbReferenceResolver} of the session bean which a
+ * {@link EjbReference} has been resolved to. References resolved through their mapped-name
+ * aren't notified, since they don't resolve to any known bean.
+ * <p>
+ *  Implementations must be thread safe and should return quickly, since they're called
+ *  by the resolving thread.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public interface ResolutionListener
+{
+
+   /**
+    * Called once a reference has been resolved
+    * 
+    * @param du The {@link DeploymentUnit} from which the reference was resolved
+    * @param reference The resolved reference
+    * @param targetDu The {@link DeploymentUnit} which contains the bean the reference resolved to
+    * @param targetEjbName The ejb-name of the session bean the reference resolved to
+    * @param jndiName The resolved jndi-name
+    */
+   void referenceResolved(DeploymentUnit du, EjbReference reference, DeploymentUnit targetDu,
+         String targetEjbName, String jndiName);
+}
@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+
+/**
+ * The latencies of the resolutions of an {@link AbstractEjbReferenceResolver}, in one {@link LatencyHistogram}
+ * per {@link Strategy} and {@link Outcome}.
+ *
+ * <p>
+ *  Each recorded resolution is also added to the {@link DeploymentResolutionSummary} of the deployment it
+ *  was resolved from, which the {@link ResolutionSummaryDeployer} logs once the deployment is installed.
+ * </p>
+ * <p>
+ *  The histograms are created on first use and recording never locks. This class is thread safe.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ResolutionStatistics
+{
+
+   /** How a reference was resolved */
+   public enum Strategy
+   {
+      /** Bypassed, the reference had a mapped-name */
+      MAPPED_NAME,
+      /** Looked up in the {@link FrozenDeploymentIndex} of the tree */
+      FROZEN,
+      /** Through the {@link DeploymentTreeIndex} of the tree */
+      INDEX,
+      /** By matching the beans of the metadata of the units */
+      SCAN
+   }
+
+   /** How a resolution ended */
+   public enum Outcome
+   {
+      /** A jndi-name was returned */
+      RESOLVED,
+      /** No bean matched */
+      UNRESOLVABLE,
+      /** More than one bean matched */
+      AMBIGUOUS,
+      /** Any other failure */
+      FAILED
+   }
+
+   /** The histograms, indexed by strategy then outcome */
+   private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<LatencyHistogram>(
+         Strategy.values().length * Outcome.values().length);
+
+   /**
+    * Records a resolution
+    * 
+    * @param du The unit the reference was resolved from
+    * @param reference
+    * @param strategy
+    * @param outcome
+    * @param nanos The time the resolution took
+    * @param classLoads The number of classes loaded by the resolution
+    */
+   public void record(DeploymentUnit du, EjbReference reference, Strategy strategy, Outcome outcome, long nanos,
+         long classLoads)
+   {
+      this.getHistogram(strategy, outcome).record(nanos);
+      DeploymentResolutionSummary.attach(du).record(du, reference, outcome, nanos, classLoads);
+   }
+
+   /**
+    * Returns the latencies of the resolutions of the passed strategy and outcome
+    * 
+    * @param strategy
+    * @param outcome
+    * @return
+    */
+   public LatencyHistogram getHistogram(Strategy strategy, Outcome outcome)
+   {
+      int index = strategy.ordinal() * Outcome.values().length + outcome.ordinal();
+      LatencyHistogram histogram = this.histograms.get(index);
+      if (histogram == null)
+      {
+         this.histograms.compareAndSet(index, null, new LatencyHistogram());
+         histogram = this.histograms.get(index);
+      }
+      return histogram;
+   }
+
+   /**
+    * Returns the number of recorded resolutions
+    * @return
+    */
+   public long getCount()
+   {
+      long count = 0;
+      for (int i = 0; i < this.histograms.length(); i++)
+      {
+         LatencyHistogram histogram = this.histograms.get(i);
+         count += histogram == null ? 0 : histogram.getCount();
+      }
+      return count;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder builder = new StringBuilder(ResolutionStatistics.class.getSimpleName()).append('[');
+      for (Strategy strategy : Strategy.values())
+      {
+         for (Outcome outcome : Outcome.values())
+         {
+            LatencyHistogram histogram = this.histograms.get(strategy.ordinal() * Outcome.values().length
+                  + outcome.ordinal());
+            if (histogram != null && histogram.getCount() > 0)
+            {
+               if (builder.charAt(builder.length() - 1) != '[')
+               {
+                  builder.append("; ");
+               }
+               builder.append(strategy).append(' ').append(outcome).append(": ").append(histogram);
+            }
+         }
+      }
+      return builder.append(']').toString();
+   }
+}
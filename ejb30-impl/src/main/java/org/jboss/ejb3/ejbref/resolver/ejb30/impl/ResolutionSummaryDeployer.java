@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.deployers.spi.deployer.helpers.AbstractDeployer;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.logging.Logger;
+
+/**
+ * A deployer which logs, at INFO, the {@link DeploymentResolutionSummary} of each deployment
+ * once it is installed: the number of references resolved, their p50/p99/max latency, the total
+ * time spent resolving them, the classes they loaded and the slowest of them.
+ *
+ * <p>
+ *  It runs in the {@link DeploymentStages#INSTALLED} stage, on the top-level units only. The
+ *  summary is only recorded by the resolvers which have {@link ResolutionStatistics} set.
+ *  Nothing is logged for a deployment none of whose references were resolved.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ResolutionSummaryDeployer extends AbstractDeployer
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(ResolutionSummaryDeployer.class);
+
+   /**
+    * Creates a deployer which logs the summaries of the top-level units in the
+    * {@link DeploymentStages#INSTALLED} stage
+    */
+   public ResolutionSummaryDeployer()
+   {
+      this.setStage(DeploymentStages.INSTALLED);
+      this.setTopLevelOnly(true);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void deploy(DeploymentUnit unit) throws DeploymentException
+   {
+      DeploymentResolutionSummary summary = DeploymentResolutionSummary.getSummary(unit);
+      if (summary == null || summary.getReferenceCount() == 0)
+      {
+         return;
+      }
+      logger.info(summary);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void undeploy(DeploymentUnit unit)
+   {
+      unit.removeAttachment(DeploymentResolutionSummary.ATTACHMENT_NAME);
+   }
+}
@@ -0,0 +1,292 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.DeploymentDependencyGraph;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.logging.Logger;
+
+/**
+ * Records, for each session bean which references have been resolved to, the references
+ * and the requesting {@link DeploymentUnit}s which depend on it.
+ *
+ * <p>
+ *  Set it as the {@link ResolutionListener} of a resolver (see
+ *  {@link AbstractEjbReferenceResolver#setResolutionListener(ResolutionListener)}). When the unit of
+ *  a bean is undeployed or redeployed, {@link #getDependents(DeploymentUnit)} then tells which
+ *  resolutions are impacted, so that only those have to be invalidated (see
+ *  {@link ConcurrentEjbReferenceResolver#invalidate(Set)}).
+ * </p>
+ * <p>
+ *  The recorded dependencies can also be exported as a {@link DeploymentDependencyGraph},
+ *  for instance after a pass which resolved the references of all the units of a deployment,
+ *  to schedule the start of independent units in parallel.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ReverseDependencyIndex implements ResolutionListener
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(ReverseDependencyIndex.class);
+
+   /** The dependents of each bean, keyed by the unit of the bean and then by the ejb-name of the bean */
+   private final ConcurrentMap<DeploymentUnit, ConcurrentMap<String, Set<Dependent>>> dependents = new ConcurrentHashMap<DeploymentUnit, ConcurrentMap<String, Set<Dependent>>>();
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void referenceResolved(DeploymentUnit du, EjbReference reference, DeploymentUnit targetDu,
+         String targetEjbName, String jndiName)
+   {
+      if (du == null)
+      {
+         // resolved on behalf of nobody in particular, nothing to record
+         return;
+      }
+      ConcurrentMap<String, Set<Dependent>> beans = this.dependents.get(targetDu);
+      if (beans == null)
+      {
+         ConcurrentMap<String, Set<Dependent>> newBeans = new ConcurrentHashMap<String, Set<Dependent>>();
+         beans = this.dependents.putIfAbsent(targetDu, newBeans);
+         if (beans == null)
+         {
+            beans = newBeans;
+         }
+      }
+      Set<Dependent> beanDependents = beans.get(targetEjbName);
+      if (beanDependents == null)
+      {
+         Set<Dependent> newDependents = Collections.newSetFromMap(new ConcurrentHashMap<Dependent, Boolean>());
+         beanDependents = beans.putIfAbsent(targetEjbName, newDependents);
+         if (beanDependents == null)
+         {
+            beanDependents = newDependents;
+         }
+      }
+      beanDependents.add(new Dependent(du, reference));
+   }
+
+   /**
+    * Returns the recorded dependents of the passed bean
+    * 
+    * @param targetDu The {@link DeploymentUnit} of the bean
+    * @param ejbName The ejb-name of the bean
+    * @return
+    */
+   public Set<Dependent> getDependents(DeploymentUnit targetDu, String ejbName)
+   {
+      Map<String, Set<Dependent>> beans = this.dependents.get(targetDu);
+      if (beans == null || !beans.containsKey(ejbName))
+      {
+         return Collections.emptySet();
+      }
+      return Collections.unmodifiableSet(new HashSet<Dependent>(beans.get(ejbName)));
+   }
+
+   /**
+    * Returns the recorded dependents of all the beans of the passed {@link DeploymentUnit}
+    * 
+    * @param targetDu
+    * @return
+    */
+   public Set<Dependent> getDependents(DeploymentUnit targetDu)
+   {
+      Map<String, Set<Dependent>> beans = this.dependents.get(targetDu);
+      if (beans == null)
+      {
+         return Collections.emptySet();
+      }
+      Set<Dependent> result = new HashSet<Dependent>();
+      for (Set<Dependent> beanDependents : beans.values())
+      {
+         result.addAll(beanDependents);
+      }
+      return Collections.unmodifiableSet(result);
+   }
+
+   /**
+    * Forgets about the beans of the passed {@link DeploymentUnit}, typically because it's
+    * being undeployed, and returns their dependents
+    * 
+    * @param targetDu
+    * @return
+    */
+   public Set<Dependent> removeDependents(DeploymentUnit targetDu)
+   {
+      Map<String, Set<Dependent>> beans = this.dependents.remove(targetDu);
+      if (beans == null)
+      {
+         return Collections.emptySet();
+      }
+      Set<Dependent> removed = new HashSet<Dependent>();
+      for (Set<Dependent> beanDependents : beans.values())
+      {
+         removed.addAll(beanDependents);
+      }
+      logger.debug("Removed " + removed.size() + " dependents of the beans of " + targetDu);
+      return removed;
+   }
+
+   /**
+    * Forgets about the references resolved from the passed {@link DeploymentUnit}, typically
+    * because it's being undeployed
+    * 
+    * @param du
+    */
+   public void removeReferencesFrom(DeploymentUnit du)
+   {
+      for (Map<String, Set<Dependent>> beans : this.dependents.values())
+      {
+         for (Set<Dependent> beanDependents : beans.values())
+         {
+            for (Dependent dependent : beanDependents)
+            {
+               if (dependent.getDeploymentUnit() == du)
+               {
+                  beanDependents.remove(dependent);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the graph of the dependencies between the {@link DeploymentUnit}s, as recorded
+    * so far: a unit depends on another if one of its references resolved to a bean of the other.
+    * 
+    * @return
+    */
+   public DeploymentDependencyGraph getDependencyGraph()
+   {
+      DeploymentDependencyGraph.Builder builder = new DeploymentDependencyGraph.Builder();
+      for (Map.Entry<DeploymentUnit, ConcurrentMap<String, Set<Dependent>>> entry : this.dependents.entrySet())
+      {
+         DeploymentUnit targetDu = entry.getKey();
+         builder.addDeploymentUnit(targetDu);
+         for (Set<Dependent> beanDependents : entry.getValue().values())
+         {
+            for (Dependent dependent : beanDependents)
+            {
+               builder.addDependency(dependent.getDeploymentUnit(), targetDu);
+            }
+         }
+      }
+      return builder.build();
+   }
+
+   /**
+    * A reference, resolved from a {@link DeploymentUnit}, which depends on a bean. The
+    * fields of the reference are copied, {@link EjbReference} being mutable.
+    */
+   public static class Dependent
+   {
+      private final DeploymentUnit du;
+
+      private final String beanName;
+
+      private final String beanInterface;
+
+      private final String mappedName;
+
+      private final int hash;
+
+      Dependent(DeploymentUnit du, EjbReference reference)
+      {
+         this.du = du;
+         this.beanName = reference.getBeanName();
+         this.beanInterface = reference.getBeanInterface();
+         this.mappedName = reference.getMappedName();
+         int h = du.hashCode();
+         h = 31 * h + hashCode(this.beanName);
+         h = 31 * h + hashCode(this.beanInterface);
+         h = 31 * h + hashCode(this.mappedName);
+         this.hash = h;
+      }
+
+      /**
+       * Returns the {@link DeploymentUnit} from which the reference was resolved
+       * @return
+       */
+      public DeploymentUnit getDeploymentUnit()
+      {
+         return this.du;
+      }
+
+      /**
+       * Returns a copy of the resolved reference
+       * @return
+       */
+      public EjbReference getReference()
+      {
+         return new EjbReference(this.beanName, this.beanInterface, this.mappedName);
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof Dependent))
+         {
+            return false;
+         }
+         Dependent other = (Dependent) obj;
+         return this.du == other.du && equal(this.beanName, other.beanName)
+               && equal(this.beanInterface, other.beanInterface) && equal(this.mappedName, other.mappedName);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return this.hash;
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.getReference() + " from " + this.du;
+      }
+
+      private static int hashCode(String value)
+      {
+         return value == null ? 0 : value.hashCode();
+      }
+
+      private static boolean equal(String one, String two)
+      {
+         return one == null ? two == null : one.equals(two);
+      }
+   }
+}
@@ -22,27 +22,19 @@
 package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
 
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
-import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
-import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
-import org.jboss.logging.Logger;
-import org.jboss.metadata.ejb.jboss.JBossMetaData;
 
 /**
  * @author <a href="mailto:cdewolf@redhat.com">Carlo de Wolf</a>
  * @version $Revision: $
  */
-public class ScopedEJBReferenceResolver implements EjbReferenceResolver
+public class ScopedEJBReferenceResolver extends AbstractEjbReferenceResolver
 {
 
-   private static Logger logger = Logger.getLogger(ScopedEJBReferenceResolver.class);
-   
-   /** The resolver which will be passed the bean metadata to resolve the jndi-name */
-   protected MetaDataBasedEjbReferenceResolver metadataBasedEjbReferenceResolver;
+   /** The tree being walked by the calling thread, whose index has already been looked up */
+   private final ThreadLocal<WalkedTree> walkedTree = new ThreadLocal<WalkedTree>();
 
    /**
     * Creates {@link ScopedEJBReferenceResolver} which will use {@link EJB30MetaDataBasedEjbReferenceResolver}
@@ -52,49 +44,77 @@ public class ScopedEJBReferenceResolver implements EjbReferenceResolver
       this.metadataBasedEjbReferenceResolver = new EJB30MetaDataBasedEjbReferenceResolver();
    }
 
+   /**
+    * Resolves the passed {@link EjbReference} in the passed {@link DeploymentUnit} only. Within a walk
+    * of its deployment tree, the index of the tree already looked up by the walk is used.
+    * 
+    * @param du
+    * @param reference
+    * @return
+    */
    protected String find(DeploymentUnit du, EjbReference reference)
    {
-      JBossMetaData metadata = this.getMetaData(du);
-      if (metadata == null)
+      WalkedTree tree = this.walkedTree.get();
+      if (tree == null || tree.topLevel != du.getTopLevel())
       {
-         return null;
+         return this.resolveInDeploymentUnit(du, reference);
       }
-      return this.getMetaDataBasedEjbReferenceResolver().resolveEjb(reference, metadata, du.getClassLoader());
+      return this.resolveInDeploymentUnit(du, tree.treeIndex, reference);
    }
 
    /**
     * {@inheritDoc}
+    * <p>
+    * Any mapped-name which isn't empty is used, even a blank one
+    * </p>
     */
    @Override
-   public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+   protected boolean isMappedName(String mappedName)
    {
-      if (reference.getMappedName() != null && reference.getMappedName().isEmpty() == false)
-      {
-         logger.debug("Bypassing resolution, using mappedName of " + reference);
-         return reference.getMappedName();
-      }
+      return mappedName != null && mappedName.isEmpty() == false;
+   }
 
-      String jndiName = resolveWithinDeploymentUnit(du, new HashSet<DeploymentUnit>(), reference);
-      if (jndiName == null)
-      {
-         throw new UnresolvableReferenceException("Could not resolve reference " + reference + " in " + du);
-      }
-      return jndiName;
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected String getUnresolvableMessage(DeploymentUnit du, EjbReference reference)
+   {
+      return "Could not resolve reference " + reference + " in " + du;
+   }
+
+   /**
+    * {@inheritDoc}
+    * <p>
+    * Resolves from the passed <code>du</code>, then its children and then its parents
+    * </p>
+    */
+   @Override
+   protected String resolveWithinDeploymentHierarchy(DeploymentUnit du, EjbReference reference)
+   {
+      return resolveWithinDeploymentUnit(du, null, reference);
    }
 
    /**
     * This method first tries to resolve the passed {@link EjbReference} in the passed <code>du</code>.
-    * If the jndi name cannot be resolved in that {@link DeploymentUnit}, then it tries to <i>recursively</i> resolve the reference
-    * in the child {@link DeploymentUnit}s of that {@link DeploymentUnit}. If the jndi-name still can't be resolved, then
-    * this method recursively repeats the resolution steps with the parent of the passed {@link DeploymentUnit}
+    * If the jndi name cannot be resolved in that {@link DeploymentUnit}, then it tries to resolve the reference
+    * in the child {@link DeploymentUnit}s (and their nested children) of that {@link DeploymentUnit}. If the jndi-name
+    * still can't be resolved, then this method repeats the resolution steps with the parent of the passed
+    * {@link DeploymentUnit}, skipping the already scanned child.
     * 
     * <p>
     *   If the jndi-name cannot be resolved in any of the {@link DeploymentUnit}s in the hierarchy, then this method
     *   returns null. Else it returns the resolved jndi-name.
     * </p>
+    * <p>
+    *   The hierarchy is walked iteratively, each unit being visited at most once, so its depth isn't bound by
+    *   the call stack.
+    * </p>
     *  
     * @param du The deployment unit within which the {@link EjbReference} will be resolved
-    * @param alreadyScannedDUs The {@link DeploymentUnit}s which have already been scanned for resolving the {@link EjbReference}
+    * @param alreadyScannedDUs The {@link DeploymentUnit}s which have already been scanned for resolving the {@link EjbReference},
+    *           along with their children. Can be null. The units scanned by this method are added
+    *           to it.
     * @param reference The {@link EjbReference} which is being resolved
     * @return Returns the jndi-name resolved out the {@link EjbReference}. If the jndi-name cannot be resolved, then this
     *           method returns null.
@@ -102,76 +122,69 @@ public class ScopedEJBReferenceResolver implements EjbReferenceResolver
    protected String resolveWithinDeploymentUnit(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs,
          EjbReference reference)
    {
-      // first find in the passed DU
-      String jndiName = find(du, reference);
-      // found, just return it
-      if (jndiName != null)
-      {
-         return jndiName;
-      }
+      // Look the index up once for the whole tree, for find to use it
+      WalkedTree enclosingTree = this.walkedTree.get();
+      this.walkedTree.set(new WalkedTree(du.getTopLevel(), this.getDeploymentTreeIndex(du)));
 
-      if (alreadyScannedDUs == null)
+      DeploymentUnitStack stack = DeploymentUnitStack.acquire();
+      try
       {
-         alreadyScannedDUs = new HashSet<DeploymentUnit>();
-      }
-
-      // jndi-name not resolved in the passed DU, so let's
-      // check try resolving in its children DUs
-      List<DeploymentUnit> children = du.getChildren();
-      if (children != null)
-      {
-         for (DeploymentUnit child : children)
+         // climb from the passed DU up to the top level DU
+         DeploymentUnit scannedChild = null;
+         for (DeploymentUnit current = du; current != null; scannedChild = current, current = current.getParent())
          {
-            // already searched that one
-            if (alreadyScannedDUs.contains(child))
-            {
-               continue;
-            }
-            // try resolving in this child DU
-            jndiName = resolveWithinDeploymentUnit(child, alreadyScannedDUs, reference);
-            // found in this child DU (or its nested child), return the jndi name
+            // first find in the current DU
+            String jndiName = this.find(current, reference);
             if (jndiName != null)
             {
                return jndiName;
             }
-            // add the child DU to the already scanned DU collection
-            // so that we don't scan it again
-            alreadyScannedDUs.add(child);
+            if (alreadyScannedDUs != null)
+            {
+               alreadyScannedDUs.add(current);
+            }
+
+            // then in its children (and their nested children), but the one we just climbed from
+            stack.pushChildren(current, scannedChild, alreadyScannedDUs);
+            while (!stack.isEmpty())
+            {
+               DeploymentUnit child = stack.pop();
+               jndiName = this.find(child, reference);
+               if (jndiName != null)
+               {
+                  return jndiName;
+               }
+               if (alreadyScannedDUs != null)
+               {
+                  alreadyScannedDUs.add(child);
+               }
+               stack.pushChildren(child, null, alreadyScannedDUs);
+            }
          }
       }
-
-      // add this DU to the already scanned DU collection
-      alreadyScannedDUs.add(du);
-
-      // we haven't yet resolved the jndi-name, so let's
-      // try resolving in our parent (and any of its children)
-      DeploymentUnit parent = du.getParent();
-      if (parent != null)
+      finally
       {
-         return resolveWithinDeploymentUnit(parent, alreadyScannedDUs, reference);
+         DeploymentUnitStack.release(stack);
+         this.walkedTree.set(enclosingTree);
       }
+
       // couldn't resolve in the entire DU hierarchy, return null
       return null;
    }
 
    /**
-    * Obtains the metadata attachment from the specified deployment unit, returning
-    * null if not present
-    * 
-    * @param du
-    * @return
+    * A deployment tree along with its index, if any
     */
-   protected JBossMetaData getMetaData(DeploymentUnit du)
+   private static class WalkedTree
    {
-      return du.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, JBossMetaData.class);
-   }
+      private final DeploymentUnit topLevel;
 
-   /**
-    * Returns the {@link MetaDataBasedEjbReferenceResolver} which this {@link EjbReferenceResolver} uses
-    * @return
-    */
-   protected MetaDataBasedEjbReferenceResolver getMetaDataBasedEjbReferenceResolver()
-   {
-      return this.metadataBasedEjbReferenceResolver;
+      private final DeploymentTreeIndex treeIndex;
+
+      WalkedTree(DeploymentUnit topLevel, DeploymentTreeIndex treeIndex)
+      {
+         this.topLevel = topLevel;
+         this.treeIndex = treeIndex;
+      }
    }
 }
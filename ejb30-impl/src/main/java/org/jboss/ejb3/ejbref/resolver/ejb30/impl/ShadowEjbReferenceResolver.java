@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.logging.Logger;
+
+/**
+ * An {@link EjbReferenceResolver} which answers with a primary (indexed, cached...) resolver and checks a
+ * sample of its resolutions against a reference resolver, typically one which scans the metadata of
+ * the units, as {@link AbstractEjbReferenceResolver#setIndexUsed(boolean) unindexed} resolvers do.
+ *
+ * <p>
+ *  A sampled resolution is resolved again by the reference resolver, on the {@link Executor}, once the
+ *  primary resolver has answered: the caller never waits for it. The two outcomes are the same if both
+ *  resolvers return the same jndi-name, or both throw an exception of the same type. A mismatch is
+ *  logged (at WARN) and counted. Without an {@link Executor} the check runs in the calling thread.
+ * </p>
+ * <p>
+ *  The sample is a fixed share of the resolutions, spread evenly over them: with a rate of 0.1, every tenth
+ *  resolution is checked. The time each resolver took for the sampled resolutions is totalled side by side, so
+ *  the speed-up of the primary resolver is measured on the very resolutions whose correctness is checked.
+ * </p>
+ * <p>
+ *  The deployments may change between the two resolutions of a sampled reference, for instance if a unit is
+ *  undeployed meanwhile, in which case a mismatch doesn't have to mean that the primary resolver is wrong.
+ *  Both resolvers must be thread safe.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ShadowEjbReferenceResolver implements EjbReferenceResolver
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(ShadowEjbReferenceResolver.class);
+
+   /** The resolver whose outcomes are returned */
+   private final EjbReferenceResolver primary;
+
+   /** The resolver the sampled resolutions are checked against */
+   private final EjbReferenceResolver reference;
+
+   /** The share of the resolutions which are checked, between 0 and 1 */
+   private final double sampleRate;
+
+   /** Runs the checks, null to run them in the calling thread */
+   private final Executor executor;
+
+   // Statistics
+
+   private final AtomicLong resolutionCount = new AtomicLong();
+
+   private final AtomicLong sampleCount = new AtomicLong();
+
+   private final AtomicLong skippedCount = new AtomicLong();
+
+   private final AtomicLong verifiedCount = new AtomicLong();
+
+   private final AtomicLong mismatchCount = new AtomicLong();
+
+   private final AtomicLong primaryNanos = new AtomicLong();
+
+   private final AtomicLong referenceNanos = new AtomicLong();
+
+   /**
+    * Creates a {@link ShadowEjbReferenceResolver}
+    *
+    * @param primary The resolver whose outcomes are returned
+    * @param reference The resolver the sampled resolutions are checked against
+    * @param sampleRate The share of the resolutions which are checked, from 0 (none) to 1 (all)
+    * @param executor Runs the checks, null to run them in the calling thread
+    */
+   public ShadowEjbReferenceResolver(EjbReferenceResolver primary, EjbReferenceResolver reference,
+         double sampleRate, Executor executor)
+   {
+      if (primary == null || reference == null)
+      {
+         throw new IllegalArgumentException("Primary and reference " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      if (!(sampleRate >= 0 && sampleRate <= 1))
+      {
+         throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+      }
+      this.primary = primary;
+      this.reference = reference;
+      this.sampleRate = sampleRate;
+      this.executor = executor;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(final DeploymentUnit du, final EjbReference ref) throws UnresolvableReferenceException
+   {
+      if (!this.isSampled(this.resolutionCount.getAndIncrement()))
+      {
+         return this.primary.resolveEjb(du, ref);
+      }
+      this.sampleCount.incrementAndGet();
+
+      long start = System.nanoTime();
+      String jndiName = null;
+      RuntimeException failure = null;
+      try
+      {
+         jndiName = this.primary.resolveEjb(du, ref);
+      }
+      catch (RuntimeException re)
+      {
+         failure = re;
+      }
+      final long primaryTime = System.nanoTime() - start;
+      final String primaryJndiName = jndiName;
+      final RuntimeException primaryFailure = failure;
+
+      Runnable check = new Runnable()
+      {
+         public void run()
+         {
+            verify(du, ref, primaryJndiName, primaryFailure, primaryTime);
+         }
+      };
+      if (this.executor == null)
+      {
+         check.run();
+      }
+      else
+      {
+         try
+         {
+            this.executor.execute(check);
+         }
+         catch (RejectedExecutionException ree)
+         {
+            this.skippedCount.incrementAndGet();
+         }
+      }
+
+      if (primaryFailure != null)
+      {
+         throw primaryFailure;
+      }
+      return primaryJndiName;
+   }
+
+   /**
+    * Returns the resolver whose outcomes are returned
+    * @return
+    */
+   public EjbReferenceResolver getPrimary()
+   {
+      return this.primary;
+   }
+
+   /**
+    * Returns the resolver the sampled resolutions are checked against
+    * @return
+    */
+   public EjbReferenceResolver getReference()
+   {
+      return this.reference;
+   }
+
+   /**
+    * Returns the share of the resolutions which are checked
+    * @return
+    */
+   public double getSampleRate()
+   {
+      return this.sampleRate;
+   }
+
+   /**
+    * Returns the number of resolutions
+    * @return
+    */
+   public long getResolutionCount()
+   {
+      return this.resolutionCount.get();
+   }
+
+   /**
+    * Returns the number of resolutions sampled for a check
+    * @return
+    */
+   public long getSampleCount()
+   {
+      return this.sampleCount.get();
+   }
+
+   /**
+    * Returns the number of sampled resolutions which weren't checked, because the {@link Executor} rejected the check
+    * @return
+    */
+   public long getSkippedCount()
+   {
+      return this.skippedCount.get();
+   }
+
+   /**
+    * Returns the number of checked resolutions
+    * @return
+    */
+   public long getVerifiedCount()
+   {
+      return this.verifiedCount.get();
+   }
+
+   /**
+    * Returns the number of checked resolutions whose outcomes differ
+    * @return
+    */
+   public long getMismatchCount()
+   {
+      return this.mismatchCount.get();
+   }
+
+   /**
+    * Returns the total time, in nanoseconds, the primary resolver took for the checked resolutions
+    * @return
+    */
+   public long getPrimaryNanos()
+   {
+      return this.primaryNanos.get();
+   }
+
+   /**
+    * Returns the total time, in nanoseconds, the reference resolver took for the checked resolutions
+    * @return
+    */
+   public long getReferenceNanos()
+   {
+      return this.referenceNanos.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      long verified = this.getVerifiedCount();
+      return ShadowEjbReferenceResolver.class.getSimpleName() + "[" + verified + " of " + this.getResolutionCount()
+            + " resolutions checked, " + this.getMismatchCount() + " mismatches, " + this.getSkippedCount()
+            + " skipped, primary ~" + average(this.getPrimaryNanos(), verified) + " ns, reference ~"
+            + average(this.getReferenceNanos(), verified) + " ns per resolution]";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns whether the resolution with the passed sequence number is sampled, spreading the
+    * sampled resolutions evenly
+    */
+   private boolean isSampled(long sequence)
+   {
+      return (long) ((sequence + 1) * this.sampleRate) > (long) (sequence * this.sampleRate);
+   }
+
+   /**
+    * Resolves the reference with the reference resolver and compares the outcome with the primary one
+    */
+   private void verify(DeploymentUnit du, EjbReference ref, String primaryJndiName,
+         RuntimeException primaryFailure, long primaryTime)
+   {
+      long start = System.nanoTime();
+      String jndiName = null;
+      RuntimeException failure = null;
+      try
+      {
+         jndiName = this.reference.resolveEjb(du, ref);
+      }
+      catch (RuntimeException re)
+      {
+         failure = re;
+      }
+      long referenceTime = System.nanoTime() - start;
+
+      this.primaryNanos.addAndGet(primaryTime);
+      this.referenceNanos.addAndGet(referenceTime);
+      this.verifiedCount.incrementAndGet();
+
+      boolean match = primaryFailure == null ? failure == null && equal(primaryJndiName, jndiName) : failure != null
+            && primaryFailure.getClass() == failure.getClass();
+      if (!match)
+      {
+         this.mismatchCount.incrementAndGet();
+         logger.warn("Resolution mismatch for " + ref + " from " + du + ": primary resolver returned "
+               + describe(primaryJndiName, primaryFailure) + ", reference resolver returned "
+               + describe(jndiName, failure));
+      }
+   }
+
+   private static boolean equal(String one, String two)
+   {
+      return one == null ? two == null : one.equals(two);
+   }
+
+   private static String describe(String jndiName, RuntimeException failure)
+   {
+      return failure == null ? jndiName : failure.getClass().getName() + " (" + failure.getMessage() + ")";
+   }
+
+   private static long average(long nanos, long count)
+   {
+      return count == 0 ? 0 : nanos / count;
+   }
+}
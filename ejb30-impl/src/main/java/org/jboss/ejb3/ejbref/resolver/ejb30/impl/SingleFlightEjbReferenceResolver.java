@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.logging.Logger;
+
+/**
+ * An {@link EjbReferenceResolver} which collapses concurrent, identical, resolutions
+ * into a single one.
+ *
+ * <p>
+ *  The first thread asking to resolve an {@link EjbReference} from a given {@link DeploymentUnit}
+ *  delegates the resolution. Any other thread asking for the same resolution while it's
+ *  in progress waits for it and gets the same jndi-name, or the same exception. The in-flight
+ *  entry is removed as soon as the resolution completes, whether it succeeded or not, so
+ *  nothing is cached: combine with a {@link ConcurrentEjbReferenceResolver} for that.
+ * </p>
+ * <p>
+ *  The delegate must not recursively resolve the same reference from the same
+ *  {@link DeploymentUnit}, it would wait for itself.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class SingleFlightEjbReferenceResolver implements EjbReferenceResolver
+{
+
+   /** Logger */
+   private static Logger logger = Logger.getLogger(SingleFlightEjbReferenceResolver.class);
+
+   /** The resolver which does the actual resolution */
+   private final EjbReferenceResolver delegate;
+
+   /** Resolutions currently in progress */
+   private final ConcurrentMap<ResolutionKey, FutureTask<String>> inFlight = new ConcurrentHashMap<ResolutionKey, FutureTask<String>>();
+
+   /** Number of resolutions which waited for an identical in-flight resolution */
+   private final AtomicLong joined = new AtomicLong();
+
+   /**
+    * Creates a {@link SingleFlightEjbReferenceResolver} in front of the passed resolver
+    *
+    * @param delegate The resolver doing the actual resolution. Must be thread safe.
+    */
+   public SingleFlightEjbReferenceResolver(EjbReferenceResolver delegate)
+   {
+      if (delegate == null)
+      {
+         throw new IllegalArgumentException("Delegate " + EjbReferenceResolver.class.getSimpleName()
+               + " cannot be null");
+      }
+      this.delegate = delegate;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String resolveEjb(final DeploymentUnit du, final EjbReference reference)
+         throws UnresolvableReferenceException
+   {
+      // mapped-name is used as is, nothing to share
+      String mappedName = reference.getMappedName();
+      if (mappedName != null && mappedName.trim().length() > 0)
+      {
+         return this.delegate.resolveEjb(du, reference);
+      }
+
+      ResolutionKey key = new ResolutionKey(du, reference);
+      FutureTask<String> task = new FutureTask<String>(new Callable<String>()
+      {
+         public String call() throws Exception
+         {
+            return delegate.resolveEjb(du, reference);
+         }
+      });
+
+      FutureTask<String> existing = this.inFlight.putIfAbsent(key, task);
+      if (existing == null)
+      {
+         // we own the resolution
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            // always clean up, whatever the outcome
+            this.inFlight.remove(key, task);
+         }
+         return this.getResult(task, reference);
+      }
+
+      // someone else is resolving it, wait for the outcome
+      this.joined.incrementAndGet();
+      if (logger.isTraceEnabled())
+      {
+         logger.trace("Waiting for in-flight resolution of " + key);
+      }
+      return this.getResult(existing, reference);
+   }
+
+   /**
+    * Returns the number of resolutions currently in progress
+    * @return
+    */
+   public int getInFlightCount()
+   {
+      return this.inFlight.size();
+   }
+
+   /**
+    * Returns the number of resolutions which were satisfied by waiting for an
+    * identical resolution already in progress
+    * @return
+    */
+   public long getJoinedCount()
+   {
+      return this.joined.get();
+   }
+
+   /**
+    * Returns the resolver to which resolutions are delegated
+    * @return
+    */
+   public EjbReferenceResolver getDelegate()
+   {
+      return this.delegate;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns the outcome of the passed resolution, rethrowing the exception it failed with,
+    * if any
+    *
+    * @param task
+    * @param reference
+    * @return
+    */
+   private String getResult(FutureTask<String> task, EjbReference reference)
+   {
+      try
+      {
+         return task.get();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new UnresolvableReferenceException("Interrupted while waiting for the resolution of " + reference, ie);
+      }
+      catch (ExecutionException ee)
+      {
+         Throwable cause = ee.getCause();
+         if (cause instanceof RuntimeException)
+         {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error)
+         {
+            throw (Error) cause;
+         }
+         throw new UnresolvableReferenceException("Could not resolve reference " + reference, cause);
+      }
+   }
+}
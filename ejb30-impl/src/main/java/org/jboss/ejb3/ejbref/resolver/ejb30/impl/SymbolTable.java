@@ -0,0 +1,319 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns dense int IDs, starting at 0, to the names (interface names, bean names, ejb-classes)
+ * seen while indexing a deployment, and keeps a single instance of each name.
+ *
+ * <p>
+ *  The IDs are only meaningful within the table which assigned them. A {@link DeploymentTreeIndex}
+ *  owns one table, shared by the {@link BeanDescriptor}s of all the units of its tree. The snapshots of
+ *  a {@link GlobalBeanRegistry} share a table until the registry replaces it by a compacted one.
+ * </p>
+ * <p>
+ *  {@link #getMemoryReport(Collection)} estimates the heap the table and the int[] based descriptors
+ *  take, compared with holding the same interface names as string collections.
+ * </p>
+ * <p>
+ *  This class is thread safe.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class SymbolTable
+{
+
+   /** Returned by {@link #lookup(String)} for a name which has no ID */
+   public static final int NO_SYMBOL = -1;
+
+   // Estimated sizes, in bytes, assuming compressed references and char[] backed strings
+
+   private static final int REFERENCE_BYTES = 4;
+
+   private static final int ARRAY_HEADER_BYTES = 16;
+
+   /** An ArrayList, along with the header of its backing array */
+   private static final int ARRAY_LIST_BYTES = 24 + ARRAY_HEADER_BYTES;
+
+   /** A map entry along with the boxed ID */
+   private static final int ENTRY_BYTES = 32 + 16;
+
+   /** The ID of each name */
+   private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+   /** The names, indexed by their ID. Replaced (never modified past size) when it grows. */
+   private volatile String[] symbols = new String[16];
+
+   /** The number of assigned IDs, guarded by this */
+   private int size;
+
+   /**
+    * Returns the ID of the passed name, assigning it the next ID if it hasn't got one yet
+    * 
+    * @param symbol The name, cannot be null
+    * @return
+    */
+   public int getId(String symbol)
+   {
+      if (symbol == null)
+      {
+         throw new IllegalArgumentException("Symbol cannot be null");
+      }
+      Integer id = this.ids.get(symbol);
+      if (id != null)
+      {
+         return id;
+      }
+      synchronized (this)
+      {
+         id = this.ids.get(symbol);
+         if (id != null)
+         {
+            return id;
+         }
+         String[] current = this.symbols;
+         if (this.size == current.length)
+         {
+            String[] grown = new String[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, this.size);
+            current = grown;
+         }
+         current[this.size] = symbol;
+         // publish the array before the ID, so whoever sees the ID can read the name
+         this.symbols = current;
+         this.ids.put(symbol, this.size);
+         return this.size++;
+      }
+   }
+
+   /**
+    * Returns the ID of the passed name, or {@link #NO_SYMBOL} if the name is null or has no ID.
+    * Unlike {@link #getId(String)}, never assigns an ID.
+    * 
+    * @param symbol
+    * @return
+    */
+   public int lookup(String symbol)
+   {
+      if (symbol == null)
+      {
+         return NO_SYMBOL;
+      }
+      Integer id = this.ids.get(symbol);
+      return id == null ? NO_SYMBOL : id;
+   }
+
+   /**
+    * Returns the single instance, kept by this table, of the passed name. Null is returned as is.
+    * 
+    * @param symbol
+    * @return
+    */
+   public String intern(String symbol)
+   {
+      if (symbol == null)
+      {
+         return null;
+      }
+      return this.getSymbol(this.getId(symbol));
+   }
+
+   /**
+    * Returns the name which has the passed ID
+    * 
+    * @param id
+    * @return
+    * @throws IllegalArgumentException If no name has the passed ID
+    */
+   public String getSymbol(int id)
+   {
+      String[] current = this.symbols;
+      String symbol = id >= 0 && id < current.length ? current[id] : null;
+      if (symbol == null)
+      {
+         throw new IllegalArgumentException("No symbol with id " + id);
+      }
+      return symbol;
+   }
+
+   /**
+    * Returns the number of names which have an ID
+    * @return
+    */
+   public synchronized int size()
+   {
+      return this.size;
+   }
+
+   /**
+    * Estimates the heap taken by the interface names of the passed descriptors, whose IDs have been
+    * assigned by this table, and compares it with the heap those names would take as string collections:
+    * a list of views and a list of all interfaces per bean, where the views and the names of the bean are
+    * strings of their own (as they are in the metadata) and the inherited interfaces are shared.
+    * 
+    * @param descriptors
+    * @return
+    */
+   public MemoryReport getMemoryReport(Collection<BeanDescriptor> descriptors)
+   {
+      long stringBytes = 0;
+      long symbolBytes = 0;
+      BitSet inheritedSeen = new BitSet();
+      for (BeanDescriptor descriptor : descriptors)
+      {
+         int[] viewIds = descriptor.getViewIds();
+         int[] inheritedIds = descriptor.isInheritanceKnown() ? descriptor.getInheritedIds() : new int[0];
+
+         // the strings of the bean along with its two lists
+         stringBytes += getStringBytes(descriptor.getEjbName()) + getStringBytes(descriptor.getEjbClass());
+         for (int viewId : viewIds)
+         {
+            stringBytes += getStringBytes(this.getSymbol(viewId));
+         }
+         for (int inheritedId : inheritedIds)
+         {
+            if (!inheritedSeen.get(inheritedId))
+            {
+               inheritedSeen.set(inheritedId);
+               stringBytes += getStringBytes(this.getSymbol(inheritedId));
+            }
+         }
+         stringBytes += 2 * ARRAY_LIST_BYTES + REFERENCE_BYTES * (2 * viewIds.length + inheritedIds.length);
+
+         // the four int arrays of the descriptor
+         symbolBytes += 4 * ARRAY_HEADER_BYTES + 4 * descriptor.getInterfaceIdCount();
+      }
+      // every name is held once, by the table
+      int symbolCount = this.size();
+      for (int id = 0; id < symbolCount; id++)
+      {
+         symbolBytes += getStringBytes(this.getSymbol(id)) + ENTRY_BYTES + REFERENCE_BYTES;
+      }
+      return new MemoryReport(symbolCount, descriptors.size(), stringBytes, symbolBytes);
+   }
+
+   @Override
+   public String toString()
+   {
+      return SymbolTable.class.getSimpleName() + "[" + this.size() + " symbols]";
+   }
+
+   static long getStringBytes(String string)
+   {
+      if (string == null)
+      {
+         return 0;
+      }
+      // the String itself, then its char[]
+      return 24 + getArrayBytes(2L * string.length());
+   }
+
+   /**
+    * Returns the bytes taken by an array of <code>contentBytes</code> of elements, aligned to 8 bytes
+    */
+   static long getArrayBytes(long contentBytes)
+   {
+      return (ARRAY_HEADER_BYTES + contentBytes + 7) & ~7L;
+   }
+
+   /**
+    * The estimated heap taken by the interface names of a set of {@link BeanDescriptor}s, compared
+    * with the heap the same names would take as string collections
+    */
+   public static class MemoryReport
+   {
+      private final int symbolCount;
+
+      private final int beanCount;
+
+      private final long stringBytes;
+
+      private final long symbolBytes;
+
+      MemoryReport(int symbolCount, int beanCount, long stringBytes, long symbolBytes)
+      {
+         this.symbolCount = symbolCount;
+         this.beanCount = beanCount;
+         this.stringBytes = stringBytes;
+         this.symbolBytes = symbolBytes;
+      }
+
+      /**
+       * Returns the number of names in the table
+       * @return
+       */
+      public int getSymbolCount()
+      {
+         return this.symbolCount;
+      }
+
+      /**
+       * Returns the number of beans described
+       * @return
+       */
+      public int getBeanCount()
+      {
+         return this.beanCount;
+      }
+
+      /**
+       * Returns the estimated bytes the names would take as string collections
+       * @return
+       */
+      public long getStringBytes()
+      {
+         return this.stringBytes;
+      }
+
+      /**
+       * Returns the estimated bytes the table and the int arrays of the descriptors take
+       * @return
+       */
+      public long getSymbolBytes()
+      {
+         return this.symbolBytes;
+      }
+
+      /**
+       * Returns the estimated bytes saved by the symbol table, negative if it costs more
+       * @return
+       */
+      public long getSavedBytes()
+      {
+         return this.stringBytes - this.symbolBytes;
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.symbolCount + " symbols for " + this.beanCount + " beans take ~" + this.symbolBytes
+               + " bytes instead of ~" + this.stringBytes + " bytes as string collections (~" + this.getSavedBytes()
+               + " bytes saved)";
+      }
+   }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+
+/**
+ * The outcome of the validation, by an {@link EjbReferenceValidator}, of all the references
+ * declared within a deployment
+ *
+ * @version $Revision: $
+ */
+public class ValidationReport
+{
+
+   /** The number of references which resolved */
+   private final int resolvedCount;
+
+   /** The references which failed to resolve, in declaration order */
+   private final List<Failure> failures;
+
+   /**
+    * @param resolvedCount The number of references which resolved
+    * @param failures The references which failed to resolve
+    */
+   public ValidationReport(int resolvedCount, Collection<Failure> failures)
+   {
+      this.resolvedCount = resolvedCount;
+      this.failures = Collections.unmodifiableList(new ArrayList<Failure>(failures));
+   }
+
+   /**
+    * Returns true if every reference resolved
+    * @return
+    */
+   public boolean isValid()
+   {
+      return this.failures.isEmpty();
+   }
+
+   /**
+    * Throws an {@link UnresolvableReferenceException}, which lists all the failures, unless
+    * every reference resolved
+    * 
+    * @throws UnresolvableReferenceException
+    */
+   public void check() throws UnresolvableReferenceException
+   {
+      if (!this.isValid())
+      {
+         UnresolvableReferenceException ure = new UnresolvableReferenceException(this.toString());
+         if (this.failures.size() == 1)
+         {
+            ure.initCause(this.failures.get(0).getCause());
+         }
+         throw ure;
+      }
+   }
+
+   /**
+    * Returns the number of references which resolved
+    * @return
+    */
+   public int getResolvedCount()
+   {
+      return this.resolvedCount;
+   }
+
+   /**
+    * Returns the references which failed to resolve
+    * @return
+    */
+   public List<Failure> getFailures()
+   {
+      return this.failures;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append(this.failures.size()).append(" of ").append(this.resolvedCount + this.failures.size()).append(
+            " references could not be resolved");
+      for (Failure failure : this.failures)
+      {
+         sb.append("\n\t").append(failure);
+      }
+      return sb.toString();
+   }
+
+   /**
+    * A reference which failed to resolve, along with the reason
+    */
+   public static class Failure
+   {
+      private final DeclaredReference reference;
+
+      private final RuntimeException cause;
+
+      public Failure(DeclaredReference reference, RuntimeException cause)
+      {
+         this.reference = reference;
+         this.cause = cause;
+      }
+
+      /**
+       * Returns the reference which failed to resolve
+       * @return
+       */
+      public DeclaredReference getReference()
+      {
+         return this.reference;
+      }
+
+      /**
+       * Returns the exception the resolution failed with
+       * @return
+       */
+      public RuntimeException getCause()
+      {
+         return this.cause;
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.reference + ": " + this.cause;
+      }
+   }
+}
@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.deployers.structure.spi.helpers.AbstractDeploymentUnit;
@@ -36,7 +37,8 @@ import org.jboss.deployers.structure.spi.helpers.AbstractDeploymentUnit;
  * - Add attachments
  * - Manage the parent/child relationship
  * - toString()
- * - Get the ClassLoader
+ * - Get (or set) the ClassLoader
+ * - Count the calls to getAttachment() and getChildren(), to assert on the cost of resolutions
  */
 public class MockDeploymentUnit extends AbstractDeploymentUnit implements DeploymentUnit
 {
@@ -53,6 +55,12 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
 
    private Map<String, Object> attachments;
 
+   private ClassLoader classLoader;
+
+   private final AtomicInteger attachmentLookups = new AtomicInteger();
+
+   private final AtomicInteger childrenLookups = new AtomicInteger();
+
    // --------------------------------------------------------------------------------||
    // Constructors -------------------------------------------------------------------||
    // --------------------------------------------------------------------------------||
@@ -79,6 +87,36 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
       this.children.add(child);
    }
 
+   /**
+    * Sets the ClassLoader of this unit, null for the context ClassLoader of the calling thread
+    */
+   public void setClassLoader(ClassLoader classLoader)
+   {
+      this.classLoader = classLoader;
+   }
+
+   /**
+    * Returns the number of calls to getAttachment(String) since the last reset
+    */
+   public int getAttachmentLookupCount()
+   {
+      return this.attachmentLookups.get();
+   }
+
+   /**
+    * Returns the number of calls to getChildren() since the last reset
+    */
+   public int getChildrenLookupCount()
+   {
+      return this.childrenLookups.get();
+   }
+
+   public void resetCounts()
+   {
+      this.attachmentLookups.set(0);
+      this.childrenLookups.set(0);
+   }
+
    // --------------------------------------------------------------------------------||
    // Overridden Implementations -----------------------------------------------------||
    // --------------------------------------------------------------------------------||
@@ -86,6 +124,7 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
    @Override
    public List<DeploymentUnit> getChildren()
    {
+      this.childrenLookups.incrementAndGet();
       return this.children;
    }
 
@@ -101,9 +140,16 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
       return this.attachments.put(name, attachment);
    }
 
+   @Override
+   public Object removeAttachment(String name)
+   {
+      return this.attachments.remove(name);
+   }
+
    @Override
    public Object getAttachment(String name)
    {
+      this.attachmentLookups.incrementAndGet();
       return this.attachments.get(name);
    }
 
@@ -113,6 +159,12 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
       return Collections.unmodifiableMap(this.attachments);
    }
 
+   @Override
+   public String getName()
+   {
+      return this.name;
+   }
+
    @Override
    public String toString()
    {
@@ -122,7 +174,7 @@ public class MockDeploymentUnit extends AbstractDeploymentUnit implements Deploy
    @Override
    public ClassLoader getClassLoader()
    {
-      return Thread.currentThread().getContextClassLoader();
+      return this.classLoader != null ? this.classLoader : Thread.currentThread().getContextClassLoader();
    }
 
    @Override
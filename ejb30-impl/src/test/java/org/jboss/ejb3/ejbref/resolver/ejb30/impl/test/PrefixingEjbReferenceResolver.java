@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.IndexableEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+
+/**
+ * An {@link EJB30MetaDataBasedEjbReferenceResolver} which prefixes the jndi-names it resolves,
+ * standing for a resolver whose jndi binding policy can be changed
+ *
+ * @version $Revision: $
+ */
+public class PrefixingEjbReferenceResolver extends EJB30MetaDataBasedEjbReferenceResolver
+{
+
+   private volatile String prefix = "";
+
+   /**
+    * Sets the prefix of the jndi-names resolved from now on
+    * 
+    * @param prefix
+    */
+   public void setPrefix(String prefix)
+   {
+      this.prefix = prefix;
+      this.descriptorsChanged();
+   }
+
+   /**
+    * {@inheritDoc}
+    * <p>
+    * The descriptors hold the prefixed jndi-names, so the resolvers must also use the same prefix.
+    * </p>
+    */
+   @Override
+   public boolean createsSameDescriptors(IndexableEjbReferenceResolver other)
+   {
+      return super.createsSameDescriptors(other)
+            && ((PrefixingEjbReferenceResolver) other).prefix.equals(this.prefix);
+   }
+
+   @Override
+   protected String getJNDIName(EjbReference reference, JBossSessionBeanMetaData metadata, ClassLoader cl)
+   {
+      String jndiName = super.getJNDIName(reference, metadata, cl);
+      return jndiName == null ? null : this.prefix + jndiName;
+   }
+}
@@ -0,0 +1,213 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.junit.Test;
+
+/**
+ * Measures the walks of the {@link FirstMatchEjbReferenceResolver} and of the
+ * {@link ScopedEJBReferenceResolver} over 10,000 unit trees of various shapes, against
+ * the former recursive walks. The reference can't be resolved, so every walk covers the
+ * whole tree.
+ * <p>
+ *  Not part of the regular test run, use <code>mvn test -Pbenchmark</code>.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DeploymentTreeTraversalBenchmark
+{
+
+   private static final int UNIT_COUNT = 10000;
+
+   private static final int WARMUP_ITERATIONS = 20;
+
+   private static final int ITERATIONS = 50;
+
+   private static final EjbReference REFERENCE = new EjbReference(null, Runnable.class.getName(), null);
+
+   @Test
+   public void benchmarkWideTree()
+   {
+      this.benchmark("wide", createTree(UNIT_COUNT));
+   }
+
+   @Test
+   public void benchmarkBalancedTree()
+   {
+      this.benchmark("balanced", createTree(10));
+   }
+
+   @Test
+   public void benchmarkDeepTree()
+   {
+      this.benchmark("deep", createTree(1));
+   }
+
+   private void benchmark(String shape, List<DeploymentUnit> units)
+   {
+      DeploymentUnit deepest = units.get(units.size() - 1);
+      this.run(shape + " first match", new FirstMatchEjbReferenceResolver(), new RecursiveFirstMatchEjbReferenceResolver(), deepest);
+      this.run(shape + " scoped", new ScopedEJBReferenceResolver(), new RecursiveScopedEJBReferenceResolver(), deepest);
+   }
+
+   private void run(String name, EjbReferenceResolver iterative, EjbReferenceResolver recursive, DeploymentUnit from)
+   {
+      long iterativeTime = time(iterative, from);
+      long recursiveTime = time(recursive, from);
+      // reported on the console, regardless of the logging setup
+      System.out.println(name + ": iterative " + iterativeTime / 1000 + " us/walk, recursive "
+            + (recursiveTime < 0 ? "overflowed the stack" : recursiveTime / 1000 + " us/walk"));
+   }
+
+   /**
+    * Returns the average time of a walk, in nanoseconds, or -1 if the walk overflowed the stack
+    */
+   private static long time(EjbReferenceResolver resolver, DeploymentUnit from)
+   {
+      try
+      {
+         for (int i = 0; i < WARMUP_ITERATIONS; i++)
+         {
+            walk(resolver, from);
+         }
+         long start = System.nanoTime();
+         for (int i = 0; i < ITERATIONS; i++)
+         {
+            walk(resolver, from);
+         }
+         return (System.nanoTime() - start) / ITERATIONS;
+      }
+      catch (StackOverflowError soe)
+      {
+         return -1;
+      }
+   }
+
+   private static void walk(EjbReferenceResolver resolver, DeploymentUnit from)
+   {
+      try
+      {
+         resolver.resolveEjb(from, REFERENCE);
+         throw new IllegalStateException(REFERENCE + " should not be resolvable");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // the whole tree was walked
+      }
+   }
+
+   /**
+    * Creates a tree of {@link #UNIT_COUNT} units, each unit having up to <code>fanOut</code>
+    * children, breadth first. The units are returned in creation order.
+    */
+   private static List<DeploymentUnit> createTree(int fanOut)
+   {
+      List<DeploymentUnit> units = new ArrayList<DeploymentUnit>(UNIT_COUNT);
+      units.add(new MockDeploymentUnit("unit 0"));
+      for (int i = 1; i < UNIT_COUNT; i++)
+      {
+         MockDeploymentUnit parent = (MockDeploymentUnit) units.get((i - 1) / fanOut);
+         MockDeploymentUnit child = new MockDeploymentUnit("unit " + i, parent);
+         parent.addChild(child);
+         units.add(child);
+      }
+      return units;
+   }
+
+   /**
+    * The former, recursive, walk of the {@link FirstMatchEjbReferenceResolver}
+    */
+   private static class RecursiveFirstMatchEjbReferenceResolver extends FirstMatchEjbReferenceResolver
+   {
+      @Override
+      protected String resolveEjbFromRoot(DeploymentUnit rootDu, EjbReference reference)
+      {
+         String jndiName = this.resolveInDeploymentUnit(rootDu, null, reference);
+         if (jndiName == null)
+         {
+            for (DeploymentUnit child : rootDu.getChildren())
+            {
+               jndiName = this.resolveEjbFromRoot(child, reference);
+               if (jndiName != null)
+               {
+                  break;
+               }
+            }
+         }
+         return jndiName;
+      }
+   }
+
+   /**
+    * The former, recursive, walk of the {@link ScopedEJBReferenceResolver}
+    */
+   private static class RecursiveScopedEJBReferenceResolver extends ScopedEJBReferenceResolver
+   {
+      @Override
+      protected String resolveWithinDeploymentUnit(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs,
+            EjbReference reference)
+      {
+         String jndiName = this.resolveInDeploymentUnit(du, null, reference);
+         if (jndiName != null)
+         {
+            return jndiName;
+         }
+         if (alreadyScannedDUs == null)
+         {
+            alreadyScannedDUs = new HashSet<DeploymentUnit>();
+         }
+         for (DeploymentUnit child : du.getChildren())
+         {
+            if (alreadyScannedDUs.contains(child))
+            {
+               continue;
+            }
+            jndiName = resolveWithinDeploymentUnit(child, alreadyScannedDUs, reference);
+            if (jndiName != null)
+            {
+               return jndiName;
+            }
+            alreadyScannedDUs.add(child);
+         }
+         alreadyScannedDUs.add(du);
+         DeploymentUnit parent = du.getParent();
+         if (parent != null)
+         {
+            return resolveWithinDeploymentUnit(parent, alreadyScannedDUs, reference);
+         }
+         return null;
+      }
+   }
+}
@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.benchmark;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Local;
+import javax.ejb.LocalHome;
+import javax.ejb.Remote;
+import javax.ejb.RemoteHome;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FrozenDeploymentIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.AaBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.BBBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Test;
+
+/**
+ * Measures the lookups of a {@link FrozenDeploymentIndex} against those of a {@link HashMap} of the
+ * same resolutions, keyed by beanInterface then by beanName, for the keys of the frozen tree and for
+ * unknown keys. The tree holds beans whose ejb-names have the same hash code, so some of its keys are
+ * kept in overflow slots.
+ * <p>
+ *  Not part of the regular test run, use <code>mvn test -Pbenchmark</code>.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class FrozenDeploymentIndexBenchmark
+{
+
+   private static final int WARMUP_ITERATIONS = 200000;
+
+   private static final int ITERATIONS = 2000000;
+
+   private static final Class<?>[][] UNIT_BEANS =
+   {
+   {ParentBean.class},
+   {Child1Bean.class},
+   {Child2Bean.class, Child3Bean.class},
+   {NestedChildBean.class},
+   {AaBean.class, BBBean.class}};
+
+   /** Defeats dead code elimination */
+   private int found;
+
+   @Test
+   public void benchmarkLookup()
+   {
+      MockDeploymentUnit ear = createTree();
+      FrozenDeploymentIndex frozen = DeploymentTreeIndex.attach(ear).freeze();
+      if (frozen == null)
+      {
+         throw new IllegalStateException(ear + " could not be frozen");
+      }
+
+      // the frozen resolutions, in a map of maps, which looks them up without allocating a key
+      List<EjbReference> references = new ArrayList<EjbReference>();
+      List<EjbReference> unknownReferences = new ArrayList<EjbReference>();
+      Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
+      for (EjbReference reference : createReferences())
+      {
+         String jndiName = frozen.resolveEjb(reference);
+         if (jndiName == null)
+         {
+            continue;
+         }
+         references.add(reference);
+         unknownReferences.add(new EjbReference(reference.getBeanName(), reference.getBeanInterface() + "Unknown",
+               null));
+         Map<String, String> byName = map.get(reference.getBeanInterface());
+         if (byName == null)
+         {
+            byName = new HashMap<String, String>();
+            map.put(reference.getBeanInterface(), byName);
+         }
+         byName.put(reference.getBeanName(), jndiName);
+      }
+
+      this.run("frozen keys (" + references.size() + ")", frozen, map, references);
+      this.run("unknown keys", frozen, map, unknownReferences);
+   }
+
+   private void run(String name, FrozenDeploymentIndex frozen, Map<String, Map<String, String>> map,
+         List<EjbReference> references)
+   {
+      EjbReference[] keys = references.toArray(new EjbReference[references.size()]);
+      this.lookUp(frozen, keys, WARMUP_ITERATIONS);
+      this.lookUp(map, keys, WARMUP_ITERATIONS);
+      long frozenTime = this.lookUp(frozen, keys, ITERATIONS);
+      long mapTime = this.lookUp(map, keys, ITERATIONS);
+      // reported on the console, regardless of the logging setup
+      System.out.println(name + ": frozen index " + frozenTime + " ns/lookup, HashMap " + mapTime
+            + " ns/lookup (" + this.found + " found)");
+   }
+
+   /**
+    * Returns the average time of a lookup, in nanoseconds
+    */
+   private long lookUp(FrozenDeploymentIndex frozen, EjbReference[] keys, int iterations)
+   {
+      int found = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+         if (frozen.resolveEjb(keys[i % keys.length]) != null)
+         {
+            found++;
+         }
+      }
+      long time = (System.nanoTime() - start) / iterations;
+      this.found = found;
+      return time;
+   }
+
+   /**
+    * Returns the average time of a lookup, in nanoseconds
+    */
+   private long lookUp(Map<String, Map<String, String>> map, EjbReference[] keys, int iterations)
+   {
+      int found = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+         EjbReference key = keys[i % keys.length];
+         Map<String, String> byName = map.get(key.getBeanInterface());
+         if (byName != null && byName.get(key.getBeanName()) != null)
+         {
+            found++;
+         }
+      }
+      long time = (System.nanoTime() - start) / iterations;
+      this.found = found;
+      return time;
+   }
+
+   /**
+    * Creates a tree of one unit per set of {@link #UNIT_BEANS}, under an empty top-level unit
+    */
+   private static MockDeploymentUnit createTree()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      MockDeploymentUnit ear = new MockDeploymentUnit("benchmark.ear");
+      for (int i = 0; i < UNIT_BEANS.length; i++)
+      {
+         JBossMetaData metadata = creator.create(Arrays.asList(UNIT_BEANS[i]));
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("benchmark.ear/" + i + ".jar", ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+      return ear;
+   }
+
+   /**
+    * Creates the references to the interfaces of the beans (and to their super-interfaces), by
+    * beanInterface only and along with the ejb-name
+    */
+   private static List<EjbReference> createReferences()
+   {
+      List<EjbReference> references = new ArrayList<EjbReference>();
+      for (Class<?>[] beans : UNIT_BEANS)
+      {
+         for (Class<?> bean : beans)
+         {
+            List<Class<?>> interfaces = new ArrayList<Class<?>>();
+            if (bean.isAnnotationPresent(Local.class))
+            {
+               interfaces.addAll(Arrays.<Class<?>> asList(bean.getAnnotation(Local.class).value()));
+            }
+            if (bean.isAnnotationPresent(Remote.class))
+            {
+               interfaces.addAll(Arrays.<Class<?>> asList(bean.getAnnotation(Remote.class).value()));
+            }
+            if (bean.isAnnotationPresent(LocalHome.class))
+            {
+               interfaces.add(bean.getAnnotation(LocalHome.class).value());
+            }
+            if (bean.isAnnotationPresent(RemoteHome.class))
+            {
+               interfaces.add(bean.getAnnotation(RemoteHome.class).value());
+            }
+            for (int i = 0; i < interfaces.size(); i++)
+            {
+               interfaces.addAll(Arrays.<Class<?>> asList(interfaces.get(i).getInterfaces()));
+            }
+            for (Class<?> interfaze : interfaces)
+            {
+               references.add(new EjbReference(null, interfaze.getName(), null));
+               references.add(new EjbReference(bean.getSimpleName(), interfaze.getName(), null));
+            }
+         }
+      }
+      return references;
+   }
+}
@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ClassLoader which delegates to its parent and counts the calls to loadClass(). The VM
+ * remembers the classes a ClassLoader has returned from Class.forName(), so a class is
+ * counted the first time only: use a new instance for each measured operation.
+ *
+ * @version $Revision: $
+ */
+public class CountingClassLoader extends ClassLoader
+{
+
+   private final AtomicInteger loadCount = new AtomicInteger();
+
+   /**
+    * Creates a ClassLoader which delegates to the context ClassLoader of the calling thread
+    */
+   public CountingClassLoader()
+   {
+      this(Thread.currentThread().getContextClassLoader());
+   }
+
+   public CountingClassLoader(ClassLoader parent)
+   {
+      super(parent);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+   {
+      this.loadCount.incrementAndGet();
+      return super.loadClass(name, resolve);
+   }
+
+   /**
+    * Returns the number of calls to loadClass()
+    * @return
+    */
+   public int getLoadCount()
+   {
+      return this.loadCount.get();
+   }
+}
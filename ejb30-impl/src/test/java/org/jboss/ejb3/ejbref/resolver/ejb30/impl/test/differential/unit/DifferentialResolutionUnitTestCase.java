@@ -0,0 +1,535 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.differential.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AbstractEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AdaptiveIndexingPolicy;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FrozenEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.GlobalBeanRegistry;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.IndexableEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.SingleFlightEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the optimized resolution paths (indexed, frozen, cached, single flight) resolve exactly like the
+ * scan of the metadata of the units, on randomly generated deployments.
+ *
+ * <p>
+ *  Each run generates, from its own seed, a tree of up to {@link #MAX_UNIT_COUNT} units of random shape, gives
+ *  each unit a random set of the beans of this package (whose interfaces form a diamond, and which end up
+ *  duplicated across units and exposing the same interfaces within a unit) and a random mix of references by
+ *  bean name, bean interface and mapped name, some of which can't be resolved. Every reference is resolved from
+ *  every unit, and the outcome (the jndi-name or the type of the exception) of each path must be that of the
+ *  same resolver with its index turned off. A failure tells the seed of its run: set the
+ *  <code>differential.seed</code> system property to replay that run only.
+ * </p>
+ * <p>
+ *  Subclasses check the same paths for other resolvers, or other jndi binding policies, by overriding
+ *  {@link #createFirstMatchResolver()}, {@link #createScopedResolver()} and
+ *  {@link #createMetaDataBasedEjbReferenceResolver()}.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DifferentialResolutionUnitTestCase
+{
+
+   private static final int RUN_COUNT = 100;
+
+   private static final int MAX_UNIT_COUNT = 8;
+
+   private static final int REFERENCE_COUNT = 30;
+
+   /** Tells the seed of the tree of the other deployment registered in the {@link GlobalBeanRegistry} */
+   private static final long FOREIGN_SEED = 0x5DEECE66DL;
+
+   private static final Class<?>[] BEANS =
+   {BaseBean.class, DiamondBean.class, LeftBean.class, RightBean.class, OtherBean.class};
+
+   /** Null stands for a reference by bean name only */
+   private static final String[] BEAN_INTERFACES =
+   {null, Base.class.getName(), Left.class.getName(), Right.class.getName(), Diamond.class.getName(),
+         Other.class.getName(), OtherChild.class.getName(), BaseBean.class.getName(), "org.acme.NoSuchInterface"};
+
+   /** Null stands for a reference by interface only */
+   private static final String[] BEAN_NAMES =
+   {null, null, null, BaseBean.class.getSimpleName(), DiamondBean.class.getSimpleName(),
+         LeftBean.class.getSimpleName(), RightBean.class.getSimpleName(), OtherBean.class.getSimpleName(),
+         "NoSuchBean"};
+
+   /**
+    * Checks the paths of the {@link FirstMatchEjbReferenceResolver}
+    */
+   @Test
+   public void testFirstMatch()
+   {
+      this.check(new Path("first match")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return unindexed(createFirstMatchResolver());
+         }
+      }, new Path("indexed first match", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return createFirstMatchResolver();
+         }
+      }, new Path("frozen first match", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return createFirstMatchResolver();
+         }
+      }, new Path("frozen resolver", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new FrozenEjbReferenceResolver(createFirstMatchResolver());
+         }
+      }, new Path("frozen resolver of a tree indexed by the default resolver", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new FrozenEjbReferenceResolver(createFirstMatchResolver());
+         }
+
+         IndexableEjbReferenceResolver createIndexResolver()
+         {
+            return new EJB30MetaDataBasedEjbReferenceResolver();
+         }
+      }, new Path("adaptively indexed first match")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return adaptive(createFirstMatchResolver());
+         }
+      }, new Path("cached first match", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new ConcurrentEjbReferenceResolver(createFirstMatchResolver());
+         }
+      }, new Path("bounded cached first match", false, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new ConcurrentEjbReferenceResolver(createFirstMatchResolver(), 1024);
+         }
+      }, new Path("single flight first match", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new SingleFlightEjbReferenceResolver(createFirstMatchResolver());
+         }
+      });
+   }
+
+   /**
+    * Checks the paths of the {@link ScopedEJBReferenceResolver}
+    */
+   @Test
+   public void testScoped()
+   {
+      this.check(new Path("scoped")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return unindexed(createScopedResolver());
+         }
+      }, new Path("indexed scoped", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return createScopedResolver();
+         }
+      }, new Path("indexed scoped of a frozen tree", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return createScopedResolver();
+         }
+      }, new Path("frozen resolver in front of scoped", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new FrozenEjbReferenceResolver(createScopedResolver());
+         }
+      }, new Path("adaptively indexed scoped")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return adaptive(createScopedResolver());
+         }
+      }, new Path("cached scoped", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new ConcurrentEjbReferenceResolver(createScopedResolver());
+         }
+      }, new Path("bounded cached scoped", false, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new ConcurrentEjbReferenceResolver(createScopedResolver(), 1024);
+         }
+      }, new Path("single flight scoped", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new SingleFlightEjbReferenceResolver(createScopedResolver());
+         }
+      });
+   }
+
+   /**
+    * Checks the paths which fall back to a {@link GlobalBeanRegistry}, holding the beans of the tree along with
+    * those of another one
+    */
+   @Test
+   public void testGlobalBeanRegistry()
+   {
+      this.check(new Path("first match with registry")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return this.registered(unindexed(createFirstMatchResolver()));
+         }
+      }, new Path("frozen first match with registry", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return this.registered(createFirstMatchResolver());
+         }
+      }, new Path("frozen resolver with registry", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new FrozenEjbReferenceResolver(this.registered(createFirstMatchResolver()));
+         }
+      }, new Path("adaptively indexed first match with registry")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return adaptive(this.registered(createFirstMatchResolver()));
+         }
+      }, new Path("cached first match with registry", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new ConcurrentEjbReferenceResolver(this.registered(createFirstMatchResolver()));
+         }
+      });
+      this.check(new Path("scoped with registry")
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return this.registered(unindexed(createScopedResolver()));
+         }
+      }, new Path("indexed scoped with registry", true, false)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return this.registered(createScopedResolver());
+         }
+      }, new Path("frozen resolver in front of scoped with registry", true, true)
+      {
+         EjbReferenceResolver createResolver()
+         {
+            return new FrozenEjbReferenceResolver(this.registered(createScopedResolver()));
+         }
+      });
+   }
+
+   /**
+    * Returns a new {@link FirstMatchEjbReferenceResolver}, on which the paths of {@link #testFirstMatch()} are built
+    * 
+    * @return
+    */
+   protected AbstractEjbReferenceResolver createFirstMatchResolver()
+   {
+      return new FirstMatchEjbReferenceResolver();
+   }
+
+   /**
+    * Returns a new {@link ScopedEJBReferenceResolver}, on which the paths of {@link #testScoped()} are built
+    * 
+    * @return
+    */
+   protected AbstractEjbReferenceResolver createScopedResolver()
+   {
+      return new ScopedEJBReferenceResolver();
+   }
+
+   /**
+    * Returns a resolver which creates the same descriptors as the resolvers of {@link #createFirstMatchResolver()}
+    * and {@link #createScopedResolver()}: the one which indexes the trees and the registered beans
+    * 
+    * @return
+    */
+   protected IndexableEjbReferenceResolver createMetaDataBasedEjbReferenceResolver()
+   {
+      return new EJB30MetaDataBasedEjbReferenceResolver();
+   }
+
+   /**
+    * Resolves the references of each run through each path, and compares the outcomes with those of the
+    * reference path
+    */
+   private void check(Path reference, Path... paths)
+   {
+      Long replayedSeed = Long.getLong("differential.seed");
+      long firstSeed = replayedSeed == null ? 0 : replayedSeed;
+      long lastSeed = replayedSeed == null ? RUN_COUNT - 1 : replayedSeed;
+      for (long seed = firstSeed; seed <= lastSeed; seed++)
+      {
+         List<EjbReference> references = createReferences(new Random(seed));
+         List<String> expected = reference.resolveAll(seed, references);
+         for (Path path : paths)
+         {
+            List<String> actual = path.resolveAll(seed, references);
+            for (int i = 0; i < expected.size(); i++)
+            {
+               if (!expected.get(i).equals(actual.get(i)))
+               {
+                  EjbReference failed = references.get(i % references.size());
+                  Assert.fail("Run with seed " + seed + ": " + path + " resolved " + failed + " from unit "
+                        + i / references.size() + " to " + actual.get(i) + " instead of " + expected.get(i) + " ("
+                        + reference + ")");
+               }
+            }
+         }
+      }
+   }
+
+   private static AbstractEjbReferenceResolver unindexed(AbstractEjbReferenceResolver resolver)
+   {
+      resolver.setIndexUsed(false);
+      return resolver;
+   }
+
+   /**
+    * Lets an {@link AdaptiveIndexingPolicy} index the tree, once a few references have been resolved by scanning it
+    */
+   private static AbstractEjbReferenceResolver adaptive(AbstractEjbReferenceResolver resolver)
+   {
+      AdaptiveIndexingPolicy indexingPolicy = new AdaptiveIndexingPolicy();
+      indexingPolicy.setMinimumUnitBeanCount(1);
+      indexingPolicy.setMinimumResolutionCount(REFERENCE_COUNT / 2);
+      resolver.setIndexingPolicy(indexingPolicy);
+      return resolver;
+   }
+
+   /**
+    * Creates references picked from the names of the beans and of the interfaces, a few of them by mapped name
+    */
+   private static List<EjbReference> createReferences(Random random)
+   {
+      List<EjbReference> references = new ArrayList<EjbReference>(REFERENCE_COUNT);
+      while (references.size() < REFERENCE_COUNT)
+      {
+         String beanName = BEAN_NAMES[random.nextInt(BEAN_NAMES.length)];
+         String beanInterface = BEAN_INTERFACES[random.nextInt(BEAN_INTERFACES.length)];
+         String mappedName = random.nextInt(10) == 0 ? "mapped/" + references.size() : null;
+         if (beanName == null && beanInterface == null && mappedName == null)
+         {
+            continue;
+         }
+         references.add(new EjbReference(beanName, beanInterface, mappedName));
+      }
+      return references;
+   }
+
+   /**
+    * Creates the tree of the passed seed: the shape of the tree and the beans of its units only depend on the seed.
+    * Returns its units, in creation order, the top level unit first.
+    */
+   private static List<DeploymentUnit> createTree(long seed, String name)
+   {
+      Random random = new Random(~seed);
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+
+      int unitCount = 1 + random.nextInt(MAX_UNIT_COUNT);
+      List<DeploymentUnit> units = new ArrayList<DeploymentUnit>(unitCount);
+      for (int i = 0; i < unitCount; i++)
+      {
+         MockDeploymentUnit parent = i == 0 ? null : (MockDeploymentUnit) units.get(random.nextInt(i));
+         MockDeploymentUnit unit = i == 0 ? new MockDeploymentUnit(name) : new MockDeploymentUnit(name + "/unit " + i,
+               parent);
+         if (parent != null)
+         {
+            parent.addChild(unit);
+         }
+
+         // a unit without beans may have no metadata at all
+         Collection<Class<?>> beans = new ArrayList<Class<?>>();
+         for (Class<?> bean : BEANS)
+         {
+            if (random.nextInt(4) == 0)
+            {
+               beans.add(bean);
+            }
+         }
+         if (!beans.isEmpty() || random.nextBoolean())
+         {
+            JBossMetaData metadata = creator.create(beans);
+            MetadataUtil.decorateEjbsWithJndiPolicy(metadata, Thread.currentThread().getContextClassLoader());
+            unit.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         }
+         units.add(unit);
+      }
+      return units;
+   }
+
+   /**
+    * A resolution path: a resolver, along with the state of the index of the tree
+    */
+   private abstract class Path
+   {
+      private final String name;
+
+      private final boolean indexed;
+
+      private final boolean frozen;
+
+      /** The registry of the run being resolved */
+      private GlobalBeanRegistry registry;
+
+      Path(String name)
+      {
+         this(name, false, false);
+      }
+
+      Path(String name, boolean indexed, boolean frozen)
+      {
+         this.name = name;
+         this.indexed = indexed;
+         this.frozen = frozen;
+      }
+
+      abstract EjbReferenceResolver createResolver();
+
+      /**
+       * Returns the resolver which indexes the tree
+       */
+      IndexableEjbReferenceResolver createIndexResolver()
+      {
+         return createMetaDataBasedEjbReferenceResolver();
+      }
+
+      /**
+       * Lets the passed resolver fall back to the registry of the run being resolved
+       */
+      AbstractEjbReferenceResolver registered(AbstractEjbReferenceResolver resolver)
+      {
+         resolver.setGlobalBeanRegistry(this.registry);
+         return resolver;
+      }
+
+      /**
+       * Returns the outcome of each reference, from each unit of the tree of the seed, unit by unit. Resolves
+       * each reference twice, so that cached paths answer from their cache too.
+       */
+      List<String> resolveAll(long seed, List<EjbReference> references)
+      {
+         List<DeploymentUnit> units = createTree(seed, this.name);
+         this.registry = new GlobalBeanRegistry();
+         this.registry.setMetaDataBasedEjbReferenceResolver(createMetaDataBasedEjbReferenceResolver());
+         for (DeploymentUnit du : units)
+         {
+            this.registry.register(du);
+         }
+         for (DeploymentUnit du : createTree(seed ^ FOREIGN_SEED, "foreign " + this.name))
+         {
+            this.registry.register(du);
+         }
+         if (this.indexed)
+         {
+            DeploymentTreeIndex treeIndex = DeploymentTreeIndex.attach(units.get(0), this.createIndexResolver());
+            if (this.frozen)
+            {
+               treeIndex.freeze();
+            }
+         }
+         EjbReferenceResolver resolver = this.createResolver();
+         List<String> outcomes = new ArrayList<String>(units.size() * references.size());
+         for (DeploymentUnit du : units)
+         {
+            for (EjbReference reference : references)
+            {
+               String outcome = resolve(resolver, du, reference);
+               String again = resolve(resolver, du, reference);
+               if (!outcome.equals(again))
+               {
+                  Assert.fail("Run with seed " + seed + ": " + this + " resolved " + reference + " to " + outcome
+                        + ", then to " + again);
+               }
+               outcomes.add(outcome);
+            }
+         }
+         return outcomes;
+      }
+
+      @Override
+      public String toString()
+      {
+         return this.name + (this.frozen ? " (frozen tree)" : this.indexed ? " (indexed tree)" : "");
+      }
+
+      /**
+       * Returns the jndi-name the reference resolves to, or the type of the exception the resolution fails with
+       */
+      private String resolve(EjbReferenceResolver resolver, DeploymentUnit du, EjbReference reference)
+      {
+         try
+         {
+            return resolver.resolveEjb(du, reference);
+         }
+         catch (RuntimeException e)
+         {
+            return e.getClass().getName();
+         }
+      }
+   }
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.differential.unit;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AbstractEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.IndexableEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.PrefixingEjbReferenceResolver;
+
+/**
+ * Checks the paths of {@link DifferentialResolutionUnitTestCase} for resolvers whose jndi-names aren't those of
+ * the default resolver, as if their jndi binding policy had been changed: the indexes created by the default
+ * resolver must then be ignored.
+ *
+ * @version $Revision: $
+ */
+public class PrefixedDifferentialResolutionUnitTestCase extends DifferentialResolutionUnitTestCase
+{
+
+   private static final String PREFIX = "prefixed/";
+
+   @Override
+   protected AbstractEjbReferenceResolver createFirstMatchResolver()
+   {
+      return new FirstMatchEjbReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = createMetaDataBasedEjbReferenceResolver();
+         }
+      };
+   }
+
+   @Override
+   protected AbstractEjbReferenceResolver createScopedResolver()
+   {
+      return new ScopedEJBReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = createMetaDataBasedEjbReferenceResolver();
+         }
+      };
+   }
+
+   @Override
+   protected IndexableEjbReferenceResolver createMetaDataBasedEjbReferenceResolver()
+   {
+      PrefixingEjbReferenceResolver resolver = new PrefixingEjbReferenceResolver();
+      resolver.setPrefix(PREFIX);
+      return resolver;
+   }
+}
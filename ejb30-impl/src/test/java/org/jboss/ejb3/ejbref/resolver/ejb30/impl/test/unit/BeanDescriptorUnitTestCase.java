@@ -0,0 +1,214 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.BeanDescriptor;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.GlobalBeanRegistry;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.SymbolTable;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1CommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalHome;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1RemoteBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1RemoteHome;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.InterDuCommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the {@link BeanDescriptor}s extracted from the session bean metadata, their {@link SymbolTable}
+ * and the resolution of references once that metadata has been released
+ *
+ * @version $Revision: $
+ */
+public class BeanDescriptorUnitTestCase
+{
+
+   private static JBossMetaData child1MetaData;
+
+   private static final EjbReference[] REFERENCES =
+   {new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+         new EjbReference(null, Child1RemoteBusiness.class.getName(), null),
+         new EjbReference(null, Child1LocalHome.class.getName(), null),
+         new EjbReference(null, Child1RemoteHome.class.getName(), null),
+         new EjbReference(null, InterDuCommonBusiness.class.getName(), null),
+         new EjbReference(Child1Bean.class.getSimpleName(), Child1CommonBusiness.class.getName(), null),
+         new EjbReference(Child1Bean.class.getSimpleName(), Child1RemoteBusiness.class.getName(), null),
+         new EjbReference(null, Comparable.class.getName(), null),
+         new EjbReference(Child1Bean.class.getSimpleName(), null, null)};
+
+   @BeforeClass
+   public static void beforeClass() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      child1MetaData = creator.create(Arrays.<Class<?>> asList(Child1Bean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(child1MetaData, Thread.currentThread().getContextClassLoader());
+   }
+
+   /**
+    * Tests that a descriptor holds the views and the inherited interfaces of the bean, and
+    * resolves references just like the resolver does against the metadata
+    */
+   @Test
+   public void testDescriptorResolvesLikeMetaData()
+   {
+      EJB30MetaDataBasedEjbReferenceResolver resolver = new EJB30MetaDataBasedEjbReferenceResolver();
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      JBossSessionBeanMetaData sessionBean = (JBossSessionBeanMetaData) child1MetaData.getEnterpriseBeans().get(
+            Child1Bean.class.getSimpleName());
+      SymbolTable symbols = new SymbolTable();
+      BeanDescriptor descriptor = resolver.createBeanDescriptor(sessionBean, cl, symbols);
+
+      Assert.assertEquals("Unexpected ejb-name", Child1Bean.class.getSimpleName(), descriptor.getEjbName());
+      Assert.assertSame("ejb-class not interned", symbols.intern(Child1Bean.class.getName()), descriptor
+            .getEjbClass());
+      Assert.assertFalse("EJB3.0 bean reported as EJB3.1", descriptor.isEJB31());
+      Assert.assertFalse("EJB3.0 bean reported with a no-interface view", descriptor.hasNoInterfaceView());
+      Assert.assertEquals("Unexpected number of views", 4, descriptor.getViewIds().length);
+      Assert.assertEquals("Unexpected first view", Child1LocalBusiness.class.getName(), symbols.getSymbol(descriptor
+            .getViewIds()[0]));
+
+      for (EjbReference reference : REFERENCES)
+      {
+         int interfaceId = symbols.lookup(reference.getBeanInterface());
+         String expected = resolver.resolveEjb(reference, sessionBean, cl);
+         String actual = descriptor.isMatch(reference, interfaceId) ? descriptor.getJndiName(interfaceId) : null;
+         Assert.assertEquals("Different result for " + reference, expected, actual);
+      }
+
+      // Child1CommonBusiness is extended by both the local and the remote business interface
+      EjbReference ambiguous = new EjbReference(null, Child1CommonBusiness.class.getName(), null);
+      try
+      {
+         descriptor.isMatch(ambiguous, symbols.lookup(ambiguous.getBeanInterface()));
+         Assert.fail("Ambiguous beanInterface was matched");
+      }
+      catch (NonDeterministicInterfaceException expected)
+      {
+         // expected
+      }
+      Assert.assertArrayEquals("Unexpected ambiguous interfaces", new int[]
+      {symbols.lookup(Child1CommonBusiness.class.getName())}, descriptor.getAmbiguousIds());
+   }
+
+   /**
+    * Tests that the symbol table of an indexed deployment holds each name once and takes less
+    * heap than the equivalent string collections
+    */
+   @Test
+   public void testMemoryReport()
+   {
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      for (int i = 0; i < 10; i++)
+      {
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/jar" + i, ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child1MetaData);
+         ear.addChild(jar);
+      }
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(ear);
+      for (DeploymentUnit jar : ear.getChildren())
+      {
+         index.getDeploymentUnitIndex(jar);
+      }
+
+      SymbolTable.MemoryReport report = index.getMemoryReport();
+      Assert.assertEquals("Unexpected number of beans", 10, report.getBeanCount());
+      Assert.assertEquals("Unexpected number of symbols", index.getSymbolTable().size(), report.getSymbolCount());
+      Assert.assertTrue("Symbol table takes more heap than strings: " + report, report.getSavedBytes() > 0);
+   }
+
+   /**
+    * Tests that references can still be resolved through a {@link DeploymentTreeIndex} once
+    * the metadata of the deployment has been released
+    */
+   @Test
+   public void testResolutionAfterMetaDataRelease()
+   {
+      MockDeploymentUnit du = new MockDeploymentUnit("ejb-jar");
+      du.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child1MetaData);
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(du);
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+
+      String[] jndiNames = new String[5];
+      for (int i = 0; i < jndiNames.length; i++)
+      {
+         jndiNames[i] = resolver.resolveEjb(du, REFERENCES[i]);
+      }
+      Assert.assertEquals("Unexpected number of indexed units", 1, index.getIndexedDeploymentUnitCount());
+
+      // release the metadata
+      du.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, null);
+      for (int i = 0; i < jndiNames.length; i++)
+      {
+         Assert.assertEquals("Different result for " + REFERENCES[i], jndiNames[i], resolver.resolveEjb(du,
+               REFERENCES[i]));
+      }
+   }
+
+   /**
+    * Tests that a reference by beanName only resolves to the default jndi-name of the bean, through a
+    * {@link DeploymentTreeIndex} and through a {@link GlobalBeanRegistry}, once the metadata of the
+    * deployment has been released
+    */
+   @Test
+   public void testBeanNameReferenceAfterMetaDataRelease()
+   {
+      EjbReference reference = new EjbReference(Child1Bean.class.getSimpleName(), null, null);
+      MockDeploymentUnit du = new MockDeploymentUnit("ejb-jar");
+      du.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child1MetaData);
+      FirstMatchEjbReferenceResolver scanning = new FirstMatchEjbReferenceResolver();
+      scanning.setIndexUsed(false);
+      String expected = scanning.resolveEjb(du, reference);
+      Assert.assertNotNull("No default jndi-name for " + reference, expected);
+
+      // index the unit, then release the metadata
+      DeploymentTreeIndex.attach(du);
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      Assert.assertEquals("Different result through the index", expected, resolver.resolveEjb(du, reference));
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      registry.register(du);
+      du.removeAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA);
+
+      Assert.assertEquals("Different result through the released index", expected, resolver.resolveEjb(du,
+            reference));
+      Assert.assertEquals("Different result through the registry", expected, registry.resolveEjb(reference,
+            new EJB30MetaDataBasedEjbReferenceResolver()));
+   }
+}
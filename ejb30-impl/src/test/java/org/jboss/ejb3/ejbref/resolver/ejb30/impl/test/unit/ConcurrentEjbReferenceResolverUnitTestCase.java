@@ -0,0 +1,428 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2And3CommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Stress test for {@link ConcurrentEjbReferenceResolver}: many threads resolve references
+ * against a set of deployments while another thread keeps undeploying and redeploying them.
+ *
+ * @version $Revision: $
+ */
+public class ConcurrentEjbReferenceResolverUnitTestCase
+{
+
+   private static Logger logger = Logger.getLogger(ConcurrentEjbReferenceResolverUnitTestCase.class);
+
+   private static final int DEPLOYMENT_COUNT = 4;
+
+   private static final int RESOLVER_THREAD_COUNT = 8;
+
+   private static final int RESOLUTIONS_PER_THREAD = 20000;
+
+   private static JBossMetaData parentMetaData;
+
+   private static JBossMetaData child1MetaData;
+
+   private static JBossMetaData child2MetaData;
+
+   private static JBossMetaData nestedChildMetaData;
+
+   /**
+    * The references used by the test and the jndi-names they are expected to resolve to
+    */
+   private static final EjbReference[] REFERENCES =
+   {new EjbReference(null, ParentLocalBusiness.class.getName(), null),
+         new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+         new EjbReference(null, Child2LocalBusiness.class.getName(), null),
+         new EjbReference(Child3Bean.class.getSimpleName(), Child2And3CommonBusiness.class.getName(), null),
+         new EjbReference(null, NestedChildLocalBusiness.class.getName(), null)};
+
+   private static final String[] EXPECTED_JNDI_NAMES =
+   {ParentBean.class.getSimpleName() + "/local-" + ParentLocalBusiness.class.getName(),
+         Child1Bean.class.getSimpleName() + "/local-" + Child1LocalBusiness.class.getName(),
+         Child2Bean.class.getSimpleName() + "/local-" + Child2LocalBusiness.class.getName(),
+         Child3Bean.class.getSimpleName() + "/local-" + Child3LocalBusiness.class.getName(),
+         NestedChildBean.class.getSimpleName() + "/local-" + NestedChildLocalBusiness.class.getName()};
+
+   @BeforeClass
+   public static void beforeClass() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      parentMetaData = creator.create(Arrays.<Class<?>> asList(ParentBean.class));
+      child1MetaData = creator.create(Arrays.<Class<?>> asList(Child1Bean.class));
+      child2MetaData = creator.create(Arrays.<Class<?>> asList(Child2Bean.class, Child3Bean.class));
+      nestedChildMetaData = creator.create(Arrays.<Class<?>> asList(NestedChildBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(parentMetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(child1MetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(child2MetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(nestedChildMetaData, cl);
+   }
+
+   /**
+    * Tests that a cached resolution returns the same jndi-name as the delegate
+    * and that undeploying a deployment drops its cache
+    */
+   @Test
+   public void testCacheHitAndUndeploy()
+   {
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(
+            new FirstMatchEjbReferenceResolver());
+      MockDeploymentUnit deployment = createDeployment("Cached");
+      DeploymentUnit nestedChild = deployment.getChildren().get(0).getChildren().get(0);
+
+      for (int i = 0; i < REFERENCES.length; i++)
+      {
+         Assert.assertEquals(EXPECTED_JNDI_NAMES[i], resolver.resolveEjb(nestedChild, REFERENCES[i]));
+         Assert.assertEquals(EXPECTED_JNDI_NAMES[i], resolver.resolveEjb(nestedChild, REFERENCES[i]));
+      }
+      Assert.assertEquals("Unexpected number of cache misses", REFERENCES.length, resolver.getCacheMisses());
+      Assert.assertEquals("Unexpected number of cache hits", REFERENCES.length, resolver.getCacheHits());
+      Assert.assertEquals("Unexpected number of cached deployments", 1, resolver.getCachedDeploymentCount());
+
+      resolver.undeploy(deployment);
+      Assert.assertEquals("Cache of undeployed deployment was not dropped", 0, resolver.getCachedDeploymentCount());
+   }
+
+   /**
+    * Hammers a shared {@link ConcurrentEjbReferenceResolver} from many threads while
+    * deployments are being undeployed and redeployed
+    */
+   @Test
+   public void testConcurrentResolutionWhileDeployingAndUndeploying() throws Exception
+   {
+      this.stress(new ConcurrentEjbReferenceResolver(new GenerationEjbReferenceResolver(
+            new ScopedEJBReferenceResolver())));
+      this.stress(new ConcurrentEjbReferenceResolver(new GenerationEjbReferenceResolver(
+            new FirstMatchEjbReferenceResolver())));
+      this.stress(new ConcurrentEjbReferenceResolver(new GenerationEjbReferenceResolver(
+            new FirstMatchEjbReferenceResolver()), 4096));
+   }
+
+   /**
+    * Tests that a bounded cache stays within its maximum weight and that a burst of one-off
+    * resolutions doesn't evict the resolutions which are asked for over and over again
+    */
+   @Test
+   public void testBoundedCacheKeepsFrequentResolutions()
+   {
+      EjbReferenceResolver delegate = new EjbReferenceResolver()
+      {
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            return "jndi/" + reference.getBeanInterface();
+         }
+      };
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(delegate, 1024);
+      MockDeploymentUnit deployment = new MockDeploymentUnit("Bounded");
+      EjbReference[] frequent =
+      {new EjbReference(null, "Frequent1", null), new EjbReference(null, "Frequent2", null)};
+
+      for (int i = 0; i < 10; i++)
+      {
+         for (EjbReference reference : frequent)
+         {
+            resolver.resolveEjb(deployment, reference);
+         }
+      }
+      Assert.assertEquals("Unexpected number of cache misses", frequent.length, resolver.getCacheMisses());
+
+      // a validation pass through many references, each resolved once
+      for (int i = 0; i < 100; i++)
+      {
+         resolver.resolveEjb(deployment, new EjbReference(null, "OneOff" + i, null));
+         Assert.assertTrue("Maximum weight exceeded", resolver.getWeightedSize() <= resolver.getMaximumWeight());
+      }
+      Assert.assertTrue("Nothing evicted", resolver.getEvictionCount() > 0);
+
+      long misses = resolver.getCacheMisses();
+      for (EjbReference reference : frequent)
+      {
+         Assert.assertEquals("jndi/" + reference.getBeanInterface(), resolver.resolveEjb(deployment, reference));
+      }
+      Assert.assertEquals("Frequent resolutions were evicted", misses, resolver.getCacheMisses());
+
+      resolver.undeploy(deployment);
+      Assert.assertEquals("Weight of undeployed deployment still accounted", 0, resolver.getWeightedSize());
+   }
+
+   /**
+    * Tests that undeploying a deployment only releases the weight of its own resolutions
+    */
+   @Test
+   public void testUndeployReleasesOnlyItsWeight()
+   {
+      EjbReferenceResolver delegate = new EjbReferenceResolver()
+      {
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            return "jndi/" + reference.getBeanInterface();
+         }
+      };
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(delegate, 64 * 1024);
+      MockDeploymentUnit undeployed = new MockDeploymentUnit("Undeployed");
+      MockDeploymentUnit kept = new MockDeploymentUnit("Kept");
+      for (int i = 0; i < 10; i++)
+      {
+         resolver.resolveEjb(undeployed, new EjbReference(null, "Interface" + i, null));
+         resolver.resolveEjb(kept, new EjbReference(null, "Interface" + i, null));
+      }
+      long weight = resolver.getWeightedSize();
+      Assert.assertTrue("Resolutions not accounted", weight > 0);
+
+      resolver.undeploy(undeployed);
+      Assert.assertEquals("Unexpected weight after undeploy", weight / 2, resolver.getWeightedSize());
+
+      long misses = resolver.getCacheMisses();
+      for (int i = 0; i < 10; i++)
+      {
+         resolver.resolveEjb(kept, new EjbReference(null, "Interface" + i, null));
+      }
+      Assert.assertEquals("Resolutions of the other deployment were evicted", misses, resolver.getCacheMisses());
+      Assert.assertEquals("Resolutions of the other deployment were re-admitted", weight / 2,
+            resolver.getWeightedSize());
+
+      resolver.undeploy(kept);
+      Assert.assertEquals("Weight of undeployed deployment still accounted", 0, resolver.getWeightedSize());
+   }
+
+   private void stress(final ConcurrentEjbReferenceResolver resolver) throws Exception
+   {
+      // the currently deployed deployments
+      final AtomicReferenceArray<MockDeploymentUnit> deployments = new AtomicReferenceArray<MockDeploymentUnit>(
+            DEPLOYMENT_COUNT);
+      for (int i = 0; i < DEPLOYMENT_COUNT; i++)
+      {
+         MockDeploymentUnit deployment = createDeployment("Deployment " + i);
+         deployments.set(i, deployment);
+         resolver.deploy(deployment);
+      }
+
+      final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+      final AtomicBoolean done = new AtomicBoolean();
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(RESOLVER_THREAD_COUNT + 1);
+
+      // keeps redeploying the deployments
+      executor.submit(new Runnable()
+      {
+         public void run()
+         {
+            Random random = new Random();
+            int generation = 0;
+            try
+            {
+               start.await();
+               while (!done.get())
+               {
+                  int slot = random.nextInt(DEPLOYMENT_COUNT);
+                  MockDeploymentUnit redeployed = createDeployment("Deployment " + slot + " #" + (++generation));
+                  MockDeploymentUnit undeployed = deployments.getAndSet(slot, redeployed);
+                  resolver.undeploy(undeployed);
+                  resolver.deploy(redeployed);
+                  Thread.yield();
+               }
+            }
+            catch (Throwable t)
+            {
+               failures.add(t);
+            }
+         }
+      });
+
+      // resolve from random units of random deployments
+      final CountDownLatch resolversDone = new CountDownLatch(RESOLVER_THREAD_COUNT);
+      for (int t = 0; t < RESOLVER_THREAD_COUNT; t++)
+      {
+         executor.submit(new Runnable()
+         {
+            public void run()
+            {
+               Random random = new Random();
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < RESOLUTIONS_PER_THREAD; i++)
+                  {
+                     DeploymentUnit deployment = deployments.get(random.nextInt(DEPLOYMENT_COUNT));
+                     DeploymentUnit from = pickUnit(deployment, random);
+                     int ref = random.nextInt(REFERENCES.length);
+                     String jndiName = resolver.resolveEjb(from, REFERENCES[ref]);
+                     // the jndi-name of another generation would be stale
+                     String expected = GenerationEjbReferenceResolver.getJndiName(from, EXPECTED_JNDI_NAMES[ref]);
+                     if (!expected.equals(jndiName))
+                     {
+                        throw new AssertionError("Resolved " + REFERENCES[ref] + " from " + from + " to " + jndiName
+                              + ", expected " + expected);
+                     }
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failures.add(t);
+               }
+               finally
+               {
+                  resolversDone.countDown();
+               }
+            }
+         });
+      }
+
+      start.countDown();
+      boolean finished = resolversDone.await(5, TimeUnit.MINUTES);
+      done.set(true);
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+
+      for (Throwable failure : failures)
+      {
+         logger.error("Failure during concurrent resolution", failure);
+      }
+      Assert.assertTrue("Resolver threads did not finish in time", finished);
+      Assert.assertTrue("Concurrent resolution failed: " + failures.peek(), failures.isEmpty());
+      Assert.assertTrue("Cache was never hit", resolver.getCacheHits() > 0);
+      logger.info("Cache hits: " + resolver.getCacheHits() + ", misses: " + resolver.getCacheMisses());
+
+      // resolutions racing with the undeployments mustn't have left caches behind
+      Assert.assertTrue("Caches of undeployed deployments were kept: " + resolver.getCachedDeploymentCount(),
+            resolver.getCachedDeploymentCount() <= DEPLOYMENT_COUNT);
+      for (int i = 0; i < DEPLOYMENT_COUNT; i++)
+      {
+         resolver.undeploy(deployments.get(i));
+      }
+      Assert.assertEquals("Caches of undeployed deployments were kept", 0, resolver.getCachedDeploymentCount());
+      Assert.assertEquals("Weight of undeployed deployments still accounted", 0, resolver.getWeightedSize());
+   }
+
+   /**
+    * Creates a fully wired deployment:
+    *
+    * Parent (ParentBean)
+    * |------ Child 1 (Child1Bean)
+    * |         |------ Nested Child (NestedChildBean)
+    * |------ Child 2 (Child2Bean and Child3Bean)
+    */
+   private static MockDeploymentUnit createDeployment(String name)
+   {
+      MockDeploymentUnit parent = new MockDeploymentUnit(name);
+      parent.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, parentMetaData);
+      MockDeploymentUnit child1 = new MockDeploymentUnit(name + "/Child 1", parent);
+      child1.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child1MetaData);
+      MockDeploymentUnit child2 = new MockDeploymentUnit(name + "/Child 2", parent);
+      child2.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child2MetaData);
+      MockDeploymentUnit nestedChild = new MockDeploymentUnit(name + "/Nested Child", child1);
+      nestedChild.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            nestedChildMetaData);
+      parent.addChild(child1);
+      parent.addChild(child2);
+      child1.addChild(nestedChild);
+      return parent;
+   }
+
+   /**
+    * Returns a random unit out of the passed deployment
+    */
+   private static DeploymentUnit pickUnit(DeploymentUnit deployment, Random random)
+   {
+      switch (random.nextInt(4))
+      {
+         case 0 :
+            return deployment;
+         case 1 :
+            return deployment.getChildren().get(0);
+         case 2 :
+            return deployment.getChildren().get(1);
+         default :
+            return deployment.getChildren().get(0).getChildren().get(0);
+      }
+   }
+
+   /**
+    * Qualifies the jndi-names resolved by a delegate with the name of the deployment they were
+    * resolved from, so that each generation of a deployment resolves to its own jndi-names
+    */
+   private static class GenerationEjbReferenceResolver implements EjbReferenceResolver
+   {
+      private final EjbReferenceResolver delegate;
+
+      GenerationEjbReferenceResolver(EjbReferenceResolver delegate)
+      {
+         this.delegate = delegate;
+      }
+
+      public String resolveEjb(DeploymentUnit du, EjbReference reference)
+      {
+         String jndiName = this.delegate.resolveEjb(du, reference);
+         return jndiName == null ? null : getJndiName(du, jndiName);
+      }
+
+      static String getJndiName(DeploymentUnit du, String jndiName)
+      {
+         return du.getTopLevel().getName() + "/" + jndiName;
+      }
+   }
+
+}
@@ -0,0 +1,655 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AdaptiveIndexingPolicy;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AmbiguityReport;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.BeanDescriptor;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FrozenDeploymentIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FrozenEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ShadowEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.SymbolTable;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.AaBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.BBBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1CommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1RemoteBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2And3CommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Echo;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.InterDuCommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.PrefixingEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the resolution of references through a {@link DeploymentTreeIndex} and the
+ * incremental maintenance of the index when a nested unit is redeployed
+ *
+ * @version $Revision: $
+ */
+public class DeploymentTreeIndexUnitTestCase
+{
+
+   private static JBossMetaData parentMetaData;
+
+   private static JBossMetaData child1MetaData;
+
+   private static JBossMetaData child2MetaData;
+
+   private static JBossMetaData nestedChildMetaData;
+
+   private static final EjbReference[] REFERENCES =
+   {new EjbReference(null, ParentLocalBusiness.class.getName(), null),
+         new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+         new EjbReference(null, Child1CommonBusiness.class.getName(), null),
+         new EjbReference(null, Child2LocalBusiness.class.getName(), null),
+         new EjbReference(Child3Bean.class.getSimpleName(), Child2And3CommonBusiness.class.getName(), null),
+         new EjbReference(null, Child2And3CommonBusiness.class.getName(), null),
+         new EjbReference(null, NestedChildLocalBusiness.class.getName(), null),
+         new EjbReference(null, Child2Bean.class.getName(), null)};
+
+   @BeforeClass
+   public static void beforeClass() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      parentMetaData = creator.create(Arrays.<Class<?>> asList(ParentBean.class));
+      child1MetaData = creator.create(Arrays.<Class<?>> asList(Child1Bean.class));
+      child2MetaData = creator.create(Arrays.<Class<?>> asList(Child2Bean.class, Child3Bean.class));
+      nestedChildMetaData = creator.create(Arrays.<Class<?>> asList(NestedChildBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(parentMetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(child1MetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(child2MetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(nestedChildMetaData, cl);
+   }
+
+   /**
+    * Tests that resolving through the index gives the same results (and errors) as resolving
+    * without it, from every unit of the deployment
+    */
+   @Test
+   public void testIndexedResolutionIsEquivalent()
+   {
+      this.assertEquivalent(new FirstMatchEjbReferenceResolver());
+      this.assertEquivalent(new ScopedEJBReferenceResolver());
+   }
+
+   /**
+    * Tests that the resolutions of a frozen tree are those of the first match resolver without
+    * an index, and that replacing a unit thaws the tree
+    */
+   @Test
+   public void testFrozenResolutionIsEquivalent()
+   {
+      MockDeploymentUnit plain = createDeployment("plain");
+      MockDeploymentUnit frozen = createDeployment("frozen");
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(frozen);
+      FrozenDeploymentIndex frozenIndex = index.freeze();
+      Assert.assertNotNull("Deployment not frozen", frozenIndex);
+      Assert.assertSame("Frozen index not kept", frozenIndex, index.getFrozenIndex());
+
+      EjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      List<DeploymentUnit> plainUnits = getUnits(plain);
+      List<DeploymentUnit> frozenUnits = getUnits(frozen);
+      for (int u = 0; u < plainUnits.size(); u++)
+      {
+         for (EjbReference reference : REFERENCES)
+         {
+            Assert.assertEquals("Different result for " + reference + " from " + frozenUnits.get(u), resolve(
+                  resolver, plainUnits.get(u), reference), resolve(resolver, frozenUnits.get(u), reference));
+         }
+      }
+      // every reference which resolves without failing is frozen
+      for (EjbReference reference : REFERENCES)
+      {
+         String jndiName = resolve(resolver, plain, reference);
+         if (jndiName.indexOf("Exception") < 0)
+         {
+            Assert.assertEquals("Not frozen: " + reference, jndiName, frozenIndex.resolveEjb(reference));
+         }
+      }
+      Assert.assertNull("Unknown key found", frozenIndex.resolveEjb(new EjbReference(null, "NoSuchInterface", null)));
+      Assert.assertTrue("Names not compacted: " + frozenIndex.getNames(), frozenIndex.getNames().getSavedBytes() > 0);
+
+      index.replace(frozen.getChildren().get(1), frozen.getChildren().get(1));
+      Assert.assertNull("Replacing a unit didn't thaw the tree", index.getFrozenIndex());
+   }
+
+   /**
+    * Tests that a tree with a bean whose interfaces can't all be loaded is frozen, and that the
+    * references which would fail on that bean are left to the usual resolution
+    */
+   @Test
+   public void testFreezeWithUnloadableInterface()
+   {
+      MockDeploymentUnit plain = createDeployment("plain-unloadable");
+      MockDeploymentUnit frozen = createDeployment("frozen-unloadable");
+      ClassLoader cl = new ClassLoader(Thread.currentThread().getContextClassLoader())
+      {
+         @Override
+         protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+         {
+            if (name.equals(Child1RemoteBusiness.class.getName()))
+            {
+               throw new ClassNotFoundException(name);
+            }
+            return super.loadClass(name, resolve);
+         }
+      };
+      ((MockDeploymentUnit) plain.getChildren().get(0)).setClassLoader(cl);
+      ((MockDeploymentUnit) frozen.getChildren().get(0)).setClassLoader(cl);
+
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(frozen);
+      Assert.assertFalse("Inheritance of Child1Bean known", index.getDeploymentUnitIndex(frozen.getChildren().get(0))
+            .getSessionBeans().get(0).isInheritanceKnown());
+      FrozenDeploymentIndex frozenIndex = index.freeze();
+      Assert.assertNotNull("Deployment not frozen", frozenIndex);
+
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      FirstMatchEjbReferenceResolver scan = new FirstMatchEjbReferenceResolver();
+      scan.setIndexUsed(false);
+      List<DeploymentUnit> plainUnits = getUnits(plain);
+      List<DeploymentUnit> frozenUnits = getUnits(frozen);
+      for (int u = 0; u < plainUnits.size(); u++)
+      {
+         for (EjbReference reference : REFERENCES)
+         {
+            Assert.assertEquals("Different result for " + reference + " from " + frozenUnits.get(u), resolve(scan,
+                  plainUnits.get(u), reference), resolve(resolver, frozenUnits.get(u), reference));
+         }
+      }
+      Assert.assertNull("Failing reference frozen", frozenIndex.resolveEjb(new EjbReference(null,
+            Child1CommonBusiness.class.getName(), null)));
+   }
+
+   /**
+    * Tests that a tree with keys of the same hash, which no seed can tell apart, is still frozen
+    */
+   @Test
+   public void testFreezeWithCollidingKeys()
+   {
+      Assert.assertEquals("Names don't collide", AaBean.class.getSimpleName().hashCode(), BBBean.class
+            .getSimpleName().hashCode());
+      JBossMetaData metadata = new JBoss50Creator(new DefaultAnnotationFinder<AnnotatedElement>()).create(Arrays
+            .<Class<?>> asList(AaBean.class, BBBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(metadata, Thread.currentThread().getContextClassLoader());
+      MockDeploymentUnit du = new MockDeploymentUnit("colliding");
+      du.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setIndexUsed(false);
+      EjbReference aa = new EjbReference(AaBean.class.getSimpleName(), Echo.class.getName(), null);
+      EjbReference bb = new EjbReference(BBBean.class.getSimpleName(), Echo.class.getName(), null);
+      FrozenDeploymentIndex frozenIndex = DeploymentTreeIndex.attach(du).freeze();
+      Assert.assertNotNull("Deployment not frozen", frozenIndex);
+      Assert.assertEquals("Different result for " + aa, resolver.resolveEjb(du, aa), frozenIndex.resolveEjb(aa));
+      Assert.assertEquals("Different result for " + bb, resolver.resolveEjb(du, bb), frozenIndex.resolveEjb(bb));
+      Assert.assertNull("Unknown key found", frozenIndex.resolveEjb(new EjbReference("NoSuchBean", Echo.class
+            .getName(), null)));
+   }
+
+   /**
+    * Tests that the {@link FrozenEjbReferenceResolver} answers the frozen references by itself
+    * and delegates the others
+    */
+   @Test
+   public void testFrozenEjbReferenceResolver()
+   {
+      MockDeploymentUnit frozen = createDeployment("frozen");
+      DeploymentTreeIndex.attach(frozen).freeze();
+      final AtomicInteger delegated = new AtomicInteger();
+      final EjbReferenceResolver firstMatch = new FirstMatchEjbReferenceResolver();
+      EjbReferenceResolver resolver = new FrozenEjbReferenceResolver(new FirstMatchEjbReferenceResolver()
+      {
+         @Override
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            delegated.incrementAndGet();
+            return super.resolveEjb(du, reference);
+         }
+      });
+
+      DeploymentUnit nestedChild = frozen.getChildren().get(0).getChildren().get(0);
+      for (EjbReference reference : REFERENCES)
+      {
+         Assert.assertEquals("Different result for " + reference, resolve(firstMatch, nestedChild, reference),
+               resolve(resolver, nestedChild, reference));
+      }
+      // only the ambiguous Child1CommonBusiness and Child2And3CommonBusiness, and the bean class
+      // of Child2Bean (no no-interface view in EJB 3.0), aren't frozen
+      Assert.assertEquals("Unexpected number of delegated resolutions", 3, delegated.get());
+   }
+
+   /**
+    * Tests that the {@link FrozenEjbReferenceResolver} leaves every reference to its delegate when the
+    * frozen resolutions aren't those of the delegate: a scoped resolver, a resolver which doesn't use
+    * the index and a resolver which creates other jndi-names than the index
+    */
+   @Test
+   public void testFrozenEjbReferenceResolverDelegates()
+   {
+      MockDeploymentUnit frozen = createDeployment("frozen");
+      DeploymentTreeIndex.attach(frozen).freeze();
+      final AtomicInteger delegated = new AtomicInteger();
+      FirstMatchEjbReferenceResolver unindexed = new FirstMatchEjbReferenceResolver()
+      {
+         @Override
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            delegated.incrementAndGet();
+            return super.resolveEjb(du, reference);
+         }
+      };
+      unindexed.setIndexUsed(false);
+      PrefixingEjbReferenceResolver prefixing = new PrefixingEjbReferenceResolver();
+      prefixing.setPrefix("prefixed/");
+      final MetaDataBasedEjbReferenceResolver prefixingResolver = prefixing;
+      List<EjbReferenceResolver> delegates = Arrays.<EjbReferenceResolver> asList(new ScopedEJBReferenceResolver()
+      {
+         @Override
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            delegated.incrementAndGet();
+            return super.resolveEjb(du, reference);
+         }
+      }, unindexed, new FirstMatchEjbReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = prefixingResolver;
+         }
+
+         @Override
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            delegated.incrementAndGet();
+            return super.resolveEjb(du, reference);
+         }
+      });
+
+      for (EjbReferenceResolver delegate : delegates)
+      {
+         EjbReferenceResolver resolver = new FrozenEjbReferenceResolver(delegate);
+         for (DeploymentUnit du : getUnits(frozen))
+         {
+            for (EjbReference reference : REFERENCES)
+            {
+               delegated.set(0);
+               String expected = resolve(delegate, du, reference);
+               Assert.assertEquals("Different result for " + reference + " from " + du + " in front of "
+                     + delegate, expected, resolve(resolver, du, reference));
+               Assert.assertEquals("Frozen resolution used in front of " + delegate, 2, delegated.get());
+            }
+         }
+      }
+   }
+
+   /**
+    * Tests that the {@link ShadowEjbReferenceResolver} finds no mismatch between the indexed resolution
+    * of a frozen tree and the scan of its metadata, and counts the mismatches of a wrong resolver
+    */
+   @Test
+   public void testShadowVerification() throws Exception
+   {
+      MockDeploymentUnit frozen = createDeployment("shadow");
+      DeploymentTreeIndex.attach(frozen).freeze();
+      FirstMatchEjbReferenceResolver scan = new FirstMatchEjbReferenceResolver();
+      scan.setIndexUsed(false);
+      ShadowEjbReferenceResolver shadow = new ShadowEjbReferenceResolver(new FirstMatchEjbReferenceResolver(), scan,
+            1, null);
+      for (DeploymentUnit du : getUnits(frozen))
+      {
+         for (EjbReference reference : REFERENCES)
+         {
+            Assert.assertEquals("Different result for " + reference, resolve(scan, du, reference), resolve(shadow,
+                  du, reference));
+         }
+      }
+      Assert.assertEquals("Not all checked: " + shadow, 4 * REFERENCES.length, shadow.getVerifiedCount());
+      Assert.assertEquals("Mismatches: " + shadow, 0, shadow.getMismatchCount());
+
+      // half the resolutions of a wrong resolver are checked, in the background
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      shadow = new ShadowEjbReferenceResolver(new EjbReferenceResolver()
+      {
+         public String resolveEjb(DeploymentUnit du, EjbReference reference)
+         {
+            return "wrong";
+         }
+      }, scan, 0.5, executor);
+      EjbReference reference = new EjbReference(null, ParentLocalBusiness.class.getName(), null);
+      for (int i = 0; i < 10; i++)
+      {
+         Assert.assertEquals("Primary result not returned", "wrong", shadow.resolveEjb(frozen, reference));
+      }
+      executor.shutdown();
+      Assert.assertTrue("Checks not done", executor.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertEquals("Unexpected sample: " + shadow, 5, shadow.getVerifiedCount());
+      Assert.assertEquals("Mismatches not counted: " + shadow, 5, shadow.getMismatchCount());
+   }
+
+   /**
+    * Tests that redeploying a nested unit only re-indexes that unit and only invalidates
+    * the cached resolutions which depend on it
+    */
+   @Test
+   public void testRedeployNestedUnit()
+   {
+      MockDeploymentUnit parent = createDeployment("ear");
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(parent);
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(new ScopedEJBReferenceResolver());
+
+      EjbReference[] references =
+      {new EjbReference(null, ParentLocalBusiness.class.getName(), null),
+            new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+            new EjbReference(null, NestedChildLocalBusiness.class.getName(), null),
+            new EjbReference(null, Child2LocalBusiness.class.getName(), null),
+            new EjbReference(Child3Bean.class.getSimpleName(), Child2And3CommonBusiness.class.getName(), null)};
+      String[] jndiNames = new String[references.length];
+      for (int i = 0; i < references.length; i++)
+      {
+         jndiNames[i] = resolver.resolveEjb(parent, references[i]);
+      }
+      Assert.assertEquals("Unexpected number of indexed units", 4, index.getIndexedDeploymentUnitCount());
+      Assert.assertEquals("Unexpected number of cache misses", references.length, resolver.getCacheMisses());
+
+      // hot-redeploy Child 2
+      List<DeploymentUnit> children = parent.getChildren();
+      DeploymentUnit child2 = children.get(1);
+      MockDeploymentUnit redeployedChild2 = new MockDeploymentUnit("ear/Child 2", parent);
+      redeployedChild2.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            child2MetaData);
+      children.set(1, redeployedChild2);
+      DeploymentTreeIndex.Change change = index.replace(child2, redeployedChild2);
+      resolver.redeploy(change);
+      Assert.assertEquals("Unexpected number of indexed units", 4, index.getIndexedDeploymentUnitCount());
+      Assert.assertEquals("Unexpected number of changed contributions", 2, change.getContributions().size());
+
+      for (int i = 0; i < references.length; i++)
+      {
+         Assert.assertEquals(jndiNames[i], resolver.resolveEjb(parent, references[i]));
+      }
+      // only the references to the beans of Child 2 had to be resolved again
+      Assert.assertEquals("Unexpected number of cache hits", 3, resolver.getCacheHits());
+      Assert.assertEquals("Unexpected number of cache misses", references.length + 2, resolver.getCacheMisses());
+   }
+
+   /**
+    * Tests that the index of a unit which is replaced while it's being built isn't kept
+    */
+   @Test
+   public void testReplaceWhileIndexing()
+   {
+      final MockDeploymentUnit parent = createDeployment("racing");
+      final List<DeploymentUnit> children = parent.getChildren();
+      final DeploymentUnit child2 = children.get(1);
+      final MockDeploymentUnit redeployedChild2 = new MockDeploymentUnit("racing/Child 2", parent);
+      redeployedChild2.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            child2MetaData);
+      final DeploymentTreeIndex[] index = new DeploymentTreeIndex[1];
+      index[0] = new DeploymentTreeIndex(parent, new EJB30MetaDataBasedEjbReferenceResolver()
+      {
+         @Override
+         public BeanDescriptor createBeanDescriptor(JBossSessionBeanMetaData sessionBean, ClassLoader cl,
+               SymbolTable symbols)
+         {
+            // Child 2 is redeployed while a reader is still indexing it
+            if (children.get(1) == child2)
+            {
+               children.set(1, redeployedChild2);
+               index[0].replace(child2, redeployedChild2);
+            }
+            return super.createBeanDescriptor(sessionBean, cl, symbols);
+         }
+      });
+
+      Assert.assertNotNull("No index of the replaced unit", index[0].getDeploymentUnitIndex(child2));
+      Assert.assertFalse("Replaced unit kept in the index", index[0].isIndexed(child2));
+      Assert.assertTrue("Redeployed unit not indexed", index[0].isIndexed(redeployedChild2));
+      Assert.assertEquals("Unexpected number of indexed units", 1, index[0].getIndexedDeploymentUnitCount());
+   }
+
+   /**
+    * Tests that the indexes of a tree are built again, and the tree thawed, once the jndi-names
+    * resolved by the resolver which extracts their descriptors change
+    */
+   @Test
+   public void testDescriptorVersionChange()
+   {
+      final PrefixingEjbReferenceResolver metadataResolver = new PrefixingEjbReferenceResolver();
+      MockDeploymentUnit parent = createDeployment("prefixed");
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(parent, metadataResolver);
+      Assert.assertNotNull("Deployment not frozen", index.freeze());
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = metadataResolver;
+         }
+      };
+      Assert.assertFalse("Resolver of another type is compatible", index
+            .isCompatibleWith(new EJB30MetaDataBasedEjbReferenceResolver()));
+
+      EjbReference reference = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      String jndiName = resolver.resolveEjb(parent, reference);
+      metadataResolver.setPrefix("v2/");
+      Assert.assertNull("Tree still frozen", index.getFrozenIndex());
+      Assert.assertEquals("v2/" + jndiName, resolver.resolveEjb(parent, reference));
+      Assert.assertTrue("Unit not indexed again", index.isIndexed(parent.getChildren().get(0)));
+   }
+
+   /**
+    * Tests that the {@link AdaptiveIndexingPolicy} indexes a tree once enough references have been resolved
+    * within it, leaves its units of a single bean unindexed, and indexes a deep tree straight away
+    */
+   @Test
+   public void testAdaptiveIndexing()
+   {
+      MockDeploymentUnit plain = createDeployment("plain");
+      FirstMatchEjbReferenceResolver scan = new FirstMatchEjbReferenceResolver();
+      scan.setIndexingPolicy(null);
+
+      MockDeploymentUnit adaptive = createDeployment("adaptive");
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      Assert.assertNull("Adaptive indexing not opt-in", resolver.getIndexingPolicy());
+      AdaptiveIndexingPolicy policy = new AdaptiveIndexingPolicy();
+      resolver.setIndexingPolicy(policy);
+      policy.setMinimumResolutionCount(REFERENCES.length + 2);
+      for (EjbReference reference : REFERENCES)
+      {
+         Assert.assertEquals("Different result for " + reference, resolve(scan, plain, reference), resolve(resolver,
+               adaptive, reference));
+      }
+      Assert.assertNull("Indexed too early", DeploymentTreeIndex.getDeploymentTreeIndex(adaptive));
+      Assert.assertNull("Scanning resolver profiled the tree", AdaptiveIndexingPolicy.getProfile(plain));
+      AdaptiveIndexingPolicy.TreeProfile profile = AdaptiveIndexingPolicy.getProfile(adaptive);
+      Assert.assertEquals("Wrong bean count", 5, profile.getBeanCount());
+      Assert.assertEquals("Wrong depth", 3, profile.getDepth());
+      Assert.assertEquals("Wrong strategy", AdaptiveIndexingPolicy.Strategy.SCAN, profile.getStrategy());
+
+      for (int i = 0; i < 2; i++)
+      {
+         for (EjbReference reference : REFERENCES)
+         {
+            Assert.assertEquals("Different result for " + reference, resolve(scan, plain, reference), resolve(
+                  resolver, adaptive, reference));
+         }
+      }
+      DeploymentTreeIndex index = DeploymentTreeIndex.getDeploymentTreeIndex(adaptive);
+      Assert.assertNotNull("Not indexed: " + policy, index);
+      Assert.assertTrue("Not adaptive", index.isAdaptive());
+      Assert.assertEquals("Wrong strategy", AdaptiveIndexingPolicy.Strategy.INDEX, profile.getStrategy());
+      Assert.assertEquals("Unexpected number of indexed trees", 1, policy.getIndexedTreeCount());
+      // only Child 2 has more than one bean
+      Assert.assertEquals("Unexpected number of indexed units", 1, index.getIndexedDeploymentUnitCount());
+      Assert.assertTrue("Child 2 not indexed", index.isIndexed(adaptive.getChildren().get(1)));
+      Assert.assertTrue("No unit scanned: " + policy, policy.getScannedUnitCount() > 0);
+
+      MockDeploymentUnit deep = createDeployment("deep");
+      policy.setDeepTreeDepth(3);
+      resolve(resolver, deep, REFERENCES[0]);
+      Assert.assertNotNull("Deep tree not indexed: " + policy, DeploymentTreeIndex.getDeploymentTreeIndex(deep));
+   }
+
+   /**
+    * Tests that the interfaces which are ambiguous within a unit are all found when the unit
+    * is indexed, and that references to them fail just like without an index
+    */
+   @Test
+   public void testAmbiguityReport()
+   {
+      MockDeploymentUnit parent = createDeployment("ear");
+      DeploymentTreeIndex index = DeploymentTreeIndex.attach(parent);
+      for (DeploymentUnit du : getUnits(parent))
+      {
+         index.getDeploymentUnitIndex(du);
+      }
+
+      // Child2And3CommonBusiness and InterDuCommonBusiness are exposed by both beans of Child 2,
+      // Child1CommonBusiness is extended by both the business interfaces of Child1Bean
+      AmbiguityReport report = index.getAmbiguityReport();
+      Assert.assertEquals("Unexpected ambiguities: " + report, 3, report.getAmbiguities().size());
+      DeploymentUnit child2 = parent.getChildren().get(1);
+      for (AmbiguityReport.Ambiguity ambiguity : report.getAmbiguities())
+      {
+         if (ambiguity.getAmbiguousWithin() != null)
+         {
+            Assert.assertEquals("Unexpected ambiguous interface", Child1CommonBusiness.class.getName(), ambiguity
+                  .getBeanInterface());
+            Assert.assertEquals("Unexpected bean", Child1Bean.class.getSimpleName(), ambiguity.getAmbiguousWithin()
+                  .getEjbName());
+            continue;
+         }
+         Assert.assertSame("Unexpected unit", child2, ambiguity.getDeploymentUnit());
+         Assert.assertEquals("Unexpected number of beans", 2, ambiguity.getSessionBeans().size());
+      }
+
+      MockDeploymentUnit plain = createDeployment("plain");
+      EjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      for (String beanInterface : new String[]
+      {Child2And3CommonBusiness.class.getName(), InterDuCommonBusiness.class.getName(),
+            Child1CommonBusiness.class.getName()})
+      {
+         EjbReference reference = new EjbReference(null, beanInterface, null);
+         Assert.assertEquals("Different result for " + reference, resolve(resolver, plain.getChildren().get(1),
+               reference), resolve(resolver, child2, reference));
+      }
+   }
+
+   private void assertEquivalent(EjbReferenceResolver resolver)
+   {
+      MockDeploymentUnit plain = createDeployment("plain");
+      MockDeploymentUnit indexed = createDeployment("indexed");
+      DeploymentTreeIndex.attach(indexed);
+
+      List<DeploymentUnit> plainUnits = getUnits(plain);
+      List<DeploymentUnit> indexedUnits = getUnits(indexed);
+      for (int u = 0; u < plainUnits.size(); u++)
+      {
+         for (EjbReference reference : REFERENCES)
+         {
+            Assert.assertEquals("Different result for " + reference + " from " + indexedUnits.get(u), resolve(
+                  resolver, plainUnits.get(u), reference), resolve(resolver, indexedUnits.get(u), reference));
+         }
+      }
+   }
+
+   /**
+    * Returns the jndi-name the reference resolves to, or the type of the exception the
+    * resolution fails with
+    */
+   private static String resolve(EjbReferenceResolver resolver, DeploymentUnit du, EjbReference reference)
+   {
+      try
+      {
+         return resolver.resolveEjb(du, reference);
+      }
+      catch (RuntimeException e)
+      {
+         return e.getClass().getName();
+      }
+   }
+
+   private static List<DeploymentUnit> getUnits(DeploymentUnit parent)
+   {
+      DeploymentUnit child1 = parent.getChildren().get(0);
+      return Arrays.asList(parent, child1, child1.getChildren().get(0), parent.getChildren().get(1));
+   }
+
+   /**
+    * Creates a fully wired deployment:
+    *
+    * Parent (ParentBean)
+    * |------ Child 1 (Child1Bean)
+    * |         |------ Nested Child (NestedChildBean)
+    * |------ Child 2 (Child2Bean and Child3Bean)
+    */
+   private static MockDeploymentUnit createDeployment(String name)
+   {
+      MockDeploymentUnit parent = new MockDeploymentUnit(name);
+      parent.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, parentMetaData);
+      MockDeploymentUnit child1 = new MockDeploymentUnit(name + "/Child 1", parent);
+      child1.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child1MetaData);
+      MockDeploymentUnit child2 = new MockDeploymentUnit(name + "/Child 2", parent);
+      child2.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child2MetaData);
+      MockDeploymentUnit nestedChild = new MockDeploymentUnit(name + "/Nested Child", child1);
+      nestedChild.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+            nestedChildMetaData);
+      parent.addChild(child1);
+      parent.addChild(child2);
+      child1.addChild(nestedChild);
+      return parent;
+   }
+}
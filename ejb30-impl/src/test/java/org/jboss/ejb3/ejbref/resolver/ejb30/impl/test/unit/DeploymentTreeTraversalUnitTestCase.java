@@ -0,0 +1,298 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the iterative walks of the {@link FirstMatchEjbReferenceResolver} and the
+ * {@link ScopedEJBReferenceResolver} visit the {@link DeploymentUnit}s in the same order as
+ * the former recursive walks, and that they cope with very deep trees
+ *
+ * @version $Revision: $
+ */
+public class DeploymentTreeTraversalUnitTestCase
+{
+
+   private static final EjbReference REFERENCE = new EjbReference(null, ParentLocalBusiness.class.getName(), null);
+
+   /**
+    * Tests the visit order on random trees, from every unit
+    */
+   @Test
+   public void testVisitOrder()
+   {
+      Random random = new Random(2176);
+      for (int i = 0; i < 50; i++)
+      {
+         List<DeploymentUnit> units = new ArrayList<DeploymentUnit>();
+         createRandomTree(random, 1 + random.nextInt(60), units);
+         for (DeploymentUnit from : units)
+         {
+            Assert.assertEquals("Unexpected first match visit order from " + from, recursiveFirstMatchOrder(from),
+                  firstMatchOrder(from));
+            Assert.assertEquals("Unexpected scoped visit order from " + from, recursiveScopedOrder(from),
+                  scopedOrder(from));
+         }
+      }
+   }
+
+   /**
+    * Tests that the scoped walk adds each unit it scans to the already scanned ones, and skips
+    * the units which were already scanned
+    */
+   @Test
+   public void testAlreadyScannedUnits()
+   {
+      Random random = new Random(3187);
+      for (int i = 0; i < 20; i++)
+      {
+         List<DeploymentUnit> units = new ArrayList<DeploymentUnit>();
+         createRandomTree(random, 1 + random.nextInt(30), units);
+         for (DeploymentUnit from : units)
+         {
+            RecordingScopedResolver resolver = new RecordingScopedResolver();
+            Set<DeploymentUnit> scanned = new HashSet<DeploymentUnit>();
+            Assert.assertNull(resolver.walk(from, scanned));
+            Assert.assertEquals("Scanned units not recorded from " + from, new HashSet<DeploymentUnit>(units),
+                  scanned);
+
+            // a second walk has nothing left to scan but the unit it starts from and its ancestors
+            resolver.visited.clear();
+            Assert.assertNull(resolver.walk(from, scanned));
+            for (DeploymentUnit du : resolver.visited)
+            {
+               Assert.assertTrue("Scanned " + du + " again from " + from, isAncestor(du, from));
+            }
+         }
+      }
+   }
+
+   /**
+    * Tests the resolution from the deepest unit of a 10,000 levels deep tree, whose
+    * only bean is in the top level unit
+    */
+   @Test
+   public void testDeepTree() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBossMetaData metadata = new JBoss50Creator(finder).create(Arrays.<Class<?>> asList(ParentBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(metadata, Thread.currentThread().getContextClassLoader());
+
+      MockDeploymentUnit root = new MockDeploymentUnit("deep");
+      root.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+      MockDeploymentUnit deepest = root;
+      for (int i = 1; i < 10000; i++)
+      {
+         MockDeploymentUnit child = new MockDeploymentUnit("deep/" + i, deepest);
+         deepest.addChild(child);
+         deepest = child;
+      }
+      String jndiName = ParentBean.class.getSimpleName() + "/local-" + ParentLocalBusiness.class.getName();
+      Assert.assertEquals(jndiName, new ScopedEJBReferenceResolver().resolveEjb(deepest, REFERENCE));
+      DeploymentTreeIndex.attach(root);
+      Assert.assertEquals(jndiName, new ScopedEJBReferenceResolver().resolveEjb(deepest, REFERENCE));
+
+      // nothing to be found in the leaf, so the whole chain gets walked
+      EjbReference unresolvable = new EjbReference(null, Runnable.class.getName(), null);
+      try
+      {
+         new FirstMatchEjbReferenceResolver().resolveEjb(deepest, unresolvable);
+         Assert.fail(unresolvable + " was resolved");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+   }
+
+   private static List<DeploymentUnit> firstMatchOrder(DeploymentUnit from)
+   {
+      final List<DeploymentUnit> visited = new ArrayList<DeploymentUnit>();
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver()
+      {
+         @Override
+         protected String resolveInDeploymentUnit(DeploymentUnit du, DeploymentTreeIndex treeIndex,
+               EjbReference reference)
+         {
+            visited.add(du);
+            return null;
+         }
+      };
+      resolveQuietly(resolver, from);
+      return visited;
+   }
+
+   private static List<DeploymentUnit> scopedOrder(DeploymentUnit from)
+   {
+      final List<DeploymentUnit> visited = new ArrayList<DeploymentUnit>();
+      ScopedEJBReferenceResolver resolver = new ScopedEJBReferenceResolver()
+      {
+         @Override
+         protected String find(DeploymentUnit du, EjbReference reference)
+         {
+            visited.add(du);
+            return null;
+         }
+      };
+      resolveQuietly(resolver, from);
+      return visited;
+   }
+
+   private static boolean isAncestor(DeploymentUnit ancestor, DeploymentUnit du)
+   {
+      for (DeploymentUnit current = du; current != null; current = current.getParent())
+      {
+         if (current == ancestor)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static void resolveQuietly(EjbReferenceResolver resolver,
+         DeploymentUnit from)
+   {
+      try
+      {
+         resolver.resolveEjb(from, REFERENCE);
+         Assert.fail("Nothing should have been resolved");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+   }
+
+   /**
+    * The order in which the former recursive implementation of the {@link FirstMatchEjbReferenceResolver}
+    * visited the units
+    */
+   private static List<DeploymentUnit> recursiveFirstMatchOrder(DeploymentUnit from)
+   {
+      List<DeploymentUnit> visited = new ArrayList<DeploymentUnit>();
+      preorder(from.getTopLevel(), visited);
+      return visited;
+   }
+
+   private static void preorder(DeploymentUnit du, List<DeploymentUnit> visited)
+   {
+      visited.add(du);
+      for (DeploymentUnit child : du.getChildren())
+      {
+         preorder(child, visited);
+      }
+   }
+
+   /**
+    * The order in which the former recursive implementation of the {@link ScopedEJBReferenceResolver}
+    * first visited the units (it visited some of them more than once)
+    */
+   private static List<DeploymentUnit> recursiveScopedOrder(DeploymentUnit from)
+   {
+      Set<DeploymentUnit> visited = new LinkedHashSet<DeploymentUnit>();
+      recursiveScoped(from, new HashSet<DeploymentUnit>(), visited);
+      return new ArrayList<DeploymentUnit>(visited);
+   }
+
+   private static void recursiveScoped(DeploymentUnit du, Set<DeploymentUnit> alreadyScannedDUs,
+         Set<DeploymentUnit> visited)
+   {
+      visited.add(du);
+      for (DeploymentUnit child : du.getChildren())
+      {
+         if (alreadyScannedDUs.contains(child))
+         {
+            continue;
+         }
+         recursiveScoped(child, alreadyScannedDUs, visited);
+         alreadyScannedDUs.add(child);
+      }
+      alreadyScannedDUs.add(du);
+      if (du.getParent() != null)
+      {
+         recursiveScoped(du.getParent(), alreadyScannedDUs, visited);
+      }
+   }
+
+   private static MockDeploymentUnit createRandomTree(Random random, int size, List<DeploymentUnit> units)
+   {
+      MockDeploymentUnit root = new MockDeploymentUnit("unit 0");
+      units.add(root);
+      for (int i = 1; i < size; i++)
+      {
+         MockDeploymentUnit parent = (MockDeploymentUnit) units.get(random.nextInt(units.size()));
+         MockDeploymentUnit child = new MockDeploymentUnit("unit " + i, parent);
+         parent.addChild(child);
+         units.add(child);
+      }
+      return root;
+   }
+
+   /**
+    * A {@link ScopedEJBReferenceResolver} which records the units it scans, and resolves nothing
+    */
+   private static class RecordingScopedResolver extends ScopedEJBReferenceResolver
+   {
+      private final List<DeploymentUnit> visited = new ArrayList<DeploymentUnit>();
+
+      @Override
+      protected String find(DeploymentUnit du, EjbReference reference)
+      {
+         this.visited.add(du);
+         return null;
+      }
+
+      String walk(DeploymentUnit from, Collection<DeploymentUnit> alreadyScannedDUs)
+      {
+         return this.resolveWithinDeploymentUnit(from, alreadyScannedDUs, REFERENCE);
+      }
+   }
+}
@@ -0,0 +1,109 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentUnitIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EjbReferenceIndexDeployer;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.GlobalBeanRegistry;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the indexing of the units of a deployment by {@link EjbReferenceIndexDeployer}
+ *
+ * @version $Revision: $
+ */
+public class EjbReferenceIndexDeployerUnitTestCase
+{
+
+   /**
+    * Tests that the units are indexed, and registered, when deployed, that the resolutions use
+    * the index and that the index is dropped on undeploy
+    */
+   @Test
+   public void testDeployAndUndeploy() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      for (Class<?> bean : Arrays.<Class<?>> asList(Child1Bean.class, Child2Bean.class))
+      {
+         JBossMetaData metadata = creator.create(Arrays.<Class<?>> asList(bean));
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/" + bean.getSimpleName(), ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+
+      EjbReferenceIndexDeployer deployer = new EjbReferenceIndexDeployer();
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      deployer.setGlobalBeanRegistry(registry);
+      Assert.assertEquals("Unexpected stage", DeploymentStages.POST_CLASSLOADER, deployer.getStage());
+      Assert.assertTrue("Processed metadata not an input", deployer.getInputs().contains(
+            EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA));
+
+      deployer.deploy(ear);
+      Assert.assertNull("Unit without metadata indexed", DeploymentTreeIndex.getDeploymentTreeIndex(ear));
+      MockDeploymentUnit child1 = (MockDeploymentUnit) ear.getChildren().get(0);
+      MockDeploymentUnit child2 = (MockDeploymentUnit) ear.getChildren().get(1);
+      deployer.deploy(child1);
+      deployer.deploy(child2);
+      DeploymentTreeIndex treeIndex = DeploymentTreeIndex.getDeploymentTreeIndex(ear);
+      Assert.assertNotNull("Deployment not indexed", treeIndex);
+      Assert.assertEquals("Unexpected number of indexed units", 2, treeIndex.getIndexedDeploymentUnitCount());
+      Assert.assertEquals("Units not registered", 2, registry.getRegisteredDeploymentUnitCount());
+
+      // resolving uses the indexes built by the deployer
+      DeploymentUnitIndex child1Index = treeIndex.getDeploymentUnitIndex(child1);
+      String jndiName = new FirstMatchEjbReferenceResolver().resolveEjb(child2, new EjbReference(null,
+            Child1LocalBusiness.class.getName(), null));
+      Assert.assertEquals("Unexpected jndi-name", Child1Bean.class.getSimpleName() + "/local-"
+            + Child1LocalBusiness.class.getName(), jndiName);
+      Assert.assertSame("Unit indexed again", child1Index, treeIndex.getDeploymentUnitIndex(child1));
+
+      int indexed = treeIndex.getIndexedDeploymentUnitCount();
+      deployer.undeploy(child2);
+      Assert.assertEquals("Undeployed unit still indexed", indexed - 1, treeIndex.getIndexedDeploymentUnitCount());
+      deployer.undeploy(child1);
+      deployer.undeploy(ear);
+      Assert.assertNull("Index still attached", DeploymentTreeIndex.getDeploymentTreeIndex(ear));
+      Assert.assertEquals("Units still registered", 0, registry.getRegisteredDeploymentUnitCount());
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeclaredReference;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EjbReferenceValidator;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ValidationReport;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ReferencingBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the up front validation, by {@link EjbReferenceValidator}, of all the references of a deployment
+ *
+ * @version $Revision: $
+ */
+public class EjbReferenceValidatorUnitTestCase
+{
+
+   /**
+    * Tests that the references of all the units are resolved in parallel, that all the failures
+    * are reported and that the resolved references are cached for the injection
+    */
+   @Test
+   public void testValidateDeployment() throws Exception
+   {
+      MockDeploymentUnit ear = createDeployment();
+      List<DeclaredReference> references = EjbReferenceValidator.harvestReferences(ear);
+      Assert.assertEquals("Unexpected number of declared references", 3, references.size());
+
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(new FirstMatchEjbReferenceResolver());
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      ValidationReport report;
+      try
+      {
+         report = new EjbReferenceValidator(resolver, executor).validate(ear);
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+
+      Assert.assertFalse("Misspelt beanName not reported", report.isValid());
+      Assert.assertEquals("Unexpected number of resolved references", 2, report.getResolvedCount());
+      Assert.assertEquals("Unexpected number of failures", 1, report.getFailures().size());
+      DeclaredReference failed = report.getFailures().get(0).getReference();
+      Assert.assertEquals("Unexpected failed reference", "Chidl2Bean", failed.getReference().getBeanName());
+      Assert.assertEquals("Unexpected declaring bean", ReferencingBean.class.getSimpleName(), failed.getEjbName());
+      try
+      {
+         report.check();
+         Assert.fail("Invalid deployment passed the check");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+
+      // the injection finds the resolved references in the cache
+      for (DeclaredReference reference : references)
+      {
+         if (!failed.getRefName().equals(reference.getRefName()))
+         {
+            resolver.resolveEjb(reference.getDeploymentUnit(), reference.getReference());
+         }
+      }
+      Assert.assertEquals("Resolved references not cached", 2, resolver.getCacheHits());
+   }
+
+   /**
+    * Creates a deployment:
+    *
+    * ear
+    * |------ Child 1 (Child1Bean)
+    * |------ Child 2 (Child2Bean and Child3Bean)
+    * |------ Referencing (ReferencingBean)
+    */
+   private static MockDeploymentUnit createDeployment()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      List<List<Class<?>>> modules = Arrays.asList(Arrays.<Class<?>> asList(Child1Bean.class), Arrays
+            .<Class<?>> asList(Child2Bean.class, Child3Bean.class), Arrays.<Class<?>> asList(ReferencingBean.class));
+      for (List<Class<?>> beans : modules)
+      {
+         JBossMetaData metadata = creator.create(beans);
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/" + beans.get(0).getSimpleName(), ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+      return ear;
+   }
+}
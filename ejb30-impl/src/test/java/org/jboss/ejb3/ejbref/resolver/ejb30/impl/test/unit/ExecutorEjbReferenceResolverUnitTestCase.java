@@ -0,0 +1,190 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ExecutorEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1RemoteBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.AsyncEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the background resolution, by {@link ExecutorEjbReferenceResolver}, of batches of references
+ *
+ * @version $Revision: $
+ */
+public class ExecutorEjbReferenceResolverUnitTestCase
+{
+
+   /**
+    * Tests that a batch resolved on an executor yields the jndi-names of the synchronous
+    * resolution, in the order of the references, and that an unresolvable reference fails
+    * only its own resolution
+    */
+   @Test
+   public void testBatchResolution() throws Exception
+   {
+      MockDeploymentUnit ear = createDeployment();
+      MockDeploymentUnit jar = (MockDeploymentUnit) ear.getChildren().get(0);
+      List<EjbReference> references = Arrays.asList(new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+            new EjbReference(null, Child2LocalBusiness.class.getName(), null), new EjbReference("NoSuchBean",
+                  null, null), new EjbReference(null, Child1RemoteBusiness.class.getName(), null));
+
+      EjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      List<Future<String>> resolutions;
+      try
+      {
+         AsyncEjbReferenceResolver asyncResolver = new ExecutorEjbReferenceResolver(resolver, executor);
+         resolutions = asyncResolver.resolveEjbsAsync(jar, references);
+         Assert.assertEquals("Unexpected number of resolutions", references.size(), resolutions.size());
+         for (int i = 0; i < references.size(); i++)
+         {
+            if (i == 2)
+            {
+               try
+               {
+                  resolutions.get(i).get();
+                  Assert.fail("Unresolvable reference resolved");
+               }
+               catch (ExecutionException expected)
+               {
+                  Assert.assertTrue("Unexpected failure " + expected.getCause(),
+                        expected.getCause() instanceof UnresolvableReferenceException);
+               }
+               continue;
+            }
+            Assert.assertEquals("Unexpected jndi-name for " + references.get(i), resolver.resolveEjb(jar,
+                  references.get(i)), resolutions.get(i).get());
+         }
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+   }
+
+   /**
+    * Tests that, without an executor, the resolutions are done by the time they are returned
+    */
+   @Test
+   public void testResolutionInCallingThread() throws Exception
+   {
+      MockDeploymentUnit ear = createDeployment();
+      MockDeploymentUnit jar = (MockDeploymentUnit) ear.getChildren().get(1);
+      List<EjbReference> references = new ArrayList<EjbReference>();
+      references.add(new EjbReference(Child2Bean.class.getSimpleName(), Child2LocalBusiness.class
+            .getName(), null));
+      references.add(new EjbReference(null, Child1LocalBusiness.class.getName(), null));
+
+      AsyncEjbReferenceResolver asyncResolver = new ExecutorEjbReferenceResolver(
+            new FirstMatchEjbReferenceResolver(), null);
+      for (Future<String> resolution : asyncResolver.resolveEjbsAsync(jar, references))
+      {
+         Assert.assertTrue("Resolution still pending", resolution.isDone());
+         Assert.assertNotNull("Reference not resolved", resolution.get());
+      }
+   }
+
+   /**
+    * Tests that the resolutions rejected by the executor are returned as failed, instead of
+    * failing the whole batch
+    */
+   @Test
+   public void testRejectedResolution() throws Exception
+   {
+      MockDeploymentUnit ear = createDeployment();
+      MockDeploymentUnit jar = (MockDeploymentUnit) ear.getChildren().get(0);
+      List<EjbReference> references = Arrays.asList(new EjbReference(null, Child1LocalBusiness.class.getName(), null),
+            new EjbReference(null, Child2LocalBusiness.class.getName(), null));
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      executor.shutdown();
+      AsyncEjbReferenceResolver asyncResolver = new ExecutorEjbReferenceResolver(
+            new FirstMatchEjbReferenceResolver(), executor);
+      List<Future<String>> resolutions = asyncResolver.resolveEjbsAsync(jar, references);
+      Assert.assertEquals("Unexpected number of resolutions", references.size(), resolutions.size());
+      for (Future<String> resolution : resolutions)
+      {
+         Assert.assertTrue("Rejected resolution still pending", resolution.isDone());
+         try
+         {
+            resolution.get();
+            Assert.fail("Rejected resolution resolved");
+         }
+         catch (ExecutionException expected)
+         {
+            Assert.assertTrue("Unexpected failure " + expected.getCause(),
+                  expected.getCause() instanceof UnresolvableReferenceException);
+         }
+      }
+   }
+
+   /**
+    * Creates a deployment:
+    *
+    * ear
+    * |------ Child 1 (Child1Bean)
+    * |------ Child 2 (Child2Bean)
+    */
+   private static MockDeploymentUnit createDeployment()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      for (Class<?> bean : Arrays.<Class<?>> asList(Child1Bean.class, Child2Bean.class))
+      {
+         JBossMetaData metadata = creator.create(Arrays.<Class<?>> asList(bean));
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/" + bean.getSimpleName(), ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+      return ear;
+   }
+}
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FrontCodedStringStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the lookups of the {@link FrontCodedStringStore}
+ *
+ * @version $Revision: $
+ */
+public class FrontCodedStringStoreUnitTestCase
+{
+
+   /**
+    * Tests that every stored name is found, under the ID of its sorted position, and
+    * comes back as it was stored
+    */
+   @Test
+   public void testLookup()
+   {
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < 100; i++)
+      {
+         names.add("com.acme.billing.api.Invoice" + i + "Local");
+         names.add("billing/Invoice" + i + "Bean/local-com.acme.billing.api.Invoice" + i + "Local");
+      }
+      names.add("");
+      names.add("com.acme");
+      names.add(null);
+      names.add("com.acme");
+      FrontCodedStringStore store = new FrontCodedStringStore(names);
+
+      names.remove(null);
+      names.remove("com.acme");
+      Collections.sort(names);
+      Assert.assertEquals("Wrong size", names.size(), store.size());
+      for (int id = 0; id < names.size(); id++)
+      {
+         String name = names.get(id);
+         Assert.assertEquals("Wrong id of " + name, id, store.indexOf(name));
+         Assert.assertEquals("Wrong string for id " + id, name, store.get(id));
+         Assert.assertTrue("No match for id " + id, store.matches(id, new StringBuilder(name)));
+         Assert.assertFalse("Match for another id " + id, store.matches(id, name + "x"));
+      }
+      for (String missing : Arrays.asList("a", "com.", "com.acme.billing.api.Invoice1",
+            "com.acme.billing.api.Invoice1Locals", "billing/Invoice99Bean", "zzz", null))
+      {
+         Assert.assertEquals("Found " + missing, FrontCodedStringStore.NOT_FOUND, store.indexOf(missing));
+      }
+      Assert.assertTrue("Null doesn't match no id", store.matches(FrontCodedStringStore.NOT_FOUND, null));
+      Assert.assertNull("Not found id isn't null", store.get(FrontCodedStringStore.NOT_FOUND));
+      Assert.assertTrue("Shared prefixes saved nothing: " + store, store.getSavedBytes() > store.getBytes());
+   }
+
+   /**
+    * Tests an empty store
+    */
+   @Test
+   public void testEmpty()
+   {
+      FrontCodedStringStore store = new FrontCodedStringStore(Collections.<String> emptyList());
+      Assert.assertEquals("Wrong size", 0, store.size());
+      Assert.assertEquals("Found a name", FrontCodedStringStore.NOT_FOUND, store.indexOf("com.acme"));
+   }
+}
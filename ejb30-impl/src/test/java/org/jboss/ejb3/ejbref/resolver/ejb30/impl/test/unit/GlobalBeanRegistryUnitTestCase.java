@@ -0,0 +1,377 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AbstractEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.GlobalBeanRegistry;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ResolutionListener;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Echo;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.EchoBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.PrefixingEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.NonDeterministicInterfaceException;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the resolution of references to beans of other deployments, through a
+ * {@link GlobalBeanRegistry}
+ *
+ * @version $Revision: $
+ */
+public class GlobalBeanRegistryUnitTestCase
+{
+
+   private static JBossMetaData parentMetaData;
+
+   private static JBossMetaData echoMetaData;
+
+   private static final EjbReference ECHO_REFERENCE = new EjbReference(null, Echo.class.getName(), null);
+
+   private static final String ECHO_JNDI_NAME = EchoBean.class.getSimpleName() + "/local-" + Echo.class.getName();
+
+   @BeforeClass
+   public static void beforeClass() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      parentMetaData = creator.create(Arrays.<Class<?>> asList(ParentBean.class));
+      echoMetaData = creator.create(Arrays.<Class<?>> asList(EchoBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(parentMetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(echoMetaData, cl);
+   }
+
+   /**
+    * Tests that a reference to a bean of another deployment is resolved through the registry,
+    * and no longer once that deployment has been unregistered
+    */
+   @Test
+   public void testCrossDeploymentResolution()
+   {
+      this.testCrossDeploymentResolution(new FirstMatchEjbReferenceResolver());
+      this.testCrossDeploymentResolution(new ScopedEJBReferenceResolver());
+   }
+
+   /**
+    * Tests that a reference matched by beans of more than one other deployment is reported
+    */
+   @Test
+   public void testAmbiguousCrossDeploymentReference()
+   {
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      MockDeploymentUnit parent = createDeployment("parent.jar", parentMetaData);
+      registry.register(parent);
+      registry.register(createDeployment("echo1.jar", echoMetaData));
+      registry.register(createDeployment("echo2.jar", echoMetaData));
+      Assert.assertEquals("Unexpected number of registered beans", 3, registry.getRegisteredBeanCount());
+
+      ScopedEJBReferenceResolver resolver = new ScopedEJBReferenceResolver();
+      resolver.setGlobalBeanRegistry(registry);
+      try
+      {
+         resolver.resolveEjb(parent, ECHO_REFERENCE);
+         Assert.fail("Ambiguous reference " + ECHO_REFERENCE + " was resolved");
+      }
+      catch (NonDeterministicInterfaceException expected)
+      {
+         // expected
+      }
+
+      // a bean of the requesting deployment itself still takes precedence
+      EjbReference parentReference = new EjbReference(null, ParentLocalBusiness.class.getName(), null);
+      Assert.assertEquals(ParentBean.class.getSimpleName() + "/local-" + ParentLocalBusiness.class.getName(),
+            resolver.resolveEjb(parent, parentReference));
+   }
+
+   /**
+    * Tests that a lookup keeps using the snapshot it started with while the registry
+    * is being updated, and that the superseded snapshot is released afterwards
+    */
+   @Test
+   public void testLookupPinsSnapshot() throws Exception
+   {
+      final GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      MockDeploymentUnit echo = createDeployment("echo.jar", echoMetaData);
+      registry.register(echo);
+      long version = registry.getVersion();
+      Assert.assertEquals("Unexpected number of retained snapshots", 1, registry.getRetainedSnapshotCount());
+
+      final CountDownLatch lookupStarted = new CountDownLatch(1);
+      final CountDownLatch registryUpdated = new CountDownLatch(1);
+      final MetaDataBasedEjbReferenceResolver delegate = new EJB30MetaDataBasedEjbReferenceResolver();
+      // notified of the match while the lookup still pins its snapshot
+      final ResolutionListener blockingListener = new ResolutionListener()
+      {
+         public void referenceResolved(DeploymentUnit du, EjbReference reference, DeploymentUnit targetDu,
+               String targetEjbName, String jndiName)
+         {
+            lookupStarted.countDown();
+            try
+            {
+               registryUpdated.await(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e)
+            {
+               throw new RuntimeException(e);
+            }
+         }
+      };
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         Future<String> lookup = executor.submit(new Callable<String>()
+         {
+            public String call() throws Exception
+            {
+               return registry.resolveEjb(null, ECHO_REFERENCE, delegate, blockingListener);
+            }
+         });
+         Assert.assertTrue("Lookup did not start", lookupStarted.await(1, TimeUnit.MINUTES));
+
+         // the writer is not blocked by the running lookup
+         registry.unregister(echo);
+         Assert.assertEquals("Snapshot version was not incremented", version + 1, registry.getVersion());
+         Assert.assertEquals("Pinned snapshot was not retained", 2, registry.getRetainedSnapshotCount());
+         Assert.assertNull("New lookups must see the new snapshot", registry.resolveEjb(ECHO_REFERENCE, delegate));
+         registryUpdated.countDown();
+
+         Assert.assertEquals("Running lookup did not use its pinned snapshot", ECHO_JNDI_NAME, lookup.get(1,
+               TimeUnit.MINUTES));
+         Assert.assertEquals("Released snapshot is still retained", 1, registry.getRetainedSnapshotCount());
+         Assert.assertEquals("Unexpected number of rebuilds", 2, registry.getRebuildCount());
+         Assert.assertTrue("Rebuild time was not recorded", registry.getTotalRebuildTime() > 0);
+      }
+      finally
+      {
+         registryUpdated.countDown();
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Tests that the registry stays consistent through many registrations and unregistrations,
+    * in random order, each of them building a new snapshot out of the previous one
+    */
+   @Test
+   public void testManyRegistrations()
+   {
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      MockDeploymentUnit echo = createDeployment("echo.jar", echoMetaData);
+      registry.register(echo);
+      List<MockDeploymentUnit> units = new ArrayList<MockDeploymentUnit>();
+      for (int i = 0; i < 1000; i++)
+      {
+         MockDeploymentUnit unit = createDeployment("parent" + i + ".jar", parentMetaData);
+         registry.register(unit);
+         units.add(unit);
+      }
+      Assert.assertEquals("Unexpected number of registered units", 1001, registry.getRegisteredDeploymentUnitCount());
+      Assert.assertEquals("Unexpected number of registered beans", 1001, registry.getRegisteredBeanCount());
+
+      MetaDataBasedEjbReferenceResolver resolver = new EJB30MetaDataBasedEjbReferenceResolver();
+      Collections.shuffle(units, new Random(29));
+      for (int i = 0; i < units.size(); i++)
+      {
+         registry.unregister(units.get(i));
+         // unregistering twice changes nothing
+         registry.unregister(units.get(i));
+         Assert.assertEquals("Unexpected number of registered units", 1000 - i,
+               registry.getRegisteredDeploymentUnitCount());
+         if (i % 100 == 0)
+         {
+            Assert.assertEquals("Echo not found after " + i + " unregistrations", ECHO_JNDI_NAME, registry
+                  .resolveEjb(ECHO_REFERENCE, resolver));
+         }
+      }
+      Assert.assertEquals("Unexpected number of registered beans", 1, registry.getRegisteredBeanCount());
+      Assert.assertEquals("Unexpected version", 2001, registry.getVersion());
+      Assert.assertEquals("Unexpected number of retained snapshots", 1, registry.getRetainedSnapshotCount());
+      registry.unregister(echo);
+      Assert.assertNull("Unregistered bean found", registry.resolveEjb(ECHO_REFERENCE, resolver));
+   }
+
+   /**
+    * Tests that the names of unregistered beans don't pile up in the symbol table of the registry
+    */
+   @Test
+   public void testSymbolTableCompaction()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      MetaDataBasedEjbReferenceResolver resolver = new EJB30MetaDataBasedEjbReferenceResolver();
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      registry.register(createDeployment("echo.jar", echoMetaData));
+      for (int i = 0; i < 1000; i++)
+      {
+         // each deployment has a bean of its own name
+         JBossMetaData metadata = creator.create(Arrays.<Class<?>> asList(ParentBean.class));
+         for (JBossEnterpriseBeanMetaData bean : metadata.getEnterpriseBeans())
+         {
+            bean.setEjbName("Parent" + i);
+         }
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit unit = createDeployment("parent" + i + ".jar", metadata);
+         registry.register(unit);
+         Assert.assertEquals("Unexpected jndi-name", "Parent" + i + "/local-" + ParentLocalBusiness.class.getName(),
+               registry.resolveEjb(new EjbReference("Parent" + i, ParentLocalBusiness.class.getName(), null),
+                     resolver));
+         registry.unregister(unit);
+      }
+      Assert.assertTrue("Names of unregistered beans kept: " + registry.getSymbolCount(),
+            registry.getSymbolCount() < 100);
+      Assert.assertEquals("Echo not found after compaction", ECHO_JNDI_NAME, registry.resolveEjb(ECHO_REFERENCE,
+            resolver));
+      Assert.assertEquals("Echo not found by name after compaction", ECHO_JNDI_NAME, registry.resolveEjb(
+            new EjbReference(EchoBean.class.getSimpleName(), Echo.class.getName(), null), resolver));
+   }
+
+   /**
+    * Tests that the registry keeps resolving references once the metadata of the registered units
+    * has been released, and only on behalf of the resolvers which create the same descriptors as its own
+    */
+   @Test
+   public void testMetaDataReleased()
+   {
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      MockDeploymentUnit parent = createDeployment("parent.jar", parentMetaData);
+      MockDeploymentUnit echo = createDeployment("echo.jar", echoMetaData);
+      registry.register(echo);
+      echo.removeAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA);
+      Assert.assertEquals(ECHO_JNDI_NAME, registry.resolveEjb(ECHO_REFERENCE,
+            new EJB30MetaDataBasedEjbReferenceResolver()));
+
+      final PrefixingEjbReferenceResolver prefixing = new PrefixingEjbReferenceResolver();
+      Assert.assertFalse("Resolver of another type is compatible", registry.isCompatibleWith(prefixing));
+      AbstractEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = prefixing;
+         }
+      };
+      resolver.setGlobalBeanRegistry(registry);
+      try
+      {
+         resolver.resolveEjb(parent, ECHO_REFERENCE);
+         Assert.fail(ECHO_REFERENCE + " was resolved through the descriptors of another type of resolver");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+   }
+
+   /**
+    * Tests that the descriptors of the registered beans are extracted again once the jndi-names
+    * resolved by the resolver of the registry change
+    */
+   @Test
+   public void testDescriptorVersionChange()
+   {
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      PrefixingEjbReferenceResolver resolver = new PrefixingEjbReferenceResolver();
+      registry.setMetaDataBasedEjbReferenceResolver(resolver);
+      registry.register(createDeployment("echo.jar", echoMetaData));
+      Assert.assertEquals(ECHO_JNDI_NAME, registry.resolveEjb(ECHO_REFERENCE, resolver));
+
+      resolver.setPrefix("v2/");
+      Assert.assertEquals("v2/" + ECHO_JNDI_NAME, registry.resolveEjb(ECHO_REFERENCE, resolver));
+      Assert.assertEquals("Unexpected number of registered beans", 1, registry.getRegisteredBeanCount());
+   }
+
+   private void testCrossDeploymentResolution(AbstractEjbReferenceResolver resolver)
+   {
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      MockDeploymentUnit parent = createDeployment("parent.jar", parentMetaData);
+      MockDeploymentUnit echo = createDeployment("echo.jar", echoMetaData);
+      registry.register(parent);
+      registry.register(echo);
+
+      // without the registry, the bean of the other deployment is not visible
+      try
+      {
+         resolver.resolveEjb(parent, ECHO_REFERENCE);
+         Assert.fail(ECHO_REFERENCE + " was resolved without the global registry");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+
+      resolver.setGlobalBeanRegistry(registry);
+      Assert.assertEquals(ECHO_JNDI_NAME, resolver.resolveEjb(parent, ECHO_REFERENCE));
+      EjbReference byName = new EjbReference(EchoBean.class.getSimpleName(), Echo.class.getName(), null);
+      Assert.assertEquals(ECHO_JNDI_NAME, resolver.resolveEjb(parent, byName));
+
+      registry.unregister(echo);
+      Assert.assertEquals("Unexpected number of registered deployment units", 1, registry
+            .getRegisteredDeploymentUnitCount());
+      try
+      {
+         resolver.resolveEjb(parent, ECHO_REFERENCE);
+         Assert.fail(ECHO_REFERENCE + " was resolved after its deployment was unregistered");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+   }
+
+   private static MockDeploymentUnit createDeployment(String name, JBossMetaData metadata)
+   {
+      MockDeploymentUnit du = new MockDeploymentUnit(name);
+      du.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+      return du;
+   }
+}
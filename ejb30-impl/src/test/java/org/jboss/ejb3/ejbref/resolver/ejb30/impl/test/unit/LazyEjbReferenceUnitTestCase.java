@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.LazyEjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the resolution on first use of a {@link LazyEjbReference}
+ *
+ * @version $Revision: $
+ */
+public class LazyEjbReferenceUnitTestCase
+{
+
+   /**
+    * Tests that creating the handle doesn't resolve the reference and that concurrent
+    * first uses resolve it only once
+    */
+   @Test
+   public void testResolvedOnceOnFirstUse() throws Exception
+   {
+      final MockDeploymentUnit jar = createJar();
+      final EjbReference reference = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      final AtomicInteger resolutions = new AtomicInteger();
+      final EjbReferenceResolver delegate = new FirstMatchEjbReferenceResolver();
+      EjbReferenceResolver resolver = new EjbReferenceResolver()
+      {
+         public String resolveEjb(DeploymentUnit du, EjbReference ref)
+         {
+            resolutions.incrementAndGet();
+            return delegate.resolveEjb(du, ref);
+         }
+      };
+
+      final LazyEjbReference lazy = new LazyEjbReference(resolver, jar, reference);
+      Assert.assertFalse("Resolved on creation", lazy.isResolved());
+      Assert.assertEquals("Resolved on creation", 0, resolutions.get());
+
+      int threads = 8;
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<String>> gets = new ArrayList<Future<String>>();
+      try
+      {
+         for (int i = 0; i < threads; i++)
+         {
+            gets.add(executor.submit(new Callable<String>()
+            {
+               public String call() throws Exception
+               {
+                  start.await();
+                  return lazy.get();
+               }
+            }));
+         }
+         start.countDown();
+         String expected = delegate.resolveEjb(jar, reference);
+         for (Future<String> get : gets)
+         {
+            Assert.assertEquals("Unexpected jndi-name", expected, get.get());
+         }
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+      Assert.assertTrue("Not resolved after first use", lazy.isResolved());
+      Assert.assertEquals("Reference resolved more than once", 1, resolutions.get());
+   }
+
+   /**
+    * Tests that a failed resolution isn't kept, so that a later use can succeed
+    */
+   @Test
+   public void testFailureNotKept() throws Exception
+   {
+      MockDeploymentUnit jar = createJar();
+      final AtomicInteger attempts = new AtomicInteger();
+      final EjbReferenceResolver delegate = new FirstMatchEjbReferenceResolver();
+      EjbReferenceResolver resolver = new EjbReferenceResolver()
+      {
+         public String resolveEjb(DeploymentUnit du, EjbReference ref)
+         {
+            if (attempts.incrementAndGet() == 1)
+            {
+               throw new UnresolvableReferenceException("Target not deployed yet");
+            }
+            return delegate.resolveEjb(du, ref);
+         }
+      };
+
+      LazyEjbReference lazy = new LazyEjbReference(resolver, jar, new EjbReference(null, Child1LocalBusiness.class
+            .getName(), null));
+      try
+      {
+         lazy.get();
+         Assert.fail("Failure of the first resolution not reported");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+      Assert.assertFalse("Failed resolution kept", lazy.isResolved());
+      Assert.assertNotNull("Reference not resolved on retry", lazy.get());
+      Assert.assertEquals("Unexpected number of attempts", 2, attempts.get());
+   }
+
+   private static MockDeploymentUnit createJar()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBossMetaData metadata = new JBoss50Creator(finder).create(Arrays.<Class<?>> asList(Child1Bean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(metadata, Thread.currentThread().getContextClassLoader());
+      MockDeploymentUnit jar = new MockDeploymentUnit("Child1");
+      jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+      return jar;
+   }
+}
@@ -0,0 +1,412 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AbstractEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.EchoBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.NestedChildLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.CountingClassLoader;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests upper bounds on the work done by a resolution: the classes it loads, the {@link DeploymentUnit}s
+ * it visits, the attachments it looks up and the session beans it examines. Unlike timings, the counts
+ * are deterministic, so a complexity regression of the {@link FirstMatchEjbReferenceResolver} or of the
+ * {@link ScopedEJBReferenceResolver} fails the test.
+ * 
+ * <p>
+ *  The deployment is:
+ * <pre>
+ *  ear (ParentBean)
+ *   |- jar1 (Child1Bean)
+ *   |   |- nested (NestedChildBean)
+ *   |- jar2 (Child2Bean)
+ *   |- jar3 (Child3Bean)
+ *   |- jar4 (EchoBean)
+ * </pre>
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ResolutionCostUnitTestCase
+{
+
+   /** The number of units, and of beans, of the deployment */
+   private static final int UNIT_COUNT = 6;
+
+   /**
+    * The attachments which a resolution looks up, on top of the metadata of each unit it visits: the
+    * index of the tree (twice for an unresolvable reference)
+    */
+   private static final int EXTRA_ATTACHMENT_LOOKUPS = 2;
+
+   private static final EjbReference MISSING = new EjbReference(null, "org.jboss.Missing", null);
+
+   private MockDeploymentUnit ear;
+
+   private MockDeploymentUnit jar1;
+
+   private MockDeploymentUnit nested;
+
+   private MockDeploymentUnit jar3;
+
+   private List<MockDeploymentUnit> units;
+
+   /** The number of interfaces of the beans, counting each super-interface once per interface extending it */
+   private int interfaceCount;
+
+   /** The number of distinct interfaces of the beans, along with their super-interfaces */
+   private int distinctInterfaceCount;
+
+   /** The number of session beans examined by the resolvers */
+   private final AtomicInteger examinedBeans = new AtomicInteger();
+
+   /** The number of interfaces whose class is loaded, to look their super-interfaces up, by the resolvers */
+   private final AtomicInteger interfaceLookups = new AtomicInteger();
+
+   /** Counts the session beans it examines and the interfaces it loads */
+   private final EJB30MetaDataBasedEjbReferenceResolver metadataResolver = new EJB30MetaDataBasedEjbReferenceResolver()
+   {
+      @Override
+      protected boolean isMatch(EjbReference reference, JBossSessionBeanMetaData md, ClassLoader cl)
+      {
+         examinedBeans.incrementAndGet();
+         return super.isMatch(reference, md, cl);
+      }
+
+      @Override
+      protected Collection<String> getAllParentInterfaces(String interfaceName, ClassLoader cl)
+      {
+         interfaceLookups.incrementAndGet();
+         return super.getAllParentInterfaces(interfaceName, cl);
+      }
+   };
+
+   @Before
+   public void before() throws Exception
+   {
+      this.units = new ArrayList<MockDeploymentUnit>();
+      this.ear = this.createUnit("ear", null, ParentBean.class);
+      this.jar1 = this.createUnit("ear/jar1", this.ear, Child1Bean.class);
+      this.nested = this.createUnit("ear/jar1/nested", this.jar1, NestedChildBean.class);
+      this.createUnit("ear/jar2", this.ear, Child2Bean.class);
+      this.jar3 = this.createUnit("ear/jar3", this.ear, Child3Bean.class);
+      this.createUnit("ear/jar4", this.ear, EchoBean.class);
+      Assert.assertEquals("Unexpected number of units", UNIT_COUNT, this.units.size());
+
+      Set<Class<?>> distinctInterfaces = new HashSet<Class<?>>();
+      for (MockDeploymentUnit unit : this.units)
+      {
+         JBossMetaData metadata = unit.getAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA,
+               JBossMetaData.class);
+         for (JBossEnterpriseBeanMetaData bean : metadata.getEnterpriseBeans())
+         {
+            JBossSessionBeanMetaData sessionBean = (JBossSessionBeanMetaData) bean;
+            List<String> interfaces = new ArrayList<String>();
+            if (sessionBean.getBusinessLocals() != null)
+            {
+               interfaces.addAll(sessionBean.getBusinessLocals());
+            }
+            if (sessionBean.getBusinessRemotes() != null)
+            {
+               interfaces.addAll(sessionBean.getBusinessRemotes());
+            }
+            for (String home : Arrays.asList(sessionBean.getHome(), sessionBean.getLocalHome()))
+            {
+               if (home != null)
+               {
+                  interfaces.add(home);
+               }
+            }
+            for (String beanInterface : interfaces)
+            {
+               this.interfaceCount += countInterfaces(Class.forName(beanInterface), distinctInterfaces);
+            }
+         }
+      }
+      this.distinctInterfaceCount = distinctInterfaces.size();
+   }
+
+   /**
+    * Tests that a first match resolution, against the metadata, reads the metadata of each unit
+    * and examines each bean at most once
+    */
+   @Test
+   public void testFirstMatchScan()
+   {
+      AbstractEjbReferenceResolver resolver = this.createFirstMatchResolver();
+      resolver.setIndexUsed(false);
+
+      // the bean is the last one of the walk
+      Cost cost = this.resolve(resolver, this.nested, this.reference(Child3LocalBusiness.class));
+      this.assertScanned(cost);
+
+      // the bean is the first one of the walk, it declares the interface
+      cost = this.resolve(resolver, this.jar3, this.reference(ParentLocalBusiness.class));
+      cost.assertAtMost(1, 1, 1 + EXTRA_ATTACHMENT_LOOKUPS, 0, 0);
+
+      // an unresolvable reference visits all the units
+      cost = this.resolve(resolver, this.jar3, MISSING);
+      this.assertScanned(cost);
+   }
+
+   /**
+    * Tests that a scoped resolution, against the metadata, stops at the unit of the bean and
+    * visits each unit at most once
+    */
+   @Test
+   public void testScopedScan()
+   {
+      AbstractEjbReferenceResolver resolver = this.createScopedResolver();
+      resolver.setIndexUsed(false);
+
+      // the bean is in the referencing unit
+      Cost cost = this.resolve(resolver, this.nested, this.reference(NestedChildLocalBusiness.class));
+      cost.assertAtMost(0, 1, 1 + EXTRA_ATTACHMENT_LOOKUPS, 0, 0);
+
+      // the bean is in a sibling of the parent of the referencing unit
+      cost = this.resolve(resolver, this.nested, this.reference(Child3LocalBusiness.class));
+      this.assertScanned(cost);
+
+      // an unresolvable reference visits all the units, once
+      cost = this.resolve(resolver, this.nested, MISSING);
+      this.assertScanned(cost);
+   }
+
+   /**
+    * Tests that, once the units are indexed, resolutions neither read the metadata, nor examine
+    * the beans nor load classes
+    */
+   @Test
+   public void testIndexed()
+   {
+      DeploymentTreeIndex.attach(this.ear, this.metadataResolver);
+      for (AbstractEjbReferenceResolver resolver : Arrays.asList(this.createFirstMatchResolver(), this
+            .createScopedResolver()))
+      {
+         // index all the units
+         this.resolve(resolver, this.nested, MISSING);
+
+         Cost cost = this.resolve(resolver, this.nested, this.reference(Child3LocalBusiness.class));
+         cost.assertAtMost(UNIT_COUNT, 0, EXTRA_ATTACHMENT_LOOKUPS, 0, 0);
+         cost = this.resolve(resolver, this.nested, MISSING);
+         cost.assertAtMost(UNIT_COUNT, 0, EXTRA_ATTACHMENT_LOOKUPS, 0, 0);
+      }
+   }
+
+   /**
+    * Tests that a first match resolution from a frozen tree doesn't walk it at all
+    */
+   @Test
+   public void testFrozen()
+   {
+      DeploymentTreeIndex.attach(this.ear, this.metadataResolver).freeze();
+      AbstractEjbReferenceResolver resolver = this.createFirstMatchResolver();
+      Cost cost = this.resolve(resolver, this.nested, this.reference(Child3LocalBusiness.class));
+      cost.assertAtMost(0, 0, EXTRA_ATTACHMENT_LOOKUPS, 0, 0);
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private MockDeploymentUnit createUnit(String name, MockDeploymentUnit parent, Class<?> bean)
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBossMetaData metadata = new JBoss50Creator(finder).create(Arrays.<Class<?>> asList(bean));
+      MetadataUtil.decorateEjbsWithJndiPolicy(metadata, Thread.currentThread().getContextClassLoader());
+      MockDeploymentUnit unit = new MockDeploymentUnit(name, parent);
+      unit.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+      if (parent != null)
+      {
+         parent.addChild(unit);
+      }
+      this.units.add(unit);
+      return unit;
+   }
+
+   /**
+    * Asserts that the resolution, which scanned the metadata of the whole deployment, examined each bean
+    * and each of its interfaces at most once
+    */
+   private void assertScanned(Cost cost)
+   {
+      cost.assertAtMost(UNIT_COUNT, UNIT_COUNT, UNIT_COUNT + EXTRA_ATTACHMENT_LOOKUPS, this.interfaceCount,
+            this.distinctInterfaceCount);
+   }
+
+   /**
+    * Returns the number of interfaces of the passed interface, including itself, counting each
+    * super-interface once per interface extending it, and adds them to the passed distinct ones
+    */
+   private static int countInterfaces(Class<?> beanInterface, Set<Class<?>> distinctInterfaces)
+   {
+      distinctInterfaces.add(beanInterface);
+      int count = 1;
+      for (Class<?> superInterface : beanInterface.getInterfaces())
+      {
+         count += countInterfaces(superInterface, distinctInterfaces);
+      }
+      return count;
+   }
+
+   private EjbReference reference(Class<?> beanInterface)
+   {
+      return new EjbReference(null, beanInterface.getName(), null);
+   }
+
+   private AbstractEjbReferenceResolver createFirstMatchResolver()
+   {
+      return new FirstMatchEjbReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = metadataResolver;
+         }
+      };
+   }
+
+   private AbstractEjbReferenceResolver createScopedResolver()
+   {
+      return new ScopedEJBReferenceResolver()
+      {
+         {
+            this.metadataBasedEjbReferenceResolver = metadataResolver;
+         }
+      };
+   }
+
+   /**
+    * Resolves the reference, with a new {@link CountingClassLoader} for the units, and returns what it cost
+    */
+   private Cost resolve(AbstractEjbReferenceResolver resolver, DeploymentUnit du, EjbReference reference)
+   {
+      CountingClassLoader cl = new CountingClassLoader();
+      for (MockDeploymentUnit unit : this.units)
+      {
+         unit.setClassLoader(cl);
+         unit.resetCounts();
+      }
+      this.examinedBeans.set(0);
+      this.interfaceLookups.set(0);
+      try
+      {
+         resolver.resolveEjb(du, reference);
+      }
+      catch (UnresolvableReferenceException ure)
+      {
+         // counted all the same
+      }
+      Cost cost = new Cost(reference, this.examinedBeans.get(), this.interfaceLookups.get(), cl.getLoadCount());
+      for (MockDeploymentUnit unit : this.units)
+      {
+         cost.childrenLookups += unit.getChildrenLookupCount();
+         cost.attachmentLookups += unit.getAttachmentLookupCount();
+      }
+      return cost;
+   }
+
+   /**
+    * The work done by a resolution
+    */
+   private static class Cost
+   {
+      private final EjbReference reference;
+
+      private final int examinedBeans;
+
+      private final int interfaceLookups;
+
+      private final int classLoads;
+
+      private int childrenLookups;
+
+      private int attachmentLookups;
+
+      Cost(EjbReference reference, int examinedBeans, int interfaceLookups, int classLoads)
+      {
+         this.reference = reference;
+         this.examinedBeans = examinedBeans;
+         this.interfaceLookups = interfaceLookups;
+         this.classLoads = classLoads;
+      }
+
+      /**
+       * Asserts that the resolution cost at most the passed counts
+       * 
+       * @param childrenLookups The units whose children were walked
+       * @param examinedBeans The session beans matched against the reference
+       * @param attachmentLookups The attachments looked up, on all the units
+       * @param interfaceLookups The interfaces loaded to look their super-interfaces up
+       * @param classLoads The calls to the ClassLoader of the units
+       */
+      void assertAtMost(int childrenLookups, int examinedBeans, int attachmentLookups, int interfaceLookups,
+            int classLoads)
+      {
+         Assert.assertTrue("Units visited " + this, this.childrenLookups <= childrenLookups);
+         Assert.assertTrue("Beans examined " + this, this.examinedBeans <= examinedBeans);
+         Assert.assertTrue("Attachments looked up " + this, this.attachmentLookups <= attachmentLookups);
+         Assert.assertTrue("Interfaces loaded " + this, this.interfaceLookups <= interfaceLookups);
+         Assert.assertTrue("Classes loaded " + this, this.classLoads <= classLoads);
+      }
+
+      @Override
+      public String toString()
+      {
+         return "resolving " + this.reference + ": " + this.childrenLookups + " children lookups, "
+               + this.examinedBeans + " beans examined, " + this.attachmentLookups + " attachment lookups, "
+               + this.interfaceLookups + " interfaces loaded, " + this.classLoads + " class loads";
+      }
+   }
+}
@@ -0,0 +1,241 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ResolutionJournal;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the recording of resolutions by a {@link ResolutionJournal} and the warming of the
+ * resolution cache of the next run from it
+ *
+ * @version $Revision: $
+ */
+public class ResolutionJournalUnitTestCase
+{
+
+   private File journalFile;
+
+   @Before
+   public void createJournalFile() throws Exception
+   {
+      this.journalFile = File.createTempFile("resolution", ".journal");
+      this.journalFile.delete();
+   }
+
+   @After
+   public void deleteJournalFile()
+   {
+      this.journalFile.delete();
+      new File(this.journalFile.getPath() + ".tmp").delete();
+   }
+
+   /**
+    * Tests that the references resolved during a run are resolved again, and cached,
+    * when their deployment is deployed by the next run
+    */
+   @Test
+   public void testWarmFromPreviousRun() throws Exception
+   {
+      EjbReference child1 = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      EjbReference child2 = new EjbReference(null, Child2LocalBusiness.class.getName(), null);
+
+      // first run
+      MockDeploymentUnit ear = createDeployment();
+      MockDeploymentUnit jar = (MockDeploymentUnit) ear.getChildren().get(0);
+      ResolutionJournal journal = new ResolutionJournal(this.journalFile);
+      Assert.assertTrue("Entries recorded by a run which never happened", journal.getRecordedEntries().isEmpty());
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      String child1JndiName = resolver.resolveEjb(jar, child1);
+      String child2JndiName = resolver.resolveEjb(jar, child2);
+      resolver.resolveEjb(jar, child1);
+      journal.close();
+
+      // next run, against the same deployment
+      ear = createDeployment();
+      jar = (MockDeploymentUnit) ear.getChildren().get(0);
+      journal = new ResolutionJournal(this.journalFile);
+      Assert.assertEquals("Unexpected number of recorded entries", 2, journal.getRecordedEntries().size());
+      resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      ConcurrentEjbReferenceResolver cachingResolver = new ConcurrentEjbReferenceResolver(resolver);
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try
+      {
+         Future<Integer> warming = journal.warm(ear, cachingResolver, executor);
+         Assert.assertEquals("Unexpected number of trusted entries", 2, warming.get().intValue());
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+      Assert.assertEquals("Unexpected jndi-name", child1JndiName, cachingResolver.resolveEjb(jar, child1));
+      Assert.assertEquals("Unexpected jndi-name", child2JndiName, cachingResolver.resolveEjb(jar, child2));
+      Assert.assertEquals("Warmed resolutions not cached", 2, cachingResolver.getCacheHits());
+      journal.close();
+
+      // the warmed resolutions made it into the journal of this run
+      Assert.assertEquals("Warmed entries not recorded again", 2, new ResolutionJournal(this.journalFile)
+            .getRecordedEntries().size());
+   }
+
+   /**
+    * Tests that a reference resolved again from the redeployment of its deployment isn't
+    * appended to the journal twice
+    */
+   @Test
+   public void testRedeploy() throws Exception
+   {
+      EjbReference child1 = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      ResolutionJournal journal = new ResolutionJournal(this.journalFile);
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      resolver.resolveEjb(createDeployment().getChildren().get(0), child1);
+      // redeploy, the units are new instances of the same names
+      resolver.resolveEjb(createDeployment().getChildren().get(0), child1);
+      journal.close();
+
+      Assert.assertEquals("Redeployed resolution recorded twice", 1, new ResolutionJournal(this.journalFile)
+            .getRecordedEntries().size());
+   }
+
+   /**
+    * Tests that the journal of the previous run is kept until the journal of this run is
+    * flushed or closed
+    */
+   @Test
+   public void testPreviousJournalKept() throws Exception
+   {
+      EjbReference child1 = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      EjbReference child2 = new EjbReference(null, Child2LocalBusiness.class.getName(), null);
+      MockDeploymentUnit jar = (MockDeploymentUnit) createDeployment().getChildren().get(0);
+      ResolutionJournal journal = new ResolutionJournal(this.journalFile);
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      resolver.resolveEjb(jar, child1);
+      resolver.resolveEjb(jar, child2);
+      journal.close();
+
+      // next run, which crashes before its journal is published
+      journal = new ResolutionJournal(this.journalFile);
+      resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      resolver.resolveEjb(jar, child1);
+      Assert.assertEquals("Journal of the previous run lost", 2, new ResolutionJournal(this.journalFile)
+            .getRecordedEntries().size());
+
+      // a flush publishes the journal of this run, which is still appended to
+      journal = new ResolutionJournal(this.journalFile);
+      resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      resolver.resolveEjb(jar, child1);
+      journal.flush();
+      Assert.assertEquals("Flushed journal not published", 1, new ResolutionJournal(this.journalFile)
+            .getRecordedEntries().size());
+      resolver.resolveEjb(jar, child2);
+      journal.close();
+      Assert.assertEquals("Entries appended after a flush lost", 2, new ResolutionJournal(this.journalFile)
+            .getRecordedEntries().size());
+   }
+
+   /**
+    * Tests that the entries before an entry truncated by a crash are kept
+    */
+   @Test
+   public void testTruncatedJournal() throws Exception
+   {
+      MockDeploymentUnit ear = createDeployment();
+      MockDeploymentUnit jar = (MockDeploymentUnit) ear.getChildren().get(1);
+      ResolutionJournal journal = new ResolutionJournal(this.journalFile);
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setResolutionListener(journal);
+      resolver.resolveEjb(jar, new EjbReference(null, Child2LocalBusiness.class.getName(), null));
+      resolver.resolveEjb(jar, new EjbReference(null, Child1LocalBusiness.class.getName(), null));
+      journal.close();
+
+      RandomAccessFile raf = new RandomAccessFile(this.journalFile, "rw");
+      try
+      {
+         raf.setLength(raf.length() - 3);
+      }
+      finally
+      {
+         raf.close();
+      }
+      journal = new ResolutionJournal(this.journalFile);
+      Assert.assertEquals("Unexpected number of recorded entries", 1, journal.getRecordedEntries().size());
+      Assert.assertEquals("Unexpected recorded entry", Child2LocalBusiness.class.getName(), journal
+            .getRecordedEntries().get(0).getReference().getBeanInterface());
+      journal.close();
+   }
+
+   /**
+    * Creates a deployment:
+    *
+    * ear
+    * |------ Child 1 (Child1Bean)
+    * |------ Child 2 (Child2Bean)
+    */
+   private static MockDeploymentUnit createDeployment()
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      for (Class<?> bean : Arrays.<Class<?>> asList(Child1Bean.class, Child2Bean.class))
+      {
+         JBossMetaData metadata = creator.create(Arrays.<Class<?>> asList(bean));
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/" + bean.getSimpleName(), ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+      return ear;
+   }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentResolutionSummary;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.LatencyHistogram;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ResolutionStatistics;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ResolutionSummaryDeployer;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child1LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the recording of the latencies of the resolutions by {@link ResolutionStatistics}
+ *
+ * @version $Revision: $
+ */
+public class ResolutionStatisticsUnitTestCase
+{
+
+   /**
+    * Tests that the percentiles of a {@link LatencyHistogram} are within the precision of its buckets
+    */
+   @Test
+   public void testHistogramPercentiles()
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      Assert.assertEquals("Empty histogram has a percentile", 0, histogram.getValueAtPercentile(50));
+      for (long value = 1; value <= 100000; value++)
+      {
+         histogram.record(value);
+      }
+      Assert.assertEquals("Unexpected count", 100000, histogram.getCount());
+      Assert.assertEquals("Unexpected max", 100000, histogram.getMax());
+      Assert.assertEquals("Unexpected total", 100000L * 100001 / 2, histogram.getTotal());
+      for (double percentile : new double[] {1, 50, 90, 99, 99.9})
+      {
+         long expected = (long) (100000 * percentile / 100);
+         long actual = histogram.getValueAtPercentile(percentile);
+         Assert.assertTrue("p" + percentile + " " + actual + " below " + expected, actual >= expected);
+         Assert.assertTrue("p" + percentile + " " + actual + " too far above " + expected,
+               actual <= expected + expected / 16 + 1);
+      }
+      Assert.assertEquals("Unexpected p100", 100000, histogram.getValueAtPercentile(100));
+   }
+
+   /**
+    * Tests that the resolutions are recorded per strategy and outcome, and summarized per deployment
+    */
+   @Test
+   public void testDeploymentSummary() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      MockDeploymentUnit ear = new MockDeploymentUnit("ear");
+      for (Class<?> bean : Arrays.<Class<?>> asList(Child1Bean.class, Child2Bean.class))
+      {
+         JBossMetaData metadata = creator.create(Arrays.<Class<?>> asList(bean));
+         MetadataUtil.decorateEjbsWithJndiPolicy(metadata, cl);
+         MockDeploymentUnit jar = new MockDeploymentUnit("ear/" + bean.getSimpleName(), ear);
+         jar.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, metadata);
+         ear.addChild(jar);
+      }
+      MockDeploymentUnit child2 = (MockDeploymentUnit) ear.getChildren().get(1);
+
+      FirstMatchEjbReferenceResolver resolver = new FirstMatchEjbReferenceResolver();
+      resolver.setIndexingPolicy(null);
+      Assert.assertNull("Resolutions recorded by default", resolver.getResolutionStatistics());
+      ResolutionStatistics statistics = new ResolutionStatistics();
+      resolver.setResolutionStatistics(statistics);
+      EjbReference reference = new EjbReference(null, Child1LocalBusiness.class.getName(), null);
+      for (int i = 0; i < 10; i++)
+      {
+         resolver.resolveEjb(child2, reference);
+      }
+      resolver.resolveEjb(child2, new EjbReference(null, Child1LocalBusiness.class.getName(), "mapped/name"));
+      EjbReference missing = new EjbReference(null, "org.jboss.Missing", null);
+      try
+      {
+         resolver.resolveEjb(child2, missing);
+         Assert.fail("Resolved a reference to a missing interface");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+
+      Assert.assertEquals("Unexpected number of recorded resolutions", 12, statistics.getCount());
+      Assert.assertEquals("Unexpected number of scanned resolutions", 10, statistics.getHistogram(
+            ResolutionStatistics.Strategy.SCAN, ResolutionStatistics.Outcome.RESOLVED).getCount());
+      Assert.assertEquals("Unexpected number of bypassed resolutions", 1, statistics.getHistogram(
+            ResolutionStatistics.Strategy.MAPPED_NAME, ResolutionStatistics.Outcome.RESOLVED).getCount());
+      Assert.assertEquals("Unexpected number of unresolvable resolutions", 1, statistics.getHistogram(
+            ResolutionStatistics.Strategy.SCAN, ResolutionStatistics.Outcome.UNRESOLVABLE).getCount());
+
+      DeploymentResolutionSummary summary = DeploymentResolutionSummary.getSummary(child2);
+      Assert.assertNotNull("No summary attached to the deployment", summary);
+      Assert.assertSame("Summary not attached to the top-level unit", ear, summary.getTopLevel());
+      Assert.assertEquals("Unexpected number of summarized resolutions", 12, summary.getReferenceCount());
+      Assert.assertEquals("Unexpected number of failed resolutions", 1, summary.getFailureCount());
+      Assert.assertTrue("Scanning the metadata loaded no class", summary.getClassLoadCount() > 0);
+      Assert.assertEquals("Unexpected number of slowest resolutions", DeploymentResolutionSummary.SLOWEST_COUNT,
+            summary.getSlowest().size());
+      for (int i = 1; i < summary.getSlowest().size(); i++)
+      {
+         Assert.assertTrue("Slowest resolutions not sorted",
+               summary.getSlowest().get(i - 1).getNanos() >= summary.getSlowest().get(i).getNanos());
+      }
+      Assert.assertTrue("Summary doesn't name the deployment", summary.toString().contains(ear.getName()));
+
+      ResolutionSummaryDeployer deployer = new ResolutionSummaryDeployer();
+      Assert.assertEquals("Unexpected stage", DeploymentStages.INSTALLED, deployer.getStage());
+      Assert.assertTrue("Deployer not for top-level units only", deployer.isTopLevelOnly());
+      deployer.deploy(ear);
+      deployer.undeploy(ear);
+      Assert.assertNull("Summary still attached", DeploymentResolutionSummary.getSummary(child2));
+   }
+}
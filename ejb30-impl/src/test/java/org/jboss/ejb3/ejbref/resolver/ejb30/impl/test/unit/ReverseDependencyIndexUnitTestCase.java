@@ -0,0 +1,350 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.AbstractEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ConcurrentEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.DeploymentTreeIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.FirstMatchEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.GlobalBeanRegistry;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ReverseDependencyIndex;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.ScopedEJBReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2And3CommonBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child2LocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Child3Bean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.Echo;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.EchoBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentBean;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.ParentLocalBusiness;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
+import org.jboss.ejb3.ejbref.resolver.spi.DeploymentDependencyGraph;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
+import org.jboss.metadata.annotation.finder.AnnotationFinder;
+import org.jboss.metadata.annotation.finder.DefaultAnnotationFinder;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the recording of the references which depend on a bean, through a {@link ReverseDependencyIndex},
+ * and the targeted invalidation of their cached resolutions
+ *
+ * @version $Revision: $
+ */
+public class ReverseDependencyIndexUnitTestCase
+{
+
+   private static JBossMetaData parentMetaData;
+
+   private static JBossMetaData child2MetaData;
+
+   private static JBossMetaData echoMetaData;
+
+   private static final EjbReference PARENT_REFERENCE = new EjbReference(null, ParentLocalBusiness.class.getName(),
+         null);
+
+   private static final EjbReference CHILD2_REFERENCE = new EjbReference(null, Child2LocalBusiness.class.getName(),
+         null);
+
+   private static final EjbReference CHILD3_REFERENCE = new EjbReference(Child3Bean.class.getSimpleName(),
+         Child2And3CommonBusiness.class.getName(), null);
+
+   private static final EjbReference ECHO_REFERENCE = new EjbReference(null, Echo.class.getName(), null);
+
+   @BeforeClass
+   public static void beforeClass() throws Exception
+   {
+      AnnotationFinder<AnnotatedElement> finder = new DefaultAnnotationFinder<AnnotatedElement>();
+      JBoss50Creator creator = new JBoss50Creator(finder);
+      ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+      parentMetaData = creator.create(Arrays.<Class<?>> asList(ParentBean.class));
+      child2MetaData = creator.create(Arrays.<Class<?>> asList(Child2Bean.class, Child3Bean.class));
+      echoMetaData = creator.create(Arrays.<Class<?>> asList(EchoBean.class));
+      MetadataUtil.decorateEjbsWithJndiPolicy(parentMetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(child2MetaData, cl);
+      MetadataUtil.decorateEjbsWithJndiPolicy(echoMetaData, cl);
+   }
+
+   /**
+    * Tests that the dependents of each bean are recorded, with and without a {@link DeploymentTreeIndex}
+    */
+   @Test
+   public void testDependentsAreRecorded()
+   {
+      this.testDependentsAreRecorded(new ScopedEJBReferenceResolver(), false);
+      this.testDependentsAreRecorded(new FirstMatchEjbReferenceResolver(), true);
+   }
+
+   /**
+    * Tests that undeploying the unit of a bean only invalidates the cached resolutions which depend on it,
+    * including those of other deployments
+    */
+   @Test
+   public void testTargetedInvalidation()
+   {
+      MockDeploymentUnit ear = createDeployment("ear");
+      DeploymentUnit child2 = ear.getChildren().get(0);
+      MockDeploymentUnit echo = new MockDeploymentUnit("echo.jar");
+      echo.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, echoMetaData);
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      registry.register(echo);
+
+      ReverseDependencyIndex dependencies = new ReverseDependencyIndex();
+      ScopedEJBReferenceResolver delegate = new ScopedEJBReferenceResolver();
+      delegate.setGlobalBeanRegistry(registry);
+      delegate.setResolutionListener(dependencies);
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(delegate);
+
+      EjbReference[] references =
+      {PARENT_REFERENCE, CHILD2_REFERENCE, CHILD3_REFERENCE, ECHO_REFERENCE};
+      for (EjbReference reference : references)
+      {
+         resolver.resolveEjb(child2, reference);
+      }
+      Assert.assertEquals("Unexpected number of cache misses", references.length, resolver.getCacheMisses());
+
+      // the echo.jar deployment goes away
+      registry.unregister(echo);
+      Set<ReverseDependencyIndex.Dependent> dependents = dependencies.removeDependents(echo);
+      Assert.assertEquals("Unexpected dependents of " + echo, 1, dependents.size());
+      resolver.invalidate(dependents);
+      Assert.assertTrue("Dependents were not removed", dependencies.getDependents(echo).isEmpty());
+
+      for (int i = 0; i < references.length - 1; i++)
+      {
+         resolver.resolveEjb(child2, references[i]);
+      }
+      Assert.assertEquals("Unaffected resolutions were invalidated", references.length - 1, resolver.getCacheHits());
+      try
+      {
+         resolver.resolveEjb(child2, ECHO_REFERENCE);
+         Assert.fail("Stale resolution of " + ECHO_REFERENCE + " was not invalidated");
+      }
+      catch (RuntimeException expected)
+      {
+         // expected
+      }
+   }
+
+   /**
+    * Tests that undeploying the unit of a bean, through a resolver wired to a {@link ReverseDependencyIndex},
+    * invalidates the cached resolutions of other deployments which depend on it
+    */
+   @Test
+   public void testUndeployInvalidatesDependents()
+   {
+      MockDeploymentUnit ear = createDeployment("ear");
+      DeploymentUnit child2 = ear.getChildren().get(0);
+      MockDeploymentUnit echo = new MockDeploymentUnit("echo.jar");
+      echo.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, echoMetaData);
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      registry.register(echo);
+
+      ReverseDependencyIndex dependencies = new ReverseDependencyIndex();
+      ScopedEJBReferenceResolver delegate = new ScopedEJBReferenceResolver();
+      delegate.setGlobalBeanRegistry(registry);
+      delegate.setResolutionListener(dependencies);
+      ConcurrentEjbReferenceResolver resolver = new ConcurrentEjbReferenceResolver(delegate);
+      resolver.setReverseDependencyIndex(dependencies);
+      resolver.resolveEjb(child2, PARENT_REFERENCE);
+      resolver.resolveEjb(child2, ECHO_REFERENCE);
+
+      // the echo.jar deployment goes away
+      registry.unregister(echo);
+      resolver.undeploy(echo);
+      Assert.assertTrue("Dependents were not removed", dependencies.getDependents(echo).isEmpty());
+      resolver.resolveEjb(child2, PARENT_REFERENCE);
+      Assert.assertEquals("Unaffected resolution was invalidated", 1, resolver.getCacheHits());
+      try
+      {
+         resolver.resolveEjb(child2, ECHO_REFERENCE);
+         Assert.fail("Stale resolution of " + ECHO_REFERENCE + " was not invalidated");
+      }
+      catch (RuntimeException expected)
+      {
+         // expected
+      }
+   }
+
+   /**
+    * Tests that a reference changed after its resolution was recorded doesn't change the
+    * recorded dependent
+    */
+   @Test
+   public void testChangedReference()
+   {
+      MockDeploymentUnit ear = createDeployment("ear");
+      DeploymentUnit child2 = ear.getChildren().get(0);
+      ReverseDependencyIndex dependencies = new ReverseDependencyIndex();
+      MutableEjbReference reference = new MutableEjbReference(ParentLocalBusiness.class.getName());
+      dependencies.referenceResolved(child2, reference, ear, ParentBean.class.getSimpleName(), "jndi/Name");
+      reference.setBeanInterface(Echo.class.getName());
+      dependencies.referenceResolved(child2, PARENT_REFERENCE, ear, ParentBean.class.getSimpleName(), "jndi/Name");
+
+      Set<ReverseDependencyIndex.Dependent> dependents = dependencies.removeDependents(ear);
+      Assert.assertEquals("Unexpected dependents of " + ear + ": " + dependents, 1, dependents.size());
+      Assert.assertEquals("Unexpected bean interface", ParentLocalBusiness.class.getName(), dependents.iterator()
+            .next().getReference().getBeanInterface());
+   }
+
+   /**
+    * Tests the export of the recorded dependencies as a {@link DeploymentDependencyGraph}
+    */
+   @Test
+   public void testDependencyGraph()
+   {
+      MockDeploymentUnit ear = createDeployment("ear");
+      DeploymentUnit child2 = ear.getChildren().get(0);
+      MockDeploymentUnit echo = new MockDeploymentUnit("echo.jar");
+      echo.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, echoMetaData);
+      MockDeploymentUnit client = new MockDeploymentUnit("client.jar");
+      GlobalBeanRegistry registry = new GlobalBeanRegistry();
+      registry.register(echo);
+      registry.register(ear);
+      registry.register(child2);
+
+      ReverseDependencyIndex dependencies = new ReverseDependencyIndex();
+      ScopedEJBReferenceResolver resolver = new ScopedEJBReferenceResolver();
+      resolver.setGlobalBeanRegistry(registry);
+      resolver.setResolutionListener(dependencies);
+
+      // client.jar -> ear/Child 2 -> ear, ear/Child 2 -> echo.jar
+      resolver.resolveEjb(client, CHILD2_REFERENCE);
+      resolver.resolveEjb(child2, PARENT_REFERENCE);
+      resolver.resolveEjb(child2, ECHO_REFERENCE);
+      resolver.resolveEjb(child2, CHILD3_REFERENCE);
+
+      DeploymentDependencyGraph graph = dependencies.getDependencyGraph();
+      Assert.assertTrue("Graph should be acyclic", graph.isAcyclic());
+      Assert.assertEquals(4, graph.getDeploymentUnits().size());
+      Assert.assertEquals(Collections.singleton(child2), graph.getDependencies(client));
+      Assert.assertEquals(Collections.singleton(client), graph.getDependents(child2));
+      List<Set<DeploymentUnit>> layers = graph.getLayers();
+      Assert.assertEquals("Unexpected layers " + layers, 3, layers.size());
+      Assert.assertEquals(2, layers.get(0).size());
+      Assert.assertTrue(layers.get(0).contains(ear) && layers.get(0).contains(echo));
+      Assert.assertEquals(Collections.singleton(child2), layers.get(1));
+      Assert.assertEquals(Collections.singleton(client), layers.get(2));
+      List<DeploymentUnit> order = graph.getTopologicalOrder();
+      Assert.assertTrue(order.indexOf(child2) > order.indexOf(ear) && order.indexOf(client) > order.indexOf(child2));
+
+      // a cycle can't be ordered
+      resolver.resolveEjb(ear, ECHO_REFERENCE);
+      resolver.resolveEjb(echo, PARENT_REFERENCE);
+      graph = dependencies.getDependencyGraph();
+      Assert.assertFalse("Graph should be cyclic", graph.isAcyclic());
+      Assert.assertTrue(graph.getCyclicDeploymentUnits().contains(echo));
+      try
+      {
+         graph.getTopologicalOrder();
+         Assert.fail("Cyclic graph was ordered");
+      }
+      catch (IllegalStateException expected)
+      {
+         // expected
+      }
+   }
+
+   private void testDependentsAreRecorded(AbstractEjbReferenceResolver resolver, boolean indexed)
+   {
+      MockDeploymentUnit ear = createDeployment("ear");
+      if (indexed)
+      {
+         DeploymentTreeIndex.attach(ear);
+      }
+      DeploymentUnit child2 = ear.getChildren().get(0);
+      ReverseDependencyIndex dependencies = new ReverseDependencyIndex();
+      resolver.setResolutionListener(dependencies);
+
+      resolver.resolveEjb(ear, CHILD2_REFERENCE);
+      resolver.resolveEjb(child2, CHILD2_REFERENCE);
+      resolver.resolveEjb(ear, CHILD3_REFERENCE);
+      resolver.resolveEjb(child2, PARENT_REFERENCE);
+      resolver.resolveEjb(ear, new EjbReference(null, null, "mapped/Name"));
+
+      Set<ReverseDependencyIndex.Dependent> child2Dependents = dependencies.getDependents(child2, Child2Bean.class
+            .getSimpleName());
+      Assert.assertEquals("Unexpected dependents of Child2Bean: " + child2Dependents, 2, child2Dependents.size());
+      for (ReverseDependencyIndex.Dependent dependent : child2Dependents)
+      {
+         EjbReference reference = dependent.getReference();
+         Assert.assertEquals("Unexpected bean name", CHILD2_REFERENCE.getBeanName(), reference.getBeanName());
+         Assert.assertEquals("Unexpected bean interface", CHILD2_REFERENCE.getBeanInterface(), reference
+               .getBeanInterface());
+         Assert.assertEquals("Unexpected mapped name", CHILD2_REFERENCE.getMappedName(), reference.getMappedName());
+      }
+      Assert.assertEquals("Unexpected dependents of " + child2, 3, dependencies.getDependents(child2).size());
+      Set<ReverseDependencyIndex.Dependent> parentDependents = dependencies.getDependents(ear);
+      Assert.assertEquals("Unexpected dependents of " + ear, 1, parentDependents.size());
+      Assert.assertSame(child2, parentDependents.iterator().next().getDeploymentUnit());
+
+      dependencies.removeReferencesFrom(child2);
+      Assert.assertTrue("References from " + child2 + " were not removed", dependencies.getDependents(ear).isEmpty());
+      Assert.assertEquals("Unexpected dependents of " + child2, 2, dependencies.getDependents(child2).size());
+   }
+
+   /**
+    * A reference which can be changed after its resolution
+    */
+   private static class MutableEjbReference extends EjbReference
+   {
+      MutableEjbReference(String beanInterface)
+      {
+         super(null, beanInterface, null);
+      }
+
+      @Override
+      public void setBeanInterface(String beanInterface)
+      {
+         super.setBeanInterface(beanInterface);
+      }
+   }
+
+   /**
+    * Creates a deployment:
+    *
+    * Parent (ParentBean)
+    * |------ Child 2 (Child2Bean and Child3Bean)
+    */
+   private static MockDeploymentUnit createDeployment(String name)
+   {
+      MockDeploymentUnit parent = new MockDeploymentUnit(name);
+      parent.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, parentMetaData);
+      MockDeploymentUnit child2 = new MockDeploymentUnit(name + "/Child 2", parent);
+      child2.addAttachment(EJB30MetaDataBasedEjbReferenceResolver.DU_ATTACHMENT_NAME_METADATA, child2MetaData);
+      parent.addChild(child2);
+      return parent;
+   }
+}
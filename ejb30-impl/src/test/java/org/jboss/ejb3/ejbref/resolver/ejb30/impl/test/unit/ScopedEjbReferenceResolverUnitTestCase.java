@@ -39,6 +39,7 @@ import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.SimpleCalculator;
 import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.common.MetadataUtil;
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
 import org.jboss.logging.Logger;
 import org.jboss.metadata.annotation.creator.ejb.jboss.JBoss50Creator;
 import org.jboss.metadata.annotation.finder.AnnotationFinder;
@@ -154,4 +155,29 @@ public class ScopedEjbReferenceResolverUnitTestCase extends EjbReferenceResolver
             jndiNameResolvedFromDUContainingEchoBean);
 
    }
+
+   /**
+    * Tests that the {@link ScopedEJBReferenceResolver} uses any mapped-name which isn't empty
+    * as is, even a blank one, and reports the {@link DeploymentUnit} from which an unresolvable
+    * reference was resolved
+    */
+   @Test
+   public void testMappedNameAndUnresolvableReference() throws Exception
+   {
+      MockDeploymentUnit du = new MockDeploymentUnit("Empty DU");
+      Assert.assertEquals("Blank mapped-name not used as is", " ", this.resolver.resolveEjb(du,
+            new EjbReference(null, Echo.class.getName(), " ")));
+
+      EjbReference unresolvable = new EjbReference(null, Echo.class.getName(), "");
+      try
+      {
+         this.resolver.resolveEjb(du, unresolvable);
+         Assert.fail("Reference resolved in a DU without beans");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         Assert.assertEquals("Unexpected message", "Could not resolve reference " + unresolvable + " in " + du,
+               expected.getMessage());
+      }
+   }
 }
@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.unit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.SingleFlightEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.test.MockDeploymentUnit;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
+import org.jboss.ejb3.ejbref.resolver.spi.EjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.spi.UnresolvableReferenceException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link SingleFlightEjbReferenceResolver} shares one in-flight resolution
+ * between concurrent, identical, requests
+ *
+ * @version $Revision: $
+ */
+public class SingleFlightEjbReferenceResolverUnitTestCase
+{
+
+   private static final int THREAD_COUNT = 16;
+
+   private ExecutorService executor;
+
+   @Before
+   public void before()
+   {
+      this.executor = Executors.newFixedThreadPool(THREAD_COUNT);
+   }
+
+   @After
+   public void after()
+   {
+      this.executor.shutdownNow();
+   }
+
+   /**
+    * Tests that concurrent identical resolutions invoke the delegate only once and
+    * all get its result
+    */
+   @Test
+   public void testConcurrentIdenticalResolutionsShareResult() throws Exception
+   {
+      BlockingResolver delegate = new BlockingResolver(null);
+      SingleFlightEjbReferenceResolver resolver = new SingleFlightEjbReferenceResolver(delegate);
+
+      List<Future<String>> results = this.resolveConcurrently(resolver, delegate);
+
+      for (Future<String> result : results)
+      {
+         Assert.assertEquals("Unexpected jndi name", BlockingResolver.JNDI_NAME, result.get());
+      }
+      Assert.assertEquals("Delegate should have been invoked just once", 1, delegate.invocations.get());
+      Assert.assertEquals("Unexpected number of joined resolutions", THREAD_COUNT - 1, resolver.getJoinedCount());
+      Assert.assertEquals("In-flight resolution was not cleaned up", 0, resolver.getInFlightCount());
+   }
+
+   /**
+    * Tests that a failing resolution hands out its exception to every waiting thread
+    * and is cleaned up, so that the next resolution is attempted again
+    */
+   @Test
+   public void testFailedResolutionIsSharedAndCleanedUp() throws Exception
+   {
+      UnresolvableReferenceException failure = new UnresolvableReferenceException("Expected failure");
+      BlockingResolver delegate = new BlockingResolver(failure);
+      SingleFlightEjbReferenceResolver resolver = new SingleFlightEjbReferenceResolver(delegate);
+
+      List<Future<String>> results = this.resolveConcurrently(resolver, delegate);
+
+      for (Future<String> result : results)
+      {
+         try
+         {
+            result.get();
+            Assert.fail("Resolution was expected to fail");
+         }
+         catch (ExecutionException ee)
+         {
+            Assert.assertSame("Unexpected exception", failure, ee.getCause());
+         }
+      }
+      Assert.assertEquals("Delegate should have been invoked just once", 1, delegate.invocations.get());
+      Assert.assertEquals("Failed in-flight resolution was not cleaned up", 0, resolver.getInFlightCount());
+
+      // the failure must not stick
+      delegate.release.countDown();
+      try
+      {
+         resolver.resolveEjb(delegate.du, delegate.reference);
+         Assert.fail("Resolution was expected to fail");
+      }
+      catch (UnresolvableReferenceException expected)
+      {
+         // expected
+      }
+      Assert.assertEquals("Failed resolution should have been retried", 2, delegate.invocations.get());
+   }
+
+   /**
+    * Fires {@link #THREAD_COUNT} identical resolutions, and lets the delegate complete once
+    * all of them are waiting on the in-flight one
+    */
+   private List<Future<String>> resolveConcurrently(final SingleFlightEjbReferenceResolver resolver,
+         final BlockingResolver delegate) throws Exception
+   {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < THREAD_COUNT; i++)
+      {
+         results.add(this.executor.submit(new Callable<String>()
+         {
+            public String call() throws Exception
+            {
+               return resolver.resolveEjb(delegate.du, delegate.reference);
+            }
+         }));
+      }
+
+      // wait till every thread either owns or joined the resolution
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+      while (resolver.getJoinedCount() < THREAD_COUNT - 1 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(5);
+      }
+      Assert.assertEquals("Not all threads joined the in-flight resolution", THREAD_COUNT - 1, resolver
+            .getJoinedCount());
+      delegate.release.countDown();
+      return results;
+   }
+
+   /**
+    * A resolver which blocks until released, and then returns a fixed jndi-name
+    * or throws the configured exception
+    */
+   private static class BlockingResolver implements EjbReferenceResolver
+   {
+      static final String JNDI_NAME = "SingleFlightBean/local";
+
+      final DeploymentUnit du = new MockDeploymentUnit("Single flight DU");
+
+      final EjbReference reference = new EjbReference(null, "org.jboss.SingleFlightLocal", null);
+
+      final CountDownLatch release = new CountDownLatch(1);
+
+      final AtomicInteger invocations = new AtomicInteger();
+
+      private final RuntimeException failure;
+
+      BlockingResolver(RuntimeException failure)
+      {
+         this.failure = failure;
+      }
+
+      public String resolveEjb(DeploymentUnit du, EjbReference reference) throws UnresolvableReferenceException
+      {
+         this.invocations.incrementAndGet();
+         try
+         {
+            this.release.await();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+         }
+         if (this.failure != null)
+         {
+            throw this.failure;
+         }
+         return JNDI_NAME;
+      }
+   }
+}
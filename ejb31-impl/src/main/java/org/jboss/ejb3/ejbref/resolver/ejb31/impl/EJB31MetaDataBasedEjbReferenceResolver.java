@@ -24,6 +24,7 @@ package org.jboss.ejb3.ejbref.resolver.ejb31.impl;
 import java.util.Collection;
 
 import org.jboss.ejb3.ejbref.resolver.ejb30.impl.EJB30MetaDataBasedEjbReferenceResolver;
+import org.jboss.ejb3.ejbref.resolver.ejb30.impl.IndexableEjbReferenceResolver;
 import org.jboss.ejb3.ejbref.resolver.spi.EjbReference;
 import org.jboss.logging.Logger;
 import org.jboss.metadata.ejb.jboss.JBossMetaData;
@@ -156,6 +157,21 @@ public class EJB31MetaDataBasedEjbReferenceResolver extends EJB30MetaDataBasedEj
    public void setJNDIBindingPolicy(DefaultJndiBindingPolicy jndiBindingPolicy)
    {
       this.jndiBindingPolicy = jndiBindingPolicy;
+      // the jndi-names held by the bean descriptors no longer apply
+      this.descriptorsChanged();
+   }
+
+   /**
+    * {@inheritDoc}
+    * <p>
+    * The descriptors hold jndi-names, so the resolvers must also use the same jndi binding policy.
+    * </p>
+    */
+   @Override
+   public boolean createsSameDescriptors(IndexableEjbReferenceResolver other)
+   {
+      return super.createsSameDescriptors(other)
+            && ((EJB31MetaDataBasedEjbReferenceResolver) other).jndiBindingPolicy == this.jndiBindingPolicy;
    }
 
    /**
@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.spi;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * An {@link EjbReferenceResolver} which can also resolve references in the background,
+ * so that the caller can go on with other work in the meantime
+ *
+ * @version $Revision: $
+ */
+public interface AsyncEjbReferenceResolver extends EjbReferenceResolver
+{
+
+   // --------------------------------------------------------------------------------||
+   // Contracts ----------------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Starts the resolution of the JNDI Name of the proxy described by the specified
+    * arguments, and returns without waiting for it.
+    * 
+    * @param du The DeploymentUnit in question
+    * @param reference The EJB reference used
+    * @return The pending resolution. {@link Future#get()} throws an 
+    *   {@link java.util.concurrent.ExecutionException} caused by an 
+    *   {@link UnresolvableReferenceException} if the reference cannot be resolved within scope
+    */
+   Future<String> resolveEjbAsync(DeploymentUnit du, EjbReference reference);
+
+   /**
+    * Starts the resolution of all the specified references, and returns without waiting
+    * for any of them.
+    * 
+    * @param du The DeploymentUnit in question
+    * @param references The EJB references used
+    * @return The pending resolutions, in the order of the references
+    */
+   List<Future<String>> resolveEjbsAsync(DeploymentUnit du, List<EjbReference> references);
+
+}
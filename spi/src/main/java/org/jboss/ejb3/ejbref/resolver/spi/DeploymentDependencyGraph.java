@@ -0,0 +1,285 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * DeploymentDependencyGraph
+ * 
+ * An immutable graph of the dependencies between {@link DeploymentUnit}s, as
+ * established by resolving the {@link EjbReference}s of the components of a
+ * {@link DeploymentUnit} to the beans of other {@link DeploymentUnit}s.
+ * 
+ * Besides the dependencies of each unit, the graph provides a topological order of
+ * the units (every unit comes after the units it depends on) and its layers: each layer
+ * only holds units whose dependencies all belong to previous layers, so the units of a
+ * layer can be started in parallel once the previous layers have been started.
+ * 
+ * Graphs are created through a {@link Builder}.
+ *
+ * @version $Revision: $
+ */
+public class DeploymentDependencyGraph
+{
+
+   // --------------------------------------------------------------------------------||
+   // Instance Members ---------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * The dependencies of each unit, in the order the units were added
+    */
+   private final Map<DeploymentUnit, Set<DeploymentUnit>> dependencies;
+
+   /**
+    * The units which depend on each unit
+    */
+   private final Map<DeploymentUnit, Set<DeploymentUnit>> dependents;
+
+   /**
+    * The layers of the graph, empty if the graph has cycles
+    */
+   private final List<Set<DeploymentUnit>> layers;
+
+   /**
+    * The units which are part of, or depend on, a cycle
+    */
+   private final Set<DeploymentUnit> cyclicDeploymentUnits;
+
+   // --------------------------------------------------------------------------------||
+   // Constructors -------------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private DeploymentDependencyGraph(Map<DeploymentUnit, Set<DeploymentUnit>> dependencies)
+   {
+      // Copy the dependencies and compute the reverse edges
+      Map<DeploymentUnit, Set<DeploymentUnit>> forward = new LinkedHashMap<DeploymentUnit, Set<DeploymentUnit>>();
+      Map<DeploymentUnit, Set<DeploymentUnit>> reverse = new LinkedHashMap<DeploymentUnit, Set<DeploymentUnit>>();
+      for (DeploymentUnit du : dependencies.keySet())
+      {
+         reverse.put(du, new LinkedHashSet<DeploymentUnit>());
+      }
+      for (Map.Entry<DeploymentUnit, Set<DeploymentUnit>> entry : dependencies.entrySet())
+      {
+         forward.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<DeploymentUnit>(entry.getValue())));
+         for (DeploymentUnit dependency : entry.getValue())
+         {
+            reverse.get(dependency).add(entry.getKey());
+         }
+      }
+      for (Map.Entry<DeploymentUnit, Set<DeploymentUnit>> entry : reverse.entrySet())
+      {
+         entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+      }
+      this.dependencies = Collections.unmodifiableMap(forward);
+      this.dependents = Collections.unmodifiableMap(reverse);
+
+      // Peel the graph layer by layer: a unit joins the first layer after all its dependencies
+      List<Set<DeploymentUnit>> layers = new ArrayList<Set<DeploymentUnit>>();
+      Set<DeploymentUnit> placed = new LinkedHashSet<DeploymentUnit>();
+      Set<DeploymentUnit> remaining = new LinkedHashSet<DeploymentUnit>(forward.keySet());
+      while (!remaining.isEmpty())
+      {
+         Set<DeploymentUnit> layer = new LinkedHashSet<DeploymentUnit>();
+         for (DeploymentUnit du : remaining)
+         {
+            if (placed.containsAll(forward.get(du)))
+            {
+               layer.add(du);
+            }
+         }
+         if (layer.isEmpty())
+         {
+            // Whatever is left can't be ordered
+            break;
+         }
+         remaining.removeAll(layer);
+         placed.addAll(layer);
+         layers.add(Collections.unmodifiableSet(layer));
+      }
+      this.cyclicDeploymentUnits = Collections.unmodifiableSet(remaining);
+      this.layers = remaining.isEmpty() ? Collections.unmodifiableList(layers) : Collections
+            .<Set<DeploymentUnit>> emptyList();
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Functional Methods -------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns all the units of the graph, in the order they were added
+    */
+   public Set<DeploymentUnit> getDeploymentUnits()
+   {
+      return this.dependencies.keySet();
+   }
+
+   /**
+    * Returns the units which the passed unit depends on, or an empty set if the
+    * unit isn't part of the graph
+    */
+   public Set<DeploymentUnit> getDependencies(DeploymentUnit du)
+   {
+      Set<DeploymentUnit> result = this.dependencies.get(du);
+      return result == null ? Collections.<DeploymentUnit> emptySet() : result;
+   }
+
+   /**
+    * Returns the units which depend on the passed unit, or an empty set if the
+    * unit isn't part of the graph
+    */
+   public Set<DeploymentUnit> getDependents(DeploymentUnit du)
+   {
+      Set<DeploymentUnit> result = this.dependents.get(du);
+      return result == null ? Collections.<DeploymentUnit> emptySet() : result;
+   }
+
+   /**
+    * Returns true if the dependencies of the graph have no cycle
+    */
+   public boolean isAcyclic()
+   {
+      return this.cyclicDeploymentUnits.isEmpty();
+   }
+
+   /**
+    * Returns the units which are part of a cycle, or which depend on a unit which is
+    * part of a cycle. Empty if the graph is acyclic.
+    */
+   public Set<DeploymentUnit> getCyclicDeploymentUnits()
+   {
+      return this.cyclicDeploymentUnits;
+   }
+
+   /**
+    * Returns the layers of the graph: the first layer holds the units without dependencies,
+    * and each following layer the units whose dependencies all belong to previous layers
+    * 
+    * @throws IllegalStateException If the graph has cycles
+    */
+   public List<Set<DeploymentUnit>> getLayers()
+   {
+      this.assertAcyclic();
+      return this.layers;
+   }
+
+   /**
+    * Returns the units of the graph in topological order: each unit comes after
+    * the units it depends on
+    * 
+    * @throws IllegalStateException If the graph has cycles
+    */
+   public List<DeploymentUnit> getTopologicalOrder()
+   {
+      this.assertAcyclic();
+      List<DeploymentUnit> order = new ArrayList<DeploymentUnit>(this.dependencies.size());
+      for (Set<DeploymentUnit> layer : this.layers)
+      {
+         order.addAll(layer);
+      }
+      return Collections.unmodifiableList(order);
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Overridden Implementations -----------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   @Override
+   public String toString()
+   {
+      return "[Deployment Dependency Graph: " + this.dependencies + "]";
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Helper Methods -----------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   private void assertAcyclic()
+   {
+      if (!this.isAcyclic())
+      {
+         throw new IllegalStateException("Dependencies of " + this.cyclicDeploymentUnits
+               + " are cyclic, they cannot be ordered");
+      }
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Inner Classes ------------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Collects the dependencies between {@link DeploymentUnit}s and builds the
+    * {@link DeploymentDependencyGraph} out of them. Not thread safe.
+    */
+   public static class Builder
+   {
+      private final Map<DeploymentUnit, Set<DeploymentUnit>> dependencies = new LinkedHashMap<DeploymentUnit, Set<DeploymentUnit>>();
+
+      /**
+       * Adds the passed unit to the graph, without any dependency
+       */
+      public Builder addDeploymentUnit(DeploymentUnit du)
+      {
+         if (du == null)
+         {
+            throw new IllegalArgumentException("DeploymentUnit cannot be null");
+         }
+         if (!this.dependencies.containsKey(du))
+         {
+            this.dependencies.put(du, new LinkedHashSet<DeploymentUnit>());
+         }
+         return this;
+      }
+
+      /**
+       * Records that the passed <code>du</code> depends on the passed <code>dependency</code>.
+       * Both units are added to the graph. A unit depending on itself is ignored.
+       */
+      public Builder addDependency(DeploymentUnit du, DeploymentUnit dependency)
+      {
+         this.addDeploymentUnit(du);
+         this.addDeploymentUnit(dependency);
+         if (du != dependency)
+         {
+            this.dependencies.get(du).add(dependency);
+         }
+         return this;
+      }
+
+      /**
+       * Builds the graph out of the collected dependencies
+       */
+      public DeploymentDependencyGraph build()
+      {
+         return new DeploymentDependencyGraph(this.dependencies);
+      }
+   }
+}
@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.ejbref.resolver.spi;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * LazyEjbReference
+ * 
+ * A handle to an {@link EjbReference} which is resolved the first time 
+ * its JNDI Name is asked for, rather than when the handle is created.
+ * 
+ * The JNDI Name is resolved at most once, even when {@link #get()} is called 
+ * concurrently, and is kept for the life of the handle. A resolution which 
+ * fails isn't kept: the next {@link #get()} tries again, as the target may 
+ * have been deployed in the meantime.
+ *
+ * @version $Revision: $
+ */
+public class LazyEjbReference
+{
+
+   // --------------------------------------------------------------------------------||
+   // Instance Members ---------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * The resolver used on first use
+    */
+   private final EjbReferenceResolver resolver;
+
+   /**
+    * The scope from which the reference is resolved
+    */
+   private final DeploymentUnit deploymentUnit;
+
+   /**
+    * The reference to resolve
+    */
+   private final EjbReference reference;
+
+   /**
+    * The resolved JNDI Name, null until resolved
+    */
+   private volatile String jndiName;
+
+   // --------------------------------------------------------------------------------||
+   // Constructors -------------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Sole Constructor
+    * 
+    * @param resolver The resolver used on first use. Must be thread safe.
+    * @param du The DeploymentUnit from which the reference is resolved
+    * @param reference The EJB reference
+    */
+   public LazyEjbReference(EjbReferenceResolver resolver, DeploymentUnit du, EjbReference reference)
+   {
+      // Precondition checks
+      if (resolver == null)
+      {
+         throw new IllegalArgumentException(EjbReferenceResolver.class.getSimpleName() + " cannot be null");
+      }
+      if (du == null)
+      {
+         throw new IllegalArgumentException(DeploymentUnit.class.getSimpleName() + " cannot be null");
+      }
+      if (reference == null)
+      {
+         throw new IllegalArgumentException(EjbReference.class.getSimpleName() + " cannot be null");
+      }
+
+      // Set properties
+      this.resolver = resolver;
+      this.deploymentUnit = du;
+      this.reference = reference;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Functional Methods -------------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   /**
+    * Returns the JNDI Name of the proxy described by the reference, 
+    * resolving it if not done yet
+    * 
+    * @throws UnresolvableReferenceException If the reference cannot be resolved within scope 
+    * @return
+    */
+   public String get() throws UnresolvableReferenceException
+   {
+      String resolved = this.jndiName;
+      if (resolved != null)
+      {
+         return resolved;
+      }
+      synchronized (this)
+      {
+         // Another thread may have resolved it while we waited
+         resolved = this.jndiName;
+         if (resolved == null)
+         {
+            resolved = this.resolver.resolveEjb(this.deploymentUnit, this.reference);
+            this.jndiName = resolved;
+         }
+         return resolved;
+      }
+   }
+
+   /**
+    * Returns whether the reference has been resolved already, 
+    * so that {@link #get()} returns without resolving it
+    * 
+    * @return
+    */
+   public boolean isResolved()
+   {
+      return this.jndiName != null;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Accessors / Mutators -----------------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   public DeploymentUnit getDeploymentUnit()
+   {
+      return deploymentUnit;
+   }
+
+   public EjbReference getReference()
+   {
+      return reference;
+   }
+
+   // --------------------------------------------------------------------------------||
+   // Overridden Implementations -----------------------------------------------------||
+   // --------------------------------------------------------------------------------||
+
+   @Override
+   public String toString()
+   {
+      // Initialize
+      StringBuffer buffer = new StringBuffer();
+
+      // Construct
+      buffer.append("[Lazy ");
+      buffer.append(this.reference);
+      buffer.append(" from ");
+      buffer.append(this.deploymentUnit);
+      buffer.append(", jndiName '");
+      buffer.append(this.jndiName);
+      buffer.append("']");
+
+      // Return
+      return buffer.toString();
+   }
+
+}